@@ -0,0 +1,134 @@
+package moa.benchmarks;
+
+import moa.core.InstancesHeader;
+import moa.core.ObjectRepository;
+import moa.options.AbstractOptionHandler;
+import moa.streams.InstanceStream;
+import moa.streams.generators.RandomRBFGenerator;
+import moa.streams.generators.RandomTreeGenerator;
+import moa.tasks.TaskMonitor;
+import weka.core.Instance;
+
+/**
+ * Data shared by the benchmarks: pools of instances generated by the MOA generators, and a stream
+ * that cycles over such a pool, so that the benchmarks do not measure the cost of the generators.
+ */
+public final class BenchmarkData {
+
+	/** The number of instances of the pools */
+	public static final int POOL_SIZE = 4096;
+
+	/** The seed of the generators */
+	private static final int RANDOM_SEED = 1;
+
+	private BenchmarkData() {
+		// static helpers only
+	}
+
+	/**
+	 * Creates a prepared generator of instances with the given number of attributes (besides the
+	 * class). Purely numeric instances are generated by a {@link RandomRBFGenerator}, and mixed ones
+	 * by a {@link RandomTreeGenerator}.
+	 *
+	 * @param attributes the number of attributes of the instances
+	 * @param nominalFraction the fraction (between 0 and 1) of the attributes that are nominal
+	 * @return the generator
+	 */
+	public static InstanceStream createGenerator(int attributes, double nominalFraction) {
+		int nominals = (int) Math.round(attributes * nominalFraction);
+		if (nominals == 0) {
+			RandomRBFGenerator generator = new RandomRBFGenerator();
+			generator.numAttsOption.setValue(attributes);
+			generator.modelRandomSeedOption.setValue(RANDOM_SEED);
+			generator.instanceRandomSeedOption.setValue(RANDOM_SEED);
+			generator.prepareForUse();
+			return generator;
+		}
+		else {
+			RandomTreeGenerator generator = new RandomTreeGenerator();
+			generator.numNominalsOption.setValue(nominals);
+			generator.numNumericsOption.setValue(attributes - nominals);
+			generator.treeRandomSeedOption.setValue(RANDOM_SEED);
+			generator.instanceRandomSeedOption.setValue(RANDOM_SEED);
+			generator.prepareForUse();
+			return generator;
+		}
+	}
+
+	/**
+	 * Generates a pool of {@link #POOL_SIZE} instances.
+	 *
+	 * @param generator the generator of the instances
+	 * @return the pool of instances
+	 */
+	public static Instance[] generateInstances(InstanceStream generator) {
+		Instance[] instances = new Instance[POOL_SIZE];
+		for (int i = 0; i < instances.length; ++i) {
+			instances[i] = generator.nextInstance();
+		}
+		return instances;
+	}
+
+	/** Endless stream that cycles over a pool of instances */
+	public static final class CyclicInstanceStream extends AbstractOptionHandler implements InstanceStream {
+
+		/** Serializable */
+		private static final long serialVersionUID = 6815069212530264385L;
+
+		private final InstancesHeader header;
+
+		private final Instance[] instances;
+
+		private int position;
+
+		public CyclicInstanceStream(InstancesHeader header, Instance[] instances) {
+			this.header = header;
+			this.instances = instances;
+			this.position = 0;
+		}
+
+		@Override
+		public InstancesHeader getHeader() {
+			return header;
+		}
+
+		@Override
+		public long estimatedRemainingInstances() {
+			return -1;
+		}
+
+		@Override
+		public boolean hasMoreInstances() {
+			return true;
+		}
+
+		@Override
+		public Instance nextInstance() {
+			Instance instance = instances[position];
+			position = (position + 1) % instances.length;
+			return instance;
+		}
+
+		@Override
+		public boolean isRestartable() {
+			return true;
+		}
+
+		@Override
+		public void restart() {
+			position = 0;
+		}
+
+		@Override
+		public void getDescription(StringBuilder sb, int indent) {
+			// TODO Auto-generated method stub
+		}
+
+		@Override
+		protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+			// nothing to prepare
+		}
+
+	}
+
+}
@@ -0,0 +1,45 @@
+package moa.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of the benchmarks JAR. It accepts the same arguments as the JMH launcher
+ * ({@code -h} lists them), but always enables the GC profiler, so that the allocation rate
+ * ({@code gc.alloc.rate.norm}, in bytes per operation) is reported along with the throughput.
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {
+		// entry point only
+	}
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLineOptions;
+		try {
+			commandLineOptions = new CommandLineOptions(args);
+		} catch (CommandLineOptionException e) {
+			System.err.println("Error parsing the command line: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		if (commandLineOptions.shouldHelp()) {
+			commandLineOptions.showHelp();
+			return;
+		}
+		if (commandLineOptions.shouldList() || commandLineOptions.shouldListWithParams()
+				|| commandLineOptions.shouldListProfilers() || commandLineOptions.shouldListResultFormats()) {
+			//the listings are handled by the plain JMH launcher
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLineOptions);
+		options.addProfiler(GCProfiler.class);
+		new Runner(options.build()).run();
+	}
+
+}
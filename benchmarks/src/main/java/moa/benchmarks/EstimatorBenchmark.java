@@ -0,0 +1,113 @@
+package moa.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import moa.benchmarks.BenchmarkData.CyclicInstanceStream;
+import moa.options.ClassOption;
+import moa.streams.InstanceStream;
+import moa.streams.filters.privacy.InstancePair;
+import moa.streams.filters.privacy.estimators.FilterEstimator;
+import moa.streams.filters.privacy.noiseaddition.NoiseAdditionFilter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the disclosure risk and information loss estimators, fed with pairs of original
+ * instances and their noise-added versions. The estimators are measured in their steady state
+ * (their buffers are full once the warmup is over).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EstimatorBenchmark {
+
+	/** The number of pairs estimated by each invocation of {@link #performEstimationForBlock()} */
+	private static final int BLOCK_SIZE = 256;
+
+	@Param({ "linker", "pivotlinker", "reservoirlinker", "sse" })
+	public String estimator;
+
+	@Param({ "100", "1000" })
+	public int bufferSize;
+
+	@Param({ "10", "50" })
+	public int attributes;
+
+	@Param({ "0.0", "0.5" })
+	public double nominalFraction;
+
+	private FilterEstimator filterEstimator;
+
+	private InstancePair[] pairs;
+
+	private int position;
+
+	/** Returns the CLI string of the estimator to be measured */
+	private String getEstimatorCLIString() {
+		if (estimator.equals("linker")) {
+			return "disclosurerisk.BufferedIndividualRecordLinker -b " + bufferSize;
+		}
+		else if (estimator.equals("pivotlinker")) {
+			return "disclosurerisk.BufferedIndividualRecordLinker -b " + bufferSize + " -p 8";
+		}
+		else if (estimator.equals("reservoirlinker")) {
+			return "disclosurerisk.ReservoirRecordLinker -b " + bufferSize;
+		}
+		else if (estimator.equals("sse")) {
+			return "informationloss.SSEEstimator";
+		}
+		throw new IllegalArgumentException("Unknown estimator: " + estimator);
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		InstanceStream generator = BenchmarkData.createGenerator(attributes, nominalFraction);
+		NoiseAdditionFilter noiseFilter = new NoiseAdditionFilter();
+		noiseFilter.setInputStream(new CyclicInstanceStream(generator.getHeader(),
+				BenchmarkData.generateInstances(generator)));
+		pairs = new InstancePair[BenchmarkData.POOL_SIZE];
+		for (int i = 0; i < pairs.length; ++i) {
+			pairs[i] = noiseFilter.nextAnonymizedInstancePair();
+		}
+		filterEstimator = (FilterEstimator) ClassOption.cliStringToObject(getEstimatorCLIString(),
+				FilterEstimator.class, null);
+		filterEstimator.prepareForUse();
+		//fill the buffers of the estimator
+		for (int i = 0; i < bufferSize; ++i) {
+			filterEstimator.performEstimationForInstances(pairs[i]);
+		}
+		position = bufferSize % pairs.length;
+	}
+
+	@Benchmark
+	public void performEstimation() {
+		filterEstimator.performEstimationForInstances(pairs[position]);
+		position = (position + 1) % pairs.length;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BLOCK_SIZE)
+	public void performEstimationForBlock() {
+		if (position + BLOCK_SIZE > pairs.length) {
+			position = 0;
+		}
+		filterEstimator.performEstimationForInstances(pairs, position, BLOCK_SIZE);
+		position += BLOCK_SIZE;
+	}
+
+}
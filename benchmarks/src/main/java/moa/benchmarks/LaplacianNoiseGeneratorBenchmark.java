@@ -0,0 +1,48 @@
+package moa.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import moa.streams.filters.privacy.differentialprivacy.algorithms.laplace.LaplacianNoiseGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the {@link LaplacianNoiseGenerator}, which draws the noise of the differential
+ * privacy filter (one value per numeric attribute of each instance).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LaplacianNoiseGeneratorBenchmark {
+
+	private LaplacianNoiseGenerator generator;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		generator = new LaplacianNoiseGenerator(LaplacianNoiseGenerator.DEFAULT_RANDOM_SEED);
+	}
+
+	@Benchmark
+	public double nextLaplacian() {
+		return generator.nextLaplacian();
+	}
+
+	@Benchmark
+	public double nextLaplacianWithParameters() {
+		return generator.nextLaplacian(0.0, 2.5);
+	}
+
+}
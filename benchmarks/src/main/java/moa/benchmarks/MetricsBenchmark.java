@@ -0,0 +1,67 @@
+package moa.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import moa.streams.filters.privacy.utils.Metrics;
+import weka.core.Instance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the {@link Metrics} between instances, which dominate the cost of the
+ * microaggregation filters and of the record linkers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsBenchmark {
+
+	@Param({ "10", "50" })
+	public int attributes;
+
+	@Param({ "0.0", "0.5" })
+	public double nominalFraction;
+
+	private Instance[] instances;
+
+	private int position;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		instances = BenchmarkData.generateInstances(BenchmarkData.createGenerator(attributes, nominalFraction));
+		position = 0;
+	}
+
+	/** Returns the index of the first instance of the next pair to be measured */
+	private int nextPosition() {
+		position = (position + 1) % (instances.length - 1);
+		return position;
+	}
+
+	@Benchmark
+	public double distance() {
+		int i = nextPosition();
+		return Metrics.distance(instances[i], instances[i + 1]);
+	}
+
+	@Benchmark
+	public double sse() {
+		int i = nextPosition();
+		return Metrics.sse(instances[i], instances[i + 1]);
+	}
+
+}
@@ -0,0 +1,119 @@
+package moa.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import moa.benchmarks.BenchmarkData.CyclicInstanceStream;
+import moa.options.ClassOption;
+import moa.streams.InstanceStream;
+import moa.streams.filters.privacy.PrivacyFilter;
+import weka.core.Instance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the privacy filters, anonymizing an endless stream that cycles over a pool of
+ * generated instances. The filters are measured in their steady state (their buffers are full
+ * once the warmup is over) and without evaluation, whose estimators are measured on their own
+ * by the {@link EstimatorBenchmark}.
+ * <p>
+ * The parameters that do not apply to a filter (e.g. the buffer size of the noise addition
+ * filter) are ignored by it. For the rank swapping filter, {@code k} is the swapping range
+ * ({@code p} parameter).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrivacyFilterBenchmark {
+
+	/** The number of instances anonymized by each invocation of {@link #nextInstances(Blackhole)} */
+	private static final int BLOCK_SIZE = 256;
+
+	@Param({ "noiseaddition", "rankswapping", "microaggregation", "microclusteraggregation", "differentialprivacy", "chain" })
+	public String filter;
+
+	@Param({ "100", "1000" })
+	public int bufferSize;
+
+	@Param({ "3", "10" })
+	public int k;
+
+	@Param({ "10", "50" })
+	public int attributes;
+
+	@Param({ "0.0", "0.5" })
+	public double nominalFraction;
+
+	private PrivacyFilter privacyFilter;
+
+	private Instance[] block;
+
+	/** Returns the CLI string of the filter to be measured */
+	private String getFilterCLIString() {
+		if (filter.equals("noiseaddition")) {
+			return "noiseaddition.NoiseAdditionFilter";
+		}
+		else if (filter.equals("rankswapping")) {
+			return "rankswapping.RankSwappingFilter -b " + bufferSize + " -p " + k;
+		}
+		else if (filter.equals("microaggregation")) {
+			return "microaggregation.MicroAggregationFilter -b " + bufferSize + " -k " + k;
+		}
+		else if (filter.equals("microclusteraggregation")) {
+			return "microaggregation.MicroClusterAggregationFilter -b " + bufferSize + " -k " + k;
+		}
+		else if (filter.equals("differentialprivacy")) {
+			return "differentialprivacy.DifferentialPrivacyFilter -b " + bufferSize + " -k " + k;
+		}
+		else if (filter.equals("chain")) {
+			return "chain.ChainedPrivacyFilter -l (microaggregation.MicroAggregationFilter -b " + bufferSize
+					+ " -k " + k + ",noiseaddition.NoiseAdditionFilter)";
+		}
+		throw new IllegalArgumentException("Unknown filter: " + filter);
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		InstanceStream generator = BenchmarkData.createGenerator(attributes, nominalFraction);
+		InstanceStream stream = new CyclicInstanceStream(generator.getHeader(),
+				BenchmarkData.generateInstances(generator));
+		privacyFilter = (PrivacyFilter) ClassOption.cliStringToObject(getFilterCLIString(),
+				PrivacyFilter.class, null);
+		privacyFilter.setInputStream(stream);
+		block = new Instance[BLOCK_SIZE];
+		//fill the buffers of the filter, so that every call releases an instance
+		for (int i = 0; i < bufferSize; ++i) {
+			privacyFilter.nextInstance();
+		}
+	}
+
+	@Benchmark
+	public Instance nextInstance() {
+		return privacyFilter.nextInstance();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BLOCK_SIZE)
+	public void nextInstances(Blackhole blackhole) {
+		int length = privacyFilter.nextInstances(block, 0, BLOCK_SIZE);
+		for (int i = 0; i < length; ++i) {
+			blackhole.consume(block[i]);
+		}
+	}
+
+}
@@ -0,0 +1,424 @@
+package moa.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import moa.core.InstancesHeader;
+import moa.core.ObjectRepository;
+import moa.options.AbstractOptionHandler;
+import moa.options.ClassOption;
+import moa.streams.InstanceStream;
+import moa.streams.filters.privacy.PrivacyEvaluation;
+import moa.streams.filters.privacy.PrivacyFilter;
+import moa.tasks.TaskMonitor;
+import weka.core.Instance;
+
+/**
+ * Regression suite of the privacy filters: anonymizes the streams of several MOA generators (with
+ * their default, fixed seeds) at several sizes with each filter, and compares the results with the
+ * baselines stored in the {@link #BASELINES_RESOURCE}:
+ * <ul>
+ * <li>the checksum of the anonymized instances, which must be the same: a faster filter must still
+ * produce exactly the same anonymization;</li>
+ * <li>the disclosure risk and the information loss of the filter, which must be the same, but for
+ * rounding errors;</li>
+ * <li>the throughput of the filter (instances per second, without evaluation), which must not
+ * fall below the given fraction of the baseline one.</li>
+ * </ul>
+ * The suite also checks that the nearest neighbour searches of the microaggregation filters find the
+ * same clusters with the tiered buffer storage, whose small segments let the bounds of the segments
+ * prune the searches, as with the heap one (see {@link #STORAGE_CHECKS}).
+ * <p>
+ * The suite fails (throws an exception) if any case does not match its baseline. It is run from
+ * Maven with {@code mvn -P regression verify}, or from the benchmarks JAR with
+ * {@code java -cp target/benchmarks.jar moa.benchmarks.RegressionSuite}, which accepts:
+ * <ul>
+ * <li>{@code -b <file>}: the baselines file, instead of the stored one;</li>
+ * <li>{@code -t <fraction>}: the fraction of the baseline throughput that must be reached (0.25 by
+ * default, as the throughput depends on the machine);</li>
+ * <li>{@code -r <file>}: records the results as the new baselines in the given file, instead of
+ * comparing them, e.g. after a deliberate change of the output of a filter.</li>
+ * </ul>
+ * The checksums depend on the floating point results of the JVM, thus the baselines should be
+ * recorded with the JDK the suite is run with.
+ */
+public final class RegressionSuite {
+
+	/** The resource with the stored baselines */
+	public static final String BASELINES_RESOURCE = "regression-baselines.csv";
+
+	/** The header of the baselines file */
+	private static final String BASELINES_HEADER =
+			"Filter,Stream,Instances,Checksum,DisclosureRisk,InformationLoss,Throughput";
+
+	/** The default fraction of the baseline throughput that must be reached */
+	private static final double DEFAULT_THROUGHPUT_FRACTION = 0.25;
+
+	/** The relative tolerance of the comparison of the DR and IL with their baselines */
+	private static final double EVALUATION_TOLERANCE = 1e-9;
+
+	/** The minimum number and total time (in nanoseconds) of the timed runs of each case, the
+	 * fastest of which gives its throughput: the first ones are slowed down by the compilation of
+	 * the filter, and the short ones by any hiccup of the machine */
+	private static final int MIN_TIMED_RUNS = 3;
+	private static final long MIN_TIMED_NANOS = 250000000L;
+
+	/** The filters of the suite */
+	private static final String[] FILTERS = {
+		"noiseaddition.NoiseAdditionFilter",
+		"rankswapping.RankSwappingFilter",
+		"microaggregation.MicroAggregationFilter",
+		"microaggregation.MicroClusterAggregationFilter",
+		"differentialprivacy.DifferentialPrivacyFilter",
+		"chain.ChainedPrivacyFilter"
+	};
+
+	/** The streams of the suite, whose generators have fixed default seeds */
+	private static final String[] STREAMS = {
+		"generators.RandomRBFGenerator",
+		"generators.LEDGenerator",
+		"generators.HyperplaneGenerator",
+		"generators.RandomTreeGenerator",
+		"generators.WaveformGenerator"
+	};
+
+	/** The number of instances anonymized from each stream */
+	private static final int[] SIZES = { 1000, 10000 };
+
+	/** The filters whose output must not depend on the buffer storage, over the largest size */
+	private static final String[] STORAGE_CHECKS = {
+		"microaggregation.MicroAggregationFilter -b 1000",
+		"differentialprivacy.DifferentialPrivacyFilter -b 1000"
+	};
+
+	/** The tiered storage of the storage checks, with segments much smaller than the buffers */
+	private static final String TIERED_STORAGE = " -o Tiered -z 32 -m 1";
+
+	private RegressionSuite() {
+		// entry point only
+	}
+
+	public static void main(String[] args) throws Exception {
+		File baselinesFile = null;
+		File recordFile = null;
+		double throughputFraction = DEFAULT_THROUGHPUT_FRACTION;
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value of the argument " + args[i]);
+			}
+			if (args[i].equals("-b")) {
+				baselinesFile = new File(args[i + 1]);
+			}
+			else if (args[i].equals("-r")) {
+				recordFile = new File(args[i + 1]);
+			}
+			else if (args[i].equals("-t")) {
+				throughputFraction = Double.parseDouble(args[i + 1]);
+			}
+			else {
+				throw new IllegalArgumentException("Unknown argument: " + args[i]);
+			}
+		}
+
+		Map<String, Result> baselines = recordFile == null ? readBaselines(baselinesFile) : null;
+		StringBuilder records = new StringBuilder(BASELINES_HEADER).append('\n');
+		int failures = 0;
+		for (String stream : STREAMS) {
+			for (int size : SIZES) {
+				for (String filter : FILTERS) {
+					Result result = runCase(filter, stream, size);
+					records.append(result.toCSVRecord()).append('\n');
+					if (baselines == null) {
+						System.out.println("RECORDED " + result.toCSVRecord());
+						continue;
+					}
+					String failure = compare(result, baselines.get(result.getKey()), throughputFraction);
+					if (failure != null) {
+						++failures;
+						System.out.println("FAIL " + result.getKey() + ": " + failure);
+					}
+					else {
+						System.out.println("PASS " + result.getKey() + String.format(" (%.0f instances/s)",
+								result.throughput));
+					}
+				}
+			}
+		}
+
+		for (String stream : STREAMS) {
+			for (String filter : STORAGE_CHECKS) {
+				String key = filter + " " + stream;
+				String failure = checkStorage(filter, stream, SIZES[SIZES.length - 1]);
+				if (failure != null) {
+					++failures;
+					System.out.println("FAIL storage " + key + ": " + failure);
+				}
+				else {
+					System.out.println("PASS storage " + key);
+				}
+			}
+		}
+
+		if (recordFile != null) {
+			Writer writer = new FileWriter(recordFile);
+			try {
+				writer.write(records.toString());
+			} finally {
+				writer.close();
+			}
+			System.out.println("Baselines recorded in " + recordFile.getPath());
+		}
+		else if (failures > 0) {
+			throw new IllegalStateException(failures + " regression cases do not match their baselines.");
+		}
+	}
+
+	/**
+	 * Compares the result of a case with its baseline.
+	 *
+	 * @return the description of the mismatch, or {@code null} if the result matches the baseline
+	 */
+	private static String compare(Result result, Result baseline, double throughputFraction) {
+		if (baseline == null) {
+			return "no baseline";
+		}
+		if (!result.checksum.equals(baseline.checksum)) {
+			return "checksum " + result.checksum + " instead of " + baseline.checksum;
+		}
+		if (!matches(result.disclosureRisk, baseline.disclosureRisk)) {
+			return "disclosure risk " + result.disclosureRisk + " instead of " + baseline.disclosureRisk;
+		}
+		if (!matches(result.informationLoss, baseline.informationLoss)) {
+			return "information loss " + result.informationLoss + " instead of " + baseline.informationLoss;
+		}
+		if (result.throughput < baseline.throughput * throughputFraction) {
+			return String.format("throughput %.0f instances/s below %.0f (%.0f%% of %.0f)", result.throughput,
+					baseline.throughput * throughputFraction, throughputFraction * 100, baseline.throughput);
+		}
+		return null;
+	}
+
+	/**
+	 * Anonymizes the stream with the heap and the tiered storage of the buffers of the filter.
+	 *
+	 * @return the description of the mismatch, or {@code null} if both give the same output
+	 */
+	private static String checkStorage(String filter, String stream, int size) throws Exception {
+		String heapChecksum = anonymize(createFilter(filter, stream, size, false));
+		String tieredChecksum = anonymize(createFilter(filter + TIERED_STORAGE, stream, size, false));
+		if (!tieredChecksum.equals(heapChecksum)) {
+			return "checksum " + tieredChecksum + " with the tiered storage instead of " + heapChecksum;
+		}
+		return null;
+	}
+
+	private static boolean matches(double value, double baseline) {
+		return Math.abs(value - baseline) <= EVALUATION_TOLERANCE * Math.max(1.0, Math.abs(baseline));
+	}
+
+	/**
+	 * Runs a case of the suite: anonymizes the stream once with evaluation, for the checksum, the DR
+	 * and the IL, and then several times without evaluation, for the throughput (and the same
+	 * checksum).
+	 */
+	private static Result runCase(String filter, String stream, int size) throws Exception {
+		Result result = new Result(filter, stream, size);
+		PrivacyFilter evaluatedFilter = createFilter(filter, stream, size, true);
+		result.checksum = anonymize(evaluatedFilter);
+		PrivacyEvaluation evaluation = evaluatedFilter.getEvaluation();
+		result.disclosureRisk = evaluation.getDisclosureRisk();
+		result.informationLoss = evaluation.getInformationLoss();
+
+		long elapsedTime = Long.MAX_VALUE;
+		long totalTime = 0;
+		for (int i = 0; i < MIN_TIMED_RUNS || totalTime < MIN_TIMED_NANOS; ++i) {
+			PrivacyFilter timedFilter = createFilter(filter, stream, size, false);
+			long startTime = System.nanoTime();
+			String checksum = anonymize(timedFilter);
+			final long runTime = System.nanoTime() - startTime;
+			elapsedTime = Math.min(elapsedTime, runTime);
+			totalTime += runTime;
+			if (!checksum.equals(result.checksum)) {
+				throw new IllegalStateException("The evaluation changes the output of the case " + result.getKey());
+			}
+		}
+		result.throughput = size / (Math.max(elapsedTime, 1) / 1e9);
+		return result;
+	}
+
+	/** Creates a prepared filter over the given number of instances of the stream */
+	private static PrivacyFilter createFilter(String filter, String stream, int size, boolean evaluation)
+			throws Exception {
+		InstanceStream generator = (InstanceStream) ClassOption.cliStringToObject(stream, InstanceStream.class, null);
+		((AbstractOptionHandler) generator).prepareForUse();
+		PrivacyFilter privacyFilter = (PrivacyFilter) ClassOption.cliStringToObject(filter, PrivacyFilter.class, null);
+		if (evaluation) {
+			privacyFilter.evaluationEnabledOption.set();
+		}
+		privacyFilter.setInputStream(new LimitedInstanceStream(generator, size));
+		return privacyFilter;
+	}
+
+	/** Anonymizes all the instances of the input stream of the filter, returning their checksum */
+	private static String anonymize(PrivacyFilter filter) {
+		CRC32 crc = new CRC32();
+		byte[] bytes = new byte[8];
+		long instances = 0;
+		while (filter.hasMoreInstances()) {
+			Instance instance = filter.nextInstance();
+			if (instance == null) {
+				//the buffered filters release nothing until their buffer is full
+				continue;
+			}
+			for (int i = 0; i <= instance.numAttributes(); ++i) {
+				long bits = Double.doubleToLongBits(i < instance.numAttributes() ? instance.value(i) : instance.weight());
+				for (int b = 0; b < bytes.length; ++b) {
+					bytes[b] = (byte) (bits >>> (8 * b));
+				}
+				crc.update(bytes, 0, bytes.length);
+			}
+			++instances;
+		}
+		return Long.toHexString(crc.getValue()) + ":" + instances;
+	}
+
+	/** Reads the baselines, from the given file or else from the stored resource */
+	private static Map<String, Result> readBaselines(File file) throws IOException {
+		InputStream input = file != null ? new FileInputStream(file) :
+				RegressionSuite.class.getResourceAsStream(BASELINES_RESOURCE);
+		if (input == null) {
+			throw new IOException("Missing baselines resource: " + BASELINES_RESOURCE);
+		}
+		Map<String, Result> baselines = new LinkedHashMap<String, Result>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+		try {
+			String line = reader.readLine();
+			if (!BASELINES_HEADER.equals(line)) {
+				throw new IOException("Not a baselines file, its header is: " + line);
+			}
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					Result baseline = Result.parseCSVRecord(line);
+					baselines.put(baseline.getKey(), baseline);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return baselines;
+	}
+
+	/** The result of a case of the suite, or its baseline */
+	private static final class Result {
+
+		final String filter;
+		final String stream;
+		final int instances;
+		String checksum;
+		double disclosureRisk;
+		double informationLoss;
+		double throughput;
+
+		Result(String filter, String stream, int instances) {
+			this.filter = filter;
+			this.stream = stream;
+			this.instances = instances;
+		}
+
+		String getKey() {
+			return filter + " " + stream + " " + instances;
+		}
+
+		/** The filter and stream contain no commas, as they are given without options */
+		String toCSVRecord() {
+			return filter + "," + stream + "," + instances + "," + checksum + "," + disclosureRisk + "," +
+					informationLoss + "," + String.format(Locale.ROOT, "%.1f", throughput);
+		}
+
+		static Result parseCSVRecord(String line) {
+			String[] fields = line.split(",");
+			if (fields.length != 7) {
+				throw new IllegalArgumentException("Malformed baseline: " + line);
+			}
+			Result baseline = new Result(fields[0], fields[1], Integer.parseInt(fields[2]));
+			baseline.checksum = fields[3];
+			baseline.disclosureRisk = Double.parseDouble(fields[4]);
+			baseline.informationLoss = Double.parseDouble(fields[5]);
+			baseline.throughput = Double.parseDouble(fields[6]);
+			return baseline;
+		}
+
+	}
+
+	/** Stream with the first instances of another one, so that the filters drain their buffers */
+	private static final class LimitedInstanceStream extends AbstractOptionHandler implements InstanceStream {
+
+		/** Serializable */
+		private static final long serialVersionUID = -1943527408836601547L;
+
+		private final InstanceStream stream;
+
+		private final long limit;
+
+		private long instances;
+
+		public LimitedInstanceStream(InstanceStream stream, long limit) {
+			this.stream = stream;
+			this.limit = limit;
+			this.instances = 0;
+		}
+
+		@Override
+		public InstancesHeader getHeader() {
+			return stream.getHeader();
+		}
+
+		@Override
+		public long estimatedRemainingInstances() {
+			return limit - instances;
+		}
+
+		@Override
+		public boolean hasMoreInstances() {
+			return instances < limit && stream.hasMoreInstances();
+		}
+
+		@Override
+		public Instance nextInstance() {
+			++instances;
+			return stream.nextInstance();
+		}
+
+		@Override
+		public boolean isRestartable() {
+			return false;
+		}
+
+		@Override
+		public void restart() {
+			throw new UnsupportedOperationException("The streams of the regression suite are not restartable.");
+		}
+
+		@Override
+		public void getDescription(StringBuilder sb, int indent) {
+			// TODO Auto-generated method stub
+		}
+
+		@Override
+		protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+			// nothing to prepare
+		}
+
+	}
+
+}
@@ -0,0 +1,262 @@
+package moa.streams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import moa.core.InstancesHeader;
+import moa.core.ObjectRepository;
+import moa.options.AbstractOptionHandler;
+import moa.options.FileOption;
+import moa.tasks.TaskMonitor;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Stream reading instances from a binary columnar file, as written by
+ * {@link moa.tasks.output.BinaryInstanceWriter}. The chunks of the file are memory-mapped
+ * one at a time, so reading the instances involves no text parsing at all.
+ * <p>
+ * The file format (all values in little-endian byte order) is:
+ * <pre>{@code
+ *   int     MAGIC_NUMBER
+ *   int     FORMAT_VERSION
+ *   int     classIndex (-1 if none)
+ *   int     headerLength
+ *   byte[]  the ARFF header (UTF-8), of headerLength bytes
+ *   chunk*  as many chunks as needed, each one made of:
+ *     int       numRows
+ *     column*   one column per attribute, of numRows values:
+ *                 double[] for numeric attributes (NaN for missing values)
+ *                 int[]    for nominal attributes (the label index, MISSING_NOMINAL_VALUE if missing)
+ *     double[]  the weights of the instances, of numRows values
+ * }</pre>
+ */
+public class BinaryFileStream extends AbstractOptionHandler implements InstanceStream {
+
+	/** Serializable */
+	private static final long serialVersionUID = -5083329186442405316L;
+
+	/** The first bytes of every binary instances file ("PPSM") */
+	public static final int MAGIC_NUMBER = 0x5050534D;
+
+	/** The version of the file format */
+	public static final int FORMAT_VERSION = 1;
+
+	/** The value stored for missing nominal values */
+	public static final int MISSING_NOMINAL_VALUE = -1;
+
+	/** The byte order of all the values of the file */
+	public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	/** The charset of the ARFF header */
+	public static final Charset HEADER_CHARSET = Charset.forName("UTF-8");
+
+	public FileOption binaryFileOption = new FileOption("binaryFile", 'f',
+			"Binary columnar file to load.", null, "bin", false);
+
+	/** The header of the stream, read from the file */
+	protected InstancesHeader header;
+
+	/** Whether each attribute is stored as a nominal (int) column or not */
+	protected boolean[] nominalColumns;
+
+	protected transient FileChannel channel;
+
+	/** The position in the file of each chunk, and the number of rows of each chunk */
+	protected List<Long> chunkPositions;
+	protected List<Integer> chunkRows;
+
+	/** The chunk being read */
+	protected transient MappedByteBuffer currentChunk;
+	protected int currentChunkIndex;
+	protected int currentChunkRows;
+	protected int currentRow;
+
+	/** The offset, within the current chunk, of each column (the weights being the last one) */
+	protected int[] columnOffsets;
+
+	protected long totalInstances;
+	protected long instancesRead;
+
+	@Override
+	public String getPurposeString() {
+		return "A stream read from a binary columnar file, written by the Anonymize task.";
+	}
+
+	@Override
+	public void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+		restart();
+	}
+
+	@Override
+	public InstancesHeader getHeader() {
+		return header;
+	}
+
+	@Override
+	public long estimatedRemainingInstances() {
+		return totalInstances - instancesRead;
+	}
+
+	@Override
+	public boolean hasMoreInstances() {
+		return instancesRead < totalInstances;
+	}
+
+	@Override
+	public Instance nextInstance() {
+		if (currentChunk == null || currentRow >= currentChunkRows) {
+			mapChunk(currentChunk == null ? 0 : currentChunkIndex + 1);
+		}
+		final int numAttributes = nominalColumns.length;
+		double[] values = new double[numAttributes];
+		for (int i = 0; i < numAttributes; ++i) {
+			if (nominalColumns[i]) {
+				int label = currentChunk.getInt(columnOffsets[i] + 4 * currentRow);
+				values[i] = (label == MISSING_NOMINAL_VALUE) ? Utils.missingValue() : label;
+			}
+			else {
+				values[i] = currentChunk.getDouble(columnOffsets[i] + 8 * currentRow);
+			}
+		}
+		double weight = currentChunk.getDouble(columnOffsets[numAttributes] + 8 * currentRow);
+		Instance instance = new DenseInstance(weight, values);
+		instance.setDataset(header);
+		++currentRow;
+		++instancesRead;
+		return instance;
+	}
+
+	@Override
+	public boolean isRestartable() {
+		return true;
+	}
+
+	@Override
+	public void restart() {
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+			File file = binaryFileOption.getFile();
+			channel = new RandomAccessFile(file, "r").getChannel();
+			long position = readHeader();
+			indexChunks(position);
+			currentChunk = null;
+			instancesRead = 0;
+		} catch (IOException e) {
+			throw new RuntimeException("BinaryFileStream restart failed.", e);
+		}
+	}
+
+	/** Reads the header block of the file, returning the position of the first chunk */
+	protected long readHeader() throws IOException {
+		ByteBuffer prefix = readFully(0, 16);
+		if (prefix.getInt() != MAGIC_NUMBER) {
+			throw new IOException("Not a binary instances file: " + binaryFileOption.getFile());
+		}
+		int version = prefix.getInt();
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unsupported binary instances file version: " + version);
+		}
+		int classIndex = prefix.getInt();
+		int headerLength = prefix.getInt();
+		ByteBuffer headerBytes = readFully(16, headerLength);
+		String arffHeader = new String(headerBytes.array(), 0, headerLength, HEADER_CHARSET);
+		Instances instances = new Instances(new StringReader(arffHeader));
+		instances.setClassIndex(classIndex);
+		header = new InstancesHeader(instances);
+		nominalColumns = new boolean[header.numAttributes()];
+		for (int i = 0; i < header.numAttributes(); ++i) {
+			nominalColumns[i] = header.attribute(i).isNominal();
+		}
+		return 16 + headerLength;
+	}
+
+	/**
+	 * Walks through the chunks of the file, storing their positions and number of rows, and
+	 * checking that the file holds all the rows each chunk declares (e.g. not a truncated file).
+	 */
+	protected void indexChunks(long position) throws IOException {
+		chunkPositions = new ArrayList<Long>();
+		chunkRows = new ArrayList<Integer>();
+		totalInstances = 0;
+		final long size = channel.size();
+		while (position < size) {
+			if (size - position < 4) {
+				throw new IOException("Truncated binary instances file (incomplete chunk at byte " + position
+						+ "): " + binaryFileOption.getFile());
+			}
+			int rows = readFully(position, 4).getInt();
+			if (rows < 0 || getChunkSize(rows) > size - position) {
+				throw new IOException("Truncated binary instances file (the chunk at byte " + position
+						+ " declares " + rows + " rows, " + getChunkSize(rows) + " bytes, but only "
+						+ (size - position) + " bytes are left): " + binaryFileOption.getFile());
+			}
+			chunkPositions.add(position);
+			chunkRows.add(rows);
+			totalInstances += rows;
+			position += getChunkSize(rows);
+		}
+	}
+
+	/** Returns the size (in bytes) of a chunk with the given number of rows */
+	protected long getChunkSize(int rows) {
+		long rowSize = 8; //the weight
+		for (boolean nominal : nominalColumns) {
+			rowSize += nominal ? 4 : 8;
+		}
+		return 4 + rowSize * rows;
+	}
+
+	/** Maps the chunk with the given index and computes the offsets of its columns */
+	protected void mapChunk(int chunkIndex) {
+		try {
+			int rows = chunkRows.get(chunkIndex);
+			currentChunk = channel.map(FileChannel.MapMode.READ_ONLY,
+					chunkPositions.get(chunkIndex), getChunkSize(rows));
+			currentChunk.order(BYTE_ORDER);
+			currentChunkIndex = chunkIndex;
+			currentChunkRows = rows;
+			currentRow = 0;
+			columnOffsets = new int[nominalColumns.length + 1];
+			int offset = 4;
+			for (int i = 0; i < nominalColumns.length; ++i) {
+				columnOffsets[i] = offset;
+				offset += (nominalColumns[i] ? 4 : 8) * rows;
+			}
+			columnOffsets[nominalColumns.length] = offset;
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to map the chunk " + chunkIndex
+					+ " of the file: " + binaryFileOption.getFile(), e);
+		}
+	}
+
+	private ByteBuffer readFully(long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(BYTE_ORDER);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file: " + binaryFileOption.getFile());
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	@Override
+	public void getDescription(StringBuilder sb, int indent) {
+		// TODO Auto-generated method stub
+	}
+
+}
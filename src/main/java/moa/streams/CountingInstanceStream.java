@@ -0,0 +1,99 @@
+package moa.streams;
+
+import moa.core.InstancesHeader;
+import moa.core.ObjectRepository;
+import moa.options.AbstractOptionHandler;
+import moa.tasks.TaskMonitor;
+import weka.core.Instance;
+
+/**
+ * Stream that wraps another one, counting the instances read from it. The count tells how far
+ * the wrapped stream has been consumed, so that a fresh copy of it can later be brought to the
+ * same point through {@link #skip(long)}.
+ */
+public class CountingInstanceStream extends AbstractOptionHandler implements InstanceStream {
+
+	/** Serializable */
+	private static final long serialVersionUID = 4426930458921862427L;
+
+	/** The wrapped stream */
+	protected InstanceStream stream;
+
+	/** The number of instances read from the wrapped stream */
+	protected long readInstances;
+
+	/**
+	 * Wraps the given stream, which must already be prepared for use.
+	 *
+	 * @param stream the stream to wrap
+	 */
+	public CountingInstanceStream(InstanceStream stream) {
+		this.stream = stream;
+		this.readInstances = 0;
+	}
+
+	/** @return the number of instances read from the wrapped stream */
+	public long getReadInstances() {
+		return readInstances;
+	}
+
+	/**
+	 * Reads (and discards) the given number of instances from the wrapped stream.
+	 *
+	 * @param instances the number of instances to skip
+	 * @throws RuntimeException if the wrapped stream runs out of instances before
+	 */
+	public void skip(long instances) {
+		for (long i = 0; i < instances; ++i) {
+			if (!stream.hasMoreInstances()) {
+				throw new RuntimeException("The stream ran out of instances after skipping " + i
+						+ " of " + instances + " instances.");
+			}
+			stream.nextInstance();
+			readInstances++;
+		}
+	}
+
+	@Override
+	public InstancesHeader getHeader() {
+		return stream.getHeader();
+	}
+
+	@Override
+	public long estimatedRemainingInstances() {
+		return stream.estimatedRemainingInstances();
+	}
+
+	@Override
+	public boolean hasMoreInstances() {
+		return stream.hasMoreInstances();
+	}
+
+	@Override
+	public Instance nextInstance() {
+		readInstances++;
+		return stream.nextInstance();
+	}
+
+	@Override
+	public boolean isRestartable() {
+		return stream.isRestartable();
+	}
+
+	@Override
+	public void restart() {
+		stream.restart();
+		readInstances = 0;
+	}
+
+	@Override
+	public void getDescription(StringBuilder sb, int indent) {
+		// TODO Auto-generated method stub
+	}
+
+	@Override
+	protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+		// the wrapped stream is already prepared
+	}
+
+}
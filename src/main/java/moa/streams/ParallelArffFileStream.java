@@ -0,0 +1,567 @@
+package moa.streams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import moa.core.InstancesHeader;
+import moa.core.ObjectRepository;
+import moa.options.AbstractOptionHandler;
+import moa.options.FileOption;
+import moa.options.IntOption;
+import moa.tasks.TaskMonitor;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+import weka.core.Utils;
+
+/**
+ * Stream reading instances from an ARFF file, parsing it on several threads.
+ * <p>
+ * The data section of the file is split in chunks at line boundaries. Each chunk is memory-mapped
+ * and parsed by a pool of worker threads into a block of instances, while the caller consumes the
+ * blocks already parsed, always in the original order of the file. Dense and sparse records, with
+ * numeric and nominal attributes, are supported. Files with string, date or relational attributes
+ * must be read with an {@link ArffFileStream} instead.
+ */
+public class ParallelArffFileStream extends AbstractOptionHandler implements InstanceStream {
+
+	/** Serializable */
+	private static final long serialVersionUID = -3602316583440591176L;
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	/** The size of the blocks read while looking for line boundaries and the header */
+	private static final int SCAN_BLOCK_SIZE = 64 * 1024;
+
+	public FileOption arffFileOption = new FileOption("arffFile", 'f',
+			"ARFF file to load.", null, "arff", false);
+
+	public IntOption classIndexOption = new IntOption("classIndex", 'c',
+			"Class index of data. 0 for none or -1 for last attribute in file.", -1, -1, Integer.MAX_VALUE);
+
+	public IntOption numThreadsOption = new IntOption("numThreads", 't',
+			"Number of parsing threads. 0 to use as many threads as available processors.", 0, 0, 1024);
+
+	public IntOption chunkSizeOption = new IntOption("chunkSize", 'k',
+			"Approximate size (in KB) of the chunks of the file parsed by each thread.", 4096, 1, 1024 * 1024);
+
+	/** The header of the stream, read from the file */
+	protected InstancesHeader header;
+
+	/** The index of the labels of each nominal attribute, {@code null} for numeric attributes */
+	protected List<Map<String, Integer>> labelIndexes;
+
+	protected transient FileChannel channel;
+
+	protected transient ExecutorService executor;
+
+	/** The blocks being parsed, in the order of the file */
+	protected transient Queue<Future<Instance[]>> pendingBlocks;
+
+	/** The position of the next chunk to dispatch to the workers */
+	protected long nextChunkPosition;
+
+	/** The block being consumed */
+	protected Instance[] currentBlock;
+	protected int currentBlockIndex;
+
+	@Override
+	public String getPurposeString() {
+		return "A stream read from an ARFF file, parsed in parallel.";
+	}
+
+	@Override
+	public void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+		restart();
+	}
+
+	@Override
+	public InstancesHeader getHeader() {
+		return header;
+	}
+
+	@Override
+	public long estimatedRemainingInstances() {
+		return -1;
+	}
+
+	@Override
+	public boolean hasMoreInstances() {
+		return nextBlockReady();
+	}
+
+	@Override
+	public Instance nextInstance() {
+		if (!nextBlockReady()) {
+			return null;
+		}
+		Instance instance = currentBlock[currentBlockIndex];
+		currentBlock[currentBlockIndex++] = null; //do not retain consumed instances
+		return instance;
+	}
+
+	@Override
+	public boolean isRestartable() {
+		return true;
+	}
+
+	@Override
+	public void restart() {
+		try {
+			close();
+			File file = arffFileOption.getFile();
+			channel = new RandomAccessFile(file, "r").getChannel();
+			nextChunkPosition = readHeader();
+			int numThreads = numThreadsOption.getValue() > 0 ?
+					numThreadsOption.getValue() : Runtime.getRuntime().availableProcessors();
+			executor = Executors.newFixedThreadPool(numThreads, new DaemonThreadFactory());
+			pendingBlocks = new ArrayDeque<Future<Instance[]>>();
+			for (int i = 0; i < 2 * numThreads; ++i) {
+				dispatchNextChunk();
+			}
+			currentBlock = new Instance[0];
+			currentBlockIndex = 0;
+		} catch (IOException e) {
+			throw new RuntimeException("ParallelArffFileStream restart failed.", e);
+		}
+	}
+
+	/** Stops the workers and closes the file */
+	protected void close() throws IOException {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	/**
+	 * Makes sure that the current block has instances left to consume, taking the next parsed
+	 * blocks (and dispatching new chunks) if necessary.
+	 *
+	 * @return {@code false} if there are no instances left in the file
+	 */
+	protected boolean nextBlockReady() {
+		while (currentBlockIndex >= currentBlock.length) {
+			Future<Instance[]> block = pendingBlocks.poll();
+			if (block == null) {
+				//end of file: the workers are no longer needed
+				try {
+					close();
+				} catch (IOException e) {
+					throw new RuntimeException("Failed to close the file: " + arffFileOption.getFile(), e);
+				}
+				return false;
+			}
+			try {
+				currentBlock = block.get();
+				currentBlockIndex = 0;
+				dispatchNextChunk();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while parsing the file.", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Failed to parse the file: " + arffFileOption.getFile(), e.getCause());
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to read the file: " + arffFileOption.getFile(), e);
+			}
+		}
+		return true;
+	}
+
+	/** Submits the next chunk of the file (ending at a line boundary) to the workers */
+	protected void dispatchNextChunk() throws IOException {
+		final long size = channel.size();
+		if (nextChunkPosition >= size) {
+			return;
+		}
+		final long start = nextChunkPosition;
+		long end = Math.min(size, start + 1024L * chunkSizeOption.getValue());
+		end = findNextLineStart(end, size);
+		nextChunkPosition = end;
+		final long length = end - start;
+		pendingBlocks.add(executor.submit(new Callable<Instance[]>() {
+			@Override
+			public Instance[] call() throws Exception {
+				return parseChunk(start, (int) length);
+			}
+		}));
+	}
+
+	/** Returns the position following the first new line found at or after {@code position} */
+	private long findNextLineStart(long position, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_BLOCK_SIZE);
+		while (position < size) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			for (int i = 0; i < read; ++i) {
+				if (buffer.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += Math.max(read, 0);
+		}
+		return size;
+	}
+
+	/** Reads and parses the header of the file, returning the position of the data section */
+	protected long readHeader() throws IOException {
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		ByteBuffer buffer = ByteBuffer.allocate(SCAN_BLOCK_SIZE);
+		long position = 0;
+		boolean dataFound = false;
+		while (!dataFound) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("No @data section found in the file: " + arffFileOption.getFile());
+			}
+			for (int i = 0; i < read && !dataFound; ++i) {
+				byte b = buffer.get(i);
+				line.write(b);
+				++position;
+				if (b == '\n') {
+					String text = new String(line.toByteArray(), CHARSET);
+					headerBytes.write(line.toByteArray());
+					line.reset();
+					dataFound = text.trim().toLowerCase().startsWith(Instances.ARFF_DATA);
+				}
+			}
+		}
+		Instances instances = new Instances(new StringReader(new String(headerBytes.toByteArray(), CHARSET)));
+		int classIndex = classIndexOption.getValue();
+		if (classIndex < 0) {
+			instances.setClassIndex(instances.numAttributes() - 1);
+		}
+		else if (classIndex > 0) {
+			instances.setClassIndex(classIndex - 1);
+		}
+		header = new InstancesHeader(instances);
+		labelIndexes = new ArrayList<Map<String, Integer>>(header.numAttributes());
+		for (int i = 0; i < header.numAttributes(); ++i) {
+			Attribute attribute = header.attribute(i);
+			Map<String, Integer> labels = null;
+			if (attribute.isNominal()) {
+				labels = new HashMap<String, Integer>();
+				for (int j = 0; j < attribute.numValues(); ++j) {
+					labels.put(attribute.value(j), j);
+				}
+			}
+			else if (!attribute.isNumeric() || attribute.isDate()) {
+				throw new IOException("Unsupported attribute type (only numeric and nominal attributes are " +
+						"supported): " + attribute.name());
+			}
+			labelIndexes.add(labels);
+		}
+		return position;
+	}
+
+	/** Maps and parses the chunk of the file in the given range (executed by the workers) */
+	protected Instance[] parseChunk(long start, int length) throws IOException {
+		ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		ChunkParser parser = new ChunkParser(mapped, length);
+		return parser.parse();
+	}
+
+	@Override
+	public void getDescription(StringBuilder sb, int indent) {
+		// TODO Auto-generated method stub
+	}
+
+	/** Parser of the records contained in a chunk of the data section */
+	protected final class ChunkParser {
+
+		private final ByteBuffer bytes;
+		private final int length;
+		private final int numAttributes;
+
+		/** The indexes and values of the sparse record being parsed, grown as needed */
+		private int[] sparseIndices = new int[16];
+		private double[] sparseValues = new double[16];
+
+		/** The bounds of the last token read */
+		private int tokenStart;
+		private int tokenEnd;
+		private boolean tokenQuoted;
+
+		ChunkParser(ByteBuffer bytes, int length) {
+			this.bytes = bytes;
+			this.length = length;
+			this.numAttributes = header.numAttributes();
+		}
+
+		Instance[] parse() {
+			Instance[] instances = new Instance[64];
+			int count = 0;
+			int lineStart = 0;
+			while (lineStart < length) {
+				int lineEnd = lineStart;
+				while (lineEnd < length && bytes.get(lineEnd) != '\n') {
+					++lineEnd;
+				}
+				int start = skipSpaces(lineStart, lineEnd);
+				int end = lineEnd;
+				while (end > start && isSpace(bytes.get(end - 1))) {
+					--end;
+				}
+				if (start < end && bytes.get(start) != '%') {
+					if (count == instances.length) {
+						Instance[] grown = new Instance[2 * count];
+						System.arraycopy(instances, 0, grown, 0, count);
+						instances = grown;
+					}
+					instances[count++] = (bytes.get(start) == '{') ?
+							parseSparse(start, end) : parseDense(start, end);
+				}
+				lineStart = lineEnd + 1;
+			}
+			Instance[] block = new Instance[count];
+			System.arraycopy(instances, 0, block, 0, count);
+			return block;
+		}
+
+		private Instance parseDense(int start, int end) {
+			double[] values = new double[numAttributes];
+			int position = start;
+			for (int i = 0; i < numAttributes; ++i) {
+				if (position >= end) {
+					throw new IllegalArgumentException("Premature end of line: " + lineText(start, end));
+				}
+				position = readToken(position, end, ',', ',');
+				values[i] = parseValue(i);
+				position = skipSeparator(position, end, ',');
+			}
+			double weight = 1.0;
+			if (position < end && bytes.get(position) == '{') {
+				weight = parseWeight(position, end);
+			}
+			else if (position < end) {
+				throw new IllegalArgumentException("Too many values on line: " + lineText(start, end));
+			}
+			DenseInstance instance = new DenseInstance(weight, values);
+			instance.setDataset(header);
+			return instance;
+		}
+
+		private Instance parseSparse(int start, int end) {
+			int count = 0;
+			int position = skipSpaces(start + 1, end);
+			while (position < end && bytes.get(position) != '}') {
+				position = readToken(position, end, ' ', '\t');
+				int index = Integer.parseInt(tokenText());
+				if (index < 0 || index >= numAttributes || (count > 0 && index <= sparseIndices[count - 1])) {
+					throw new IllegalArgumentException("Sparse indexes out of range or not in ascending order: " +
+							lineText(start, end));
+				}
+				position = readToken(position, end, ',', '}');
+				double value = parseValue(index);
+				if (value != 0.0) {
+					if (count == sparseIndices.length) {
+						sparseIndices = Arrays.copyOf(sparseIndices, 2 * count);
+						sparseValues = Arrays.copyOf(sparseValues, 2 * count);
+					}
+					sparseIndices[count] = index;
+					sparseValues[count++] = value;
+				}
+				position = skipSeparator(position, end, ',');
+			}
+			double weight = 1.0;
+			position = skipSeparator(position, end, '}');
+			position = skipSeparator(skipSpaces(position, end), end, ',');
+			if (position < end && bytes.get(position) == '{') {
+				weight = parseWeight(position, end);
+			}
+			else if (position < end) {
+				throw new IllegalArgumentException("Unexpected values after the end of the line: " +
+						lineText(start, end));
+			}
+			SparseInstance instance = new SparseInstance(weight, Arrays.copyOf(sparseValues, count),
+					Arrays.copyOf(sparseIndices, count), numAttributes);
+			instance.setDataset(header);
+			return instance;
+		}
+
+		private double parseWeight(int position, int end) {
+			int close = position;
+			while (close < end && bytes.get(close) != '}') {
+				++close;
+			}
+			if (skipSpaces(Math.min(close + 1, end), end) < end) {
+				throw new IllegalArgumentException("Unexpected values after the weight of the line: " +
+						lineText(position, end));
+			}
+			tokenStart = position + 1;
+			tokenEnd = close;
+			return Double.parseDouble(tokenText().trim());
+		}
+
+		/** Parses the last token read as a value of the given attribute */
+		private double parseValue(int attributeIndex) {
+			if (!tokenQuoted && tokenEnd - tokenStart == 1 && bytes.get(tokenStart) == '?') {
+				return Utils.missingValue();
+			}
+			Map<String, Integer> labels = labelIndexes.get(attributeIndex);
+			if (labels != null) {
+				String label = tokenQuoted ? Utils.unbackQuoteChars(tokenText()) : tokenText();
+				Integer index = labels.get(label);
+				if (index == null) {
+					throw new IllegalArgumentException("Nominal value not declared in header: " + label);
+				}
+				return index;
+			}
+			return parseNumber();
+		}
+
+		/**
+		 * Parses the last token read as a number. Plain decimal numbers with up to 15 significant
+		 * digits are parsed with integer arithmetic: dividing the (exact) digits by an (exact) power
+		 * of ten gives the correctly rounded value, as {@link Double#parseDouble(String)} does. Any
+		 * other token (including those without digits, such as {@code "."}) is left to it, and
+		 * rejected if it is not a number.
+		 */
+		private double parseNumber() {
+			int position = tokenStart;
+			boolean negative = false;
+			if (position < tokenEnd && (bytes.get(position) == '-' || bytes.get(position) == '+')) {
+				negative = bytes.get(position) == '-';
+				++position;
+			}
+			long mantissa = 0;
+			boolean anyDigit = false;
+			int digits = 0;
+			int decimals = 0;
+			boolean decimalPoint = false;
+			boolean simple = position < tokenEnd;
+			for (; position < tokenEnd && simple; ++position) {
+				byte b = bytes.get(position);
+				if (b >= '0' && b <= '9') {
+					mantissa = 10 * mantissa + (b - '0');
+					anyDigit = true;
+					if (mantissa > 0) {
+						++digits;
+					}
+					if (decimalPoint) {
+						++decimals;
+					}
+				}
+				else if (b == '.' && !decimalPoint) {
+					decimalPoint = true;
+				}
+				else {
+					simple = false;
+				}
+			}
+			if (!simple || !anyDigit || digits > 15 || decimals > 22) {
+				return Double.parseDouble(tokenText());
+			}
+			double value = (decimals == 0) ? mantissa : mantissa / POWERS_OF_TEN[decimals];
+			return negative ? -value : value;
+		}
+
+		/**
+		 * Reads the token starting at the given position, delimited by the given separator, the
+		 * given terminator or the end of the line. Quoted tokens are delimited by their closing quote.
+		 *
+		 * @return the position following the token (and its closing quote)
+		 */
+		private int readToken(int position, int end, char separator, char terminator) {
+			position = skipSpaces(position, end);
+			byte first = position < end ? bytes.get(position) : 0;
+			if (first == '\'' || first == '"') {
+				tokenQuoted = true;
+				tokenStart = position + 1;
+				int close = tokenStart;
+				while (close < end && bytes.get(close) != first) {
+					close += (bytes.get(close) == '\\') ? 2 : 1;
+				}
+				tokenEnd = Math.min(close, end);
+				return Math.min(close + 1, end);
+			}
+			tokenQuoted = false;
+			tokenStart = position;
+			while (position < end && bytes.get(position) != separator && bytes.get(position) != terminator) {
+				++position;
+			}
+			tokenEnd = position;
+			while (tokenEnd > tokenStart && isSpace(bytes.get(tokenEnd - 1))) {
+				--tokenEnd;
+			}
+			return position;
+		}
+
+		private int skipSeparator(int position, int end, char separator) {
+			position = skipSpaces(position, end);
+			if (position < end && bytes.get(position) == separator) {
+				++position;
+			}
+			return skipSpaces(position, end);
+		}
+
+		private int skipSpaces(int position, int end) {
+			while (position < end && isSpace(bytes.get(position))) {
+				++position;
+			}
+			return position;
+		}
+
+		private boolean isSpace(byte b) {
+			return b == ' ' || b == '\t' || b == '\r';
+		}
+
+		private String tokenText() {
+			byte[] token = new byte[tokenEnd - tokenStart];
+			for (int i = 0; i < token.length; ++i) {
+				token[i] = bytes.get(tokenStart + i);
+			}
+			return new String(token, CHARSET);
+		}
+
+		private String lineText(int start, int end) {
+			tokenStart = start;
+			tokenEnd = end;
+			return tokenText();
+		}
+	}
+
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/** Creates daemon threads, so that the workers never prevent the JVM from exiting */
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+			thread.setDaemon(true);
+			thread.setName("ParallelArffFileStream-" + thread.getName());
+			return thread;
+		}
+	}
+
+}
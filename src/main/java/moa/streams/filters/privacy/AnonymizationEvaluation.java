@@ -1,5 +1,7 @@
 package moa.streams.filters.privacy;
 
+import moa.streams.filters.privacy.utils.DoubleFormatter;
+
 public final class AnonymizationEvaluation implements PrivacyEvaluation {
 
 	private final double disclosureRisk;
@@ -30,11 +32,11 @@ public final class AnonymizationEvaluation implements PrivacyEvaluation {
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder(128);
-		builder.append(String.format("%.6f", disclosureRisk));
+		DoubleFormatter.appendFixed(builder, disclosureRisk, 6);
 		builder.append(",");
-		builder.append(String.format("%.6f", incrementalInformationLoss));
+		DoubleFormatter.appendFixed(builder, incrementalInformationLoss, 6);
 		builder.append(",");
-		builder.append(String.format("%.6f", informationLoss));
+		DoubleFormatter.appendFixed(builder, informationLoss, 6);
 		return builder.toString();
 	}
 	
@@ -0,0 +1,145 @@
+package moa.streams.filters.privacy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import weka.core.Instances;
+
+/**
+ * State of a privacy filter carried over from the end of a run to the start of the next one (see
+ * {@link PrivacyFilter#exportWarmStart()}): the statistics learned by the filter (e.g. the
+ * observers of the noise addition or the scale estimators of the Laplace mechanism) and the
+ * instances it had read but not released yet, which the next run releases first, without waiting
+ * for its buffers to fill.
+ * <p>
+ * Unlike the checkpoints of the {@code Anonymize} task, which resume a run with exactly the same
+ * output, the warm start is meant for a new run over the same kind of stream (the same header),
+ * possibly with different options: the random number generators and the estimators start afresh.
+ * The attributes of the header are stored along with the state, so that a warm start is never
+ * imported by a filter of a different stream (see {@link #checkHeader(Instances)}).
+ */
+public class FilterWarmStart implements Serializable {
+
+	/** Serializable */
+	private static final long serialVersionUID = -2291874516180322164L;
+
+	/** The class of the filter the state belongs to */
+	private final String filterClassName;
+
+	/** The state of the filter, or {@code null} if it has none */
+	private final Serializable state;
+
+	/** The attributes of the stream of the filter, as declared in an ARFF header (with their
+	 * names, types and nominal values), or {@code null} if the stream had no header */
+	private final String[] attributes;
+
+	/** The index of the class attribute of the stream of the filter */
+	private final int classIndex;
+
+	/**
+	 * Builds the warm start of a filter.
+	 *
+	 * @param filterClassName the class of the filter
+	 * @param header the header of the stream of the filter, or {@code null} if it has none yet
+	 * @param state the state of the filter, or {@code null} if it has none
+	 */
+	public FilterWarmStart(String filterClassName, Instances header, Serializable state) {
+		this.filterClassName = filterClassName;
+		this.state = state;
+		if (header != null) {
+			this.attributes = new String[header.numAttributes()];
+			for (int i = 0; i < attributes.length; ++i) {
+				attributes[i] = header.attribute(i).toString();
+			}
+			this.classIndex = header.classIndex();
+		}
+		else {
+			this.attributes = null;
+			this.classIndex = -1;
+		}
+	}
+
+	/** @return the class of the filter the state belongs to */
+	public String getFilterClassName() {
+		return filterClassName;
+	}
+
+	/** @return the state of the filter, or {@code null} if it has none */
+	public Serializable getState() {
+		return state;
+	}
+
+	/**
+	 * Checks that the warm start was exported from a stream with the same attributes (names,
+	 * types and nominal values) and class as the given header. Nothing is checked if either
+	 * header is unknown.
+	 *
+	 * @param header the header of the stream of the importing filter, or {@code null}
+	 * @throws IllegalArgumentException if the headers do not match
+	 */
+	public void checkHeader(Instances header) {
+		if (attributes == null || header == null) {
+			return;
+		}
+		if (attributes.length != header.numAttributes()) {
+			throw new IllegalArgumentException("The warm start was exported from a stream of " +
+					attributes.length + " attributes, not " + header.numAttributes());
+		}
+		for (int i = 0; i < attributes.length; ++i) {
+			String attribute = header.attribute(i).toString();
+			if (!attributes[i].equals(attribute)) {
+				throw new IllegalArgumentException("The attribute " + (i + 1) + " of the stream of the warm start is " +
+						attributes[i] + ", not " + attribute);
+			}
+		}
+		if (classIndex != header.classIndex()) {
+			throw new IllegalArgumentException("The class of the stream of the warm start is the attribute " +
+					(classIndex + 1) + ", not " + (header.classIndex() + 1));
+		}
+	}
+
+	/**
+	 * Writes the warm start to the given file, replacing it.
+	 *
+	 * @param file the file
+	 * @throws IOException if the file can not be written
+	 */
+	public void write(File file) throws IOException {
+		ObjectOutputStream output = new ObjectOutputStream(
+				new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file))));
+		try {
+			output.writeObject(this);
+		} finally {
+			output.close();
+		}
+	}
+
+	/**
+	 * Reads the warm start stored in the given file (see {@link #write(File)}).
+	 *
+	 * @param file the file
+	 * @return the warm start
+	 * @throws IOException if the file can not be read or does not hold a warm start
+	 */
+	public static FilterWarmStart read(File file) throws IOException {
+		ObjectInputStream input = new ObjectInputStream(
+				new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+		try {
+			return (FilterWarmStart) input.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Not a warm start file: " + file, e);
+		} finally {
+			input.close();
+		}
+	}
+
+}
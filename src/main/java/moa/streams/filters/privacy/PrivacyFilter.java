@@ -1,24 +1,44 @@
 package moa.streams.filters.privacy;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 
 import moa.core.InstancesHeader;
 import moa.core.ObjectRepository;
+import moa.core.SerializeUtils;
+import moa.core.SizeOf;
 import moa.options.ClassOption;
+import moa.options.FileOption;
 import moa.options.FlagOption;
+import moa.options.IntOption;
+import moa.options.StringOption;
+import moa.streams.InstanceStream;
 import moa.streams.filters.AbstractStreamFilter;
+import moa.streams.filters.privacy.estimators.Estimator;
+import moa.streams.filters.privacy.buffer.InstanceBuffer;
 import moa.streams.filters.privacy.estimators.disclosurerisk.BufferedIndividualRecordLinker;
 import moa.streams.filters.privacy.estimators.disclosurerisk.DisclosureRiskEstimator;
 import moa.streams.filters.privacy.estimators.informationloss.InformationLossEstimator;
 import moa.streams.filters.privacy.estimators.informationloss.SSEEstimator;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder;
+import moa.streams.filters.privacy.telemetry.PrivacyFilterTelemetry;
+import moa.streams.filters.privacy.telemetry.PrivacyFilterTelemetry.Stage;
+import moa.streams.filters.privacy.utils.RandomStreams;
 import moa.tasks.TaskMonitor;
 import weka.core.Instance;
+import weka.core.Range;
 
 public abstract class PrivacyFilter extends AbstractStreamFilter {
 	
 	/** Please see {@link Serializable} */
 	private static final long serialVersionUID = 5485907750792490539L;
 	
+	/** The selection of all the attributes (see {@link #quasiIdentifiersOption}) */
+	private static final String ALL_ATTRIBUTES = "first-last";
+	
 	/** The option for the estimator of the information loss */
 	public ClassOption informationLossEstimatorOption = new ClassOption("informationLossEstimator", 
 			'I', "The estimator of the information loss due to the anonymization process.", 
@@ -40,6 +60,53 @@ public abstract class PrivacyFilter extends AbstractStreamFilter {
 	public FlagOption evaluationEnabledOption = new FlagOption("evaluationEnabled",
 			'E', "If set, this flag option enables the calculation of the IL and DR metrics by the privacy filter.");
 	
+	/** The option for the lazy evaluation of the filter, which defers the work of the estimators
+	 * until the evaluation is requested (see {@link #getEvaluation()}) */
+	public IntOption lazyEvaluationOption = new IntOption("lazyEvaluation", 'L',
+			"The maximum number of released pairs of instances that are recorded, and evaluated at once when " +
+			"the evaluation is requested (0 evaluates each pair as soon as it is released).",
+			0, 0, Integer.MAX_VALUE);
+	
+	/** The option for the quasi-identifier attributes, the only ones anonymized by the filter */
+	public StringOption quasiIdentifiersOption = new StringOption("quasiIdentifiers", 'Q',
+			"The attributes anonymized and compared by the filter (the quasi-identifiers), as a comma-separated " +
+			"list of attribute names and ranges of indexes (e.g. first-3,7,age); the other attributes pass " +
+			"through untouched. The class attribute is treated by each filter as usual.",
+			ALL_ATTRIBUTES);
+	
+	/** The option for the warm start of the filter (see {@link FilterWarmStart}) */
+	public FileOption warmStartFileOption = new FileOption("warmStartFile", 'W',
+			"File with the statistics and the pending instances exported by a previous run, to start from.",
+			null, "warm", false);
+	
+	/** The reusable block of pairs used by {@link #nextInstances(Instance[], int, int)} */
+	private transient InstancePair[] pairsBlock;
+	
+	/** The indexes of the quasi-identifiers, in ascending order, or {@code null} if all the
+	 * attributes but the class are selected (see {@link #quasiIdentifiersOption}) */
+	private int[] quasiIdentifiers;
+	
+	/** Whether each attribute is a quasi-identifier, the class being never one */
+	private boolean[] quasiIdentifierMask;
+	
+	/** The pairs released by the filter and not evaluated yet (see {@link #lazyEvaluationOption}) */
+	private transient InstancePair[] pendingPairs;
+	
+	/** The number of pairs held in {@link #pendingPairs} */
+	private transient int pendingPairsCount;
+	
+	/** Whether the filter may anonymize the instances of its input stream in place */
+	private boolean inPlaceAnonymization = false;
+	
+	/** The shard of the stream anonymized by the filter, which keys its random streams */
+	private int randomShard = 0;
+	
+	/** The live telemetry of the filter, or {@code null} if it is not recorded */
+	private transient PrivacyFilterTelemetry telemetry;
+	
+	/** The recorder of the per-stage latencies of the filter, or {@code null} if they are not recorded */
+	private transient LatencyRecorder latencyRecorder;
+	
 	/**
 	 * Builds a privacy filter with default estimators. ({@link SSEEstimator} and
 	 *  {@link BufferedIndividualRecordLinker}).
@@ -59,7 +126,9 @@ public abstract class PrivacyFilter extends AbstractStreamFilter {
 		}
 		
 		//prepare the anonymization filter concrete implementation (subclasses)
+		selectQuasiIdentifiers();
 		prepareAnonymizationFilterForUse();
+		warmStart();
 	}
 	
 	@Override
@@ -69,9 +138,15 @@ public abstract class PrivacyFilter extends AbstractStreamFilter {
 	
 	@Override
 	public Instance nextInstance() {
+		if (telemetry != null || latencyRecorder != null) {
+			return nextInstanceWithTelemetry();
+		}
 		InstancePair instancePair = nextAnonymizedInstancePair();
 		if (instancePair != null) {
-			if (evaluationEnabledOption.isSet()) {
+			if (isLazyEvaluation()) {
+				recordPendingPair(instancePair);
+			}
+			else if (evaluationEnabledOption.isSet()) {
 				informationLossEstimator.performEstimationForInstances(instancePair);
 				disclosureRiskEstimator.performEstimationForInstances(instancePair);
 			}
@@ -82,8 +157,183 @@ public abstract class PrivacyFilter extends AbstractStreamFilter {
 		}
 	}
 
+	/**
+	 * Anonymizes a block of instances of the stream, storing them in the given array. The result
+	 * is the same as calling {@link #nextInstance()} repeatedly (and skipping the {@code null}
+	 * instances), but the per-instance overhead is amortized over the block and the estimators
+	 * perform the evaluation of the whole block at once.
+	 * 
+	 * @param instances the array in which the anonymized instances are stored
+	 * @param offset the index of the array where the first instance is stored
+	 * @param length the maximum number of instances to anonymize
+	 * @return the number of instances stored, which is less than {@code length} only if the
+	 * filter runs out of instances
+	 */
+	public int nextInstances(Instance[] instances, int offset, int length) {
+		if (pairsBlock == null || pairsBlock.length < length) {
+			pairsBlock = new InstancePair[length];
+		}
+		int count;
+		if (telemetry != null || latencyRecorder != null) {
+			count = nextInstancePairsWithTelemetry(length);
+		}
+		else {
+			count = nextAnonymizedInstancePairs(pairsBlock, 0, length);
+			if (isLazyEvaluation()) {
+				for (int i = 0; i < count; ++i) {
+					recordPendingPair(pairsBlock[i]);
+				}
+			}
+			else if (evaluationEnabledOption.isSet() && count > 0) {
+				informationLossEstimator.performEstimationForInstances(pairsBlock, 0, count);
+				disclosureRiskEstimator.performEstimationForInstances(pairsBlock, 0, count);
+			}
+		}
+		for (int i = 0; i < count; ++i) {
+			instances[offset + i] = pairsBlock[i].anonymizedInstance;
+			pairsBlock[i] = null;
+		}
+		return count;
+	}
+
+	/** Same as {@link #nextInstance()}, recording the telemetry and the latencies of the filter */
+	private Instance nextInstanceWithTelemetry() {
+		long startTime = System.nanoTime();
+		InstancePair instancePair = nextAnonymizedInstancePair();
+		if (telemetry != null) {
+			telemetry.addStageTime(Stage.ANONYMIZATION, System.nanoTime() - startTime);
+		}
+		int count = 0;
+		if (instancePair != null) {
+			if (isLazyEvaluation()) {
+				recordPendingPair(instancePair);
+			}
+			else if (evaluationEnabledOption.isSet()) {
+				if (pairsBlock == null) {
+					pairsBlock = new InstancePair[1];
+				}
+				pairsBlock[0] = instancePair;
+				performEstimationWithTelemetry(pairsBlock, 1);
+				pairsBlock[0] = null;
+			}
+			count = 1;
+		}
+		if (telemetry != null) {
+			telemetry.instancesReleased(count, getBufferOccupancy());
+		}
+		return count > 0 ? instancePair.anonymizedInstance : null;
+	}
+	
+	/**
+	 * Anonymizes and evaluates a block of instances into the {@link #pairsBlock}, as
+	 * {@link #nextInstances(Instance[], int, int)} does, recording the telemetry and the latencies
+	 * of the filter.
+	 */
+	private int nextInstancePairsWithTelemetry(int length) {
+		long startTime = System.nanoTime();
+		int count = nextAnonymizedInstancePairs(pairsBlock, 0, length);
+		if (telemetry != null) {
+			telemetry.addStageTime(Stage.ANONYMIZATION, System.nanoTime() - startTime);
+		}
+		if (isLazyEvaluation()) {
+			for (int i = 0; i < count; ++i) {
+				recordPendingPair(pairsBlock[i]);
+			}
+		}
+		else if (evaluationEnabledOption.isSet() && count > 0) {
+			performEstimationWithTelemetry(pairsBlock, count);
+		}
+		if (telemetry != null) {
+			telemetry.instancesReleased(count, getBufferOccupancy());
+		}
+		return count;
+	}
+	
+	/**
+	 * Evaluates the first pairs of the given array, recording the telemetry and the latencies
+	 * of the estimators. The latency of each pair is only known if the pairs are evaluated one by one,
+	 * which is what happens when the latencies are recorded (the estimations are the same).
+	 */
+	private void performEstimationWithTelemetry(InstancePair[] pairs, int count) {
+		long informationLossNanos = 0;
+		long disclosureRiskNanos = 0;
+		if (latencyRecorder == null) {
+			long startTime = System.nanoTime();
+			informationLossEstimator.performEstimationForInstances(pairs, 0, count);
+			long informationLossTime = System.nanoTime();
+			disclosureRiskEstimator.performEstimationForInstances(pairs, 0, count);
+			informationLossNanos = informationLossTime - startTime;
+			disclosureRiskNanos = System.nanoTime() - informationLossTime;
+		}
+		else {
+			for (int i = 0; i < count; ++i) {
+				long startTime = System.nanoTime();
+				informationLossEstimator.performEstimationForInstances(pairs[i]);
+				long informationLossTime = System.nanoTime();
+				disclosureRiskEstimator.performEstimationForInstances(pairs[i]);
+				long endTime = latencyRecorder.recordSince(LatencyRecorder.Stage.ESTIMATION, startTime);
+				informationLossNanos += informationLossTime - startTime;
+				disclosureRiskNanos += endTime - informationLossTime;
+			}
+		}
+		if (telemetry != null) {
+			telemetry.addStageTime(Stage.ESTIMATION, informationLossNanos + disclosureRiskNanos);
+			telemetry.getInformationLossTelemetry().estimationsPerformed(count, informationLossNanos,
+					informationLossEstimator.getCurrentInformationLoss());
+			telemetry.getDisclosureRiskTelemetry().estimationsPerformed(count, disclosureRiskNanos,
+					disclosureRiskEstimator.getCurrentDisclosureRisk());
+		}
+	}
+	
+	/**
+	 * Records a released pair until the evaluation is requested (see {@link #lazyEvaluationOption}),
+	 * evaluating the recorded pairs first if there are already as many as the option allows.
+	 */
+	private void recordPendingPair(InstancePair instancePair) {
+		if (pendingPairs == null || pendingPairsCount == pendingPairs.length) {
+			final int capacity = lazyEvaluationOption.getValue();
+			if (pendingPairsCount >= capacity) {
+				evaluatePendingPairs();
+			}
+			else {
+				pendingPairs = pendingPairs == null ? new InstancePair[Math.min(capacity, 1024)] :
+					Arrays.copyOf(pendingPairs, (int) Math.min(capacity, 2L * pendingPairs.length));
+			}
+		}
+		pendingPairs[pendingPairsCount++] = instancePair;
+	}
+	
+	/**
+	 * Evaluates the pairs recorded by the lazy evaluation, at once and in the order in which they
+	 * were released, thus the estimations are the same as if each pair had been evaluated when it
+	 * was released.
+	 */
+	private void evaluatePendingPairs() {
+		if (pendingPairsCount == 0) {
+			return;
+		}
+		final int count = pendingPairsCount;
+		pendingPairsCount = 0;
+		if (telemetry != null || latencyRecorder != null) {
+			performEstimationWithTelemetry(pendingPairs, count);
+		}
+		else {
+			informationLossEstimator.performEstimationForInstances(pendingPairs, 0, count);
+			disclosureRiskEstimator.performEstimationForInstances(pendingPairs, 0, count);
+		}
+		Arrays.fill(pendingPairs, 0, count, null);
+	}
+	
+	/** Evaluates the pending pairs before the estimators are serialized along with the filter */
+	private void writeObject(ObjectOutputStream output) throws IOException {
+		evaluatePendingPairs();
+		output.defaultWriteObject();
+	}
+	
 	@Override
 	protected void restartImpl() {
+		pendingPairs = null;
+		pendingPairsCount = 0;
 		if (evaluationEnabledOption.isSet()) {
 			//check if the estimators are null - an external restart because of the
 			// enabling of the metrics feature could cause a crash due to a NullPointerException
@@ -102,19 +352,203 @@ public abstract class PrivacyFilter extends AbstractStreamFilter {
 		}
 		// call for the PrivacyFilter subclass to do the necessary
 		//  steps to restart the filter
+		selectQuasiIdentifiers();
 		restartAnonymizationFilter();
+		warmStart();
+	}
+	
+	/**
+	 * Resolves the quasi-identifiers of the filter (see {@link #quasiIdentifiersOption}) against the
+	 * header of its input stream, if it has one already, and restricts the comparisons of the
+	 * estimators to them.
+	 * 
+	 * @throws IllegalArgumentException if an item of the list is neither an attribute nor a range
+	 */
+	private void selectQuasiIdentifiers() {
+		final InstancesHeader header = inputStream != null ? getHeader() : null;
+		if (header == null) {
+			//resolved once the header is available (see getQuasiIdentifierMask())
+			this.quasiIdentifiers = null;
+			this.quasiIdentifierMask = null;
+			return;
+		}
+		final int numAttributes = header.numAttributes();
+		boolean[] selected = new boolean[numAttributes];
+		for (String item : quasiIdentifiersOption.getValue().split(",")) {
+			item = item.trim();
+			if (header.attribute(item) != null) {
+				selected[header.attribute(item).index()] = true;
+			}
+			else {
+				Range range;
+				try {
+					range = new Range(item);
+					range.setUpper(numAttributes - 1);
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("Neither an attribute nor a range of indexes: " + item, e);
+				}
+				for (int i : range.getSelection()) {
+					selected[i] = true;
+				}
+			}
+		}
+		if (header.classIndex() >= 0) {
+			selected[header.classIndex()] = false;
+		}
+		int count = 0;
+		for (int i = 0; i < numAttributes; ++i) {
+			if (selected[i]) {
+				++count;
+			}
+		}
+		int[] indexes = null;
+		if (count < numAttributes - (header.classIndex() >= 0 ? 1 : 0)) {
+			indexes = new int[count];
+			count = 0;
+			for (int i = 0; i < numAttributes; ++i) {
+				if (selected[i]) {
+					indexes[count++] = i;
+				}
+			}
+		}
+		this.quasiIdentifiers = indexes;
+		this.quasiIdentifierMask = selected;
+		if (informationLossEstimator != null) {
+			informationLossEstimator.setAttributes(indexes);
+		}
+		if (disclosureRiskEstimator != null) {
+			disclosureRiskEstimator.setAttributes(indexes);
+		}
+	}
+	
+	/**
+	 * Gets the quasi-identifier mask, resolving the quasi-identifiers first if the header of the
+	 * input stream was not available yet when the filter was prepared.
+	 * 
+	 * @throws IllegalStateException if the input stream still has no header
+	 */
+	private boolean[] getQuasiIdentifierMask() {
+		if (quasiIdentifierMask == null) {
+			selectQuasiIdentifiers();
+			if (quasiIdentifierMask == null) {
+				throw new IllegalStateException("The quasi-identifiers can not be resolved: " +
+						"the input stream of the filter has no header yet");
+			}
+		}
+		return quasiIdentifierMask;
+	}
+	
+	/**
+	 * Returns the indexes of the quasi-identifiers, the attributes anonymized by the filter (see
+	 * {@link #quasiIdentifiersOption}), to be given as they are to the metrics and buffers that
+	 * compare instances over a subset of their attributes (e.g.
+	 * {@link moa.streams.filters.privacy.utils.Metrics#distance(Instance, Instance, int[])}).
+	 * 
+	 * @return the indexes, in ascending order, or {@code null} if all the attributes but the class
+	 * are quasi-identifiers
+	 */
+	protected int[] getQuasiIdentifiers() {
+		getQuasiIdentifierMask();
+		return quasiIdentifiers;
+	}
+	
+	/**
+	 * Tests whether the given attribute is anonymized by the filter. The class attribute is never
+	 * a quasi-identifier.
+	 * 
+	 * @param attributeIndex the index of the attribute
+	 * @return {@code true} if the attribute is a quasi-identifier
+	 */
+	protected boolean isQuasiIdentifier(int attributeIndex) {
+		return getQuasiIdentifierMask()[attributeIndex];
+	}
+	
+	/** Imports the warm start file of the filter, if there is one (see {@link #warmStartFileOption}) */
+	private void warmStart() {
+		File file = warmStartFileOption.getFile();
+		if (file != null) {
+			try {
+				importWarmStart(FilterWarmStart.read(file));
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to read the warm start file: " + file.getName(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Exports the state of this filter to warm start a later run with (see {@link FilterWarmStart}).
+	 * The filter is not modified, and can keep on processing instances.
+	 * 
+	 * @return the warm start of the filter
+	 */
+	public FilterWarmStart exportWarmStart() {
+		Serializable state = exportWarmStartState();
+		if (state != null) {
+			//detach the state from the filter
+			try {
+				state = (Serializable) SerializeUtils.copyObject(state);
+			} catch (Exception e) {
+				throw new RuntimeException("Failed to export the warm start of the filter.", e);
+			}
+		}
+		return new FilterWarmStart(getClass().getName(), inputStream != null ? getHeader() : null, state);
+	}
+	
+	/**
+	 * Brings this filter, freshly prepared or restarted, to the state of a warm start exported by a
+	 * previous run of a filter of the same class.
+	 * 
+	 * @param warmStart the warm start
+	 * @throws IllegalArgumentException if the warm start belongs to a filter of another class or to
+	 * a stream with another header
+	 */
+	public void importWarmStart(FilterWarmStart warmStart) {
+		if (!getClass().getName().equals(warmStart.getFilterClassName())) {
+			throw new IllegalArgumentException("The warm start belongs to a " + 
+					warmStart.getFilterClassName() + ", not to a " + getClass().getName());
+		}
+		warmStart.checkHeader(inputStream != null ? getHeader() : null);
+		if (warmStart.getState() != null) {
+			importWarmStartState(warmStart.getState());
+		}
+	}
+	
+	/**
+	 * Hook method to export the state of the anonymization filter that is carried over to a later
+	 * run: its learned statistics and the instances it has read but not released yet. Filters
+	 * without such a state return {@code null}, which is what this implementation does.
+	 * 
+	 * @return the state, which is copied right away (it can share objects with the filter), or
+	 * {@code null}
+	 */
+	protected Serializable exportWarmStartState() {
+		return null;
+	}
+	
+	/**
+	 * Hook method to import the state exported by {@link #exportWarmStartState()}, right after the
+	 * filter has been prepared (or restarted). The instances must be released before any other
+	 * one read by the filter.
+	 * 
+	 * @param state the state
+	 */
+	protected void importWarmStartState(Serializable state) {
+		//no state
 	}
 	
 	/**
 	 * If the Disclosure Risk (DR) and Information Loss (IL) evaluation is enabled, through
 	 * {@link #isEvaluationEnabled()}, the corresponding DR and IL estimators are requested
-	 * to perform an evaluation over the last anonymized instance.
+	 * to perform an evaluation over the last anonymized instance. With the lazy evaluation
+	 * (see {@link #lazyEvaluationOption}), the estimators first evaluate the pairs released
+	 * since the previous request.
 	 * 
 	 * @return a {@link PrivacyEvaluation} containing the necessary information
 	 * @throws EvaluationNotEnabledException if the DR and IL evaluation is not enabled
 	 */
 	public PrivacyEvaluation getEvaluation() throws EvaluationNotEnabledException {
 		if (evaluationEnabledOption.isSet()) {
+			evaluatePendingPairs();
 			return new AnonymizationEvaluation(
 				disclosureRiskEstimator.getCurrentDisclosureRisk(), 
 				informationLossEstimator.getIncrementalInformationLoss(), 
@@ -129,7 +563,9 @@ public abstract class PrivacyFilter extends AbstractStreamFilter {
 	/**
 	 * Retrieves the {@link DisclosureRiskEstimator} used in this filter or {@code null}
 	 * if the evaluation is not enabled for the filter (see {@link #isEvaluationEnabled()}). 
-	 * This method can be useful if the estimator can be customized.
+	 * This method can be useful if the estimator can be customized. With the lazy evaluation (see
+	 * {@link #lazyEvaluationOption}), the estimator might not have processed the pairs released
+	 * since the last {@link #getEvaluation()} yet: reading it has no side effects.
 	 * 
 	 * @return the diclosure risk estimator being used in this filter or {@code null}
 	 * if the evaluation is not enabled for the filter (see {@link #isEvaluationEnabled()})
@@ -141,7 +577,9 @@ public abstract class PrivacyFilter extends AbstractStreamFilter {
 	/**
 	 * Retrieves the {@link InformationLossEstimator} used in this filter or {@code null}
 	 * if the evaluation is not enabled for the filter (see {@link #isEvaluationEnabled()}).
-	 * This method can be useful if the estimator can be customized.
+	 * This method can be useful if the estimator can be customized. With the lazy evaluation (see
+	 * {@link #lazyEvaluationOption}), the estimator might not have processed the pairs released
+	 * since the last {@link #getEvaluation()} yet: reading it has no side effects.
 	 * 
 	 * @return the information loss estimator being used in this filter or {@code null}
 	 * if the evaluation is not enabled for the filter (see {@link #isEvaluationEnabled()})
@@ -160,6 +598,9 @@ public abstract class PrivacyFilter extends AbstractStreamFilter {
 	 */
 	public void setDisclosureRiskEstimator(DisclosureRiskEstimator disclosureRiskEstimator) {
 		this.disclosureRiskEstimator = disclosureRiskEstimator;
+		if (disclosureRiskEstimator != null && quasiIdentifierMask != null) {
+			disclosureRiskEstimator.setAttributes(quasiIdentifiers);
+		}
 	}
 	
 	/**
@@ -172,6 +613,187 @@ public abstract class PrivacyFilter extends AbstractStreamFilter {
 	 */
 	public void setInformationLossEstimator(InformationLossEstimator informationLossEstimator) {
 		this.informationLossEstimator = informationLossEstimator;
+		if (informationLossEstimator != null && quasiIdentifierMask != null) {
+			informationLossEstimator.setAttributes(quasiIdentifiers);
+		}
+	}
+	
+	/**
+	 * Allows (or forbids) this filter to anonymize the instances read from its input stream in
+	 * place, without copying them first. It must only be allowed when no one else holds references
+	 * to those instances and when the original instances of the pairs released by the filter are
+	 * not needed, since they might have been modified. It has no effect while the evaluation of
+	 * the filter is enabled.
+	 * 
+	 * @param inPlaceAnonymization whether the instances can be anonymized in place
+	 */
+	public void setInPlaceAnonymization(boolean inPlaceAnonymization) {
+		this.inPlaceAnonymization = inPlaceAnonymization;
+	}
+	
+	/**
+	 * @return {@code true} if the instances of the input stream can be anonymized in place
+	 * (see {@link #setInPlaceAnonymization(boolean)})
+	 */
+	protected boolean isInPlaceAnonymization() {
+		return inPlaceAnonymization && !evaluationEnabledOption.isSet();
+	}
+	
+	/**
+	 * Sets the shard of the input stream anonymized by this filter, when the stream is split among
+	 * several copies of the filter, so that each copy draws its own random numbers (see
+	 * {@link RandomStreams}). It must be set before the filter is prepared.
+	 * 
+	 * @param randomShard the index of the shard
+	 */
+	public void setRandomShard(int randomShard) {
+		this.randomShard = randomShard;
+	}
+	
+	/** @return the shard of the input stream anonymized by this filter (0 by default) */
+	public int getRandomShard() {
+		return randomShard;
+	}
+	
+	/**
+	 * Creates the random streams of the filter, keyed by the given seed and the shard of the filter.
+	 * 
+	 * @param seed the seed of the filter
+	 * @return the random streams
+	 */
+	protected RandomStreams newRandomStreams(long seed) {
+		return new RandomStreams(seed, randomShard);
+	}
+	
+	/**
+	 * Starts (or stops, if {@code null}) recording the live telemetry of this filter. The
+	 * telemetry must only be updated by the thread that runs the filter.
+	 * 
+	 * @param telemetry the telemetry to record or {@code null}
+	 */
+	public void setTelemetry(PrivacyFilterTelemetry telemetry) {
+		this.telemetry = telemetry;
+	}
+	
+	/** @return the telemetry recorded by this filter or {@code null} */
+	public PrivacyFilterTelemetry getTelemetry() {
+		return telemetry;
+	}
+	
+	/**
+	 * Starts (or stops, if {@code null}) recording the per-stage latencies of this filter. The
+	 * filter records the fetch of its input instances and the estimation of its anonymized ones,
+	 * while the subclasses record the steps of their anonymization through
+	 * {@link #getLatencyRecorder()}. The recorder must only be used by the thread that runs the
+	 * filter.
+	 * 
+	 * @param latencyRecorder the recorder of the latencies or {@code null}
+	 */
+	public void setLatencyRecorder(LatencyRecorder latencyRecorder) {
+		this.latencyRecorder = latencyRecorder;
+	}
+	
+	/** @return the recorder of the latencies of this filter or {@code null} */
+	public LatencyRecorder getLatencyRecorder() {
+		return latencyRecorder;
+	}
+	
+	/**
+	 * Returns the number of instances held in the buffers of this filter, for its telemetry.
+	 * Filters without buffers hold no instances, which is what this implementation returns.
+	 * 
+	 * @return the number of buffered instances
+	 */
+	public int getBufferOccupancy() {
+		return 0;
+	}
+	
+	/**
+	 * Returns the bytes held by the buffers of this filter outside of the heap (see
+	 * {@link InstanceBuffer#getOffHeapBytes()}), which its deep size does not measure. Filters
+	 * without such buffers hold none, which is what this implementation returns.
+	 * 
+	 * @return the off-heap bytes of the filter
+	 */
+	public long getOffHeapBytes() {
+		return 0;
+	}
+	
+	/**
+	 * Reads the next instance of the input stream, as it is, recording it in the telemetry and
+	 * its latency.
+	 * 
+	 * @return the next instance of the input stream
+	 */
+	protected Instance readInputInstance() {
+		return fetchInputInstance(false);
+	}
+	
+	/**
+	 * Reads the next instance of the input stream, copying it unless the filter is allowed to
+	 * anonymize it in place (see {@link #setInPlaceAnonymization(boolean)}).
+	 * 
+	 * @return the next instance, which can be modified by the filter
+	 */
+	protected Instance nextInputInstance() {
+		return fetchInputInstance(!isInPlaceAnonymization());
+	}
+	
+	/** Reads (and copies, if requested) the next input instance, recording its fetch */
+	private Instance fetchInputInstance(boolean copy) {
+		long startTime = latencyRecorder != null ? System.nanoTime() : 0;
+		Instance instance = inputStream.nextInstance();
+		if (telemetry != null && instance != null) {
+			telemetry.instanceRead();
+		}
+		if (copy) {
+			instance = (Instance) instance.copy();
+		}
+		if (latencyRecorder != null) {
+			latencyRecorder.recordSince(LatencyRecorder.Stage.FETCH, startTime);
+		}
+		return instance;
+	}
+	
+	/**
+	 * Measures the memory held by this filter: its buffers and any other anonymization state, plus
+	 * the state of its estimators (see {@link Estimator#getMemoryFootprint()}) if the evaluation is
+	 * enabled. The buffers stored outside of the heap are added up (see {@link #getOffHeapBytes()}),
+	 * while the input stream of the filter is not part of the footprint.
+	 * <p>
+	 * The measure is a deep size, which requires the sizeofag agent to be loaded by the JVM
+	 * ({@code -javaagent:sizeofag.jar}), and it traverses the whole state of the filter: it is
+	 * meant to be sampled from time to time, not after every instance.
+	 * 
+	 * @return the memory footprint of the filter (in bytes) or {@code -1} if the agent is not loaded
+	 */
+	public long getMemoryFootprint() {
+		//detach the input stream and the estimators while measuring the filter itself
+		InstanceStream stream = inputStream;
+		InformationLossEstimator ilEstimator = informationLossEstimator;
+		DisclosureRiskEstimator drEstimator = disclosureRiskEstimator;
+		long footprint;
+		try {
+			inputStream = null;
+			informationLossEstimator = null;
+			disclosureRiskEstimator = null;
+			footprint = SizeOf.fullSizeOf(this);
+		} finally {
+			inputStream = stream;
+			informationLossEstimator = ilEstimator;
+			disclosureRiskEstimator = drEstimator;
+		}
+		if (footprint <= 0) { //without the agent, the size of any object is 0
+			return -1;
+		}
+		footprint += getOffHeapBytes();
+		if (ilEstimator != null) {
+			footprint += ilEstimator.getMemoryFootprint();
+		}
+		if (drEstimator != null) {
+			footprint += drEstimator.getMemoryFootprint();
+		}
+		return footprint;
 	}
 	
 	/**
@@ -184,6 +806,17 @@ public abstract class PrivacyFilter extends AbstractStreamFilter {
 		return evaluationEnabledOption.isSet();
 	}
 	
+	/**
+	 * Tests whether the evaluation of this filter is enabled and lazy (see
+	 * {@link #lazyEvaluationOption}). The instances released by a lazily evaluated filter must not
+	 * be modified until they are evaluated.
+	 * 
+	 * @return {@code true} if the pairs are recorded and evaluated when the evaluation is requested
+	 */
+	public boolean isLazyEvaluation() {
+		return evaluationEnabledOption.isSet() && lazyEvaluationOption.getValue() > 0;
+	}
+	
 	/**
 	 * Exception class representing an error that is triggered when a user of a {@link PrivacyFilter}
 	 * requests for a {@link PrivacyEvaluation} while not having enabled the feature
@@ -209,6 +842,32 @@ public abstract class PrivacyFilter extends AbstractStreamFilter {
 	 */
 	public abstract InstancePair nextAnonymizedInstancePair();
 	
+	/**
+	 * Anonymizes a block of instances of the stream, storing the pairs of anonymized and original
+	 * instances in the given array. Unlike {@link #nextAnonymizedInstancePair()}, no {@code null}
+	 * pairs are stored: the buffered filters keep on consuming the stream until they release
+	 * instances.
+	 * <p>
+	 * This implementation calls {@link #nextAnonymizedInstancePair()} repeatedly; filters override
+	 * it to process the whole block in a single pass.
+	 * 
+	 * @param pairs the array in which the pairs are stored
+	 * @param offset the index of the array where the first pair is stored
+	 * @param length the maximum number of pairs to store
+	 * @return the number of pairs stored, which is less than {@code length} only if the filter
+	 * runs out of instances
+	 */
+	public int nextAnonymizedInstancePairs(InstancePair[] pairs, int offset, int length) {
+		int count = 0;
+		while (count < length && hasMoreInstances()) {
+			InstancePair pair = nextAnonymizedInstancePair();
+			if (pair != null) {
+				pairs[offset + count++] = pair;
+			}
+		}
+		return count;
+	}
+	
 	/** Hook method to allow an anonymization filter to prepare for its future use. */
 	public abstract void prepareAnonymizationFilterForUse();
 	
@@ -0,0 +1,115 @@
+package moa.streams.filters.privacy.buffer;
+
+/**
+ * Resizes a {@link ResizableBuffer} to meet a target processing time per instance (or, which is
+ * the same, a target throughput). The controller is fed with the time spent in each interval of
+ * the processing and, if the observed cost per instance is off the target by more than a
+ * tolerance, it scales the buffer towards the target: the cost of the buffered filters and
+ * estimators (the search of clusters, swap partners or linked records) grows with the size of
+ * their buffer, so a faster run than required leaves room for a larger buffer (and a lower
+ * information loss or a more accurate estimation), and a slower one calls for a smaller buffer.
+ * <p>
+ * Each step is damped and limited, so that the noise of a single interval can not swing the size,
+ * and the size is always kept within the given bounds, which are never below the minimum size of
+ * the buffer (see {@link ResizableBuffer#getMinimumBufferSize()}).
+ */
+public class AdaptiveBufferController {
+
+	/** The relative deviation from the target that causes no resize */
+	private static final double TOLERANCE = 0.1;
+
+	/** The fraction of the deviation from the target corrected by each step */
+	private static final double DAMPING = 0.5;
+
+	/** The limits of the scaling of the buffer in a single step */
+	private static final double MIN_STEP = 0.5;
+	private static final double MAX_STEP = 2.0;
+
+	private final ResizableBuffer buffer;
+
+	private final double targetNanosPerInstance;
+
+	private final int minBufferSize;
+
+	private final int maxBufferSize;
+
+	/** The number of resizes performed */
+	private int resizes;
+
+	/**
+	 * Builds a controller for the given buffer.
+	 *
+	 * @param buffer the buffer to be resized
+	 * @param targetNanosPerInstance the target processing time per instance (in nanoseconds)
+	 * @param minBufferSize the minimum size of the buffer
+	 * @param maxBufferSize the maximum size of the buffer
+	 * @throws IllegalArgumentException if the target is not positive, or the bounds are
+	 * inconsistent or below the minimum size of the buffer
+	 */
+	public AdaptiveBufferController(ResizableBuffer buffer, double targetNanosPerInstance,
+			int minBufferSize, int maxBufferSize) {
+		if (!(targetNanosPerInstance > 0)) {
+			throw new IllegalArgumentException("The target time per instance must be positive.");
+		}
+		if (minBufferSize < buffer.getMinimumBufferSize()) {
+			throw new IllegalArgumentException(String.format(
+					"The minimum buffer size (%d) is below the one of the %s (%d).",
+					minBufferSize, buffer.getClass().getSimpleName(), buffer.getMinimumBufferSize()));
+		}
+		if (maxBufferSize < minBufferSize) {
+			throw new IllegalArgumentException(String.format(
+					"The maximum buffer size (%d) is below the minimum one (%d).", maxBufferSize, minBufferSize));
+		}
+		this.buffer = buffer;
+		this.targetNanosPerInstance = targetNanosPerInstance;
+		this.minBufferSize = minBufferSize;
+		this.maxBufferSize = maxBufferSize;
+		this.resizes = 0;
+		//bring the initial size within the bounds
+		int size = buffer.getBufferSize();
+		if (size < minBufferSize || size > maxBufferSize) {
+			resize(Math.min(Math.max(size, minBufferSize), maxBufferSize));
+		}
+	}
+
+	/**
+	 * Observes the time spent in an interval of the processing and resizes the buffer if needed.
+	 *
+	 * @param instances the number of instances released in the interval
+	 * @param nanos the time spent in the interval (in nanoseconds)
+	 * @return {@code true} if the buffer has been resized
+	 */
+	public boolean update(int instances, long nanos) {
+		if (instances <= 0 || nanos <= 0) {
+			return false;
+		}
+		double ratio = targetNanosPerInstance / ((double) nanos / instances);
+		if (Math.abs(ratio - 1.0) <= TOLERANCE) {
+			return false;
+		}
+		double step = Math.min(Math.max(1.0 + (ratio - 1.0) * DAMPING, MIN_STEP), MAX_STEP);
+		int size = buffer.getBufferSize();
+		int newSize = (int) Math.min(Math.max(Math.round(size * step), minBufferSize), maxBufferSize);
+		if (newSize == size) {
+			return false;
+		}
+		resize(newSize);
+		return true;
+	}
+
+	private void resize(int bufferSize) {
+		buffer.setBufferSize(bufferSize);
+		++resizes;
+	}
+
+	/** @return the current size of the buffer */
+	public int getBufferSize() {
+		return buffer.getBufferSize();
+	}
+
+	/** @return the number of resizes performed so far */
+	public int getResizes() {
+		return resizes;
+	}
+
+}
@@ -0,0 +1,109 @@
+package moa.streams.filters.privacy.buffer;
+
+import java.util.Arrays;
+
+import moa.streams.filters.privacy.utils.Metrics;
+import weka.core.Instance;
+import weka.core.SparseInstance;
+
+/**
+ * {@link InstanceBuffer} holding the instances themselves, in a circular array that grows as
+ * needed.
+ */
+public class HeapInstanceBuffer extends InstanceBuffer {
+
+	/** Serializable */
+	private static final long serialVersionUID = -3466231617946381043L;
+
+	private Instance[] instances;
+
+	/** The position of the oldest instance in the {@link #instances} */
+	private int head;
+
+	private int size;
+
+	public HeapInstanceBuffer() {
+		this.instances = new Instance[INITIAL_CAPACITY];
+		this.head = 0;
+		this.size = 0;
+	}
+
+	/** Maps the index {@code i} (0 being the oldest instance) to its position in the array */
+	private int getPosition(final int i) {
+		final int position = head + i;
+		return position < instances.length ? position : position - instances.length;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void add(Instance instance) {
+		if (size == instances.length) {
+			Instance[] grown = new Instance[instances.length * 2];
+			for (int i = 0; i < size; ++i) {
+				grown[i] = instances[getPosition(i)];
+			}
+			instances = grown;
+			head = 0;
+		}
+		instances[getPosition(size)] = instance;
+		++size;
+	}
+
+	@Override
+	public void addCopy(Instance instance) {
+		add((Instance) instance.copy());
+	}
+
+	@Override
+	public Instance get(int index) {
+		return instances[getPosition(index)];
+	}
+
+	@Override
+	public double value(int index, int attributeIndex) {
+		return instances[getPosition(index)].value(attributeIndex);
+	}
+
+	@Override
+	public void setValue(int index, int attributeIndex, double value) {
+		instances[getPosition(index)].setValue(attributeIndex, value);
+	}
+
+	@Override
+	public void discardFirst() {
+		if (size == 0) {
+			throw new IllegalStateException("The buffer is empty.");
+		}
+		instances[head] = null;
+		head = getPosition(1);
+		--size;
+	}
+
+	@Override
+	public void clear() {
+		Arrays.fill(instances, null);
+		head = 0;
+		size = 0;
+	}
+
+	@Override
+	public Instance getSparse(int index) {
+		Instance instance = instances[getPosition(index)];
+		return instance instanceof SparseInstance ? instance : null;
+	}
+
+	@Override
+	public double distance(Instance x, int index) {
+		return Metrics.distance(x, instances[getPosition(index)]);
+	}
+
+	@Override
+	public double distance(Instance x, int index, int[] attributes) {
+		return Metrics.distance(x, instances[getPosition(index)], attributes);
+	}
+
+}
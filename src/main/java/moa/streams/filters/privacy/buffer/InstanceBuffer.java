@@ -0,0 +1,362 @@
+package moa.streams.filters.privacy.buffer;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import moa.options.IntOption;
+import moa.options.MultiChoiceOption;
+import moa.options.StringOption;
+import weka.core.Instance;
+import weka.core.SparseInstance;
+
+/**
+ * First-in first-out buffer of instances with random access, as used by the buffered privacy
+ * filters and estimators. The instances are addressed by their index in the buffer, {@code 0} being
+ * the oldest one, and their values can be read and modified in place.
+ * <p>
+ * The storage of the instances depends on the backend (see {@link #create(int)}): the
+ * {@link HeapInstanceBuffer} holds the instances themselves, while the {@link OffHeapInstanceBuffer}
+ * holds their values outside of the heap, so that large buffers add no pressure to the garbage
+ * collector, and the {@link TieredInstanceBuffer} spills the older ones to memory-mapped files, for
+ * windows larger than the memory. Reading or modifying values does not depend on the backend;
+ * {@link #get(int)} and {@link #removeFirst()}, however, return a new instance when the values are
+ * held off the heap, which is why they should be kept out of the inner loops.
+ * <p>
+ * The buffers are split in segments of consecutive instances (a single one, unless the backend
+ * says otherwise), each one with a lower bound of the distances to its instances: the nearest
+ * neighbour searches skip the segments whose bound is above the distances they have already found
+ * (see {@link #getSegmentEnd(int)} and {@link #getSegmentLowerBound(Instance, int)}).
+ * <p>
+ * All the instances of a buffer must share the same header.
+ */
+public abstract class InstanceBuffer implements Serializable {
+
+	/** Serializable */
+	private static final long serialVersionUID = 2754330853961946219L;
+
+	/** The storage backends of the buffers (see {@link #newStorageOption()}) */
+	public static final int HEAP_STORAGE = 0;
+	public static final int OFF_HEAP_STORAGE = 1;
+	public static final int TIERED_STORAGE = 2;
+
+	/** The initial capacity of the buffers, which grow as needed */
+	protected static final int INITIAL_CAPACITY = 16;
+
+	/**
+	 * Builds the option that chooses the storage backend of the buffer of a filter or estimator.
+	 *
+	 * @return a new option, whose chosen index is to be given to {@link #create(int)}
+	 */
+	public static MultiChoiceOption newStorageOption() {
+		return new MultiChoiceOption("bufferStorage", 'o',
+				"Where the instances of the buffer are stored.",
+				new String[] { "Heap", "OffHeap", "Tiered" },
+				new String[] { "As instances in the Java heap.",
+							   "As rows of values in direct memory, outside of the Java heap (no GC pressure).",
+							   "As rows of values in direct memory, spilling the older ones to memory-mapped files." },
+				HEAP_STORAGE);
+	}
+
+	/**
+	 * Builds the option that chooses the directory of the files of the {@link TieredInstanceBuffer}.
+	 *
+	 * @return a new option, whose value is to be given to {@link #create(int, String)}
+	 */
+	public static StringOption newSpillDirectoryOption() {
+		return new StringOption("spillDirectory", 'y',
+				"The directory of the files of the Tiered buffer storage (empty for the temporary one).", "");
+	}
+
+	/**
+	 * Builds the option that chooses the number of instances of each segment of the
+	 * {@link TieredInstanceBuffer}.
+	 *
+	 * @return a new option, whose value is to be given to {@link #create(int, String, int, int)}
+	 */
+	public static IntOption newSegmentSizeOption() {
+		return new IntOption("segmentSize", 'z',
+				"The number of instances of each segment of the Tiered buffer storage.",
+				TieredInstanceBuffer.DEFAULT_SEGMENT_INSTANCES, 1, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Builds the option that chooses the number of segments of the {@link TieredInstanceBuffer}
+	 * kept in memory.
+	 *
+	 * @return a new option, whose value is to be given to {@link #create(int, String, int, int)}
+	 */
+	public static IntOption newMemorySegmentsOption() {
+		return new IntOption("memorySegments", 'm',
+				"The number of (newest) segments of the Tiered buffer storage kept in memory, the older ones " +
+				"being spilled to files.",
+				TieredInstanceBuffer.DEFAULT_MEMORY_SEGMENTS, 1, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates an empty buffer, whose files (if any) go to the temporary directory.
+	 *
+	 * @param storage the storage backend: {@link #HEAP_STORAGE}, {@link #OFF_HEAP_STORAGE} or
+	 * {@link #TIERED_STORAGE}
+	 * @return the buffer
+	 */
+	public static InstanceBuffer create(int storage) {
+		return create(storage, null);
+	}
+
+	/**
+	 * Creates an empty buffer, with the default segments for the tiered storage.
+	 *
+	 * @param storage the storage backend: {@link #HEAP_STORAGE}, {@link #OFF_HEAP_STORAGE} or
+	 * {@link #TIERED_STORAGE}
+	 * @param spillDirectory the directory of the files of the buffer, {@code null} or empty for the
+	 * temporary one
+	 * @return the buffer
+	 */
+	public static InstanceBuffer create(int storage, String spillDirectory) {
+		return create(storage, spillDirectory, TieredInstanceBuffer.DEFAULT_SEGMENT_INSTANCES,
+				TieredInstanceBuffer.DEFAULT_MEMORY_SEGMENTS);
+	}
+
+	/**
+	 * Creates an empty buffer.
+	 *
+	 * @param storage the storage backend: {@link #HEAP_STORAGE}, {@link #OFF_HEAP_STORAGE} or
+	 * {@link #TIERED_STORAGE}
+	 * @param spillDirectory the directory of the files of the buffer, {@code null} or empty for the
+	 * temporary one
+	 * @param segmentSize the number of instances of each segment, for the tiered storage
+	 * @param memorySegments the number of segments kept in memory, for the tiered storage
+	 * @return the buffer
+	 */
+	public static InstanceBuffer create(int storage, String spillDirectory, int segmentSize, int memorySegments) {
+		switch (storage) {
+		case HEAP_STORAGE:
+			return new HeapInstanceBuffer();
+		case OFF_HEAP_STORAGE:
+			return new OffHeapInstanceBuffer();
+		case TIERED_STORAGE:
+			return new TieredInstanceBuffer(spillDirectory == null || spillDirectory.isEmpty() ?
+					null : new File(spillDirectory), segmentSize, memorySegments);
+		default:
+			throw new IllegalArgumentException("Unknown buffer storage: " + storage);
+		}
+	}
+
+	/** @return the number of instances in the buffer */
+	public abstract int size();
+
+	/**
+	 * Adds an instance at the end of the buffer. The buffer might hold the instance itself, thus
+	 * it must not be modified afterwards but through the buffer.
+	 *
+	 * @param instance the instance
+	 */
+	public abstract void add(Instance instance);
+
+	/**
+	 * Adds a copy of an instance at the end of the buffer, which can then be modified through the
+	 * buffer without modifying the given instance.
+	 *
+	 * @param instance the instance
+	 */
+	public abstract void addCopy(Instance instance);
+
+	/**
+	 * Returns the instance at the given index: the one held by the buffer or a new one with its
+	 * values, depending on the backend.
+	 *
+	 * @param index the index of the instance
+	 * @return the instance
+	 */
+	public abstract Instance get(int index);
+
+	/**
+	 * @param index the index of the instance
+	 * @param attributeIndex the index of the attribute
+	 * @return the value of the attribute of the instance at the given index
+	 */
+	public abstract double value(int index, int attributeIndex);
+
+	/**
+	 * Modifies the value of an attribute of the instance at the given index.
+	 *
+	 * @param index the index of the instance
+	 * @param attributeIndex the index of the attribute
+	 * @param value the new value
+	 */
+	public abstract void setValue(int index, int attributeIndex, double value);
+
+	/** Removes the oldest instance of the buffer */
+	public abstract void discardFirst();
+
+	/** Removes all the instances of the buffer */
+	public abstract void clear();
+
+	/**
+	 * Lists the instances of the buffer (see {@link #get(int)}), e.g. to carry them over to another
+	 * buffer.
+	 *
+	 * @return the instances, from the oldest one
+	 */
+	public List<Instance> getInstances() {
+		List<Instance> instances = new ArrayList<Instance>(size());
+		for (int i = 0; i < size(); ++i) {
+			instances.add(get(i));
+		}
+		return instances;
+	}
+
+	/**
+	 * Removes the oldest instance of the buffer and returns it (see {@link #get(int)}).
+	 *
+	 * @return the oldest instance
+	 */
+	public Instance removeFirst() {
+		Instance first = get(0);
+		discardFirst();
+		return first;
+	}
+
+	/**
+	 * Computes the distance between an instance and the one at the given index, with the same
+	 * scheme as {@link moa.streams.filters.privacy.utils.Metrics#distance(Instance, Instance)},
+	 * without retrieving the instance from the buffer.
+	 *
+	 * @param x the instance
+	 * @param index the index of the instance of the buffer
+	 * @return the distance between the instances
+	 */
+	public double distance(Instance x, int index) {
+		double dist = 0.0;
+		final int classIndex = x.classIndex();
+		for (int i = 0; i < x.numAttributes(); ++i){
+			if (i != classIndex) { //skip all those variables that are the target class
+				final double y = value(index, i);
+				if (x.attribute(i).isNumeric()){
+					dist += (x.value(i) - y) * (x.value(i) - y);
+				} else {
+					dist += (x.value(i) != y) ? 1.0 : 0.0;
+				}
+			}
+		}
+		return Math.sqrt(dist);
+	}
+
+	/**
+	 * Computes the distance between an instance and the one at the given index over the given
+	 * attributes only (see {@link moa.streams.filters.privacy.utils.Metrics#distance(Instance, Instance, int[])}).
+	 *
+	 * @param x the instance
+	 * @param index the index of the instance of the buffer
+	 * @param attributes the indexes of the attributes, or {@code null} for all of them but the class
+	 * @return the distance between the instances
+	 */
+	public double distance(Instance x, int index, int[] attributes) {
+		if (attributes == null) {
+			return distance(x, index);
+		}
+		double dist = 0.0;
+		for (int i : attributes) {
+			final double y = value(index, i);
+			if (x.attribute(i).isNumeric()) {
+				dist += (x.value(i) - y) * (x.value(i) - y);
+			} else {
+				dist += (x.value(i) != y) ? 1.0 : 0.0;
+			}
+		}
+		return Math.sqrt(dist);
+	}
+
+	/**
+	 * Returns the instance at the given index if the buffer holds it as a {@link SparseInstance},
+	 * for the sparse paths of the filters, which iterate over its stored values only.
+	 *
+	 * @param index the index of the instance
+	 * @return the sparse instance, or {@code null} if it is dense or the buffer only holds its values
+	 */
+	public Instance getSparse(int index) {
+		return null;
+	}
+
+	/**
+	 * Collects the attributes stored by any of the sparse instances at the given indexes: all the
+	 * other attributes are zero in all of them.
+	 *
+	 * @param indexes the indexes of the instances
+	 * @return the indexes of the stored attributes, in ascending order, or {@code null} if any of
+	 * the instances is not held as a sparse one (see {@link #getSparse(int)})
+	 */
+	public int[] getStoredAttributes(List<Integer> indexes) {
+		int stored = 0;
+		for (int i = 0; i < indexes.size(); ++i) {
+			Instance instance = getSparse(indexes.get(i));
+			if (instance == null) {
+				return null;
+			}
+			stored += instance.numValues();
+		}
+		int[] attributes = new int[stored];
+		int count = 0;
+		for (int i = 0; i < indexes.size(); ++i) {
+			Instance instance = getSparse(indexes.get(i));
+			for (int p = 0; p < instance.numValues(); ++p) {
+				attributes[count++] = instance.index(p);
+			}
+		}
+		Arrays.sort(attributes);
+		//remove the duplicates
+		int unique = 0;
+		for (int i = 0; i < count; ++i) {
+			if (unique == 0 || attributes[i] != attributes[unique - 1]) {
+				attributes[unique++] = attributes[i];
+			}
+		}
+		return Arrays.copyOf(attributes, unique);
+	}
+
+	/**
+	 * Returns the end of the segment of the instance at the given index.
+	 *
+	 * @param index the index of the instance
+	 * @return the index past the last instance of its segment
+	 */
+	public int getSegmentEnd(int index) {
+		return size();
+	}
+
+	/**
+	 * Returns a lower bound of the distances (as computed by {@link #distance(Instance, int)}, or
+	 * over the numeric attributes only) between an instance and the ones of the segment of the
+	 * given index, from the start of the segment to its end (see {@link #getSegmentEnd(int)}).
+	 *
+	 * @param x the instance
+	 * @param index the index of an instance of the segment
+	 * @return the lower bound, {@code 0} if the backend keeps no bounds
+	 */
+	public double getSegmentLowerBound(Instance x, int index) {
+		return 0.0;
+	}
+
+	/**
+	 * Returns a lower bound of the distances over the given attributes only (see
+	 * {@link #distance(Instance, int, int[])}) between an instance and the ones of the segment of
+	 * the given index.
+	 *
+	 * @param x the instance
+	 * @param index the index of an instance of the segment
+	 * @param attributes the indexes of the attributes, or {@code null} for all of them but the class
+	 * @return the lower bound, {@code 0} if the backend keeps no bounds
+	 */
+	public double getSegmentLowerBound(Instance x, int index, int[] attributes) {
+		return attributes == null ? getSegmentLowerBound(x, index) : 0.0;
+	}
+
+	/** @return the bytes held by the buffer outside of the heap */
+	public long getOffHeapBytes() {
+		return 0;
+	}
+
+}
@@ -0,0 +1,180 @@
+package moa.streams.filters.privacy.buffer;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * {@link InstanceBuffer} holding the values of the instances in direct memory, outside of the
+ * heap: each instance is a fixed-width row with the values of its attributes followed by its
+ * weight, in a circular buffer that grows as needed. The heap only holds the header shared by the
+ * instances, so that the size of the buffer adds no pressure to the garbage collector.
+ * <p>
+ * The instances retrieved from the buffer are new {@link DenseInstance}s with the values of the
+ * rows (sparse instances come back as dense ones). The rows are written in full when the buffer is
+ * serialized, e.g. in the checkpoints of the filters.
+ */
+public class OffHeapInstanceBuffer extends InstanceBuffer {
+
+	/** Serializable */
+	private static final long serialVersionUID = 8601324541097405235L;
+
+	/** The bytes of each value */
+	private static final int VALUE_BYTES = 8;
+
+	/** The rows of values, or {@code null} until the first instance is added */
+	private transient DoubleBuffer rows;
+
+	/** The number of rows of the {@link #rows} */
+	private transient int capacity;
+
+	/** The header of the instances */
+	private Instances dataset;
+
+	/** The number of values of each row: the attributes and the weight */
+	private int width;
+
+	/** The row of the oldest instance */
+	private transient int head;
+
+	private int size;
+
+	public OffHeapInstanceBuffer() {
+		this.rows = null;
+		this.capacity = 0;
+		this.head = 0;
+		this.size = 0;
+	}
+
+	/** Allocates the rows of the buffer, in direct memory */
+	private static DoubleBuffer allocateRows(int capacity, int width) {
+		long bytes = (long) capacity * width * VALUE_BYTES;
+		if (bytes > Integer.MAX_VALUE) {
+			throw new IllegalStateException("The buffer does not fit in a single block of direct memory: "
+					+ capacity + " instances of " + width + " values.");
+		}
+		return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	}
+
+	/** Maps the index {@code i} (0 being the oldest instance) to the offset of its row */
+	private int getOffset(final int i) {
+		final int row = head + i;
+		return (row < capacity ? row : row - capacity) * width;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void add(Instance instance) {
+		if (rows == null) {
+			dataset = instance.dataset();
+			width = instance.numAttributes() + 1;
+			capacity = INITIAL_CAPACITY;
+			rows = allocateRows(capacity, width);
+		}
+		else if (size == capacity) {
+			grow();
+		}
+		final int offset = getOffset(size);
+		for (int a = 0; a < width - 1; ++a) {
+			rows.put(offset + a, instance.value(a));
+		}
+		rows.put(offset + width - 1, instance.weight());
+		++size;
+	}
+
+	/** Doubles the capacity of the buffer, moving the oldest instance to the first row */
+	private void grow() {
+		DoubleBuffer grown = allocateRows(capacity * 2, width);
+		for (int i = 0; i < size; ++i) {
+			final int offset = getOffset(i);
+			for (int v = 0; v < width; ++v) {
+				grown.put(i * width + v, rows.get(offset + v));
+			}
+		}
+		rows = grown;
+		capacity *= 2;
+		head = 0;
+	}
+
+	/** The values are always copied into the buffer */
+	@Override
+	public void addCopy(Instance instance) {
+		add(instance);
+	}
+
+	@Override
+	public Instance get(int index) {
+		final int offset = getOffset(index);
+		double[] values = new double[width - 1];
+		for (int a = 0; a < values.length; ++a) {
+			values[a] = rows.get(offset + a);
+		}
+		Instance instance = new DenseInstance(rows.get(offset + width - 1), values);
+		instance.setDataset(dataset);
+		return instance;
+	}
+
+	@Override
+	public double value(int index, int attributeIndex) {
+		return rows.get(getOffset(index) + attributeIndex);
+	}
+
+	@Override
+	public void setValue(int index, int attributeIndex, double value) {
+		rows.put(getOffset(index) + attributeIndex, value);
+	}
+
+	@Override
+	public void discardFirst() {
+		if (size == 0) {
+			throw new IllegalStateException("The buffer is empty.");
+		}
+		head = head + 1 < capacity ? head + 1 : 0;
+		--size;
+	}
+
+	@Override
+	public void clear() {
+		head = 0;
+		size = 0;
+	}
+
+	@Override
+	public long getOffHeapBytes() {
+		return (long) capacity * width * VALUE_BYTES;
+	}
+
+	private void writeObject(ObjectOutputStream output) throws IOException {
+		output.defaultWriteObject();
+		for (int i = 0; i < size; ++i) {
+			final int offset = getOffset(i);
+			for (int v = 0; v < width; ++v) {
+				output.writeDouble(rows.get(offset + v));
+			}
+		}
+	}
+
+	private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+		input.defaultReadObject();
+		head = 0;
+		if (width > 0) {
+			capacity = Math.max(size, INITIAL_CAPACITY);
+			rows = allocateRows(capacity, width);
+			for (int i = 0; i < size * width; ++i) {
+				rows.put(i, input.readDouble());
+			}
+		}
+	}
+
+}
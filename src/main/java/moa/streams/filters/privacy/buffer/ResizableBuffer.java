@@ -0,0 +1,31 @@
+package moa.streams.filters.privacy.buffer;
+
+/**
+ * A component (a buffered privacy filter or estimator) whose buffer can be resized while it runs,
+ * e.g. by an {@link AdaptiveBufferController}. The size given by the options of the component is
+ * its initial size.
+ */
+public interface ResizableBuffer {
+
+	/** @return the current size of the buffer */
+	public int getBufferSize();
+
+	/**
+	 * Returns the smallest size of the buffer the component can work with without breaking its
+	 * guarantees, e.g. the size of the clusters of the <em>k</em>-anonymous filters.
+	 *
+	 * @return the minimum size of the buffer
+	 */
+	public int getMinimumBufferSize();
+
+	/**
+	 * Resizes the buffer. A larger buffer is filled with the next instances before the component
+	 * releases any other, while a smaller one releases the instances it holds in excess before
+	 * the component reads any other.
+	 *
+	 * @param bufferSize the new size of the buffer
+	 * @throws IllegalArgumentException if the size is below {@link #getMinimumBufferSize()}
+	 */
+	public void setBufferSize(int bufferSize);
+
+}
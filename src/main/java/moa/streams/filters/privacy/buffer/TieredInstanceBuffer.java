@@ -0,0 +1,411 @@
+package moa.streams.filters.privacy.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * {@link InstanceBuffer} for windows larger than the memory: the instances are stored, as rows of
+ * values (followed by their weight), in fixed-size segments. The newest segments, where the
+ * instances are added, stay in direct memory, while the older ones are spilled to memory-mapped
+ * files, so that the operating system pages them in and out as they are used.
+ * <p>
+ * Each segment keeps the bounding box of the values of its instances, which gives a lower bound
+ * of the distance between an instance and any instance of the segment (see
+ * {@link #getSegmentLowerBound(Instance, int)}): the nearest neighbour searches skip the segments
+ * that cannot hold a neighbour, without reading their rows.
+ * <p>
+ * The segment files are created in the given directory and unlinked as soon as they are mapped,
+ * where the system allows it, or else deleted when their instances leave the buffer. As with the
+ * {@link OffHeapInstanceBuffer}, the instances retrieved from the buffer are new
+ * {@link DenseInstance}s, and the rows are written in full when the buffer is serialized.
+ */
+public class TieredInstanceBuffer extends InstanceBuffer {
+
+	/** Serializable */
+	private static final long serialVersionUID = -6219837043265330714L;
+
+	/** The default number of instances of each segment */
+	public static final int DEFAULT_SEGMENT_INSTANCES = 4096;
+
+	/** The default number of segments kept in memory */
+	public static final int DEFAULT_MEMORY_SEGMENTS = 4;
+
+	/** The prefix of the names of the segment files */
+	private static final String SEGMENT_FILE_PREFIX = "moa-ppsm-segment-";
+
+	/** The bytes of each value */
+	private static final int VALUE_BYTES = 8;
+
+	/** The directory of the segment files */
+	private final File directory;
+
+	/** The number of instances of each segment */
+	private final int segmentInstances;
+
+	/** The number of segments kept in memory */
+	private final int memorySegments;
+
+	/** The header of the instances */
+	private Instances dataset;
+
+	/** The number of values of each row: the attributes and the weight */
+	private int width;
+
+	private int size;
+
+	/** The segments, from the oldest to the newest, or {@code null} until the first instance is added */
+	private transient List<Segment> segments;
+
+	/** The number of leading {@link #segments} spilled to files */
+	private transient int spilledSegments;
+
+	/** The row of the oldest instance in the first segment */
+	private transient int head;
+
+	/** The row being added, reused across additions */
+	private transient double[] row;
+
+	/**
+	 * Builds a buffer with the default segments (see {@link #DEFAULT_SEGMENT_INSTANCES} and
+	 * {@link #DEFAULT_MEMORY_SEGMENTS}).
+	 *
+	 * @param directory the directory of the segment files, or {@code null} for the temporary one
+	 */
+	public TieredInstanceBuffer(File directory) {
+		this(directory, DEFAULT_SEGMENT_INSTANCES, DEFAULT_MEMORY_SEGMENTS);
+	}
+
+	/**
+	 * Builds a buffer.
+	 *
+	 * @param directory the directory of the segment files, or {@code null} for the temporary one
+	 * @param segmentInstances the number of instances of each segment
+	 * @param memorySegments the number of (newest) segments kept in memory
+	 */
+	public TieredInstanceBuffer(File directory, int segmentInstances, int memorySegments) {
+		if (segmentInstances < 1 || memorySegments < 1) {
+			throw new IllegalArgumentException("The segments must hold at least one instance, " +
+					"and at least one segment must be kept in memory.");
+		}
+		this.directory = directory != null ? directory : new File(System.getProperty("java.io.tmpdir"));
+		this.segmentInstances = segmentInstances;
+		this.memorySegments = memorySegments;
+		this.size = 0;
+		this.head = 0;
+		this.spilledSegments = 0;
+		this.segments = null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/** Maps the index {@code i} (0 being the oldest instance) to the number of its row, from the first segment */
+	private int getRow(final int i) {
+		return head + i;
+	}
+
+	private Segment getSegment(final int row) {
+		return segments.get(row / segmentInstances);
+	}
+
+	private int getOffset(final int row) {
+		return (row % segmentInstances) * width;
+	}
+
+	@Override
+	public void add(Instance instance) {
+		if (segments == null) {
+			dataset = instance.dataset();
+			width = instance.numAttributes() + 1;
+			segments = new ArrayList<Segment>();
+		}
+		if (row == null) {
+			row = new double[width];
+		}
+		for (int a = 0; a < width - 1; ++a) {
+			row[a] = instance.value(a);
+		}
+		row[width - 1] = instance.weight();
+		append(row);
+	}
+
+	/** Adds a row at the end of the buffer, opening (and spilling) segments as needed */
+	private void append(double[] values) {
+		final int last = getRow(size);
+		if (last / segmentInstances == segments.size()) {
+			segments.add(new Segment(allocateMemoryRows(segmentInstances * width), width - 1));
+			if (segments.size() - spilledSegments > memorySegments) {
+				spill(segments.get(spilledSegments));
+				++spilledSegments;
+			}
+		}
+		final Segment segment = getSegment(last);
+		final int offset = getOffset(last);
+		for (int v = 0; v < width; ++v) {
+			segment.rows.put(offset + v, values[v]);
+		}
+		segment.include(values);
+		++size;
+	}
+
+	private static DoubleBuffer allocateMemoryRows(int values) {
+		return ByteBuffer.allocateDirect(values * VALUE_BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	}
+
+	/** Moves the rows of a segment to a new memory-mapped file */
+	private void spill(Segment segment) {
+		final long bytes = (long) segmentInstances * width * VALUE_BYTES;
+		if (bytes > Integer.MAX_VALUE) {
+			throw new IllegalStateException("The segment does not fit in a single mapping: "
+					+ segmentInstances + " instances of " + width + " values.");
+		}
+		try {
+			File file = File.createTempFile(SEGMENT_FILE_PREFIX, ".bin", directory);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(bytes);
+				DoubleBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, bytes)
+						.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+				for (int v = 0; v < segmentInstances * width; ++v) {
+					mapped.put(v, segment.rows.get(v));
+				}
+				segment.rows = mapped;
+				//the mapping outlives the file where it can be unlinked (POSIX), which leaves nothing
+				//  behind even if the process is killed; otherwise the file is deleted on release
+				segment.file = file.delete() ? null : file;
+			} finally {
+				//the mapping remains valid once the file is closed
+				raf.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Could not spill a segment of the buffer to " + directory, e);
+		}
+	}
+
+	/** The values are always copied into the buffer */
+	@Override
+	public void addCopy(Instance instance) {
+		add(instance);
+	}
+
+	@Override
+	public Instance get(int index) {
+		final int r = getRow(index);
+		final Segment segment = getSegment(r);
+		final int offset = getOffset(r);
+		double[] values = new double[width - 1];
+		for (int a = 0; a < values.length; ++a) {
+			values[a] = segment.rows.get(offset + a);
+		}
+		Instance instance = new DenseInstance(segment.rows.get(offset + width - 1), values);
+		instance.setDataset(dataset);
+		return instance;
+	}
+
+	@Override
+	public double value(int index, int attributeIndex) {
+		final int r = getRow(index);
+		return getSegment(r).rows.get(getOffset(r) + attributeIndex);
+	}
+
+	@Override
+	public void setValue(int index, int attributeIndex, double value) {
+		final int r = getRow(index);
+		final Segment segment = getSegment(r);
+		segment.rows.put(getOffset(r) + attributeIndex, value);
+		segment.include(attributeIndex, value);
+	}
+
+	@Override
+	public void discardFirst() {
+		if (size == 0) {
+			throw new IllegalStateException("The buffer is empty.");
+		}
+		++head;
+		--size;
+		if (head == segmentInstances) {
+			release(segments.remove(0));
+			if (spilledSegments > 0) {
+				--spilledSegments;
+			}
+			head = 0;
+		}
+	}
+
+	@Override
+	public void clear() {
+		if (segments != null) {
+			for (Segment segment : segments) {
+				release(segment);
+			}
+			segments.clear();
+		}
+		spilledSegments = 0;
+		head = 0;
+		size = 0;
+	}
+
+	/** Drops the rows of a segment, deleting its file */
+	private static void release(Segment segment) {
+		segment.rows = null;
+		if (segment.file != null && !segment.file.delete()) {
+			//the file might still be mapped (e.g. on Windows): try again at exit
+			segment.file.deleteOnExit();
+		}
+	}
+
+	@Override
+	public int getSegmentEnd(int index) {
+		final int r = getRow(index);
+		return Math.min(size, (r / segmentInstances + 1) * segmentInstances - head);
+	}
+
+	/**
+	 * Computes the distance between the instance and the bounding box of the segment, over the
+	 * numeric attributes: the distances of the numeric values are never smaller, and the ones of
+	 * the nominal values only add to them.
+	 */
+	@Override
+	public double getSegmentLowerBound(Instance x, int index) {
+		final Segment segment = getSegment(getRow(index));
+		double dist = 0.0;
+		final int classIndex = x.classIndex();
+		for (int i = 0; i < x.numAttributes(); ++i) {
+			if (i != classIndex && x.attribute(i).isNumeric()) {
+				dist += getSquaredGap(segment, i, x.value(i));
+			}
+		}
+		return Math.sqrt(dist);
+	}
+
+	/** Computes the distance between the instance and the bounding box of the segment, over the
+	 * numeric attributes of the given ones */
+	@Override
+	public double getSegmentLowerBound(Instance x, int index, int[] attributes) {
+		if (attributes == null) {
+			return getSegmentLowerBound(x, index);
+		}
+		final Segment segment = getSegment(getRow(index));
+		double dist = 0.0;
+		for (int i : attributes) {
+			if (x.attribute(i).isNumeric()) {
+				dist += getSquaredGap(segment, i, x.value(i));
+			}
+		}
+		return Math.sqrt(dist);
+	}
+
+	/** Computes the squared distance between the value and the range of the attribute in the segment */
+	private static double getSquaredGap(Segment segment, int i, double v) {
+		double gap = 0.0;
+		if (v < segment.min[i]) {
+			gap = segment.min[i] - v;
+		}
+		else if (v > segment.max[i]) {
+			gap = v - segment.max[i];
+		}
+		return gap * gap;
+	}
+
+	/** @return the bytes of the segments kept in memory */
+	@Override
+	public long getOffHeapBytes() {
+		if (segments == null) {
+			return 0;
+		}
+		return (long) (segments.size() - spilledSegments) * segmentInstances * width * VALUE_BYTES;
+	}
+
+	/** @return the bytes of the segments spilled to files */
+	public long getSpilledBytes() {
+		return (long) spilledSegments * segmentInstances * width * VALUE_BYTES;
+	}
+
+	private void writeObject(ObjectOutputStream output) throws IOException {
+		output.defaultWriteObject();
+		for (int i = 0; i < size; ++i) {
+			final int r = getRow(i);
+			final Segment segment = getSegment(r);
+			final int offset = getOffset(r);
+			for (int v = 0; v < width; ++v) {
+				output.writeDouble(segment.rows.get(offset + v));
+			}
+		}
+	}
+
+	private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+		input.defaultReadObject();
+		final int instances = size;
+		size = 0;
+		head = 0;
+		spilledSegments = 0;
+		if (width > 0) {
+			segments = new ArrayList<Segment>();
+			row = new double[width];
+			for (int i = 0; i < instances; ++i) {
+				for (int v = 0; v < width; ++v) {
+					row[v] = input.readDouble();
+				}
+				append(row);
+			}
+		}
+	}
+
+	/** A segment of rows, with the bounding box of their values */
+	private static final class Segment {
+
+		/** The rows, in direct memory or mapped from the {@link #file} */
+		DoubleBuffer rows;
+
+		/** The file of the rows, or {@code null} if they are in memory or the file is already unlinked */
+		File file;
+
+		/** The bounds of the values of each attribute */
+		final double[] min;
+		final double[] max;
+
+		Segment(DoubleBuffer rows, int attributes) {
+			this.rows = rows;
+			this.file = null;
+			this.min = new double[attributes];
+			this.max = new double[attributes];
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+		}
+
+		/** Widens the bounding box to include the values of a row */
+		void include(double[] values) {
+			for (int a = 0; a < min.length; ++a) {
+				include(a, values[a]);
+			}
+		}
+
+		/** Widens the bounding box to include a value (the box is never narrowed) */
+		void include(int attributeIndex, double value) {
+			if (value < min[attributeIndex]) {
+				min[attributeIndex] = value;
+			}
+			if (value > max[attributeIndex]) {
+				max[attributeIndex] = value;
+			}
+		}
+
+	}
+
+}
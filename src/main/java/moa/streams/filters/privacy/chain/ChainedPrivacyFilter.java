@@ -0,0 +1,301 @@
+package moa.streams.filters.privacy.chain;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import moa.core.InstancesHeader;
+import moa.core.ObjectRepository;
+import moa.options.AbstractOptionHandler;
+import moa.options.ClassOption;
+import moa.options.ListOption;
+import moa.options.Option;
+import moa.streams.InstanceStream;
+import moa.streams.filters.privacy.FilterWarmStart;
+import moa.streams.filters.privacy.InstancePair;
+import moa.streams.filters.privacy.PrivacyFilter;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder;
+import moa.tasks.TaskMonitor;
+import weka.core.Instance;
+
+/**
+ * Privacy filter that applies an ordered list of privacy filters (the stages of the chain) in a
+ * single pass: each stage reads the instances released by the previous one.
+ * <p>
+ * The instances read from the input stream are copied once (the input stream must not modify the
+ * instances it has already released), and the copy travels through all the stages, which anonymize
+ * it in place whenever they can (see {@link PrivacyFilter#setInPlaceAnonymization(boolean)}).
+ * The estimators of the stages are never used: the evaluation of the chain compares the instances
+ * released by the last stage with the original instances read from the input stream.
+ * <p>
+ * The stages must release the instances in the same order they read them, which all the privacy
+ * filters do, so that each anonymized instance can be matched with its original one.
+ */
+public class ChainedPrivacyFilter extends PrivacyFilter {
+
+	/** Serializable */
+	private static final long serialVersionUID = -3920557262874213146L;
+
+	/** The option for the stages of the chain */
+	public ListOption filtersOption = new ListOption("filters", 'l',
+			"The privacy filters to be applied, in order, separated by commas.",
+			new ClassOption("filter", ' ', "", PrivacyFilter.class, "noiseaddition.NoiseAdditionFilter"),
+			new Option[] {
+				new ClassOption("filter", ' ', "", PrivacyFilter.class, "microaggregation.MicroAggregationFilter"),
+				new ClassOption("filter", ' ', "", PrivacyFilter.class, "noiseaddition.NoiseAdditionFilter")
+			}, ',');
+
+	/** The stages of the chain */
+	private PrivacyFilter[] stages;
+
+	/** The original instances read from the input stream, not yet released by the last stage */
+	private ArrayDeque<Instance> originalInstances;
+
+	@Override
+	public void getDescription(StringBuilder sb, int indent) {
+		// TODO Auto-generated method stub
+	}
+
+	@Override
+	public void prepareAnonymizationFilterForUse() {
+		Option[] filterOptions = filtersOption.getList();
+		if (filterOptions.length == 0) {
+			throw new IllegalArgumentException("The chain must contain at least one privacy filter.");
+		}
+		this.originalInstances = new ArrayDeque<Instance>();
+		this.stages = new PrivacyFilter[filterOptions.length];
+		InstanceStream stageInput = new ChainInputStream(this);
+		for (int i = 0; i < stages.length; ++i) {
+			try {
+				stages[i] = (PrivacyFilter) ClassOption.cliStringToObject(
+						filterOptions[i].getValueAsCLIString(), PrivacyFilter.class, null);
+			} catch (Exception e) {
+				throw new RuntimeException("Failed to create the stage " + i + " of the chain.", e);
+			}
+			//the stages own their input instances: the first one reads copies made by the chain
+			// and the next ones read the instances released by the previous stage
+			stages[i].setInPlaceAnonymization(true);
+			stages[i].setRandomShard(getRandomShard());
+			//the stages that keep the default selection anonymize the quasi-identifiers of the chain
+			if (stages[i].quasiIdentifiersOption.getValueAsCLIString().equals(
+					stages[i].quasiIdentifiersOption.getDefaultCLIString())) {
+				stages[i].quasiIdentifiersOption.setValue(quasiIdentifiersOption.getValue());
+			}
+			stages[i].setLatencyRecorder(getStageLatencyRecorder());
+			stages[i].setInputStream(stageInput);
+			stageInput = new StageOutputStream(stages[i]);
+		}
+	}
+
+	@Override
+	public void restartAnonymizationFilter() {
+		prepareAnonymizationFilterForUse();
+	}
+
+	/**
+	 * Returns the latency recorder of the stages, which ignores their fetches: the input of a stage
+	 * is the previous stage, whose latencies are already recorded, and the fetches from the input
+	 * stream of the chain are recorded by the chain itself.
+	 */
+	private LatencyRecorder getStageLatencyRecorder() {
+		LatencyRecorder latencyRecorder = getLatencyRecorder();
+		return latencyRecorder != null ? latencyRecorder.ignoring(LatencyRecorder.Stage.FETCH) : null;
+	}
+	
+	@Override
+	public void setLatencyRecorder(LatencyRecorder latencyRecorder) {
+		super.setLatencyRecorder(latencyRecorder);
+		if (stages != null) {
+			for (PrivacyFilter stage : stages) {
+				stage.setLatencyRecorder(getStageLatencyRecorder());
+			}
+		}
+	}
+
+	/** The warm starts of the stages, and the original instances pending in them */
+	@Override
+	protected Serializable exportWarmStartState() {
+		FilterWarmStart[] stageWarmStarts = new FilterWarmStart[stages.length];
+		for (int i = 0; i < stages.length; ++i) {
+			stageWarmStarts[i] = stages[i].exportWarmStart();
+		}
+		return new Serializable[] { stageWarmStarts, new ArrayList<Instance>(originalInstances) };
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void importWarmStartState(Serializable state) {
+		Serializable[] states = (Serializable[]) state;
+		FilterWarmStart[] stageWarmStarts = (FilterWarmStart[]) states[0];
+		if (stageWarmStarts.length != stages.length) {
+			throw new IllegalArgumentException("The warm start belongs to a chain of " + 
+					stageWarmStarts.length + " stages, not " + stages.length);
+		}
+		for (int i = 0; i < stages.length; ++i) {
+			stages[i].importWarmStart(stageWarmStarts[i]);
+		}
+		originalInstances.addAll((ArrayList<Instance>) states[1]);
+	}
+	
+	/** The instances read by the chain and not yet released by its last stage */
+	@Override
+	public int getBufferOccupancy() {
+		return originalInstances.size();
+	}
+	
+	/** The buffers of all the stages */
+	@Override
+	public long getOffHeapBytes() {
+		long bytes = 0;
+		for (PrivacyFilter stage : stages) {
+			bytes += stage.getOffHeapBytes();
+		}
+		return bytes;
+	}
+	
+	@Override
+	public boolean hasMoreInstances() {
+		return stages[stages.length - 1].hasMoreInstances();
+	}
+
+	@Override
+	public InstancePair nextAnonymizedInstancePair() {
+		InstancePair pair = stages[stages.length - 1].nextAnonymizedInstancePair();
+		if (pair != null) {
+			return new InstancePair(originalInstances.poll(), pair.anonymizedInstance);
+		}
+		else {
+			return null;
+		}
+	}
+
+	@Override
+	public int nextAnonymizedInstancePairs(InstancePair[] pairs, int offset, int length) {
+		int count = stages[stages.length - 1].nextAnonymizedInstancePairs(pairs, offset, length);
+		for (int i = offset; i < offset + count; ++i) {
+			pairs[i] = new InstancePair(originalInstances.poll(), pairs[i].anonymizedInstance);
+		}
+		return count;
+	}
+
+	/**
+	 * The input stream of the first stage: reads the input stream of the chain, keeping the
+	 * original instances and handing out copies of them.
+	 */
+	private static final class ChainInputStream extends AbstractOptionHandler implements InstanceStream {
+
+		/** Serializable */
+		private static final long serialVersionUID = 2129538567316618474L;
+
+		private final ChainedPrivacyFilter chain;
+
+		public ChainInputStream(ChainedPrivacyFilter chain) {
+			this.chain = chain;
+		}
+
+		/** @return the header of the input stream of the chain, or {@code null} until it has one */
+		@Override
+		public InstancesHeader getHeader() {
+			return chain.inputStream != null ? chain.inputStream.getHeader() : null;
+		}
+
+		@Override
+		public long estimatedRemainingInstances() {
+			return chain.inputStream.estimatedRemainingInstances();
+		}
+
+		@Override
+		public boolean hasMoreInstances() {
+			return chain.inputStream.hasMoreInstances();
+		}
+
+		@Override
+		public Instance nextInstance() {
+			//the only copy of the instance made by the chain
+			Instance originalInstance = chain.readInputInstance();
+			chain.originalInstances.add(originalInstance);
+			return (Instance) originalInstance.copy();
+		}
+
+		@Override
+		public boolean isRestartable() {
+			return chain.inputStream.isRestartable();
+		}
+
+		@Override
+		public void restart() {
+			chain.inputStream.restart();
+		}
+
+		@Override
+		public void getDescription(StringBuilder sb, int indent) {
+			// TODO Auto-generated method stub
+		}
+
+		@Override
+		protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+			// nothing to prepare
+		}
+
+	}
+
+	/** The input stream of a stage: the instances released by the previous stage */
+	private static final class StageOutputStream extends AbstractOptionHandler implements InstanceStream {
+
+		/** Serializable */
+		private static final long serialVersionUID = -6064718232457391617L;
+
+		private final PrivacyFilter stage;
+
+		public StageOutputStream(PrivacyFilter stage) {
+			this.stage = stage;
+		}
+
+		@Override
+		public InstancesHeader getHeader() {
+			return stage.getHeader();
+		}
+
+		@Override
+		public long estimatedRemainingInstances() {
+			return stage.estimatedRemainingInstances();
+		}
+
+		@Override
+		public boolean hasMoreInstances() {
+			return stage.hasMoreInstances();
+		}
+
+		@Override
+		public Instance nextInstance() {
+			//the buffered stages release no instance until their buffer is full
+			InstancePair pair = null;
+			while (pair == null && stage.hasMoreInstances()) {
+				pair = stage.nextAnonymizedInstancePair();
+			}
+			return pair != null ? pair.anonymizedInstance : null;
+		}
+
+		@Override
+		public boolean isRestartable() {
+			return false;
+		}
+
+		@Override
+		public void restart() {
+			throw new UnsupportedOperationException("The stages of a chain can only be restarted by the chain.");
+		}
+
+		@Override
+		public void getDescription(StringBuilder sb, int indent) {
+			// TODO Auto-generated method stub
+		}
+
+		@Override
+		protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+			// nothing to prepare
+		}
+
+	}
+
+}
@@ -1,15 +1,23 @@
 package moa.streams.filters.privacy.differentialprivacy;
 
+import java.io.Serializable;
+
 import moa.options.FloatOption;
 import moa.options.IntOption;
+import moa.options.MultiChoiceOption;
+import moa.options.StringOption;
 import moa.streams.filters.privacy.InstancePair;
 import moa.streams.filters.privacy.PrivacyFilter;
+import moa.streams.filters.privacy.buffer.InstanceBuffer;
+import moa.streams.filters.privacy.buffer.ResizableBuffer;
 import moa.streams.filters.privacy.differentialprivacy.algorithms.laplace.LaplaceMechanism;
 import moa.streams.filters.privacy.differentialprivacy.microaggregation.TotalOrderKNNMicroAggregator;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder.Stage;
 import weka.core.Instance;
 
 
-public class DifferentialPrivacyFilter extends PrivacyFilter {
+public class DifferentialPrivacyFilter extends PrivacyFilter implements ResizableBuffer {
 
 	/** Serializable */
 	private static final long serialVersionUID = 7849083467422191222L;
@@ -29,6 +37,18 @@ public class DifferentialPrivacyFilter extends PrivacyFilter {
     /** Random generator seed */
 	public IntOption randomSeedOption = new IntOption("randomSeed", 'r', 
 			"The pseudo-random generator seed.", 3141592, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	
+	/** The storage of the buffers of instances (see {@link InstanceBuffer}) */
+	public MultiChoiceOption bufferStorageOption = InstanceBuffer.newStorageOption();
+	
+	/** The directory of the files of the buffers, for the tiered storage */
+	public StringOption spillDirectoryOption = InstanceBuffer.newSpillDirectoryOption();
+	
+	/** The number of instances of each segment of the buffers, for the tiered storage */
+	public IntOption segmentSizeOption = InstanceBuffer.newSegmentSizeOption();
+	
+	/** The number of segments of the buffers kept in memory, for the tiered storage */
+	public IntOption memorySegmentsOption = InstanceBuffer.newMemorySegmentsOption();
     
     private TotalOrderKNNMicroAggregator microAggregator;
 	private LaplaceMechanism laplaceMechanism;
@@ -41,8 +61,18 @@ public class DifferentialPrivacyFilter extends PrivacyFilter {
 	@Override
 	public void prepareAnonymizationFilterForUse() {
 		this.microAggregator = new TotalOrderKNNMicroAggregator(kAnonymityValueOption.getValue(), 
-																bufferSizeOption.getValue());
-		this.laplaceMechanism = new LaplaceMechanism(randomSeedOption.getValue(),
+																bufferSizeOption.getValue(),
+																bufferStorageOption.getChosenIndex(),
+																spillDirectoryOption.getValue(),
+																segmentSizeOption.getValue(),
+																memorySegmentsOption.getValue());
+		this.microAggregator.setLatencyRecorder(getLatencyRecorder());
+		//the quasi-identifiers are only known once the input stream has a header (e.g. not yet for
+		// a stage of a chain without input, which is prepared again when the chain gets one)
+		if (inputStream != null && getHeader() != null) {
+			this.microAggregator.setAttributes(getQuasiIdentifiers());
+		}
+		this.laplaceMechanism = new LaplaceMechanism(newRandomStreams(randomSeedOption.getValue()),
 													 epsilonOption.getValue());
 	}
 
@@ -53,18 +83,23 @@ public class DifferentialPrivacyFilter extends PrivacyFilter {
 	
 	@Override
 	public InstancePair nextAnonymizedInstancePair() {
-		if (inputStream.hasMoreInstances()) {
+		if (inputStream.hasMoreInstances() && !microAggregator.isFull()) {
 			// Check if the stream has more instances, in order to avoid asking for instances
 			//  that do not exist. Even when the filter user has called hasMoreInstances()
 			//  on this filter, there is no guarantee that the one who has more instances
 			//  is the filter!! See the hasMoreInstances() implementation to understand this.
-			Instance originalInstance = (Instance) inputStream.nextInstance().copy();
+			// No instance is added while the (shrunk) buffer holds too many of them.
+			Instance originalInstance = nextInputInstance();
 			microAggregator.addInstance(originalInstance);
 		}
+		if (!inputStream.hasMoreInstances()) {
+			//a stream shorter than the buffer would never fill it
+			microAggregator.endOfStream();
+		}
 		
 		InstancePair microaggregatedPair = microAggregator.nextAnonymizedInstancePair();
 		if (microaggregatedPair != null) {
-			Instance anonymizedInstance = laplaceMechanism.addLaplaceNoise(microaggregatedPair.anonymizedInstance);
+			Instance anonymizedInstance = addLaplaceNoise(microaggregatedPair.anonymizedInstance);
 			return new InstancePair(microaggregatedPair.originalInstance, 
 									anonymizedInstance);
 		}
@@ -73,6 +108,88 @@ public class DifferentialPrivacyFilter extends PrivacyFilter {
 		}
 	}
 	
+	/** Anonymizes the block as {@link #nextAnonymizedInstancePair()} does, without its null pairs */
+	@Override
+	public int nextAnonymizedInstancePairs(InstancePair[] pairs, int offset, int length) {
+		int count = 0;
+		while (count < length && (microAggregator.hasMoreInstances() || inputStream.hasMoreInstances())) {
+			if (inputStream.hasMoreInstances() && !microAggregator.isFull()) {
+				microAggregator.addInstance(nextInputInstance());
+			}
+			if (!inputStream.hasMoreInstances()) {
+				microAggregator.endOfStream();
+			}
+			InstancePair microaggregatedPair = microAggregator.nextAnonymizedInstancePair();
+			if (microaggregatedPair != null) {
+				pairs[offset + count++] = new InstancePair(microaggregatedPair.originalInstance,
+						addLaplaceNoise(microaggregatedPair.anonymizedInstance));
+			}
+		}
+		return count;
+	}
+	
+	/** Adds the Laplacian noise to a microaggregated instance, recording its latency */
+	private Instance addLaplaceNoise(Instance microaggregatedInstance) {
+		LatencyRecorder latencyRecorder = getLatencyRecorder();
+		if (latencyRecorder == null) {
+			return laplaceMechanism.addLaplaceNoise(microaggregatedInstance, getQuasiIdentifiers());
+		}
+		long startTime = System.nanoTime();
+		Instance anonymizedInstance = laplaceMechanism.addLaplaceNoise(microaggregatedInstance, getQuasiIdentifiers());
+		latencyRecorder.recordSince(Stage.PERTURBATION, startTime);
+		return anonymizedInstance;
+	}
+	
+	@Override
+	public void setLatencyRecorder(LatencyRecorder latencyRecorder) {
+		super.setLatencyRecorder(latencyRecorder);
+		if (microAggregator != null) {
+			microAggregator.setLatencyRecorder(latencyRecorder);
+		}
+	}
+	
+	@Override
+	public int getBufferSize() {
+		return microAggregator.getBufferSizeThreshold();
+	}
+	
+	/** The clusters must always be formed by <em>k</em> instances */
+	@Override
+	public int getMinimumBufferSize() {
+		return kAnonymityValueOption.getValue();
+	}
+	
+	@Override
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize < getMinimumBufferSize()) {
+			throw new IllegalArgumentException("The buffer can not be smaller than the clusters: " + bufferSize);
+		}
+		microAggregator.setBufferSizeThreshold(bufferSize);
+	}
+	
+	@Override
+	public int getBufferOccupancy() {
+		return microAggregator.getBufferedInstances();
+	}
+	
+	@Override
+	public long getOffHeapBytes() {
+		return microAggregator.getOffHeapBytes();
+	}
+	
+	/** The buffer of the microaggregator and the scale estimators of the Laplace mechanism */
+	@Override
+	protected Serializable exportWarmStartState() {
+		return new Serializable[] { microAggregator.exportState(), laplaceMechanism.exportScaleEstimators() };
+	}
+	
+	@Override
+	protected void importWarmStartState(Serializable state) {
+		Serializable[] states = (Serializable[]) state;
+		microAggregator.importState(states[0]);
+		laplaceMechanism.importScaleEstimators(states[1]);
+	}
+	
 	@Override
 	public boolean hasMoreInstances() {
 		return microAggregator.hasMoreInstances() || inputStream.hasMoreInstances();
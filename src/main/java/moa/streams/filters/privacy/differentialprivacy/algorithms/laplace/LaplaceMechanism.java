@@ -1,50 +1,141 @@
 package moa.streams.filters.privacy.differentialprivacy.algorithms.laplace;
 
+import java.io.Serializable;
+
 import moa.core.AutoExpandVector;
 import moa.streams.filters.privacy.differentialprivacy.algorithms.laplace.scale.DomainRangeScaleEstimator;
 import moa.streams.filters.privacy.differentialprivacy.algorithms.laplace.scale.LaplacianNoiseScaleEstimator;
+import moa.streams.filters.privacy.utils.RandomStreams;
+import weka.core.DenseInstance;
 import weka.core.Instance;
 
-public class LaplaceMechanism {
+public class LaplaceMechanism implements Serializable {
+
+	/** Serializable */
+	private static final long serialVersionUID = 6012346951031166609L;
 	
-	private LaplacianNoiseGenerator laplacianNoiseGenerator;
+	/** The pseudo-random generators of the attributes */
+	private RandomStreams randomStreams;
 	private double epsilon;
 	private AutoExpandVector<LaplacianNoiseScaleEstimator> attributeScaleEstimators;
 	
 	public LaplaceMechanism(long randomSeed, double epsilon) {
+		this(new RandomStreams(randomSeed), epsilon);
+	}
+	
+	/**
+	 * Builds a mechanism that draws the noise of each attribute from its own random stream.
+	 * 
+	 * @param randomStreams the random streams
+	 * @param epsilon the differential privacy parameter
+	 */
+	public LaplaceMechanism(RandomStreams randomStreams, double epsilon) {
 		this.epsilon = epsilon;
-		this.laplacianNoiseGenerator = new LaplacianNoiseGenerator(randomSeed);
+		this.randomStreams = randomStreams;
 		this.attributeScaleEstimators = new AutoExpandVector<LaplacianNoiseScaleEstimator>();
 	}
 	
+	/**
+	 * Exports the scale estimators of the attributes, e.g. the ranges of their values, to carry
+	 * them over to a later run (see {@link #importScaleEstimators(Serializable)}).
+	 * 
+	 * @return the estimators, which are shared with the mechanism
+	 */
+	public Serializable exportScaleEstimators() {
+		return new ScaleEstimators(epsilon, attributeScaleEstimators);
+	}
+	
+	/**
+	 * Replaces the scale estimators of the attributes with the ones exported by another mechanism.
+	 * 
+	 * @param scaleEstimators the estimators (see {@link #exportScaleEstimators()})
+	 * @throws IllegalArgumentException if the estimators were calibrated for another epsilon
+	 */
+	public void importScaleEstimators(Serializable scaleEstimators) {
+		ScaleEstimators imported = (ScaleEstimators) scaleEstimators;
+		if (imported.epsilon != epsilon) {
+			throw new IllegalArgumentException("The scale estimators were calibrated for another epsilon: " 
+					+ imported.epsilon);
+		}
+		this.attributeScaleEstimators = imported.estimators;
+	}
+	
+	/**
+	 * Adds Laplacian noise to the numeric attributes of a copy of the instance. The noise is added
+	 * to all of them, zeros included, thus the copy is always a {@link DenseInstance}, even for a
+	 * sparse instance. Its values are perturbed in an array, as modifying the values of an instance
+	 * one by one copies all of them each time.
+	 * 
+	 * @param originalInstance the instance
+	 * @return the perturbed copy of the instance
+	 */
 	public Instance addLaplaceNoise(final Instance originalInstance) {
-		//copy the instance
-		Instance anonymizedInstance = (Instance) originalInstance.copy();
+		return addLaplaceNoise(originalInstance, null);
+	}
+	
+	/**
+	 * Adds Laplacian noise to the numeric attributes of a copy of the instance, among the given ones
+	 * only (see {@link #addLaplaceNoise(Instance)}).
+	 * 
+	 * @param originalInstance the instance
+	 * @param attributes the indexes of the attributes, or {@code null} for all of them but the class
+	 * @return the perturbed copy of the instance
+	 */
+	public Instance addLaplaceNoise(final Instance originalInstance, final int[] attributes) {
+		//copy the values of the instance
+		double[] values = originalInstance.toDoubleArray();
 		
 		//for each attribute, add its corresponding noise
-		for (int i = 0; i < anonymizedInstance.numAttributes(); i++) {
-			//do not distort if it is a class attribute
-			if (i != anonymizedInstance.classIndex()) {
-				LaplacianNoiseScaleEstimator scaleEstimator = attributeScaleEstimators.get(i);
-				if (anonymizedInstance.attribute(i).isNominal()) {
-					//TODO add laplacian noise to nominal attributes
-				}
-				else { //numerical attribute
-					if (scaleEstimator == null) {
-						scaleEstimator = 
-							new DomainRangeScaleEstimator(epsilon);
-						attributeScaleEstimators.set(i, scaleEstimator);
-					}
-					double value = anonymizedInstance.value(i);
-					double scale = scaleEstimator.estimateScale(value);
-					anonymizedInstance.setValue(i, 
-												(value + 
-													laplacianNoiseGenerator.nextLaplacian(0.0, scale)));
+		if (attributes != null) {
+			for (int i : attributes) {
+				addLaplaceNoise(originalInstance, values, i);
+			}
+		}
+		else {
+			for (int i = 0; i < values.length; i++) {
+				//do not distort if it is a class attribute
+				if (i != originalInstance.classIndex()) {
+					addLaplaceNoise(originalInstance, values, i);
 				}
 			}
-        }
+		}
+		Instance anonymizedInstance = new DenseInstance(originalInstance.weight(), values);
+		anonymizedInstance.setDataset(originalInstance.dataset());
 		return anonymizedInstance;
 	}
 	
+	/** Adds Laplacian noise to the value of the given attribute, if it is numeric */
+	private void addLaplaceNoise(final Instance originalInstance, final double[] values, final int i) {
+		if (originalInstance.attribute(i).isNominal()) {
+			//TODO add laplacian noise to nominal attributes
+		}
+		else { //numerical attribute
+			LaplacianNoiseScaleEstimator scaleEstimator = attributeScaleEstimators.get(i);
+			if (scaleEstimator == null) {
+				scaleEstimator = 
+					new DomainRangeScaleEstimator(epsilon);
+				attributeScaleEstimators.set(i, scaleEstimator);
+			}
+			double value = values[i];
+			double scale = scaleEstimator.estimateScale(value);
+			values[i] = value + LaplacianNoiseGenerator.nextLaplacian(randomStreams.get(i), 0.0, scale);
+		}
+	}
+	
+	/** The scale estimators of a mechanism (see {@link #exportScaleEstimators()}) */
+	private static final class ScaleEstimators implements Serializable {
+		
+		/** Serializable */
+		private static final long serialVersionUID = 3375529810614032907L;
+		
+		private final double epsilon;
+		private final AutoExpandVector<LaplacianNoiseScaleEstimator> estimators;
+		
+		public ScaleEstimators(double epsilon, AutoExpandVector<LaplacianNoiseScaleEstimator> estimators) {
+			this.epsilon = epsilon;
+			this.estimators = estimators;
+		}
+		
+	}
 	
 }
@@ -1,9 +1,13 @@
 package moa.streams.filters.privacy.differentialprivacy.algorithms.laplace;
 
+import java.io.Serializable;
 import java.util.Random;
 
 
-public class LaplacianNoiseGenerator {
+public class LaplacianNoiseGenerator implements Serializable {
+
+	/** Serializable */
+	private static final long serialVersionUID = -6011121594715265950L;
 
 	public static final double DEFAULT_MU_PARAMETER = 0.0;
 	
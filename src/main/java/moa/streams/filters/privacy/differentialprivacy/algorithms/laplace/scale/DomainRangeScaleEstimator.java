@@ -2,6 +2,9 @@ package moa.streams.filters.privacy.differentialprivacy.algorithms.laplace.scale
 
 public class DomainRangeScaleEstimator extends LaplacianNoiseScaleEstimator {
 
+	/** Serializable */
+	private static final long serialVersionUID = -3816347347397485115L;
+
 	private double minimum;
 	private double maximum;
 	private boolean initialized;
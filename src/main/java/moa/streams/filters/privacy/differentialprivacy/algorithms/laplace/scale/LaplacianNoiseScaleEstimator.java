@@ -1,6 +1,11 @@
 package moa.streams.filters.privacy.differentialprivacy.algorithms.laplace.scale;
 
-public abstract class LaplacianNoiseScaleEstimator {
+import java.io.Serializable;
+
+public abstract class LaplacianNoiseScaleEstimator implements Serializable {
+
+	/** Serializable */
+	private static final long serialVersionUID = -6336697501723705320L;
 
 	protected final double epsilon;
 	
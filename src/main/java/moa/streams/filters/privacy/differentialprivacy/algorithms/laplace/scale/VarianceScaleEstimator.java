@@ -2,6 +2,9 @@ package moa.streams.filters.privacy.differentialprivacy.algorithms.laplace.scale
 
 public class VarianceScaleEstimator extends LaplacianNoiseScaleEstimator {
 
+	/** Serializable */
+	private static final long serialVersionUID = 2602877700867370041L;
+
 	private long n;
 	
 	private double oldMean, newMean, oldVariance, newVariance;
@@ -1,26 +1,73 @@
 package moa.streams.filters.privacy.differentialprivacy.microaggregation;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
 import java.util.PriorityQueue;
 import java.util.Vector;
 
+import moa.streams.filters.privacy.buffer.InstanceBuffer;
 import weka.core.Instance;
+import weka.core.SparseInstance;
 
-public class TotalOrderKNNClusterer {
+public class TotalOrderKNNClusterer implements Serializable {
+
+	/** Serializable */
+	private static final long serialVersionUID = -7754672982398020133L;
 
 	private Instance targetInstance;
 	private int k;
 	
+	/** The attributes the instances are compared over, or {@code null} for all of them */
+	private int[] attributes;
+	
 	public TotalOrderKNNClusterer(int k) {
 		this.targetInstance = null;
 		this.k = k;
 	}
 	
+	/** @return the instance the clusters are formed around, or {@code null} if no instance was seen */
+	public Instance getTargetInstance() {
+		return targetInstance;
+	}
+	
+	/**
+	 * Replaces the instance the clusters are formed around, e.g. with the one of a previous run.
+	 * 
+	 * @param targetInstance the target instance, or {@code null} to start afresh
+	 */
+	public void setTargetInstance(Instance targetInstance) {
+		this.targetInstance = targetInstance;
+	}
+	
+	/**
+	 * Restricts the comparison of the instances to the given attributes (e.g. the quasi-identifiers
+	 * of a privacy filter), of which only the numeric ones are compared.
+	 * 
+	 * @param attributes the indexes of the attributes, or {@code null} for all of them but the class
+	 */
+	public void setAttributes(int[] attributes) {
+		this.attributes = attributes;
+	}
+	
 	public void updateTargetInstance(Instance instance) {
 		if (targetInstance == null) {
 			targetInstance = (Instance) instance.copy();
 		}
+		else if (attributes != null) {
+			//only the attributes the instances are compared over
+			for (int attributeIndex : attributes) {
+				if (targetInstance.attribute(attributeIndex).isNumeric()
+						&& instance.value(attributeIndex) < targetInstance.value(attributeIndex)) {
+					targetInstance.setValue(attributeIndex, instance.value(attributeIndex));
+				}
+			}
+		}
+		else if (targetInstance instanceof SparseInstance && instance instanceof SparseInstance) {
+			updateSparseTargetInstance(instance);
+		}
 		else {
 			//for each attribute
 			for (int attributeIndex = 0; attributeIndex < targetInstance.numAttributes(); ++attributeIndex) {
@@ -34,23 +81,70 @@ public class TotalOrderKNNClusterer {
 			}
 		}
 	}
-		
-	public List<Integer> getNextKNNClusterIndexes(final Vector<Instance> instances, final Vector<Boolean> skip) {
+	
+	/**
+	 * Updates the (sparse) target with the minimums of a sparse instance, merging their stored
+	 * values: an attribute not stored by one of them is zero in it. The target is rebuilt in a
+	 * single pass, as modifying the values of a sparse instance copies them.
+	 */
+	private void updateSparseTargetInstance(Instance instance) {
+		final int classIndex = targetInstance.classIndex();
+		final int tValues = targetInstance.numValues();
+		final int iValues = instance.numValues();
+		double[] values = new double[tValues + iValues];
+		int[] indices = new int[tValues + iValues];
+		int count = 0;
+		int pt = 0;
+		int pi = 0;
+		while (pt < tValues || pi < iValues) {
+			final int it = pt < tValues ? targetInstance.index(pt) : Integer.MAX_VALUE;
+			final int ii = pi < iValues ? instance.index(pi) : Integer.MAX_VALUE;
+			final int attributeIndex = Math.min(it, ii);
+			final double t = (it == attributeIndex) ? targetInstance.valueSparse(pt++) : 0.0;
+			final double v = (ii == attributeIndex) ? instance.valueSparse(pi++) : 0.0;
+			double value = t;
+			if (attributeIndex != classIndex && targetInstance.attribute(attributeIndex).isNumeric()
+					&& v < t) {
+				value = v;
+			}
+			if (value != 0.0) {
+				values[count] = value;
+				indices[count++] = attributeIndex;
+			}
+		}
+		Instance updated = new SparseInstance(targetInstance.weight(), Arrays.copyOf(values, count),
+				Arrays.copyOf(indices, count), targetInstance.numAttributes());
+		updated.setDataset(targetInstance.dataset());
+		targetInstance = updated;
+	}
+	
+	public List<Integer> getNextKNNClusterIndexes(final InstanceBuffer instances, final Vector<Boolean> skip) {
 		assert(instances != null);
 		assert(skip != null);
 		assert(instances.size() == skip.size());
 		
-		//initialize heap of nearest neighbors, ordered by distance
+		//initialize heap of nearest neighbors, the farthest one at its head
 		PriorityQueue<DistanceIndexPair> kNearestNeighbors = 
-				new PriorityQueue<DistanceIndexPair>(Math.max(1, k));
+				new PriorityQueue<DistanceIndexPair>(Math.max(1, k), Collections.<DistanceIndexPair>reverseOrder());
 		
 		//iterate over all the instances in the actual buffer
 		//  (except the top one, thus beginning from i = 1)
+		int segmentEnd = 0;
 		for (int i = 0; i < instances.size(); ++i){
 			
+			//skip the segments of the buffer that cannot hold a nearer instance
+			if (i == segmentEnd) {
+				segmentEnd = instances.getSegmentEnd(i);
+				if (kNearestNeighbors.size() == k && 
+						instances.getSegmentLowerBound(targetInstance, i, attributes) >= kNearestNeighbors.peek().distance) {
+					i = segmentEnd - 1;
+					continue;
+				}
+			}
+			
 			//consider only instances that are not yet anonymized
 			if (!skip.get(i)){
-				double distanceToTarget = distance(targetInstance, instances.get(i));
+				double distanceToTarget = distance(targetInstance, instances, i);
 				
 				if (kNearestNeighbors.size() < k) {
 					//there is still room for a new instance, no matter how far or near
@@ -104,21 +198,61 @@ public class TotalOrderKNNClusterer {
 	 * }</pre>
 	 * 
 	 * @param x the first instance
-	 * @param y the second instance
+	 * @param instances the buffer holding the second instance
+	 * @param index the index of the second instance in the buffer
 	 * @return the distance between the given instances
 	 */
-	private static double distance(Instance x, Instance y){
+	private double distance(Instance x, InstanceBuffer instances, int index){
+		if (attributes != null) {
+			double dist = 0.0;
+			for (int i : attributes) {
+				if (x.attribute(i).isNumeric()) {
+					final double y = instances.value(index, i);
+					dist += (x.value(i) - y) * (x.value(i) - y);
+				}
+			}
+			return Math.sqrt(dist);
+		}
+		Instance sparse = instances.getSparse(index);
+		if (x instanceof SparseInstance && sparse != null) {
+			return sparseDistance(x, sparse);
+		}
 		double dist = 0.0;
 		for (int i = 0; i < x.numAttributes(); ++i){
 			if (i != x.classIndex()) { //skip all those variables that are the target class or nominal
 				if (x.attribute(i).isNumeric()){
-					dist += (x.value(i) - y.value(i)) * (x.value(i) - y.value(i));
+					final double y = instances.value(index, i);
+					dist += (x.value(i) - y) * (x.value(i) - y);
 				}
 			}
 		}
 		return Math.sqrt(dist);
 	}
 	
+	/**
+	 * Computes the {@link #distance(Instance, InstanceBuffer, int)} between two sparse instances,
+	 * merging their stored values: the attributes stored by none of them add nothing.
+	 */
+	private static double sparseDistance(Instance x, Instance y) {
+		double dist = 0.0;
+		final int classIndex = x.classIndex();
+		final int xValues = x.numValues();
+		final int yValues = y.numValues();
+		int px = 0;
+		int py = 0;
+		while (px < xValues || py < yValues) {
+			final int ix = px < xValues ? x.index(px) : Integer.MAX_VALUE;
+			final int iy = py < yValues ? y.index(py) : Integer.MAX_VALUE;
+			final int i = Math.min(ix, iy);
+			final double xi = (ix == i) ? x.valueSparse(px++) : 0.0;
+			final double yi = (iy == i) ? y.valueSparse(py++) : 0.0;
+			if (i != classIndex && x.attribute(i).isNumeric()) {
+				dist += (xi - yi) * (xi - yi);
+			}
+		}
+		return Math.sqrt(dist);
+	}
+	
 	private static final class DistanceIndexPair implements Comparable<DistanceIndexPair> {
 		
 		/** The distance of the instance. */
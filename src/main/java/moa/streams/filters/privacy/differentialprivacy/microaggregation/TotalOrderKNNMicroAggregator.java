@@ -1,35 +1,85 @@
 package moa.streams.filters.privacy.differentialprivacy.microaggregation;
 
+import java.io.Serializable;
 import java.util.List;
 import java.util.Vector;
 
 import moa.streams.filters.privacy.InstancePair;
+import moa.streams.filters.privacy.buffer.InstanceBuffer;
+import moa.streams.filters.privacy.buffer.TieredInstanceBuffer;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder.Stage;
 
 import weka.core.Attribute;
 import weka.core.Instance;
+import weka.core.Instances;
 
-public class TotalOrderKNNMicroAggregator {
+public class TotalOrderKNNMicroAggregator implements Serializable {
+
+	/** Serializable */
+	private static final long serialVersionUID = 1542643601090087736L;
 
 	private int bufferSizeThreshold;
 	private boolean startToProcess;
 	
-	private Vector<Instance> originalInstanceBuffer;
-	private Vector<Instance> instanceBuffer;
+	private InstanceBuffer originalInstanceBuffer;
+	private InstanceBuffer instanceBuffer;
 	private Vector<Boolean> anonymized;
 	
+	/** The header of the buffered instances */
+	private Instances dataset;
+	
 	private TotalOrderKNNClusterer clusterer;
 	
+	/** The attributes that are aggregated, or {@code null} for all of them */
+	private int[] attributes;
+	
+	/** The recorder of the latencies of the clusters, or {@code null} */
+	private transient LatencyRecorder latencyRecorder;
+	
 	public TotalOrderKNNMicroAggregator(int k, int bufferSizeThreshold) {
+		this(k, bufferSizeThreshold, InstanceBuffer.HEAP_STORAGE);
+	}
+	
+	public TotalOrderKNNMicroAggregator(int k, int bufferSizeThreshold, int bufferStorage) {
+		this(k, bufferSizeThreshold, bufferStorage, null);
+	}
+	
+	/**
+	 * Builds a microaggregator whose buffers use the given storage.
+	 * 
+	 * @param k the size of the clusters
+	 * @param bufferSizeThreshold the number of instances the buffer is filled with before being processed
+	 * @param bufferStorage the storage of the buffers (see {@link InstanceBuffer#create(int, String)})
+	 * @param spillDirectory the directory of the files of the buffers, {@code null} for the temporary one
+	 */
+	public TotalOrderKNNMicroAggregator(int k, int bufferSizeThreshold, int bufferStorage, String spillDirectory) {
+		this(k, bufferSizeThreshold, bufferStorage, spillDirectory, TieredInstanceBuffer.DEFAULT_SEGMENT_INSTANCES,
+				TieredInstanceBuffer.DEFAULT_MEMORY_SEGMENTS);
+	}
+	
+	/**
+	 * Builds a microaggregator whose buffers use the given storage and segments.
+	 * 
+	 * @param k the size of the clusters
+	 * @param bufferSizeThreshold the number of instances the buffer is filled with before being processed
+	 * @param bufferStorage the storage of the buffers (see {@link InstanceBuffer#create(int, String, int, int)})
+	 * @param spillDirectory the directory of the files of the buffers, {@code null} for the temporary one
+	 * @param segmentSize the number of instances of each segment of the buffers, for the tiered storage
+	 * @param memorySegments the number of segments of the buffers kept in memory, for the tiered storage
+	 */
+	public TotalOrderKNNMicroAggregator(int k, int bufferSizeThreshold, int bufferStorage, String spillDirectory,
+			int segmentSize, int memorySegments) {
 		this.anonymized = new Vector<Boolean>(bufferSizeThreshold);
 		this.bufferSizeThreshold = bufferSizeThreshold;
-		this.originalInstanceBuffer = new Vector<Instance>(bufferSizeThreshold);
-		this.instanceBuffer = new Vector<Instance>(bufferSizeThreshold);
+		this.originalInstanceBuffer = InstanceBuffer.create(bufferStorage, spillDirectory, segmentSize, memorySegments);
+		this.instanceBuffer = InstanceBuffer.create(bufferStorage, spillDirectory, segmentSize, memorySegments);
 		this.startToProcess = false;
 		this.clusterer = new TotalOrderKNNClusterer(k);
 	}
 	
 	public InstancePair nextAnonymizedInstancePair() {
-		if (startToProcess) {
+		if (startToProcess && instanceBuffer.size() > 0) {
 			return processNextInstance();
 		}
 		else {
@@ -38,8 +88,11 @@ public class TotalOrderKNNMicroAggregator {
 	}
 
 	public void addInstance(Instance originalInstance) {
+		if (dataset == null) {
+			dataset = originalInstance.dataset();
+		}
 		originalInstanceBuffer.add(originalInstance);
-		instanceBuffer.add((Instance)originalInstance.copy());
+		instanceBuffer.addCopy(originalInstance);
 		anonymized.add(false);
 		clusterer.updateTargetInstance(originalInstance);
 		if (instanceBuffer.size() >= bufferSizeThreshold) {
@@ -47,10 +100,104 @@ public class TotalOrderKNNMicroAggregator {
 		}
 	}
 	
+	/**
+	 * Restricts the clustering and the aggregation to the given attributes (e.g. the
+	 * quasi-identifiers of a privacy filter): the other ones are left untouched.
+	 * 
+	 * @param attributes the indexes of the attributes, or {@code null} for all of them but the class
+	 */
+	public void setAttributes(int[] attributes) {
+		this.attributes = attributes;
+		this.clusterer.setAttributes(attributes);
+	}
+	
+	/**
+	 * Starts (or stops, if {@code null}) recording the latencies of the search and the aggregation
+	 * of the clusters.
+	 * 
+	 * @param latencyRecorder the recorder of the latencies or {@code null}
+	 */
+	public void setLatencyRecorder(LatencyRecorder latencyRecorder) {
+		this.latencyRecorder = latencyRecorder;
+	}
+	
+	/** @return the number of instances the buffer is filled with before being processed */
+	public int getBufferSizeThreshold() {
+		return bufferSizeThreshold;
+	}
+	
+	/**
+	 * Resizes the buffer: a larger one is filled before releasing any other instance, while a
+	 * smaller one keeps on releasing instances until it holds less than the new size.
+	 * 
+	 * @param bufferSizeThreshold the new size of the buffer
+	 */
+	public void setBufferSizeThreshold(int bufferSizeThreshold) {
+		if (bufferSizeThreshold > this.bufferSizeThreshold) {
+			startToProcess = false;
+		}
+		this.bufferSizeThreshold = bufferSizeThreshold;
+	}
+	
+	/** Starts processing the buffer even if it is not full, once no more instances will be added */
+	public void endOfStream() {
+		startToProcess = true;
+	}
+	
+	/** @return {@code true} if the buffer holds (at least) as many instances as its size */
+	public boolean isFull() {
+		return instanceBuffer.size() >= bufferSizeThreshold;
+	}
+	
+	/** @return the number of instances held in the buffer of the microaggregator */
+	public int getBufferedInstances() {
+		return instanceBuffer.size();
+	}
+	
+	/** @return the bytes held by the buffers of the microaggregator outside of the heap */
+	public long getOffHeapBytes() {
+		return originalInstanceBuffer.getOffHeapBytes() + instanceBuffer.getOffHeapBytes();
+	}
+	
 	public boolean hasMoreInstances() {
 		return instanceBuffer.size() > 0;
 	}
 	
+	/**
+	 * Exports the buffered instances (either aggregated or not) and the target of the clusters, to
+	 * carry them over to a later run (see {@link #importState(Serializable)}).
+	 * 
+	 * @return the state, which shares the instances with the buffers
+	 */
+	public Serializable exportState() {
+		return new State(originalInstanceBuffer.getInstances(), instanceBuffer.getInstances(), 
+						 anonymized, clusterer.getTargetInstance());
+	}
+	
+	/**
+	 * Brings this (empty) microaggregator to the state exported by another one, which starts
+	 * processing the buffer at once if it is full.
+	 * 
+	 * @param state the state (see {@link #exportState()})
+	 */
+	public void importState(Serializable state) {
+		State imported = (State) state;
+		for (int i = 0; i < imported.anonymized.size(); ++i) {
+			if (dataset == null) {
+				dataset = imported.originalInstances.get(i).dataset();
+			}
+			originalInstanceBuffer.add(imported.originalInstances.get(i));
+			instanceBuffer.add(imported.anonymizedInstances.get(i));
+			anonymized.add(imported.anonymized.get(i));
+		}
+		if (imported.targetInstance != null) {
+			clusterer.setTargetInstance(imported.targetInstance);
+		}
+		if (instanceBuffer.size() >= bufferSizeThreshold) {
+			startToProcess = true;
+		}
+	}
+	
 	private InstancePair processNextInstance() {
 		final int top = 0;
 		
@@ -59,17 +206,25 @@ public class TotalOrderKNNMicroAggregator {
 		}
 		
 		anonymized.remove(top);
-		return new InstancePair(originalInstanceBuffer.remove(top), instanceBuffer.remove(top));
+		return new InstancePair(originalInstanceBuffer.removeFirst(), instanceBuffer.removeFirst());
 	}
 	
 	private void anonymizeNextInstance() {
+		long startTime = latencyRecorder != null ? System.nanoTime() : 0;
+		
 		//get the indexes of the k nearest neighbors (containing the top (target) instance)
 		//  to form a cluster to be anonymized
 		List<Integer> clusterIndexes = 
 			clusterer.getNextKNNClusterIndexes(instanceBuffer, anonymized);
+		if (latencyRecorder != null) {
+			startTime = latencyRecorder.recordSince(Stage.SEARCH, startTime);
+		}
 		
 		//aggregate (anonymize) the instances of the cluster
 		anonymizeClusterWithIndexes(clusterIndexes);
+		if (latencyRecorder != null) {
+			latencyRecorder.recordSince(Stage.PERTURBATION, startTime);
+		}
 	}
 	
 	private void anonymizeClusterWithIndexes(List<Integer> clusterIndexes) {
@@ -77,26 +232,42 @@ public class TotalOrderKNNMicroAggregator {
 		setAnonymizedInstancesForIndexes(clusterIndexes);
 		
 		//perform multivariate aggregation:
-		  //take the first instance of the cluster as the example
-		final Instance targetInstance = instanceBuffer.get(clusterIndexes.get(0));
+		  //only the given attributes, if they are a subset of them
+		if (attributes != null) {
+			for (int attributeIndex : attributes) {
+				aggregateAttributeForInstances(attributeIndex, clusterIndexes);
+			}
+			return;
+		}
 		
-		  //for each attribute (variable) of the instances
-		for (int attributeIndex = 0; attributeIndex < targetInstance.numAttributes(); ++attributeIndex) {
-			//if it is not the target attribute (the one flagged as 'class', for classification)
-			if (attributeIndex != targetInstance.classIndex()){
-				//get attribute
-				final Attribute attribute = targetInstance.attribute(attributeIndex);
-				
-				//compute aggregated value
-				if (attribute.isNumeric()) {
-					double newValue = aggregateNumericalAttributeForInstances(attributeIndex, clusterIndexes);
-					//replace values of the instances with the aggregated one
-					for (int i = 0; i < clusterIndexes.size(); ++i) {
-						Instance instance =	instanceBuffer.get(clusterIndexes.get(i)); //get instance
-						
-						//replace value
-						instance.setValue(attributeIndex, newValue);
-					}
+		  //sparse instances: only the attributes stored by some of them, as the aggregates of
+		  //  the other ones (zero in all the instances) are zero too
+		final int[] storedAttributes = originalInstanceBuffer.getStoredAttributes(clusterIndexes);
+		if (storedAttributes != null) {
+			for (int attributeIndex : storedAttributes) {
+				aggregateAttributeForInstances(attributeIndex, clusterIndexes);
+			}
+			return;
+		}
+		
+		  //for each attribute (variable) of the instances (as given by their header)
+		for (int attributeIndex = 0; attributeIndex < dataset.numAttributes(); ++attributeIndex) {
+			aggregateAttributeForInstances(attributeIndex, clusterIndexes);
+		}
+	}
+	
+	private void aggregateAttributeForInstances(final int attributeIndex, final List<Integer> clusterIndexes) {
+		//if it is not the target attribute (the one flagged as 'class', for classification)
+		if (attributeIndex != dataset.classIndex()){
+			//get attribute
+			final Attribute attribute = dataset.attribute(attributeIndex);
+			
+			//compute aggregated value
+			if (attribute.isNumeric()) {
+				double newValue = aggregateNumericalAttributeForInstances(attributeIndex, clusterIndexes);
+				//replace values of the instances with the aggregated one
+				for (int i = 0; i < clusterIndexes.size(); ++i) {
+					instanceBuffer.setValue(clusterIndexes.get(i), attributeIndex, newValue);
 				}
 			}
 		}
@@ -119,11 +290,31 @@ public class TotalOrderKNNMicroAggregator {
 	private double aggregateNumericalAttributeForInstances(final int attributeIndex, final List<Integer> clusterIndexes) {
 		double average = 0.0;
 		for (int i = 0; i < clusterIndexes.size(); ++i){
-			Instance instance = instanceBuffer.get(clusterIndexes.get(i));
-			average += instance.value(attributeIndex);
+			average += instanceBuffer.value(clusterIndexes.get(i), attributeIndex);
 		}
 		average = average / clusterIndexes.size();
 		return average;
 	}
+	
+	/** The state of the microaggregator carried over to a later run (see {@link #exportState()}) */
+	private static final class State implements Serializable {
+		
+		/** Serializable */
+		private static final long serialVersionUID = -1186305497925734170L;
+		
+		private final List<Instance> originalInstances;
+		private final List<Instance> anonymizedInstances;
+		private final Vector<Boolean> anonymized;
+		private final Instance targetInstance;
+		
+		public State(List<Instance> originalInstances, List<Instance> anonymizedInstances,
+				Vector<Boolean> anonymized, Instance targetInstance) {
+			this.originalInstances = originalInstances;
+			this.anonymizedInstances = anonymizedInstances;
+			this.anonymized = anonymized;
+			this.targetInstance = targetInstance;
+		}
+		
+	}
 
 }
@@ -19,4 +19,31 @@ public interface Estimator {
 	 */
 	public void performEstimationForInstances(InstancePair instancePair);
 	
+	/**
+	 * Request to perform an estimation with a block of instances. The result is the same as
+	 * performing the estimation with each one of the pairs, in order.
+	 * 
+	 * @param instancePairs the array holding the instances with which the estimation is to be updated
+	 * @param offset the index of the first pair of the block
+	 * @param length the number of pairs of the block
+	 */
+	public void performEstimationForInstances(InstancePair[] instancePairs, int offset, int length);
+	
+	/**
+	 * Restricts the estimation to the given attributes, e.g. the quasi-identifiers of the filter:
+	 * the instances are only compared over them.
+	 * 
+	 * @param attributes the indexes of the attributes, in ascending order, or {@code null} for all
+	 * of them but the class
+	 */
+	public void setAttributes(int[] attributes);
+	
+	/**
+	 * Measures the memory held by the state of this estimator (e.g. its buffers of instances).
+	 * 
+	 * @return the memory footprint of the estimator (in bytes) or {@code -1} if it can not be
+	 * measured
+	 */
+	public long getMemoryFootprint();
+	
 }
@@ -1,15 +1,56 @@
 package moa.streams.filters.privacy.estimators;
 
+import moa.core.SizeOf;
 import moa.options.AbstractOptionHandler;
+import moa.streams.filters.privacy.InstancePair;
 
 /**
  * Generic privacy filter estimator.
  */
-public abstract class FilterEstimator extends AbstractOptionHandler {
+public abstract class FilterEstimator extends AbstractOptionHandler implements Estimator {
 
 	/**
 	 * Serializable
 	 */
 	private static final long serialVersionUID = 2657667705854611884L;
 	
+	/** The indexes of the attributes compared by the estimator, {@code null} for all but the class */
+	private int[] attributes;
+	
+	@Override
+	public void setAttributes(int[] attributes) {
+		this.attributes = attributes;
+	}
+	
+	/**
+	 * @return the indexes of the attributes compared by the estimator (see
+	 * {@link #setAttributes(int[])}), or {@code null} for all of them but the class
+	 */
+	protected int[] getAttributes() {
+		return attributes;
+	}
+	
+	/**
+	 * Performs the estimation with each one of the pairs of the block. Estimators that can take
+	 * advantage of processing the whole block at once override this method.
+	 */
+	@Override
+	public void performEstimationForInstances(InstancePair[] instancePairs, int offset, int length) {
+		for (int i = offset; i < offset + length; ++i) {
+			performEstimationForInstances(instancePairs[i]);
+		}
+	}
+	
+	/**
+	 * Measures the deep size of the estimator, which requires the sizeofag agent to be loaded by
+	 * the JVM ({@code -javaagent:sizeofag.jar}).
+	 * 
+	 * @return the memory footprint of the estimator (in bytes) or {@code -1} if the agent is not loaded
+	 */
+	@Override
+	public long getMemoryFootprint() {
+		long footprint = SizeOf.fullSizeOf(this);
+		return footprint > 0 ? footprint : -1; //without the agent, the size of any object is 0
+	}
+	
 }
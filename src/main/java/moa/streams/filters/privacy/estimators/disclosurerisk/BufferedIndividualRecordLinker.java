@@ -1,43 +1,112 @@
 package moa.streams.filters.privacy.estimators.disclosurerisk;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import moa.core.ObjectRepository;
 import moa.options.IntOption;
+import moa.options.MultiChoiceOption;
+import moa.options.StringOption;
 import moa.streams.filters.privacy.InstancePair;
+import moa.streams.filters.privacy.buffer.InstanceBuffer;
+import moa.streams.filters.privacy.buffer.ResizableBuffer;
 import moa.streams.filters.privacy.estimators.FilterEstimator;
 import moa.streams.filters.privacy.utils.Metrics;
 import moa.tasks.TaskMonitor;
 import weka.core.Instance;
 
-public class BufferedIndividualRecordLinker extends FilterEstimator implements DisclosureRiskEstimator {
+public class BufferedIndividualRecordLinker extends FilterEstimator
+		implements DisclosureRiskEstimator, ResizableBuffer {
 	
 	/** Serializable */
 	private static final long serialVersionUID = 6462301962124723040L;
 
+	/** Relative tolerance applied to the pivot lower bounds, to absorb floating point rounding errors */
+	private static final double PRUNING_TOLERANCE = 1e-9;
+
+	/** The minimum number of pairs linked by each thread of a block */
+	private static final int MIN_PAIRS_PER_THREAD = 64;
+
 	/** The current re-identification buffer (original instances) */
-	private Vector<Instance> originalInstancesBuffer;
+	private InstanceBuffer originalInstancesBuffer;
+
+	/** The maximum number of instances held in the {@link #originalInstancesBuffer} */
+	private int bufferSize;
+
+	/** The position of the oldest instance in the circular {@link #pivotDistances} */
+	private int bufferHead;
+
+	/** The number of instances currently held in the {@link #originalInstancesBuffer} */
+	private int bufferedInstances;
 	
 	/** The size of the re-identification buffer */
 	public IntOption bufferSizeOption = new IntOption("bufferSize", 'b', 
 			"The size of the buffer that holds original instances which are reidentified.", 
 			100, 10, Integer.MAX_VALUE);
+
+	/** The number of pivots used to compute lower bounds of the distances */
+	public IntOption pivotsOption = new IntOption("pivots", 'p',
+			"The number of pivot instances used to cache lower bounds of the distances to the original " +
+			"instances (0 disables the cache and every distance is computed).",
+			0, 0, 64);
+
+	/** The number of threads that link the pairs of a block */
+	public IntOption threadsOption = new IntOption("threads", 't',
+			"The number of threads that link the pairs of a block of instances (e.g. the pairs of a lazy " +
+			"evaluation of the filter), taken from a pool shared by all the linkers, of as many threads as " +
+			"available processors. Only the Heap storage is linked in parallel.",
+			1, 1, 64);
+
+	/** The storage of the re-identification buffer (see {@link InstanceBuffer}) */
+	public MultiChoiceOption bufferStorageOption = InstanceBuffer.newStorageOption();
+
+	/** The directory of the files of the re-identification buffer, for the tiered storage */
+	public StringOption spillDirectoryOption = InstanceBuffer.newSpillDirectoryOption();
+
+	/** The number of instances of each segment of the re-identification buffer, for the tiered storage */
+	public IntOption segmentSizeOption = InstanceBuffer.newSegmentSizeOption();
+
+	/** The number of segments of the re-identification buffer kept in memory, for the tiered storage */
+	public IntOption memorySegmentsOption = InstanceBuffer.newMemorySegmentsOption();
+
+	/** The pivot instances (the first original instances seen by the estimator) */
+	private Instance[] pivots;
+
+	/** The number of pivots already chosen */
+	private int numPivots;
+
+	/** The cached distances between each buffered original instance and each pivot. The distances
+	 * of the instance at position {@code i} of the {@link #originalInstancesBuffer} are stored in the
+	 * range {@code [i * pivots.length, (i + 1) * pivots.length)}, {@code NaN} if not yet available. */
+	private double[] pivotDistances;
+
+	/** The distances between the anonymized instance being linked and each pivot */
+	private double[] anonymizedPivotDistances;
 	
 	private double linkageProbabilitySum;
 	
 	/** The number of already procesed instances */
 	private int processedInstances;
 	
+	/** The threads that link the blocks of pairs, shared by all the linkers (so that the linkers
+	 * created by each run of a task do not leave their own threads behind), created when the first
+	 * block is linked in parallel */
+	private static ExecutorService executor;
+	
 	/**
 	 * Builds an instance of this estimator with the given instance buffer size.
 	 * 
 	 * @param bufferSize the size of the buffer of original instances (the re-identification buffer)
 	 */
 	public BufferedIndividualRecordLinker(final int bufferSize) {
-		this.linkageProbabilitySum = 0.0;
-		this.processedInstances = 0;
 		this.bufferSizeOption.setValue(bufferSize);
-		this.originalInstancesBuffer = new Vector<Instance>(bufferSize);
+		initializeBuffers();
 	}
 	
 	/**
@@ -49,9 +118,7 @@ public class BufferedIndividualRecordLinker extends FilterEstimator implements D
 	
 	@Override
 	public void restart() {
-		this.linkageProbabilitySum = 0.0;
-		this.processedInstances = 0;
-		this.originalInstancesBuffer = new Vector<Instance>(bufferSizeOption.getValue());
+		initializeBuffers();
 	}
 	
 	@Override
@@ -62,9 +129,21 @@ public class BufferedIndividualRecordLinker extends FilterEstimator implements D
 
 	@Override
 	protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+		initializeBuffers();
+	}
+
+	private void initializeBuffers() {
 		this.linkageProbabilitySum = 0.0;
 		this.processedInstances = 0;
-		this.originalInstancesBuffer = new Vector<Instance>(bufferSizeOption.getValue());
+		this.originalInstancesBuffer = InstanceBuffer.create(bufferStorageOption.getChosenIndex(),
+				spillDirectoryOption.getValue(), segmentSizeOption.getValue(), memorySegmentsOption.getValue());
+		this.bufferSize = bufferSizeOption.getValue();
+		this.bufferHead = 0;
+		this.bufferedInstances = 0;
+		this.pivots = new Instance[pivotsOption.getValue()];
+		this.numPivots = 0;
+		this.pivotDistances = new double[bufferSizeOption.getValue() * pivotsOption.getValue()];
+		this.anonymizedPivotDistances = new double[pivotsOption.getValue()];
 	}
 
 	@Override
@@ -75,47 +154,239 @@ public class BufferedIndividualRecordLinker extends FilterEstimator implements D
 		estimateLinkageProbabilityForInstance(instancePair.anonymizedInstance);
 	}
 	
-	private void estimateLinkageProbabilityForInstance(final Instance anonymizedInstance) {
-		Vector<Integer> nearestInstances = getNearestInstances(anonymizedInstance);
-		
-		final int targetInstance = originalInstancesBuffer.size() - 1;
-		if (nearestInstances.contains(targetInstance)) {
-			linkageProbabilitySum += (double) (1.0 / (double) nearestInstances.size());
+	/**
+	 * Links the pairs of the block across several threads (see {@link #threadsOption}), if the block
+	 * is large enough and the buffer is held in the heap. The anonymized instance of each pair is
+	 * compared with every original instance of its window (the buffered instances and the original
+	 * instances of the block, up to its own), thus the estimation is the same as linking the pairs
+	 * one after the other.
+	 */
+	@Override
+	public void performEstimationForInstances(final InstancePair[] instancePairs, final int offset, final int length) {
+		final int threads = Math.min(threadsOption.getValue(), length / MIN_PAIRS_PER_THREAD);
+		//only the Heap storage is linked in parallel: the other ones would build a new instance for each
+		//  buffered one on every block (see InstanceBuffer#get(int)), and their searches are pruned by
+		//  the segment bounds and pivots of the sequential path instead
+		if (threads <= 1 || bufferStorageOption.getChosenIndex() != InstanceBuffer.HEAP_STORAGE) {
+			super.performEstimationForInstances(instancePairs, offset, length);
+			return;
 		}
-		else {
-			// do nothing (add 0 to the probability sum)
+		//the buffered instances followed by the original instances of the block
+		final int buffered = bufferedInstances;
+		final Instance[] originalInstances = new Instance[buffered + length];
+		for (int i = 0; i < buffered; ++i) {
+			originalInstances[i] = originalInstancesBuffer.get(i);
+		}
+		for (int i = 0; i < length; ++i) {
+			originalInstances[buffered + i] = instancePairs[offset + i].originalInstance;
+		}
+		final int windowSize = bufferSize;
+		final int[] attributes = getAttributes();
+		final double[] linkageProbabilities = new double[length];
+		List<Future<Void>> links = new ArrayList<Future<Void>>(threads);
+		for (int t = 0; t < threads; ++t) {
+			final int first = (int) ((long) length * t / threads);
+			final int last = (int) ((long) length * (t + 1) / threads);
+			links.add(getExecutor().submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (int i = first; i < last; ++i) {
+						final int target = buffered + i;
+						linkageProbabilities[i] = getLinkageProbability(instancePairs[offset + i].anonymizedInstance,
+								originalInstances, Math.max(0, target + 1 - windowSize), target, attributes);
+					}
+					return null;
+				}
+			}));
+		}
+		try {
+			for (Future<Void> link : links) {
+				link.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("The linkage of the block was interrupted.", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Failed to link the block of instances.", e.getCause());
+		}
+		for (int i = 0; i < length; ++i) {
+			addInstanceToBuffer(instancePairs[offset + i].originalInstance);
+			linkageProbabilitySum += linkageProbabilities[i];
+		}
+	}
+	
+	/**
+	 * Computes the probability of linking the anonymized instance to the original instance at the
+	 * {@code target} index, among the original instances in {@code [first, target]}, comparing the
+	 * given attributes ({@code null} for all of them but the class).
+	 */
+	private static double getLinkageProbability(final Instance anonymizedInstance, final Instance[] originalInstances,
+			final int first, final int target, final int[] attributes) {
+		final double minimum = Metrics.distance(anonymizedInstance, originalInstances[target], attributes);
+		int nearestInstances = 1;
+		for (int index = first; index < target; ++index) {
+			double distance = Metrics.distance(anonymizedInstance, originalInstances[index], attributes);
+			if (distance < minimum) {
+				return 0.0;
+			}
+			else if (distance == minimum) {
+				++nearestInstances;
+			}
 		}
+		return 1.0 / (double) nearestInstances;
 	}
 	
-	private Vector<Integer> getNearestInstances(final Instance anonymizedInstance) {
-		//initialization
-		double minimum = Metrics.distance(anonymizedInstance, originalInstancesBuffer.get(0));
-		Vector<Integer> indices = new Vector<Integer>();
-		indices.add(0);
+	/** Measures the estimator, adding the bytes its buffer holds outside of the heap */
+	@Override
+	public long getMemoryFootprint() {
+		long footprint = super.getMemoryFootprint();
+		if (footprint > 0 && originalInstancesBuffer != null) {
+			footprint += originalInstancesBuffer.getOffHeapBytes();
+		}
+		return footprint;
+	}
+	
+	/** Returns the threads that link the blocks of pairs, which are created the first time */
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "BufferedIndividualRecordLinker");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+	
+	private void estimateLinkageProbabilityForInstance(final Instance anonymizedInstance) {
+		final int[] attributes = getAttributes();
+		for (int p = 0; p < numPivots; ++p) {
+			anonymizedPivotDistances[p] = Metrics.distance(anonymizedInstance, pivots[p], attributes);
+		}
 		
-		//traversal
-		for (int i = 1; i < originalInstancesBuffer.size(); ++i) {
-			double distance = Metrics.distance(anonymizedInstance, originalInstancesBuffer.get(i));
+		//the target (last added) instance is checked first: its distance is usually
+		// a tight upper bound of the minimum distance, which makes the pruning effective
+		final int targetIndex = bufferedInstances - 1;
+		double minimum = originalInstancesBuffer.distance(anonymizedInstance, targetIndex, attributes);
+		int nearestInstances = 1;
+		boolean targetIsNearest = true;
+
+		//traversal (the order is irrelevant: the pruned instances are farther than the minimum)
+		int segmentEnd = 0;
+		for (int index = 0; index < targetIndex; ++index) {
+			if (index == segmentEnd) {
+				segmentEnd = originalInstancesBuffer.getSegmentEnd(index);
+				if (originalInstancesBuffer.getSegmentLowerBound(anonymizedInstance, index, attributes) > minimum) {
+					index = segmentEnd - 1;
+					continue; //the whole segment is farther than the current minimum
+				}
+			}
+			if (numPivots > 0 && canBePruned(getBufferPosition(index), minimum)) {
+				continue; //the instance is farther than the current minimum
+			}
+			double distance = originalInstancesBuffer.distance(anonymizedInstance, index, attributes);
 			if (distance < minimum) {
 				minimum = distance;
-				indices = new Vector<Integer>();
-				indices.add(i);
+				nearestInstances = 1;
+				targetIsNearest = false;
 			}
 			else if (distance == minimum) {
-				indices.add(i);
+				++nearestInstances;
+			}
+		}
+
+		if (targetIsNearest) {
+			linkageProbabilitySum += (double) (1.0 / (double) nearestInstances);
+		}
+		else {
+			// do nothing (add 0 to the probability sum)
+		}
+	}
+	
+	/**
+	 * Checks, by means of the triangle inequality, whether the distance between the anonymized
+	 * instance and the buffered instance at the given {@code position} is surely greater than the
+	 * given minimum. Each pivot {@code p} gives the lower bound {@code |d(a, p) - d(o, p)|}.
+	 */
+	private boolean canBePruned(final int position, final double minimum) {
+		final int offset = position * pivots.length;
+		final double threshold = minimum + PRUNING_TOLERANCE * (1.0 + minimum);
+		for (int p = 0; p < numPivots; ++p) {
+			//NaN distances (pivots chosen after the instance was buffered) never prune
+			if (Math.abs(anonymizedPivotDistances[p] - pivotDistances[offset + p]) > threshold) {
+				return true;
 			}
 		}
-		return indices;
+		return false;
+	}
+
+	@Override
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	@Override
+	public int getMinimumBufferSize() {
+		return 1;
+	}
+	
+	/**
+	 * Resizes the re-identification buffer, keeping the newest instances (and their distances to the
+	 * pivots) that fit in it.
+	 */
+	@Override
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize < getMinimumBufferSize()) {
+			throw new IllegalArgumentException("The buffer must hold at least one instance: " + bufferSize);
+		}
+		final int kept = Math.min(bufferedInstances, bufferSize);
+		final int first = bufferedInstances - kept;
+		double[] newPivotDistances = new double[bufferSize * pivots.length];
+		for (int i = 0; i < kept; ++i) {
+			final int position = getBufferPosition(first + i);
+			System.arraycopy(pivotDistances, position * pivots.length, newPivotDistances, i * pivots.length,
+					pivots.length);
+		}
+		for (int i = 0; i < first; ++i) {
+			originalInstancesBuffer.discardFirst();
+		}
+		this.bufferSize = bufferSize;
+		this.pivotDistances = newPivotDistances;
+		this.bufferHead = 0;
+		this.bufferedInstances = kept;
+	}
+	
+	/** Maps the logical index {@code i} (0 being the oldest instance) to its row of {@link #pivotDistances} */
+	private int getBufferPosition(final int i) {
+		return (bufferHead + i) % bufferSize;
 	}
 	
 	/**
 	 * Adds the given instance in the re-identification buffer and discards older instances if necessary.
+	 * The distances between the instance and the pivots are computed once, when it is added.
 	 */
 	private void addInstanceToBuffer(Instance originalInstance) {
-		if (originalInstancesBuffer.size() >= bufferSizeOption.getValue()) {
-			originalInstancesBuffer.remove(0); //remove the last one
+		if (bufferedInstances >= bufferSize) {
+			//remove the oldest one
+			originalInstancesBuffer.discardFirst();
+			bufferHead = (bufferHead + 1) % bufferSize;
+			--bufferedInstances;
+		}
+		if (numPivots < pivots.length) {
+			pivots[numPivots++] = originalInstance;
 		}
+		final int position = getBufferPosition(bufferedInstances);
 		originalInstancesBuffer.add(originalInstance);
+		++bufferedInstances;
+
+		final int offset = position * pivots.length;
+		for (int p = 0; p < pivots.length; ++p) {
+			pivotDistances[offset + p] = (p < numPivots) ?
+					Metrics.distance(originalInstance, pivots[p], getAttributes()) : Double.NaN;
+		}
 		++processedInstances;
 	}
 	
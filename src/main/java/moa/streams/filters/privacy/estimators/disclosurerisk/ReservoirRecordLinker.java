@@ -0,0 +1,218 @@
+package moa.streams.filters.privacy.estimators.disclosurerisk;
+
+import java.util.Random;
+
+import moa.core.ObjectRepository;
+import moa.options.IntOption;
+import moa.streams.filters.privacy.InstancePair;
+import moa.streams.filters.privacy.estimators.FilterEstimator;
+import moa.tasks.TaskMonitor;
+import weka.core.Instance;
+
+/**
+ * Disclosure risk estimator that links each anonymized instance against a uniform sample of
+ * all the original instances seen so far, instead of the last ones. The sample is kept in a
+ * fixed size reservoir (see <em>Vitter's Algorithm R</em>), stored column by column in primitive
+ * arrays, so the memory used by the estimator does not grow with the length of the stream.
+ * <p>
+ * Each sampled instance stands for {@code seen / reservoirSize} original instances, thus the
+ * linkage probability is estimated as:
+ * <pre>{@code
+ *   if some sampled instance is strictly nearer than the original one:
+ *     probability := 0
+ *   else:
+ *     probability := 1 / (1 + ties * seen / reservoirSize)
+ * }</pre>
+ * where {@code ties} is the number of sampled instances at the same distance as the original.
+ */
+public class ReservoirRecordLinker extends FilterEstimator implements DisclosureRiskEstimator {
+
+	/** Serializable */
+	private static final long serialVersionUID = -2841629072301766421L;
+
+	/** The size of the reservoir of original instances */
+	public IntOption reservoirSizeOption = new IntOption("reservoirSize", 'b',
+			"The number of original instances sampled from the whole stream to be reidentified.",
+			1000, 10, Integer.MAX_VALUE);
+
+	/** Random generator seed */
+	public IntOption randomSeedOption = new IntOption("randomSeed", 'r',
+			"The pseudo-random generator seed.", 3141592, Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+	/** The pseudo-random generator used to sample the reservoir */
+	private Random randomGenerator;
+
+	/** The indexes of the attributes taken into account (all but the class attribute, unless they
+	 * are restricted by {@link #setAttributes(int[])}) */
+	private int[] attributeIndexes;
+
+	/** Whether each one of the {@link #attributeIndexes} is numeric or not */
+	private boolean[] numericAttributes;
+
+	/** The values of the sampled instances, one column per attribute in {@link #attributeIndexes} */
+	private double[][] reservoirColumns;
+
+	/** The number of sampled instances currently held in the reservoir */
+	private int sampledInstances;
+
+	/** The number of original instances offered to the reservoir */
+	private long seenInstances;
+
+	/** The squared distances between the anonymized instance and each sampled instance */
+	private double[] squaredDistances;
+
+	private double linkageProbabilitySum;
+
+	/** The number of already procesed instances */
+	private long processedInstances;
+
+	@Override
+	public void restart() {
+		initialize();
+	}
+
+	@Override
+	public void getDescription(StringBuilder sb, int indent) {
+		// TODO Auto-generated method stub
+	}
+
+	@Override
+	protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+		initialize();
+	}
+
+	private void initialize() {
+		this.randomGenerator = new Random(randomSeedOption.getValue());
+		this.attributeIndexes = null; //initialized with the first instance
+		this.numericAttributes = null;
+		this.reservoirColumns = null;
+		this.squaredDistances = new double[reservoirSizeOption.getValue()];
+		this.sampledInstances = 0;
+		this.seenInstances = 0;
+		this.linkageProbabilitySum = 0.0;
+		this.processedInstances = 0;
+	}
+
+	/** Builds the columnar reservoir for the compared attributes (see {@link #setAttributes(int[])})
+	 * of the given instance */
+	private void initializeReservoir(final Instance instance) {
+		if (getAttributes() != null) {
+			attributeIndexes = getAttributes().clone();
+		}
+		else {
+			attributeIndexes = new int[instance.numAttributes() - (instance.classIndex() >= 0 ? 1 : 0)];
+			int column = 0;
+			for (int i = 0; i < instance.numAttributes(); ++i) {
+				if (i != instance.classIndex()) {
+					attributeIndexes[column++] = i;
+				}
+			}
+		}
+		numericAttributes = new boolean[attributeIndexes.length];
+		reservoirColumns = new double[attributeIndexes.length][reservoirSizeOption.getValue()];
+		for (int column = 0; column < attributeIndexes.length; ++column) {
+			numericAttributes[column] = instance.attribute(attributeIndexes[column]).isNumeric();
+		}
+	}
+
+	@Override
+	public void performEstimationForInstances(InstancePair instancePair) {
+		if (reservoirColumns == null) {
+			initializeReservoir(instancePair.originalInstance);
+		}
+		estimateLinkageProbabilityForInstances(instancePair.originalInstance, instancePair.anonymizedInstance);
+
+		//sample the original instance, once it has been used as the target
+		addInstanceToReservoir(instancePair.originalInstance);
+	}
+
+	private void estimateLinkageProbabilityForInstances(final Instance originalInstance,
+			final Instance anonymizedInstance) {
+		final double targetDistance = squaredDistance(anonymizedInstance, originalInstance);
+		computeSquaredDistancesToReservoir(anonymizedInstance);
+
+		int nearerInstances = 0;
+		int tiedInstances = 0;
+		for (int slot = 0; slot < sampledInstances; ++slot) {
+			if (squaredDistances[slot] < targetDistance) {
+				++nearerInstances;
+			}
+			else if (squaredDistances[slot] == targetDistance) {
+				++tiedInstances;
+			}
+		}
+
+		if (nearerInstances == 0) {
+			//each sampled instance represents (seen / sampled) instances of the whole stream
+			double scale = (sampledInstances > 0) ? (double) seenInstances / (double) sampledInstances : 0.0;
+			linkageProbabilitySum += 1.0 / (1.0 + tiedInstances * scale);
+		}
+		++processedInstances;
+	}
+
+	/** Computes the squared distances to all the sampled instances, one attribute (column) at a time */
+	private void computeSquaredDistancesToReservoir(final Instance anonymizedInstance) {
+		for (int slot = 0; slot < sampledInstances; ++slot) {
+			squaredDistances[slot] = 0.0;
+		}
+		for (int column = 0; column < attributeIndexes.length; ++column) {
+			final double value = anonymizedInstance.value(attributeIndexes[column]);
+			final double[] values = reservoirColumns[column];
+			if (numericAttributes[column]) {
+				for (int slot = 0; slot < sampledInstances; ++slot) {
+					final double difference = value - values[slot];
+					squaredDistances[slot] += difference * difference;
+				}
+			}
+			else {
+				for (int slot = 0; slot < sampledInstances; ++slot) {
+					squaredDistances[slot] += (value != values[slot]) ? 1.0 : 0.0;
+				}
+			}
+		}
+	}
+
+	/** Squared version of {@link moa.streams.filters.privacy.utils.Metrics#distance(Instance, Instance)} */
+	private double squaredDistance(final Instance x, final Instance y) {
+		double distance = 0.0;
+		for (int column = 0; column < attributeIndexes.length; ++column) {
+			final int attributeIndex = attributeIndexes[column];
+			if (numericAttributes[column]) {
+				final double difference = x.value(attributeIndex) - y.value(attributeIndex);
+				distance += difference * difference;
+			}
+			else {
+				distance += (x.value(attributeIndex) != y.value(attributeIndex)) ? 1.0 : 0.0;
+			}
+		}
+		return distance;
+	}
+
+	/**
+	 * Offers the given instance to the reservoir: it is always sampled while the reservoir is not
+	 * full, otherwise it replaces a random sampled instance with probability {@code size / seen}.
+	 */
+	private void addInstanceToReservoir(final Instance originalInstance) {
+		++seenInstances;
+		int slot;
+		if (sampledInstances < reservoirSizeOption.getValue()) {
+			slot = sampledInstances++;
+		}
+		else {
+			long candidate = (long) (randomGenerator.nextDouble() * seenInstances);
+			if (candidate >= sampledInstances) {
+				return; //the instance is not sampled
+			}
+			slot = (int) candidate;
+		}
+		for (int column = 0; column < attributeIndexes.length; ++column) {
+			reservoirColumns[column][slot] = originalInstance.value(attributeIndexes[column]);
+		}
+	}
+
+	@Override
+	public double getCurrentDisclosureRisk() {
+		return (linkageProbabilitySum) / (double) processedInstances;
+	}
+
+}
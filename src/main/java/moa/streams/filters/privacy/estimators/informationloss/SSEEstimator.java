@@ -9,7 +9,8 @@ import weka.core.Instance;
 
 /**
  * Gives an estimation of the information loss as the Sum of Squared Errors
- * (thus the name of the class, {@code SSEEstimator}.
+ * (thus the name of the class, {@code SSEEstimator}, over the attributes given to
+ * {@link #setAttributes(int[])} (all of them but the class by default).
  */
 public class SSEEstimator extends FilterEstimator implements InformationLossEstimator {
 
@@ -55,12 +56,28 @@ public class SSEEstimator extends FilterEstimator implements InformationLossEsti
 		Instance y = instancePair.anonymizedInstance;
 		
 		double lastError = currentError;
-		double error = Metrics.sse(x, y);
+		double error = Metrics.sse(x, y, getAttributes());
 		
 		assert(error >= 0.0);
 		
 		currentError += error;
 		incrementalError = currentError - lastError;
 	}
+	
+	@Override
+	public void performEstimationForInstances(InstancePair[] instancePairs, int offset, int length) {
+		if (length == 0) {
+			return;
+		}
+		final int[] attributes = getAttributes();
+		double error = currentError;
+		double lastError = currentError;
+		for (int i = offset; i < offset + length; ++i) {
+			lastError = error;
+			error += Metrics.sse(instancePairs[i].originalInstance, instancePairs[i].anonymizedInstance, attributes);
+		}
+		currentError = error;
+		incrementalError = currentError - lastError;
+	}
 
 }
@@ -1,20 +1,28 @@
 package moa.streams.filters.privacy.microaggregation;
 
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Vector;
 
+import moa.core.InstancesHeader;
 import moa.options.IntOption;
+import moa.options.MultiChoiceOption;
+import moa.options.StringOption;
 import moa.streams.filters.privacy.InstancePair;
 import moa.streams.filters.privacy.PrivacyFilter;
-import moa.streams.filters.privacy.utils.Metrics;
+import moa.streams.filters.privacy.buffer.InstanceBuffer;
+import moa.streams.filters.privacy.buffer.ResizableBuffer;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder.Stage;
 import weka.core.Attribute;
 import weka.core.Instance;
 
-public class MicroAggregationFilter extends PrivacyFilter {
+public class MicroAggregationFilter extends PrivacyFilter implements ResizableBuffer {
 	
 	/** Serializable */
 	private static final long serialVersionUID = 1850306955633168543L;
@@ -27,14 +35,29 @@ public class MicroAggregationFilter extends PrivacyFilter {
     public IntOption bufferSizeOption = new IntOption("bufferLength", 'b', 
     		"Size of the historical buffer considered for the microaggregation process", 100, 10, Integer.MAX_VALUE);
     
+    /** The storage of the buffers of instances (see {@link InstanceBuffer}) */
+    public MultiChoiceOption bufferStorageOption = InstanceBuffer.newStorageOption();
+    
+    /** The directory of the files of the buffers, for the tiered storage */
+    public StringOption spillDirectoryOption = InstanceBuffer.newSpillDirectoryOption();
+    
+    /** The number of instances of each segment of the buffers, for the tiered storage */
+    public IntOption segmentSizeOption = InstanceBuffer.newSegmentSizeOption();
+    
+    /** The number of segments of the buffers kept in memory, for the tiered storage */
+    public IntOption memorySegmentsOption = InstanceBuffer.newMemorySegmentsOption();
+    
     /** Indicates whether to start processing (anonymizing) instances or not. */
 	private boolean startToProcess;
+	
+	/** The current size of the buffer (see {@link #setBufferSize(int)}) */
+	private int bufferSize;
     
 	/** The original instances buffer of the filter. */
-	private Vector<Instance> instancesBuffer;
+	private InstanceBuffer instancesBuffer;
 	
 	/** The anonymized instances buffer of the filter. */
-	private Vector<Instance> anonymizedInstancesBuffer;
+	private InstanceBuffer anonymizedInstancesBuffer;
 	
 	/** A vector to indicate whether an instance is anonymized or not. An index (ordering)
 	 * correspondance is maintained with respect to the {@link #instancesBuffer}
@@ -49,10 +72,13 @@ public class MicroAggregationFilter extends PrivacyFilter {
 	
 	@Override
 	public void prepareAnonymizationFilterForUse() {
-		this.instancesBuffer = new Vector<Instance>(bufferSizeOption.getValue());
-		this.anonymizedInstancesBuffer = new Vector<Instance>(bufferSizeOption.getValue());
+		this.instancesBuffer = InstanceBuffer.create(bufferStorageOption.getChosenIndex(),
+				spillDirectoryOption.getValue(), segmentSizeOption.getValue(), memorySegmentsOption.getValue());
+		this.anonymizedInstancesBuffer = InstanceBuffer.create(bufferStorageOption.getChosenIndex(),
+				spillDirectoryOption.getValue(), segmentSizeOption.getValue(), memorySegmentsOption.getValue());
     	this.alreadyAnonymizedInstances =  new Vector<Boolean>(bufferSizeOption.getValue());
     	this.startToProcess = false;
+    	this.bufferSize = bufferSizeOption.getValue();
 	}
 
 	@Override
@@ -60,6 +86,61 @@ public class MicroAggregationFilter extends PrivacyFilter {
 		prepareAnonymizationFilterForUse();
 	}
 	
+	@Override
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	/** The clusters must always be formed by <em>k</em> instances */
+	@Override
+	public int getMinimumBufferSize() {
+		return kAnonymityValueOption.getValue();
+	}
+	
+	@Override
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize < getMinimumBufferSize()) {
+			throw new IllegalArgumentException("The buffer can not be smaller than the clusters: " + bufferSize);
+		}
+		if (bufferSize > this.bufferSize) {
+			//fill the larger buffer before releasing any other instance
+			startToProcess = false;
+		}
+		this.bufferSize = bufferSize;
+	}
+	
+	@Override
+	public int getBufferOccupancy() {
+		return instancesBuffer.size();
+	}
+	
+	@Override
+	public long getOffHeapBytes() {
+		return instancesBuffer.getOffHeapBytes() + anonymizedInstancesBuffer.getOffHeapBytes();
+	}
+	
+	/** The buffered instances, either anonymized or not: the clusters they form with the released
+	 * instances are kept as they are */
+	@Override
+	protected Serializable exportWarmStartState() {
+		boolean[] anonymized = new boolean[alreadyAnonymizedInstances.size()];
+		for (int i = 0; i < anonymized.length; ++i) {
+			anonymized[i] = alreadyAnonymizedInstances.get(i);
+		}
+		return new WarmStartState(instancesBuffer.getInstances(), 
+								  anonymizedInstancesBuffer.getInstances(), anonymized);
+	}
+	
+	@Override
+	protected void importWarmStartState(Serializable state) {
+		WarmStartState warmStart = (WarmStartState) state;
+		for (int i = 0; i < warmStart.anonymized.length; ++i) {
+			instancesBuffer.add(warmStart.originalInstances.get(i));
+			anonymizedInstancesBuffer.add(warmStart.anonymizedInstances.get(i));
+			alreadyAnonymizedInstances.add(warmStart.anonymized[i]);
+		}
+	}
+	
 	@Override
 	public boolean hasMoreInstances() {
 		return inputStream.hasMoreInstances() || (instancesBuffer.size() > 0);
@@ -67,16 +148,11 @@ public class MicroAggregationFilter extends PrivacyFilter {
 	
 	@Override
 	public InstancePair nextAnonymizedInstancePair() {
-		//get the next instance from the stream
-		fetchNextStreamInstance();
-		
-		//check whether to begin processing the buffer
-		if (instancesBuffer.size() == bufferSizeOption.getValue()) {
-			startToProcess = true;
-		}
+		//get the next instance from the stream and check whether to begin processing the buffer
+		fetchAndCheckProcessing();
 		
 		//process or return null
-		if (startToProcess){
+		if (startToProcess && instancesBuffer.size() > 0){
 			//return the next anonymized instance
 			return processNextInstance();
 		}
@@ -86,17 +162,66 @@ public class MicroAggregationFilter extends PrivacyFilter {
 		}
 	}
 	
+	/**
+	 * Anonymizes the block as {@link #nextAnonymizedInstancePair()} does, but once a cluster is
+	 * aggregated, the instances it anonymized that follow it at the head of the buffer are released
+	 * at once, removing their flags with a single shift of the {@link #alreadyAnonymizedInstances}.
+	 */
+	@Override
+	public int nextAnonymizedInstancePairs(InstancePair[] pairs, int offset, int length) {
+		int count = 0;
+		while (count < length && hasMoreInstances()) {
+			fetchAndCheckProcessing();
+			if (startToProcess && instancesBuffer.size() > 0) {
+				pairs[offset + count++] = processNextInstance();
+				count += releaseAnonymizedInstances(pairs, offset + count, length - count);
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Releases the already anonymized instances at the head of the buffer, fetching an instance
+	 * from the stream before each one, as {@link #nextAnonymizedInstancePair()} does.
+	 * 
+	 * @return the number of pairs stored
+	 */
+	private int releaseAnonymizedInstances(InstancePair[] pairs, int offset, int length) {
+		int released = 0;
+		//the flags of the released instances are kept at the head until the run ends
+		while (released < length && instancesBuffer.size() > 0 && alreadyAnonymizedInstances.get(released)) {
+			fetchAndCheckProcessing();
+			pairs[offset + released++] = new InstancePair(instancesBuffer.removeFirst(),
+					anonymizedInstancesBuffer.removeFirst());
+		}
+		alreadyAnonymizedInstances.subList(0, released).clear();
+		return released;
+	}
+	
+	/**
+	 * Gets the next instance from the stream, unless the buffer holds more instances than its
+	 * (shrunk) size, and starts processing the buffer once it is full or once the stream ends
+	 * (a stream shorter than the buffer would never fill it).
+	 */
+	private void fetchAndCheckProcessing() {
+		if (instancesBuffer.size() < bufferSize) {
+			fetchNextStreamInstance();
+		}
+		if (instancesBuffer.size() >= bufferSize || !inputStream.hasMoreInstances()) {
+			startToProcess = true;
+		}
+	}
+	
 	private void fetchNextStreamInstance() {
 		//fetch newer instances from the input stream
 		if (this.inputStream.hasMoreInstances()){
 			//perform 2 copies, one for each instance buffer
-			Instance originalInstance = (Instance) this.inputStream.nextInstance().copy();		
-			Instance anonymizableInstance = (Instance) originalInstance.copy();
+			Instance originalInstance = nextInputInstance();		
 			
 			//add instances to buffer and boolean flag indicating that it is not
 			// yet anonymized
 			instancesBuffer.add(originalInstance);
-			anonymizedInstancesBuffer.add(anonymizableInstance);
+			anonymizedInstancesBuffer.addCopy(originalInstance);
 			alreadyAnonymizedInstances.add(false);
 		}
 	}
@@ -112,20 +237,29 @@ public class MicroAggregationFilter extends PrivacyFilter {
 		//remove the instance from the buffer and from the list of anonymized instances
 		alreadyAnonymizedInstances.remove(top);
 		InstancePair anonymizedInstancePair = 
-				new InstancePair(instancesBuffer.remove(top), 
-						         anonymizedInstancesBuffer.remove(top));
+				new InstancePair(instancesBuffer.removeFirst(), 
+						         anonymizedInstancesBuffer.removeFirst());
 		return anonymizedInstancePair;
 	}
 	
 	private void anonymizeNextInstance() {
+		LatencyRecorder latencyRecorder = getLatencyRecorder();
+		long startTime = latencyRecorder != null ? System.nanoTime() : 0;
+		
 		//get the indexes of the k nearest neighbors (containing the top (target) instance)
 		//  to form a cluster to be anonymized
 		List<Integer> clusterIndexes = 
 				getNextKNNClusterIndexes(kAnonymityValueOption.getValue(),
 										 instancesBuffer, alreadyAnonymizedInstances);
+		if (latencyRecorder != null) {
+			startTime = latencyRecorder.recordSince(Stage.SEARCH, startTime);
+		}
 		
 		//aggregate (anonymize) the instances of the cluster
 		anonymizeClusterWithIndexes(clusterIndexes);
+		if (latencyRecorder != null) {
+			latencyRecorder.recordSince(Stage.PERTURBATION, startTime);
+		}
 	}
 	
 	private void anonymizeClusterWithIndexes(List<Integer> clusterIndexes) {
@@ -133,32 +267,53 @@ public class MicroAggregationFilter extends PrivacyFilter {
 		setAnonymizedInstancesForIndexes(clusterIndexes);
 		
 		//perform multivariate aggregation:
-		  //take the first instance of the cluster as the example
-		final Instance targetInstance = instancesBuffer.get(clusterIndexes.get(0));
+		  //take the header of the instances as the example
+		final InstancesHeader header = getHeader();
+		
+		  //only the quasi-identifiers, if they are a subset of the attributes
+		final int[] quasiIdentifiers = getQuasiIdentifiers();
+		if (quasiIdentifiers != null) {
+			for (int attributeIndex : quasiIdentifiers) {
+				aggregateAttributeForInstances(header, attributeIndex, clusterIndexes);
+			}
+			return;
+		}
+		
+		  //sparse instances: only the attributes stored by some of them, as the aggregates of
+		  //  the other ones (zero in all the instances) are zero too
+		final int[] storedAttributes = instancesBuffer.getStoredAttributes(clusterIndexes);
+		if (storedAttributes != null) {
+			for (int attributeIndex : storedAttributes) {
+				aggregateAttributeForInstances(header, attributeIndex, clusterIndexes);
+			}
+			return;
+		}
 		
 		  //for each attribute (variable) of the instances
-		for (int attributeIndex = 0; attributeIndex < targetInstance.numAttributes(); ++attributeIndex) {
-			//if it is not the target attribute (the one flagged as 'class', for classification)
-			if (attributeIndex != targetInstance.classIndex()){
-				//get attribute
-				final Attribute attribute = targetInstance.attribute(attributeIndex);
-				
-				//compute aggregated value
-				double newValue;
-				if (attribute.isNumeric()) {
-					newValue = aggregateNumericalAttributeForInstances(attributeIndex, clusterIndexes);
-				}
-				else {
-					newValue = aggregateNominalAttributeForInstances(attributeIndex, clusterIndexes);
-				}
-				
-				//replace values of the instances with the aggregated one
-				for (int i = 0; i < clusterIndexes.size(); ++i) {
-					Instance instance =	instancesBuffer.get(clusterIndexes.get(i)); //get instance
-					
-					//replace value
-					instance.setValue(attributeIndex, newValue);
-				}
+		for (int attributeIndex = 0; attributeIndex < header.numAttributes(); ++attributeIndex) {
+			aggregateAttributeForInstances(header, attributeIndex, clusterIndexes);
+		}
+	}
+	
+	private void aggregateAttributeForInstances(final InstancesHeader header, final int attributeIndex,
+			final List<Integer> clusterIndexes) {
+		//if it is a quasi-identifier (never the target attribute, the one flagged as 'class')
+		if (isQuasiIdentifier(attributeIndex)){
+			//get attribute
+			final Attribute attribute = header.attribute(attributeIndex);
+			
+			//compute aggregated value
+			double newValue;
+			if (attribute.isNumeric()) {
+				newValue = aggregateNumericalAttributeForInstances(attributeIndex, clusterIndexes);
+			}
+			else {
+				newValue = aggregateNominalAttributeForInstances(attributeIndex, clusterIndexes);
+			}
+			
+			//replace values of the anonymized instances with the aggregated one
+			for (int i = 0; i < clusterIndexes.size(); ++i) {
+				anonymizedInstancesBuffer.setValue(clusterIndexes.get(i), attributeIndex, newValue);
 			}
 		}
 	}
@@ -180,8 +335,7 @@ public class MicroAggregationFilter extends PrivacyFilter {
 	private double aggregateNumericalAttributeForInstances(final int attributeIndex, final List<Integer> clusterIndexes) {
 		double average = 0.0;
 		for (int i = 0; i < clusterIndexes.size(); ++i){
-			Instance instance = instancesBuffer.get(clusterIndexes.get(i));
-			average += instance.value(attributeIndex);
+			average += instancesBuffer.value(clusterIndexes.get(i), attributeIndex);
 		}
 		average = average / clusterIndexes.size();
 		return average;
@@ -201,8 +355,7 @@ public class MicroAggregationFilter extends PrivacyFilter {
 		
 		//count values appearance to compute mode
 		for (int i = 0; i < clusterIndexes.size(); ++i){
-			Instance instance = instancesBuffer.get(clusterIndexes.get(i));
-			Double attributeValue = instance.value(attributeIndex);
+			Double attributeValue = instancesBuffer.value(clusterIndexes.get(i), attributeIndex);
 			
 			int tempCount = 0;
 			if (valueCounter.containsKey(attributeValue)){
@@ -234,12 +387,12 @@ public class MicroAggregationFilter extends PrivacyFilter {
 	 * that {@code skip[index] = true} will be skipped and not considered into the clustering process.
 	 * 
 	 * @param k the size of the cluster
-	 * @param instances the instances to be clustered
+	 * @param instances the buffer of instances to be clustered
 	 * @param skip the list of instances to skip
 	 * @return the list of indexes of instances in the KNN cluster
 	 */
 	public List<Integer> getNextKNNClusterIndexes(final int k,
-												  final List<Instance> instances,
+												  final InstanceBuffer instances,
 												  final List<Boolean> skip) {
 		assert(instances != null);
 		assert(skip != null);
@@ -248,17 +401,31 @@ public class MicroAggregationFilter extends PrivacyFilter {
 		//target instance is always the first one
 		Instance targetInstance = instances.get(0);
 		
-		//initialize heap of nearest neighbors, ordered by distance
+		//the instances are compared over the quasi-identifiers only
+		final int[] quasiIdentifiers = getQuasiIdentifiers();
+		
+		//initialize heap of nearest neighbors, the farthest one at its head
 		PriorityQueue<DistanceIndexPair> kNearestNeighbors = 
-				new PriorityQueue<DistanceIndexPair>(Math.max(1, k));
+				new PriorityQueue<DistanceIndexPair>(Math.max(1, k), Collections.<DistanceIndexPair>reverseOrder());
 		
 		//iterate over all the instances in the actual buffer
 		//  (except the top one, thus beginning from i = 1)
+		int segmentEnd = 0;
 		for (int i = 0; i < instances.size(); ++i){
 			
+			//skip the segments of the buffer that cannot hold a nearer instance
+			if (i == segmentEnd) {
+				segmentEnd = instances.getSegmentEnd(i);
+				if (kNearestNeighbors.size() == k && 
+						instances.getSegmentLowerBound(targetInstance, i, quasiIdentifiers) >= kNearestNeighbors.peek().distance) {
+					i = segmentEnd - 1;
+					continue;
+				}
+			}
+			
 			//consider only instances that are not yet anonymized
 			if (!skip.get(i)){
-				double distanceToTarget = Metrics.distance(targetInstance, instances.get(i));
+				double distanceToTarget = instances.distance(targetInstance, i, quasiIdentifiers);
 				
 				if (kNearestNeighbors.size() < k) {
 					//there is still room for a new instance, no matter how far or near
@@ -325,4 +492,23 @@ public class MicroAggregationFilter extends PrivacyFilter {
 		
 	}
 	
-}
\ No newline at end of file
+	/** The state of the filter carried over to a later run (see {@link #exportWarmStartState()}) */
+	private static final class WarmStartState implements Serializable {
+		
+		/** Serializable */
+		private static final long serialVersionUID = 4180263794416253187L;
+		
+		private final List<Instance> originalInstances;
+		private final List<Instance> anonymizedInstances;
+		private final boolean[] anonymized;
+		
+		public WarmStartState(List<Instance> originalInstances, List<Instance> anonymizedInstances,
+				boolean[] anonymized) {
+			this.originalInstances = originalInstances;
+			this.anonymizedInstances = anonymizedInstances;
+			this.anonymized = anonymized;
+		}
+		
+	}
+	
+}
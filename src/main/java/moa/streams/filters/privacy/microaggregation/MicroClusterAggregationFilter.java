@@ -0,0 +1,494 @@
+package moa.streams.filters.privacy.microaggregation;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import moa.core.InstancesHeader;
+import moa.options.FloatOption;
+import moa.options.IntOption;
+import moa.streams.filters.privacy.InstancePair;
+import moa.streams.filters.privacy.PrivacyFilter;
+import moa.streams.filters.privacy.buffer.ResizableBuffer;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder.Stage;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+
+/**
+ * Microaggregation filter that clusters the stream online, instead of searching the <em>k</em>
+ * nearest neighbours of each cluster head in a buffer: it maintains a bounded set of open
+ * micro-clusters, summarized (as in CluStream) by their number of instances and the linear and
+ * square sums of their numeric values, plus the counts of their nominal values.
+ * <p>
+ * Each instance read joins the nearest open micro-cluster, whose centroid is kept up to date, unless
+ * it lies beyond the maximal boundary of that micro-cluster (a multiple of its RMS deviation) and
+ * fewer than the maximum number of micro-clusters are open, in which case it opens a new one. As
+ * soon as a micro-cluster holds <em>k</em> instances, they are aggregated (the mean of the numeric
+ * values and the mode of the nominal ones) and the micro-cluster is closed. Thus each instance costs
+ * a search over the open centroids and its share of the aggregation of its micro-cluster,
+ * independently of the size of the buffer.
+ * <p>
+ * The open centroids are not indexed but searched exhaustively, so each instance costs a distance
+ * to each of them (up to the maximum number of micro-clusters), plus another search when its nearest
+ * micro-cluster holds a single instance. An index does not pay off here: the centroids move with
+ * every instance they take, and the bound of a pivot index (by the triangle inequality) skipped
+ * only a few of the distances over ten quasi-identifiers, while its upkeep cost more. A grid or a
+ * KD-tree over the quasi-identifiers degrades in the same way as their number grows.
+ * <p>
+ * The instances are released in the same order they are read, once aggregated. When the buffer of
+ * pending instances is full, the micro-cluster of the oldest pending instance is merged into the
+ * nearest open one; at the end of the stream, the last micro-cluster is aggregated even if it holds
+ * fewer than <em>k</em> instances.
+ */
+public class MicroClusterAggregationFilter extends PrivacyFilter implements ResizableBuffer {
+
+	/** Serializable */
+	private static final long serialVersionUID = -8211853622380531763L;
+
+	/** The <em>K</em> value for the <em>k</em>-anonymity property to be satisfied. */
+	public IntOption kAnonymityValueOption = new IntOption("kAnonimty", 'k',
+			"The size of the clusters that will be used to perform the aggregation", 3, 2, Integer.MAX_VALUE);
+
+	/** The maximum number of pending instances */
+	public IntOption bufferSizeOption = new IntOption("bufferLength", 'b',
+			"Maximum number of instances waiting for their micro-cluster to be aggregated", 100, 10, Integer.MAX_VALUE);
+
+	/** The maximum number of open micro-clusters */
+	public IntOption maxMicroClustersOption = new IntOption("maxMicroClusters", 'c',
+			"Maximum number of micro-clusters open at the same time", 50, 1, Integer.MAX_VALUE);
+
+	/** The factor of the maximal boundary of the micro-clusters */
+	public FloatOption boundaryFactorOption = new FloatOption("boundaryFactor", 't',
+			"Multiple of the RMS deviation of a micro-cluster beyond which an instance opens a new one",
+			2.0, 0.0, Double.MAX_VALUE);
+
+	/** The current size of the buffer (see {@link #setBufferSize(int)}) */
+	private int bufferSize;
+
+	/** The instances read and not released yet, in the order they were read */
+	private ArrayDeque<PendingInstance> pendingInstances;
+
+	/** The open micro-clusters, whose centroids are searched for the nearest one */
+	private List<MicroCluster> microClusters;
+
+	/** The indexes of the numeric and nominal quasi-identifiers (the class excluded) */
+	private int[] numericAttributes;
+	private int[] nominalAttributes;
+
+	@Override
+	public void getDescription(StringBuilder sb, int indent) {
+		// TODO Auto-generated method stub
+	}
+
+	@Override
+	public void prepareAnonymizationFilterForUse() {
+		this.bufferSize = bufferSizeOption.getValue();
+		this.pendingInstances = new ArrayDeque<PendingInstance>();
+		this.microClusters = new ArrayList<MicroCluster>(maxMicroClustersOption.getValue());
+		this.numericAttributes = null;
+		this.nominalAttributes = null;
+	}
+
+	@Override
+	public void restartAnonymizationFilter() {
+		prepareAnonymizationFilterForUse();
+	}
+
+	@Override
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/** The clusters must always be formed by <em>k</em> instances */
+	@Override
+	public int getMinimumBufferSize() {
+		return kAnonymityValueOption.getValue();
+	}
+
+	@Override
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize < getMinimumBufferSize()) {
+			throw new IllegalArgumentException("The buffer can not be smaller than the clusters: " + bufferSize);
+		}
+		this.bufferSize = bufferSize;
+	}
+
+	@Override
+	public int getBufferOccupancy() {
+		return pendingInstances.size();
+	}
+
+	/** The pending instances and the open micro-clusters they belong to */
+	@Override
+	protected Serializable exportWarmStartState() {
+		return new Object[] { pendingInstances, microClusters, numericAttributes, nominalAttributes };
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void importWarmStartState(Serializable state) {
+		Object[] warmStart = (Object[]) state;
+		this.pendingInstances = (ArrayDeque<PendingInstance>) warmStart[0];
+		this.microClusters = (List<MicroCluster>) warmStart[1];
+		this.numericAttributes = (int[]) warmStart[2];
+		this.nominalAttributes = (int[]) warmStart[3];
+	}
+
+	@Override
+	public boolean hasMoreInstances() {
+		return inputStream.hasMoreInstances() || !pendingInstances.isEmpty();
+	}
+
+	@Override
+	public InstancePair nextAnonymizedInstancePair() {
+		PendingInstance oldest = pendingInstances.peek();
+		if (oldest == null || oldest.anonymizedInstance == null) {
+			advance(oldest);
+		}
+
+		oldest = pendingInstances.peek();
+		if (oldest != null && oldest.anonymizedInstance != null) {
+			pendingInstances.poll();
+			return new InstancePair(oldest.originalInstance, oldest.anonymizedInstance);
+		}
+		else {
+			return null;
+		}
+	}
+
+	/**
+	 * Anonymizes the block as {@link #nextAnonymizedInstancePair()} does, but releases all the
+	 * aggregated instances at the head of the buffer after each step.
+	 */
+	@Override
+	public int nextAnonymizedInstancePairs(InstancePair[] pairs, int offset, int length) {
+		int count = 0;
+		while (count < length && hasMoreInstances()) {
+			PendingInstance oldest = pendingInstances.peek();
+			if (oldest == null || oldest.anonymizedInstance == null) {
+				advance(oldest);
+			}
+			oldest = pendingInstances.peek();
+			while (oldest != null && oldest.anonymizedInstance != null && count < length) {
+				pendingInstances.poll();
+				pairs[offset + count++] = new InstancePair(oldest.originalInstance, oldest.anonymizedInstance);
+				oldest = pendingInstances.peek();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Takes a step towards releasing the oldest pending instance, whose micro-cluster is not
+	 * aggregated yet: reads another instance or, if the buffer is full or the stream ended, merges
+	 * its micro-cluster.
+	 *
+	 * @param oldest the oldest pending instance, or {@code null} if there is none
+	 */
+	private void advance(PendingInstance oldest) {
+		if (oldest != null && pendingInstances.size() >= bufferSize && microClusters.size() > 1) {
+			//the buffer is full: the oldest instance can not wait for more neighbours
+			mergeMicroCluster(oldest.microCluster);
+		}
+		else if (inputStream.hasMoreInstances()) {
+			addInstance(nextInputInstance());
+		}
+		else if (oldest != null) {
+			//end of the stream: the instances left can only be aggregated together
+			if (microClusters.size() > 1) {
+				mergeMicroCluster(oldest.microCluster);
+			}
+			else {
+				aggregateMicroCluster(oldest.microCluster);
+			}
+		}
+	}
+
+	/** Adds an instance to the nearest micro-cluster (or to a new one), aggregating it once full */
+	private void addInstance(Instance originalInstance) {
+		if (numericAttributes == null) {
+			classifyAttributes(getHeader());
+		}
+		LatencyRecorder latencyRecorder = getLatencyRecorder();
+		long startTime = latencyRecorder != null ? System.nanoTime() : 0;
+
+		final double[] values = originalInstance.toDoubleArray();
+		PendingInstance pending = new PendingInstance(originalInstance);
+		pendingInstances.add(pending);
+
+		//search the nearest open micro-cluster
+		MicroCluster nearest = null;
+		double nearestDistance = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < microClusters.size(); ++i) {
+			MicroCluster microCluster = microClusters.get(i);
+			final double distance = microCluster.distance(values);
+			if (distance < nearestDistance) {
+				nearest = microCluster;
+				nearestDistance = distance;
+			}
+		}
+
+		//join it, unless the instance is beyond its boundary and there is room for another one
+		if (nearest == null || (microClusters.size() < maxMicroClustersOption.getValue() &&
+				nearestDistance > getMaximalBoundary(nearest))) {
+			nearest = new MicroCluster(this);
+			microClusters.add(nearest);
+		}
+		nearest.add(pending, values);
+		if (latencyRecorder != null) {
+			latencyRecorder.recordSince(Stage.SEARCH, startTime);
+		}
+
+		if (nearest.members.size() >= kAnonymityValueOption.getValue()) {
+			aggregateMicroCluster(nearest);
+		}
+	}
+
+	/**
+	 * Computes the maximal boundary of the micro-cluster: a multiple of its RMS deviation or, for a
+	 * micro-cluster with a single instance, the distance to the nearest other micro-cluster.
+	 */
+	private double getMaximalBoundary(MicroCluster microCluster) {
+		if (microCluster.members.size() > 1) {
+			return boundaryFactorOption.getValue() * microCluster.getDeviation();
+		}
+		double boundary = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < microClusters.size(); ++i) {
+			MicroCluster other = microClusters.get(i);
+			if (other != microCluster) {
+				boundary = Math.min(boundary, microCluster.distance(other.centroid));
+			}
+		}
+		return boundary;
+	}
+
+	/** Merges the micro-cluster into the nearest other one, aggregating it if it gets full */
+	private void mergeMicroCluster(MicroCluster microCluster) {
+		MicroCluster nearest = null;
+		double nearestDistance = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < microClusters.size(); ++i) {
+			MicroCluster other = microClusters.get(i);
+			if (other != microCluster) {
+				final double distance = other.distance(microCluster.centroid);
+				if (distance < nearestDistance) {
+					nearest = other;
+					nearestDistance = distance;
+				}
+			}
+		}
+		removeMicroCluster(microCluster);
+		nearest.merge(microCluster);
+		if (nearest.members.size() >= kAnonymityValueOption.getValue()) {
+			aggregateMicroCluster(nearest);
+		}
+	}
+
+	/** Aggregates the instances of the micro-cluster, which is closed */
+	private void aggregateMicroCluster(MicroCluster microCluster) {
+		LatencyRecorder latencyRecorder = getLatencyRecorder();
+		long startTime = latencyRecorder != null ? System.nanoTime() : 0;
+
+		removeMicroCluster(microCluster);
+		for (PendingInstance member : microCluster.members) {
+			//the aggregated values of the quasi-identifiers, the other ones (and the class) of the instance
+			double[] values = member.originalInstance.toDoubleArray();
+			for (int attributeIndex : numericAttributes) {
+				values[attributeIndex] = microCluster.centroid[attributeIndex];
+			}
+			for (int attributeIndex : nominalAttributes) {
+				values[attributeIndex] = microCluster.centroid[attributeIndex];
+			}
+			Instance anonymizedInstance = new DenseInstance(member.originalInstance.weight(), values);
+			anonymizedInstance.setDataset(member.originalInstance.dataset());
+			member.anonymizedInstance = anonymizedInstance;
+			member.microCluster = null;
+		}
+		if (latencyRecorder != null) {
+			latencyRecorder.recordSince(Stage.PERTURBATION, startTime);
+		}
+	}
+
+	/** Removes an open micro-cluster, moving the last one to its place */
+	private void removeMicroCluster(MicroCluster microCluster) {
+		final int last = microClusters.size() - 1;
+		final int index = microClusters.indexOf(microCluster);
+		microClusters.set(index, microClusters.get(last));
+		microClusters.remove(last);
+	}
+
+	/** Splits the quasi-identifiers of the header (see {@link #isQuasiIdentifier(int)}) in numeric and
+	 * nominal ones */
+	private void classifyAttributes(InstancesHeader header) {
+		int numeric = 0;
+		int nominal = 0;
+		for (int i = 0; i < header.numAttributes(); ++i) {
+			if (isQuasiIdentifier(i)) {
+				if (header.attribute(i).isNumeric()) {
+					++numeric;
+				}
+				else if (header.attribute(i).isNominal()) {
+					++nominal;
+				}
+			}
+		}
+		numericAttributes = new int[numeric];
+		nominalAttributes = new int[nominal];
+		numeric = 0;
+		nominal = 0;
+		for (int i = 0; i < header.numAttributes(); ++i) {
+			if (isQuasiIdentifier(i)) {
+				if (header.attribute(i).isNumeric()) {
+					numericAttributes[numeric++] = i;
+				}
+				else if (header.attribute(i).isNominal()) {
+					nominalAttributes[nominal++] = i;
+				}
+			}
+		}
+	}
+
+	/** An instance read by the filter, until it is released */
+	private static final class PendingInstance implements Serializable {
+
+		/** Serializable */
+		private static final long serialVersionUID = 4771085232915802658L;
+
+		private final Instance originalInstance;
+
+		/** The aggregated instance, or {@code null} until its micro-cluster is aggregated */
+		private Instance anonymizedInstance;
+
+		/** The open micro-cluster of the instance, or {@code null} once aggregated */
+		private MicroCluster microCluster;
+
+		public PendingInstance(Instance originalInstance) {
+			this.originalInstance = originalInstance;
+			this.anonymizedInstance = null;
+			this.microCluster = null;
+		}
+
+	}
+
+	/**
+	 * An open micro-cluster: its instances, the sums of their numeric values and the counts of
+	 * their nominal values, which give its centroid (the mean of the numeric values and the mode of
+	 * the nominal ones).
+	 */
+	private static final class MicroCluster implements Serializable {
+
+		/** Serializable */
+		private static final long serialVersionUID = -3650950911208735338L;
+
+		private final int[] numericAttributes;
+		private final int[] nominalAttributes;
+
+		private final List<PendingInstance> members;
+
+		/** The linear and square sums of the values of the instances, by attribute */
+		private final double[] linearSum;
+		private final double[] squareSum;
+
+		/** The counts of the nominal values of the instances (by attribute and value) */
+		private final int[][] nominalCounts;
+
+		/** The centroid, with the index of the mode of each nominal attribute */
+		private final double[] centroid;
+
+		public MicroCluster(MicroClusterAggregationFilter filter) {
+			final InstancesHeader header = filter.getHeader();
+			this.numericAttributes = filter.numericAttributes;
+			this.nominalAttributes = filter.nominalAttributes;
+			this.members = new ArrayList<PendingInstance>(filter.kAnonymityValueOption.getValue());
+			this.linearSum = new double[header.numAttributes()];
+			this.squareSum = new double[header.numAttributes()];
+			this.nominalCounts = new int[header.numAttributes()][];
+			for (int attributeIndex : nominalAttributes) {
+				nominalCounts[attributeIndex] = new int[header.attribute(attributeIndex).numValues()];
+			}
+			this.centroid = new double[header.numAttributes()];
+		}
+
+		/** Adds an instance, with the given values, updating the centroid */
+		public void add(PendingInstance pending, double[] values) {
+			members.add(pending);
+			pending.microCluster = this;
+			for (int attributeIndex : numericAttributes) {
+				final double value = values[attributeIndex];
+				linearSum[attributeIndex] += value;
+				squareSum[attributeIndex] += value * value;
+				centroid[attributeIndex] = linearSum[attributeIndex] / members.size();
+			}
+			for (int attributeIndex : nominalAttributes) {
+				final int[] counts = nominalCounts[attributeIndex];
+				final int value = (int) values[attributeIndex];
+				if (++counts[value] > counts[(int) centroid[attributeIndex]]) {
+					centroid[attributeIndex] = value;
+				}
+			}
+		}
+
+		/** Adds the instances of another micro-cluster, updating the centroid */
+		public void merge(MicroCluster other) {
+			for (PendingInstance pending : other.members) {
+				members.add(pending);
+				pending.microCluster = this;
+			}
+			for (int attributeIndex : numericAttributes) {
+				linearSum[attributeIndex] += other.linearSum[attributeIndex];
+				squareSum[attributeIndex] += other.squareSum[attributeIndex];
+				centroid[attributeIndex] = linearSum[attributeIndex] / members.size();
+			}
+			for (int attributeIndex : nominalAttributes) {
+				final int[] counts = nominalCounts[attributeIndex];
+				int mode = 0;
+				for (int value = 0; value < counts.length; ++value) {
+					counts[value] += other.nominalCounts[attributeIndex][value];
+					if (counts[value] > counts[mode]) {
+						mode = value;
+					}
+				}
+				centroid[attributeIndex] = mode;
+			}
+		}
+
+		/**
+		 * Computes the distance between the centroid and the given values, as
+		 * {@link moa.streams.filters.privacy.utils.Metrics#distance(Instance, Instance)} does.
+		 */
+		public double distance(double[] values) {
+			double dist = 0.0;
+			for (int attributeIndex : numericAttributes) {
+				final double diff = values[attributeIndex] - centroid[attributeIndex];
+				dist += diff * diff;
+			}
+			for (int attributeIndex : nominalAttributes) {
+				if ((int) values[attributeIndex] != (int) centroid[attributeIndex]) {
+					dist += 1.0;
+				}
+			}
+			return Math.sqrt(dist);
+		}
+
+		/**
+		 * Computes the RMS deviation of the instances from the centroid: the square root of the sum
+		 * of the variances of the numeric values and of the fractions of nominal values other than
+		 * the mode (the mean distance they add).
+		 */
+		public double getDeviation() {
+			final int n = members.size();
+			double deviation = 0.0;
+			for (int attributeIndex : numericAttributes) {
+				final double mean = centroid[attributeIndex];
+				deviation += Math.max(0.0, squareSum[attributeIndex] / n - mean * mean);
+			}
+			for (int attributeIndex : nominalAttributes) {
+				deviation += 1.0 - (double) nominalCounts[attributeIndex][(int) centroid[attributeIndex]] / n;
+			}
+			return Math.sqrt(deviation);
+		}
+
+	}
+
+}
@@ -1,15 +1,24 @@
 package moa.streams.filters.privacy.noiseaddition;
 
+import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Random;
 
 import moa.core.AutoExpandVector;
 import moa.core.DoubleVector;
 import moa.core.GaussianEstimator;
+import moa.options.FlagOption;
 import moa.options.FloatOption;
 import moa.options.IntOption;
 import moa.streams.filters.privacy.InstancePair;
 import moa.streams.filters.privacy.PrivacyFilter;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder.Stage;
+import moa.streams.filters.privacy.utils.RandomStreams;
+import weka.core.DenseInstance;
 import weka.core.Instance;
+import weka.core.SparseInstance;
+import weka.core.Utils;
 
 /**
  * Filter for adding random noise to examples in a stream.
@@ -18,8 +27,8 @@ public class NoiseAdditionFilter extends PrivacyFilter {
 	
 	private static final long serialVersionUID = 94085693669724686L;
 	
-	/** The pseudo-random generator */
-	private Random randomGenerator;
+	/** The pseudo-random generators of the attributes */
+	private RandomStreams randomStreams;
 	
 	/** Random generator seed */
 	public IntOption randomSeedOption = new IntOption("randomSeed", 'r', 
@@ -33,9 +42,20 @@ public class NoiseAdditionFilter extends PrivacyFilter {
 	public FloatOption attributeNoiseFractionOption =  new FloatOption("attributeNoiseFraction", 'a', 
 			"The fraction of attribute values to distort.", 0.1f, 0.0f, 1.0f);
 	
+	/** Whether to distort only the values stored by sparse instances */
+	public FlagOption sparseNoiseOption = new FlagOption("sparseNoise", 'z',
+			"Distort only the values stored by sparse instances, which stay sparse (their zeros are kept).");
+	
 	/** Observers of attributes values */
 	private AutoExpandVector<Object> attValueObservers;
 	
+	/** The total weight of the sparse instances distorted so far (see {@link #sparseNoiseOption}) */
+	private double sparseWeight;
+	
+	/** The value of {@link #sparseWeight} up to which each attribute has been observed: the
+	 * instances seen since then did not store the attribute, and are observed as zeros at once */
+	private DoubleVector sparseObservedWeights;
+	
 	
 	public NoiseAdditionFilter() {
 		this(31415921);
@@ -62,8 +82,10 @@ public class NoiseAdditionFilter extends PrivacyFilter {
 		this.classNoiseFractionOption.setValue(classNoiseFraction);
 		this.attributeNoiseFractionOption.setValue(attributeNoiseFraction);
 		this.randomSeedOption.setValue(randomSeed);
-		this.randomGenerator = new Random(randomSeed);
+		this.randomStreams = new RandomStreams(randomSeed);
 		this.attValueObservers = new AutoExpandVector<Object>();
+		this.sparseWeight = 0.0;
+		this.sparseObservedWeights = new DoubleVector();
 	}
 
 	@Override
@@ -73,8 +95,10 @@ public class NoiseAdditionFilter extends PrivacyFilter {
 	
 	@Override
 	public void prepareAnonymizationFilterForUse() {
-		this.randomGenerator = new Random(randomSeedOption.getValue());
+		this.randomStreams = newRandomStreams(randomSeedOption.getValue());
 		this.attValueObservers = new AutoExpandVector<Object>();
+		this.sparseWeight = 0.0;
+		this.sparseObservedWeights = new DoubleVector();
 	}
 	
 	@Override
@@ -82,62 +106,197 @@ public class NoiseAdditionFilter extends PrivacyFilter {
 		prepareAnonymizationFilterForUse();
 	}
 	
+	/** The observers of the attribute values, which the noise is scaled with: the filter buffers
+	 * no instance */
+	@Override
+	protected Serializable exportWarmStartState() {
+		return new Object[] { attValueObservers, sparseWeight, sparseObservedWeights };
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void importWarmStartState(Serializable state) {
+		Object[] observers = (Object[]) state;
+		this.attValueObservers = (AutoExpandVector<Object>) observers[0];
+		this.sparseWeight = (Double) observers[1];
+		this.sparseObservedWeights = (DoubleVector) observers[2];
+	}
+	
 	@Override
 	public InstancePair nextAnonymizedInstancePair() {
-		Instance originalInstance = (Instance) inputStream.nextInstance().copy();
+		Instance originalInstance = nextInputInstance();
 		Instance anonymizedInstance = distortInstance(originalInstance);
 		
 		InstancePair instancePair = new InstancePair(originalInstance, anonymizedInstance);
 		return instancePair;
 	}
 	
+	@Override
+	public int nextAnonymizedInstancePairs(InstancePair[] pairs, int offset, int length) {
+		int count = 0;
+		while (count < length && inputStream.hasMoreInstances()) {
+			Instance originalInstance = nextInputInstance();
+			pairs[offset + count++] = new InstancePair(originalInstance, distortInstance(originalInstance));
+		}
+		return count;
+	}
+	
+	/**
+	 * Builds a distorted copy of the instance. Its values are distorted in an array, as modifying
+	 * the values of an instance one by one copies all of them each time, which is why the instance
+	 * is never distorted in place.
+	 */
 	private Instance distortInstance(final Instance originalInstance) {
-		//copy the instance
-		Instance anonymizedInstance = (Instance) originalInstance.copy();
-		
-		//for each attribute, add its corresponding noise
-		for (int i = 0; i < anonymizedInstance.numAttributes(); i++) {
+		LatencyRecorder latencyRecorder = getLatencyRecorder();
+		long startTime = latencyRecorder != null ? System.nanoTime() : 0;
+		Instance anonymizedInstance;
+		if (sparseNoiseOption.isSet() && originalInstance instanceof SparseInstance) {
+			anonymizedInstance = distortSparseInstance(originalInstance);
+		}
+		else {
+			//copy the values of the instance
+			double[] values = originalInstance.toDoubleArray();
 			
-			//depending on whether it is a class attribute
-			double noiseFraction = 
-            		(i == anonymizedInstance.classIndex()) ? 
-            			classNoiseFractionOption.getValue() : 
-            				attributeNoiseFractionOption.getValue();
+			//for each attribute (the quasi-identifiers and the class), add its corresponding noise
+			final int classIndex = originalInstance.classIndex();
+			for (int i = 0; i < values.length; i++) {
+				if (i == classIndex || isQuasiIdentifier(i)) {
+					values[i] = distortValue(originalInstance, i, values[i]);
+				}
+			}
+			anonymizedInstance = new DenseInstance(originalInstance.weight(), values);
+			anonymizedInstance.setDataset(originalInstance.dataset());
+		}
+		if (latencyRecorder != null) {
+			latencyRecorder.recordSince(Stage.PERTURBATION, startTime);
+		}
+		return anonymizedInstance;
+	}
+	
+	/**
+	 * Distorts the values stored by a sparse instance (and its class value, stored or not), leaving
+	 * its zeros and the attributes other than the quasi-identifiers as they are. The observers are
+	 * given the zeros of the attributes as if they had been observed one by one, so that the noise
+	 * follows the same deviations.
+	 */
+	private Instance distortSparseInstance(final Instance originalInstance) {
+		//the stored values, and the class value even if it is not stored
+		final int classIndex = originalInstance.classIndex();
+		final int numValues = originalInstance.numValues();
+		double[] values = new double[numValues + 1];
+		int[] indices = new int[numValues + 1];
+		int stored = 0;
+		boolean classPending = classIndex >= 0;
+		for (int p = 0; p < numValues; ++p) {
+			final int index = originalInstance.index(p);
+			if (classPending && index >= classIndex) {
+				classPending = false;
+				if (index > classIndex) {
+					indices[stored] = classIndex;
+					values[stored++] = 0.0;
+				}
+			}
+			indices[stored] = index;
+			values[stored++] = originalInstance.valueSparse(p);
+		}
+		if (classPending) {
+			indices[stored] = classIndex;
+			values[stored++] = 0.0;
+		}
+		
+		int count = 0;
+		for (int v = 0; v < stored; ++v) {
+			final int index = indices[v];
+			if (index != classIndex && !isQuasiIdentifier(index)) {
+				//the other attributes pass through untouched
+				values[count] = values[v];
+				indices[count++] = index;
+				continue;
+			}
+			//the instances seen since the last time the attribute was stored had it zero
+			final double pendingWeight = sparseWeight - sparseObservedWeights.getValue(index);
+			if (pendingWeight > 0.0) {
+				if (originalInstance.attribute(index).isNominal()) {
+					getNominalObserver(index).addToValue(0, pendingWeight);
+				}
+				else {
+					getNumericObserver(index).addObservation(0.0, pendingWeight);
+				}
+			}
+			sparseObservedWeights.setValue(index, sparseWeight + originalInstance.weight());
 			
-			//and depending on whether it is numeric or nominal
-            if (anonymizedInstance.attribute(i).isNominal()) {
-                DoubleVector observer = (DoubleVector) attValueObservers.get(i);
-                if (observer == null) {
-                    observer = new DoubleVector();
-                    attValueObservers.set(i, observer);
-                }
-                int originalValue = (int) anonymizedInstance.value(i);
-                if (!anonymizedInstance.isMissing(i)) {
-                    observer.addToValue(originalValue, anonymizedInstance.weight());
-                }
-                if ((randomGenerator.nextDouble() < noiseFraction)
-                        && (observer.numNonZeroEntries() > 1)) {
-                    do {
-                        anonymizedInstance.setValue(i, randomGenerator.nextInt(observer.numValues()));
-                    }
-                    while (((int) anonymizedInstance.value(i) == originalValue)
-                            || (observer.getValue((int) anonymizedInstance.value(i)) == 0.0));
-                }
+			final double value = distortValue(originalInstance, index, values[v]);
+			if (value != 0.0) {
+				values[count] = value;
+				indices[count++] = index;
+			}
+		}
+		sparseWeight += originalInstance.weight();
+		
+		Instance anonymizedInstance = new SparseInstance(originalInstance.weight(),
+				Arrays.copyOf(values, count), Arrays.copyOf(indices, count), originalInstance.numAttributes());
+		anonymizedInstance.setDataset(originalInstance.dataset());
+		return anonymizedInstance;
+	}
+	
+	/**
+	 * Distorts a value of an attribute of the instance, observing it first.
+	 * 
+	 * @param instance the instance, which gives the attributes and the weight
+	 * @param i the index of the attribute
+	 * @param value the value of the attribute
+	 * @return the distorted value
+	 */
+	private double distortValue(final Instance instance, final int i, double value) {
+		//depending on whether it is a class attribute
+		double noiseFraction = 
+        		(i == instance.classIndex()) ? 
+        			classNoiseFractionOption.getValue() : 
+        				attributeNoiseFractionOption.getValue();
+		
+		//the numbers drawn for the attribute (whether it is stored or not, for sparse instances)
+		final Random randomGenerator = randomStreams.get(i);
+		
+		//and depending on whether it is numeric or nominal
+        if (instance.attribute(i).isNominal()) {
+            DoubleVector observer = getNominalObserver(i);
+            int originalValue = (int) value;
+            if (!Utils.isMissingValue(value)) {
+                observer.addToValue(originalValue, instance.weight());
             }
-            else {
-                GaussianEstimator observer = (GaussianEstimator) attValueObservers.get(i);
-                if (observer == null) {
-                    observer = new GaussianEstimator();
-                    attValueObservers.set(i, observer);
+            if ((randomGenerator.nextDouble() < noiseFraction)
+                    && (observer.numNonZeroEntries() > 1)) {
+                do {
+                    value = randomGenerator.nextInt(observer.numValues());
                 }
-                observer.addObservation(anonymizedInstance.value(i), anonymizedInstance.weight());
-                anonymizedInstance
-                	.setValue(i, 
-                			  anonymizedInstance.value(i) 
-                			  	+ randomGenerator.nextGaussian() * observer.getStdDev() * noiseFraction);
+                while (((int) value == originalValue)
+                        || (observer.getValue((int) value) == 0.0));
             }
+            return value;
         }
-		return anonymizedInstance;
+        else {
+            GaussianEstimator observer = getNumericObserver(i);
+            observer.addObservation(value, instance.weight());
+            return value + randomGenerator.nextGaussian() * observer.getStdDev() * noiseFraction;
+        }
+	}
+	
+	private DoubleVector getNominalObserver(final int i) {
+		DoubleVector observer = (DoubleVector) attValueObservers.get(i);
+		if (observer == null) {
+			observer = new DoubleVector();
+			attValueObservers.set(i, observer);
+		}
+		return observer;
+	}
+	
+	private GaussianEstimator getNumericObserver(final int i) {
+		GaussianEstimator observer = (GaussianEstimator) attValueObservers.get(i);
+		if (observer == null) {
+			observer = new GaussianEstimator();
+			attValueObservers.set(i, observer);
+		}
+		return observer;
 	}
 
 	@Override
@@ -1,17 +1,25 @@
 package moa.streams.filters.privacy.rankswapping;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Random;
 import java.util.Vector;
 
+import moa.core.InstancesHeader;
 import moa.options.IntOption;
+import moa.options.MultiChoiceOption;
+import moa.options.StringOption;
 import moa.streams.filters.privacy.InstancePair;
 import moa.streams.filters.privacy.PrivacyFilter;
+import moa.streams.filters.privacy.buffer.InstanceBuffer;
+import moa.streams.filters.privacy.buffer.ResizableBuffer;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder.Stage;
+import moa.streams.filters.privacy.utils.RandomStreams;
 import weka.core.Instance;
 
-public class RankSwappingFilter extends PrivacyFilter {
+public class RankSwappingFilter extends PrivacyFilter implements ResizableBuffer {
 	
 	private static final long serialVersionUID = -1297345312371342588L;
 
@@ -26,19 +34,35 @@ public class RankSwappingFilter extends PrivacyFilter {
 	public IntOption randomSeedOption = new IntOption("randomSeed", 'r', 
 			"The pseudo-random generator seed.", 3141592, Integer.MIN_VALUE, Integer.MAX_VALUE);
 	
-	private Vector<Instance> anonymizedInstancesBuffer;
-	private Vector<Instance> instancesBuffer;
+	/** The storage of the buffers of instances (see {@link InstanceBuffer}) */
+	public MultiChoiceOption bufferStorageOption = InstanceBuffer.newStorageOption();
+	
+	/** The directory of the files of the buffers, for the tiered storage */
+	public StringOption spillDirectoryOption = InstanceBuffer.newSpillDirectoryOption();
+	
+	/** The number of instances of each segment of the buffers, for the tiered storage */
+	public IntOption segmentSizeOption = InstanceBuffer.newSegmentSizeOption();
+	
+	/** The number of segments of the buffers kept in memory, for the tiered storage */
+	public IntOption memorySegmentsOption = InstanceBuffer.newMemorySegmentsOption();
+	
+	private InstanceBuffer anonymizedInstancesBuffer;
+	private InstanceBuffer instancesBuffer;
 	private Vector<Vector<Boolean>> alreadySwappedValue;
 	private boolean startToProcess;
-	private Random randomGenerator;
+	private int bufferSize;
+	private RandomStreams randomStreams;
 
 	@Override
 	public void prepareAnonymizationFilterForUse() {
 		this.startToProcess = false;
-		this.randomGenerator = new Random(randomSeedOption.getValue());
+		this.bufferSize = bufferSizeOption.getValue();
+		this.randomStreams = newRandomStreams(randomSeedOption.getValue());
 		this.alreadySwappedValue = new Vector<Vector<Boolean>>();
-		this.instancesBuffer = new Vector<Instance>();
-		this.anonymizedInstancesBuffer = new Vector<Instance>();
+		this.instancesBuffer = InstanceBuffer.create(bufferStorageOption.getChosenIndex(),
+				spillDirectoryOption.getValue(), segmentSizeOption.getValue(), memorySegmentsOption.getValue());
+		this.anonymizedInstancesBuffer = InstanceBuffer.create(bufferStorageOption.getChosenIndex(),
+				spillDirectoryOption.getValue(), segmentSizeOption.getValue(), memorySegmentsOption.getValue());
 	}
 
 	@Override
@@ -54,16 +78,11 @@ public class RankSwappingFilter extends PrivacyFilter {
 	
 	@Override
 	public InstancePair nextAnonymizedInstancePair() {
-		//get the next instance from the stream
-		fetchNextStreamInstance();
-		
-		//check whether to begin processing the buffer
-		if (instancesBuffer.size() == bufferSizeOption.getValue()) {
-			startToProcess = true;
-		}
+		//get the next instance from the stream and check whether to begin processing the buffer
+		fetchAndCheckProcessing();
 		
 		//process or return null
-		if (startToProcess){
+		if (startToProcess && instancesBuffer.size() > 0){
 			//return the next anonymized instance
 			return processNextInstance();
 		}
@@ -73,17 +92,42 @@ public class RankSwappingFilter extends PrivacyFilter {
 		}
 	}
 	
+	/** Anonymizes the block as {@link #nextAnonymizedInstancePair()} does, without its null pairs */
+	@Override
+	public int nextAnonymizedInstancePairs(InstancePair[] pairs, int offset, int length) {
+		int count = 0;
+		while (count < length && hasMoreInstances()) {
+			fetchAndCheckProcessing();
+			if (startToProcess && instancesBuffer.size() > 0) {
+				pairs[offset + count++] = processNextInstance();
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Gets the next instance from the stream, unless the buffer holds more instances than its
+	 * (shrunk) size, and starts processing the buffer once it is full or once the stream ends.
+	 */
+	private void fetchAndCheckProcessing() {
+		if (instancesBuffer.size() < bufferSize) {
+			fetchNextStreamInstance();
+		}
+		if (instancesBuffer.size() >= bufferSize || !inputStream.hasMoreInstances()) {
+			startToProcess = true;
+		}
+	}
+	
 	private void fetchNextStreamInstance() {
 		//fetch newer instances from the input stream
 		if (this.inputStream.hasMoreInstances()){
 			//perform 2 copies, one for each instance buffer
-			Instance originalInstance = (Instance) this.inputStream.nextInstance().copy();		
-			Instance anonymizableInstance = (Instance) originalInstance.copy();
+			Instance originalInstance = nextInputInstance();		
 			
 			//add instances to buffer and boolean flag indicating that it is not
 			// yet anonymized
 			instancesBuffer.add(originalInstance);
-			anonymizedInstancesBuffer.add(anonymizableInstance);
+			anonymizedInstancesBuffer.addCopy(originalInstance);
 			Vector<Boolean> swapped = new Vector<Boolean>(originalInstance.numAttributes() - 1);
 			for (int i = 0; i < originalInstance.numAttributes(); ++i) {
 				swapped.add(false);
@@ -94,25 +138,34 @@ public class RankSwappingFilter extends PrivacyFilter {
 	
 	private InstancePair processNextInstance() {
 		final int top = 0;
+		LatencyRecorder latencyRecorder = getLatencyRecorder();
 		
-		for (int i = 0; i < instancesBuffer.get(top).numAttributes(); ++i){
-			if (i != instancesBuffer.get(top).classIndex() && !alreadySwappedValue.get(top).get(i)){
+		final InstancesHeader header = getHeader();
+		
+		for (int i = 0; i < header.numAttributes(); ++i){
+			if (isQuasiIdentifier(i) && !alreadySwappedValue.get(top).get(i)){
+				long startTime = latencyRecorder != null ? System.nanoTime() : 0;
 				int instanceToSwapIndex = selectSwapForAttribute(i);
+				if (latencyRecorder != null) {
+					startTime = latencyRecorder.recordSince(Stage.SEARCH, startTime);
+				}
 				alreadySwappedValue.get(top).set(i, true);
 				alreadySwappedValue.get(instanceToSwapIndex).set(i, true);
 				
-				double firstValue = instancesBuffer.get(top).value(i);
-				double secondValue = instancesBuffer.get(instanceToSwapIndex).value(i);
-				
-				anonymizedInstancesBuffer.get(top).setValue(i, secondValue);
-				anonymizedInstancesBuffer.get(instanceToSwapIndex).setValue(i, firstValue);
+				double firstValue = instancesBuffer.value(top, i);
+				double secondValue = instancesBuffer.value(instanceToSwapIndex, i);
 				
+				anonymizedInstancesBuffer.setValue(top, i, secondValue);
+				anonymizedInstancesBuffer.setValue(instanceToSwapIndex, i, firstValue);
+				if (latencyRecorder != null) {
+					latencyRecorder.recordSince(Stage.PERTURBATION, startTime);
+				}
 			}
 		}
 		alreadySwappedValue.remove(top);
 		InstancePair instancePair = 
-				new InstancePair(instancesBuffer.remove(top), 
-						         anonymizedInstancesBuffer.remove(top));
+				new InstancePair(instancesBuffer.removeFirst(), 
+						         anonymizedInstancesBuffer.removeFirst());
 		return instancePair;
 	}
 
@@ -124,7 +177,7 @@ public class RankSwappingFilter extends PrivacyFilter {
 			if (!alreadySwappedValue.get(index).get(attributeIndex)) {
 				IndexValuePair pair = 
 					new IndexValuePair(index, 
-									   instancesBuffer.get(index).value(attributeIndex));
+									   instancesBuffer.value(index, attributeIndex));
 				list.add(pair);
 			}
 		}
@@ -146,7 +199,7 @@ public class RankSwappingFilter extends PrivacyFilter {
 			return list.get(indexToStart).index;
 		}
 		
-		double randomVal = randomGenerator.nextDouble();	
+		double randomVal = randomStreams.get(attributeIndex).nextDouble();
 		
 		double unifProb = 1.0 / finalWindow;
 		int stepRandomlyChoosen = (int) ((randomVal / unifProb) + 1);
@@ -154,9 +207,79 @@ public class RankSwappingFilter extends PrivacyFilter {
 		return list.get(selectedIndex).index;
 	}
 
+	@Override
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+	/** A swap needs at least two instances */
+	@Override
+	public int getMinimumBufferSize() {
+		return 2;
+	}
+	
+	@Override
+	public void setBufferSize(int bufferSize) {
+		if (bufferSize < getMinimumBufferSize()) {
+			throw new IllegalArgumentException("The buffer must hold at least two instances: " + bufferSize);
+		}
+		if (bufferSize > this.bufferSize) {
+			//fill the larger buffer before releasing any other instance
+			startToProcess = false;
+		}
+		this.bufferSize = bufferSize;
+	}
+
+	@Override
+	public int getBufferOccupancy() {
+		return instancesBuffer.size();
+	}
+	
+	@Override
+	public long getOffHeapBytes() {
+		return instancesBuffer.getOffHeapBytes() + anonymizedInstancesBuffer.getOffHeapBytes();
+	}
+	
+	/** The buffered instances (the population the values are ranked in), with the values already
+	 * swapped */
+	@Override
+	protected Serializable exportWarmStartState() {
+		return new WarmStartState(instancesBuffer.getInstances(), 
+								  anonymizedInstancesBuffer.getInstances(), alreadySwappedValue);
+	}
+	
+	@Override
+	protected void importWarmStartState(Serializable state) {
+		WarmStartState warmStart = (WarmStartState) state;
+		for (int i = 0; i < warmStart.swapped.size(); ++i) {
+			instancesBuffer.add(warmStart.originalInstances.get(i));
+			anonymizedInstancesBuffer.add(warmStart.anonymizedInstances.get(i));
+			alreadySwappedValue.add(warmStart.swapped.get(i));
+		}
+	}
+	
 	@Override
 	public boolean hasMoreInstances() {
 		return inputStream.hasMoreInstances() || instancesBuffer.size() > 0;
 	}
-
-}
\ No newline at end of file
+	
+	/** The state of the filter carried over to a later run (see {@link #exportWarmStartState()}) */
+	private static final class WarmStartState implements Serializable {
+		
+		/** Serializable */
+		private static final long serialVersionUID = -5106618932251878395L;
+		
+		private final List<Instance> originalInstances;
+		private final List<Instance> anonymizedInstances;
+		private final Vector<Vector<Boolean>> swapped;
+		
+		public WarmStartState(List<Instance> originalInstances, List<Instance> anonymizedInstances,
+				Vector<Vector<Boolean>> swapped) {
+			this.originalInstances = originalInstances;
+			this.anonymizedInstances = anonymizedInstances;
+			this.swapped = swapped;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,47 @@
+package moa.streams.filters.privacy.telemetry;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of an estimator, updated by the thread that runs its privacy filter (see
+ * {@link PrivacyFilterTelemetry}) and read by any thread through JMX.
+ */
+public class EstimatorTelemetry implements EstimatorTelemetryMXBean {
+
+	private final AtomicLong estimations = new AtomicLong();
+
+	/** The bits of the current value, as a {@code double} */
+	private final AtomicLong currentValue = new AtomicLong(Double.doubleToRawLongBits(Double.NaN));
+
+	private final AtomicLong estimationTimeNanos = new AtomicLong();
+
+	/**
+	 * Records a block of estimations. It must only be called by the thread running the filter.
+	 *
+	 * @param count the number of instance pairs evaluated
+	 * @param nanos the time spent evaluating them
+	 * @param value the estimation after evaluating them
+	 */
+	public void estimationsPerformed(int count, long nanos, double value) {
+		//single writer: the lazy sets publish the values without a full memory barrier
+		estimations.lazySet(estimations.get() + count);
+		estimationTimeNanos.lazySet(estimationTimeNanos.get() + nanos);
+		currentValue.lazySet(Double.doubleToRawLongBits(value));
+	}
+
+	@Override
+	public long getEstimations() {
+		return estimations.get();
+	}
+
+	@Override
+	public double getCurrentValue() {
+		return Double.longBitsToDouble(currentValue.get());
+	}
+
+	@Override
+	public long getEstimationTimeNanos() {
+		return estimationTimeNanos.get();
+	}
+
+}
@@ -0,0 +1,17 @@
+package moa.streams.filters.privacy.telemetry;
+
+/**
+ * Live telemetry of a running estimator, exposed through JMX (see {@link EstimatorTelemetry}).
+ */
+public interface EstimatorTelemetryMXBean {
+
+	/** @return the number of instance pairs evaluated by the estimator */
+	public long getEstimations();
+
+	/** @return the current estimation (the disclosure risk or the information loss) */
+	public double getCurrentValue();
+
+	/** @return the cumulative time spent by the estimator, in nanoseconds */
+	public long getEstimationTimeNanos();
+
+}
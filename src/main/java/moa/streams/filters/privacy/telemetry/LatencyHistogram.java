@@ -0,0 +1,127 @@
+package moa.streams.filters.privacy.telemetry;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of latencies (in nanoseconds) with log-scaled buckets: each power of two is split into
+ * {@value #SUB_BUCKETS} buckets of the same width, so that a recorded value is known with a relative
+ * error below {@code 1/}{@value #SUB_BUCKETS}, while the whole range of {@code long} values fits in
+ * less than a thousand counters. Recording a value is a few bit operations and an increment, with
+ * no allocation.
+ * <p>
+ * The histogram is not thread-safe: it must be recorded and read by the same thread (or handed
+ * over between threads with some other synchronization).
+ */
+public class LatencyHistogram {
+
+	/** The number of bits of the values that select their bucket within their power of two */
+	private static final int SUB_BUCKET_BITS = 4;
+
+	/** The number of buckets each power of two is split into */
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/** The number of buckets: the values below {@link #SUB_BUCKETS} have a bucket each */
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+
+	private long count;
+
+	private long max;
+
+	/**
+	 * Records a value. Negative values (which {@link System#nanoTime()} differences should never
+	 * be) are recorded as zero.
+	 *
+	 * @param value the value to record
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts[getBucketIndex(value)]++;
+		count++;
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	/**
+	 * Adds the values recorded by another histogram to this one.
+	 *
+	 * @param other the histogram to add
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; ++i) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		if (other.max > max) {
+			max = other.max;
+		}
+	}
+
+	/** Forgets all the recorded values */
+	public void reset() {
+		Arrays.fill(counts, 0);
+		count = 0;
+		max = 0;
+	}
+
+	/** @return the number of recorded values */
+	public long getCount() {
+		return count;
+	}
+
+	/** @return the highest recorded value, or {@code 0} if there is none */
+	public long getMax() {
+		return max;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of the recorded values fall. The result is
+	 * the upper bound of the bucket holding that value (but never above the maximum), so it is never
+	 * below the exact percentile.
+	 *
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the value at the percentile, or {@code 0} if no value was recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(count * Math.min(Math.max(percentile, 0.0), 100.0) / 100.0);
+		if (target < 1) {
+			target = 1;
+		}
+		long accumulated = 0;
+		for (int i = 0; i < BUCKETS; ++i) {
+			accumulated += counts[i];
+			if (accumulated >= target) {
+				return Math.min(getBucketUpperBound(i), max);
+			}
+		}
+		return max;
+	}
+
+	private static int getBucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value); //at least SUB_BUCKET_BITS
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+	}
+
+	private static long getBucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		long subBucket = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		long lowerBound = (SUB_BUCKETS + subBucket) << shift;
+		return lowerBound + ((1L << shift) - 1); //Long.MAX_VALUE for the last bucket
+	}
+
+}
@@ -0,0 +1,164 @@
+package moa.streams.filters.privacy.telemetry;
+
+import java.util.Locale;
+
+import moa.streams.filters.privacy.PrivacyFilter;
+
+/**
+ * Per-stage latency histograms of a running privacy filter (see
+ * {@link PrivacyFilter#setLatencyRecorder(LatencyRecorder)}). Each stage keeps two
+ * {@link LatencyHistogram}s: the one of the current interval, which is emitted and folded into the
+ * cumulative one by {@link #endInterval()}, and the cumulative one, for the final report.
+ * <p>
+ * The latencies are per operation: an instance read from the input stream ({@link Stage#FETCH}),
+ * an anonymization step of the filter ({@link Stage#SEARCH} and {@link Stage#PERTURBATION}, e.g.
+ * the search of a cluster and its aggregation, or the noise added to an instance), an anonymized
+ * instance evaluated by the estimators ({@link Stage#ESTIMATION}) or written to the output
+ * ({@link Stage#OUTPUT}).
+ * <p>
+ * As the histograms, the recorder must only be used by the thread that runs the filter.
+ */
+public class LatencyRecorder {
+
+	/** The stages of the anonymization pipeline */
+	public enum Stage {
+		FETCH("Fetch"), SEARCH("Search"), PERTURBATION("Perturbation"), ESTIMATION("Estimation"), OUTPUT("Output");
+
+		private final String label;
+
+		private Stage(String label) {
+			this.label = label;
+		}
+
+		/** @return the name of the stage in the reports */
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	/** The header of the CSV records of {@link #getIntervalCSVRecords(long)} */
+	public static final String CSV_HEADER = "Instances,Stage,Count,p50[ns],p99[ns],p999[ns],Max[ns]";
+
+	private final LatencyHistogram[] intervalHistograms;
+
+	private final LatencyHistogram[] cumulativeHistograms;
+
+	/** Whether each stage is recorded, indexed by its ordinal */
+	private final boolean[] recordedStages;
+
+	public LatencyRecorder() {
+		int stages = Stage.values().length;
+		this.intervalHistograms = new LatencyHistogram[stages];
+		this.cumulativeHistograms = new LatencyHistogram[stages];
+		this.recordedStages = new boolean[stages];
+		for (int i = 0; i < stages; ++i) {
+			intervalHistograms[i] = new LatencyHistogram();
+			cumulativeHistograms[i] = new LatencyHistogram();
+			recordedStages[i] = true;
+		}
+	}
+
+	private LatencyRecorder(LatencyRecorder recorder, Stage ignoredStage) {
+		this.intervalHistograms = recorder.intervalHistograms;
+		this.cumulativeHistograms = recorder.cumulativeHistograms;
+		this.recordedStages = recorder.recordedStages.clone();
+		this.recordedStages[ignoredStage.ordinal()] = false;
+	}
+
+	/**
+	 * Returns a recorder that shares the histograms of this one but ignores the latencies of the
+	 * given stage, e.g. for the filters nested in another one, whose input is already timed.
+	 *
+	 * @param stage the stage to ignore
+	 * @return the recorder
+	 */
+	public LatencyRecorder ignoring(Stage stage) {
+		return new LatencyRecorder(this, stage);
+	}
+
+	/**
+	 * Records the latency of an operation of the given stage.
+	 *
+	 * @param stage the stage
+	 * @param nanos the latency of the operation
+	 */
+	public void record(Stage stage, long nanos) {
+		if (recordedStages[stage.ordinal()]) {
+			intervalHistograms[stage.ordinal()].record(nanos);
+		}
+	}
+
+	/**
+	 * Records the latency of an operation of the given stage which started at the given time.
+	 *
+	 * @param stage the stage
+	 * @param startTime the start of the operation, as given by {@link System#nanoTime()}
+	 * @return the end of the operation (now), to be used as the start of the next one
+	 */
+	public long recordSince(Stage stage, long startTime) {
+		long now = System.nanoTime();
+		record(stage, now - startTime);
+		return now;
+	}
+
+	/** Folds the histograms of the current interval into the cumulative ones and resets them */
+	public void endInterval() {
+		for (int i = 0; i < intervalHistograms.length; ++i) {
+			cumulativeHistograms[i].add(intervalHistograms[i]);
+			intervalHistograms[i].reset();
+		}
+	}
+
+	/** @return the histogram of the current interval of the given stage */
+	public LatencyHistogram getIntervalHistogram(Stage stage) {
+		return intervalHistograms[stage.ordinal()];
+	}
+
+	/** @return the histogram of the given stage, up to the last {@link #endInterval()} */
+	public LatencyHistogram getCumulativeHistogram(Stage stage) {
+		return cumulativeHistograms[stage.ordinal()];
+	}
+
+	/**
+	 * Returns the CSV records (see {@link #CSV_HEADER}) of the stages with latencies in the current
+	 * interval, one line per stage.
+	 *
+	 * @param instances the number of instances processed so far
+	 * @return the records, each one ended with a new line
+	 */
+	public String getIntervalCSVRecords(long instances) {
+		StringBuilder records = new StringBuilder();
+		for (Stage stage : Stage.values()) {
+			LatencyHistogram histogram = getIntervalHistogram(stage);
+			if (histogram.getCount() > 0) {
+				records.append(instances).append(',').append(stage.getLabel()).append(',')
+					.append(histogram.getCount()).append(',')
+					.append(histogram.getValueAtPercentile(50.0)).append(',')
+					.append(histogram.getValueAtPercentile(99.0)).append(',')
+					.append(histogram.getValueAtPercentile(99.9)).append(',')
+					.append(histogram.getMax()).append('\n');
+			}
+		}
+		return records.toString();
+	}
+
+	/**
+	 * Appends the percentiles of the cumulative histograms to a report, one line per stage with
+	 * latencies.
+	 *
+	 * @param report the report
+	 */
+	public void appendCumulativeReport(StringBuilder report) {
+		for (Stage stage : Stage.values()) {
+			LatencyHistogram histogram = getCumulativeHistogram(stage);
+			if (histogram.getCount() > 0) {
+				report.append(String.format(Locale.US,
+						"  %-12s count=%d p50=%.3fus p99=%.3fus p999=%.3fus max=%.3fus\n",
+						stage.getLabel(), histogram.getCount(),
+						histogram.getValueAtPercentile(50.0) / 1e3, histogram.getValueAtPercentile(99.0) / 1e3,
+						histogram.getValueAtPercentile(99.9) / 1e3, histogram.getMax() / 1e3));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,239 @@
+package moa.streams.filters.privacy.telemetry;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import moa.streams.filters.privacy.PrivacyFilter;
+
+/**
+ * Counters of a running privacy filter (see {@link PrivacyFilter#setTelemetry(PrivacyFilterTelemetry)}),
+ * which can be registered as MBeans along with the ones of its estimators, under the
+ * {@value #JMX_DOMAIN} domain.
+ * <p>
+ * The counters are only updated by the thread that runs the filter, so that they need no locks:
+ * each one is an {@link AtomicLong} written through {@link AtomicLong#lazySet(long)}, which is
+ * a plain store on most platforms. Reading them from other threads never delays the filter.
+ */
+public class PrivacyFilterTelemetry implements PrivacyFilterTelemetryMXBean {
+
+	/** The JMX domain of the MBeans */
+	public static final String JMX_DOMAIN = "moa.ppsm";
+
+	/** The length of the window of the windowed throughput */
+	private static final long WINDOW_NANOS = 1000000000L;
+
+	/** The stages of the processing of the instances, timed separately */
+	public enum Stage {
+		ANONYMIZATION, ESTIMATION, OUTPUT
+	}
+
+	private final AtomicLong instancesIn = new AtomicLong();
+
+	private final AtomicLong instancesOut = new AtomicLong();
+
+	private final AtomicLong bufferOccupancy = new AtomicLong();
+
+	/** The bits of the windowed throughput, as a {@code double} */
+	private final AtomicLong windowedThroughput = new AtomicLong(Double.doubleToRawLongBits(0.0));
+
+	/** The cumulative time of each stage, indexed by its ordinal */
+	private final AtomicLong[] stageTimeNanos;
+
+	private final EstimatorTelemetry disclosureRiskTelemetry = new EstimatorTelemetry();
+
+	private final EstimatorTelemetry informationLossTelemetry = new EstimatorTelemetry();
+
+	/** The time the filter started at */
+	private final long startNanos;
+
+	/** The start of the current window and the instances released before it (writer only) */
+	private long windowStartNanos;
+	private long windowStartInstances;
+
+	/** The names under which the MBeans are registered, or {@code null} */
+	private ObjectName[] objectNames;
+
+	public PrivacyFilterTelemetry() {
+		this.stageTimeNanos = new AtomicLong[Stage.values().length];
+		for (int i = 0; i < stageTimeNanos.length; ++i) {
+			stageTimeNanos[i] = new AtomicLong();
+		}
+		this.startNanos = System.nanoTime();
+		this.windowStartNanos = startNanos;
+		this.windowStartInstances = 0;
+	}
+
+	/* **** Updates (only called by the thread running the filter) **** */
+
+	/** Records an instance read from the input stream of the filter */
+	public void instanceRead() {
+		instancesIn.lazySet(instancesIn.get() + 1);
+	}
+
+	/**
+	 * Records the instances released by the filter, and updates the windowed throughput once
+	 * the current window is complete.
+	 *
+	 * @param count the number of instances released
+	 * @param occupancy the number of instances held in the buffers of the filter
+	 */
+	public void instancesReleased(int count, int occupancy) {
+		long released = instancesOut.get() + count;
+		instancesOut.lazySet(released);
+		bufferOccupancy.lazySet(occupancy);
+		long now = System.nanoTime();
+		if (now - windowStartNanos >= WINDOW_NANOS) {
+			double throughput = (released - windowStartInstances) * 1e9 / (now - windowStartNanos);
+			windowedThroughput.lazySet(Double.doubleToRawLongBits(throughput));
+			windowStartNanos = now;
+			windowStartInstances = released;
+		}
+	}
+
+	/**
+	 * Adds time to the given stage.
+	 *
+	 * @param stage the stage
+	 * @param nanos the time spent in the stage
+	 */
+	public void addStageTime(Stage stage, long nanos) {
+		AtomicLong stageTime = stageTimeNanos[stage.ordinal()];
+		stageTime.lazySet(stageTime.get() + nanos);
+	}
+
+	/** @return the telemetry of the disclosure risk estimator of the filter */
+	public EstimatorTelemetry getDisclosureRiskTelemetry() {
+		return disclosureRiskTelemetry;
+	}
+
+	/** @return the telemetry of the information loss estimator of the filter */
+	public EstimatorTelemetry getInformationLossTelemetry() {
+		return informationLossTelemetry;
+	}
+
+	/* **** JMX registration **** */
+
+	/**
+	 * Registers the MBeans of the filter and its estimators in the platform MBean server, as
+	 * {@code moa.ppsm:type=PrivacyFilter,name=<name>} and
+	 * {@code moa.ppsm:type=Estimator,filter=<name>,name=DisclosureRisk|InformationLoss}.
+	 * If the name is already taken, a numeric suffix is appended to it.
+	 *
+	 * @param name the name of the filter
+	 * @return the name under which the filter was registered
+	 * @throws RuntimeException if the MBeans can not be registered
+	 */
+	public synchronized String register(String name) {
+		if (objectNames != null) {
+			throw new IllegalStateException("The telemetry is already registered.");
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			String uniqueName = name;
+			for (int suffix = 2; server.isRegistered(getFilterObjectName(uniqueName)); ++suffix) {
+				uniqueName = name + "-" + suffix;
+			}
+			ObjectName[] names = new ObjectName[] {
+				getFilterObjectName(uniqueName),
+				getEstimatorObjectName(uniqueName, "DisclosureRisk"),
+				getEstimatorObjectName(uniqueName, "InformationLoss")
+			};
+			server.registerMBean(this, names[0]);
+			server.registerMBean(disclosureRiskTelemetry, names[1]);
+			server.registerMBean(informationLossTelemetry, names[2]);
+			objectNames = names;
+			return uniqueName;
+		} catch (JMException e) {
+			throw new RuntimeException("Failed to register the telemetry of the filter: " + name, e);
+		}
+	}
+
+	/** Unregisters the MBeans of the filter and its estimators, if they are registered */
+	public synchronized void unregister() {
+		if (objectNames != null) {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for (ObjectName objectName : objectNames) {
+				try {
+					server.unregisterMBean(objectName);
+				} catch (JMException e) {
+					//already unregistered by someone else
+				}
+			}
+			objectNames = null;
+		}
+	}
+
+	private static ObjectName getFilterObjectName(String name) throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=PrivacyFilter,name=" + ObjectName.quote(name));
+	}
+
+	private static ObjectName getEstimatorObjectName(String filterName, String name) throws JMException {
+		return new ObjectName(JMX_DOMAIN + ":type=Estimator,filter=" + ObjectName.quote(filterName)
+				+ ",name=" + name);
+	}
+
+	/* **** Readings **** */
+
+	@Override
+	public long getInstancesIn() {
+		return instancesIn.get();
+	}
+
+	@Override
+	public long getInstancesOut() {
+		return instancesOut.get();
+	}
+
+	@Override
+	public long getPendingInstances() {
+		//read the output first, so that the difference is never negative
+		long out = instancesOut.get();
+		return instancesIn.get() - out;
+	}
+
+	@Override
+	public int getBufferOccupancy() {
+		return (int) bufferOccupancy.get();
+	}
+
+	@Override
+	public double getCumulativeThroughput() {
+		long elapsedNanos = System.nanoTime() - startNanos;
+		return elapsedNanos > 0 ? instancesOut.get() * 1e9 / elapsedNanos : 0.0;
+	}
+
+	@Override
+	public double getWindowedThroughput() {
+		return Double.longBitsToDouble(windowedThroughput.get());
+	}
+
+	@Override
+	public double getDisclosureRisk() {
+		return disclosureRiskTelemetry.getCurrentValue();
+	}
+
+	@Override
+	public double getInformationLoss() {
+		return informationLossTelemetry.getCurrentValue();
+	}
+
+	@Override
+	public long getAnonymizationTimeNanos() {
+		return stageTimeNanos[Stage.ANONYMIZATION.ordinal()].get();
+	}
+
+	@Override
+	public long getEstimationTimeNanos() {
+		return stageTimeNanos[Stage.ESTIMATION.ordinal()].get();
+	}
+
+	@Override
+	public long getOutputTimeNanos() {
+		return stageTimeNanos[Stage.OUTPUT.ordinal()].get();
+	}
+
+}
@@ -0,0 +1,42 @@
+package moa.streams.filters.privacy.telemetry;
+
+/**
+ * Live telemetry of a running privacy filter, exposed through JMX (see {@link PrivacyFilterTelemetry}).
+ * The times are cumulative, in nanoseconds.
+ */
+public interface PrivacyFilterTelemetryMXBean {
+
+	/** @return the number of instances read by the filter from its input stream */
+	public long getInstancesIn();
+
+	/** @return the number of anonymized instances released by the filter */
+	public long getInstancesOut();
+
+	/** @return the number of instances read by the filter and not released yet */
+	public long getPendingInstances();
+
+	/** @return the number of instances held in the buffers of the filter */
+	public int getBufferOccupancy();
+
+	/** @return the number of instances released per second since the filter started */
+	public double getCumulativeThroughput();
+
+	/** @return the number of instances released per second over the last complete window */
+	public double getWindowedThroughput();
+
+	/** @return the current disclosure risk, or {@code NaN} if the evaluation is not enabled */
+	public double getDisclosureRisk();
+
+	/** @return the current information loss, or {@code NaN} if the evaluation is not enabled */
+	public double getInformationLoss();
+
+	/** @return the time spent anonymizing instances (including the reads from the input stream) */
+	public long getAnonymizationTimeNanos();
+
+	/** @return the time spent by the estimators evaluating the anonymized instances */
+	public long getEstimationTimeNanos();
+
+	/** @return the time spent writing the anonymized instances, if the task reports it */
+	public long getOutputTimeNanos();
+
+}
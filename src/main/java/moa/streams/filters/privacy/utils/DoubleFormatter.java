@@ -0,0 +1,118 @@
+package moa.streams.filters.privacy.utils;
+
+import java.util.Locale;
+
+import weka.core.Utils;
+
+/**
+ * Utility class, with static methods that append decimal representations of {@code double} values
+ * to a {@link StringBuilder}, without the intermediate objects created by {@link String#format} or
+ * {@link java.text.DecimalFormat}.
+ * <p>
+ * The output is identical to the one of the corresponding general purpose method. The values are
+ * rounded with integer arithmetic, and those values too large to be handled that way, or too close
+ * to a rounding boundary for the decision to be safely taken, are formatted with the general
+ * purpose method instead.
+ */
+public class DoubleFormatter {
+
+	/** The maximum number of decimal digits supported by the fast path */
+	public static final int MAX_FAST_PRECISION = 9;
+
+	private static final long[] POWERS_OF_TEN = {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+	};
+
+	/** The maximum scaled value handled by the fast path: the rounding error of the scaling
+	 * must be much smaller than the {@link #ROUNDING_MARGIN} */
+	private static final double MAX_FAST_SCALED_VALUE = 1e12;
+
+	/** Scaled values whose fraction is closer than this margin to 0.5 take the slow path */
+	private static final double ROUNDING_MARGIN = 1e-3;
+
+	/**
+	 * Appends the given value with exactly {@code precision} decimal digits, as
+	 * {@code String.format(Locale.ROOT, "%.<precision>f", value)} would do: the decimal separator
+	 * is always a point, whatever the default locale.
+	 *
+	 * @param builder the builder to append the value to
+	 * @param value the value to format
+	 * @param precision the number of decimal digits
+	 * @return the given builder
+	 */
+	public static StringBuilder appendFixed(StringBuilder builder, double value, int precision) {
+		long rounded = roundScaled(value, precision);
+		if (rounded < 0) {
+			return builder.append(String.format(Locale.ROOT, "%." + precision + "f", value));
+		}
+		appendScaled(builder, value, rounded, precision, false);
+		return builder;
+	}
+
+	/**
+	 * Appends the given value with at most {@code maxFractionDigits} decimal digits (trailing
+	 * zeros are removed), as {@link Utils#doubleToString(double, int)} would do. This is the
+	 * format used by Weka to output numeric values in ARFF files.
+	 *
+	 * @param builder the builder to append the value to
+	 * @param value the value to format
+	 * @param maxFractionDigits the maximum number of decimal digits
+	 * @return the given builder
+	 */
+	public static StringBuilder appendTrimmed(StringBuilder builder, double value, int maxFractionDigits) {
+		long rounded = roundScaled(value, maxFractionDigits);
+		if (rounded < 0) {
+			return builder.append(Utils.doubleToString(value, maxFractionDigits));
+		}
+		appendScaled(builder, value, rounded, maxFractionDigits, true);
+		return builder;
+	}
+
+	/**
+	 * Scales the absolute value by {@code 10^precision} and rounds it (half up).
+	 *
+	 * @return the rounded scaled value, or {@code -1} if the fast path cannot be used
+	 */
+	private static long roundScaled(double value, int precision) {
+		if (precision < 0 || precision > MAX_FAST_PRECISION) {
+			return -1;
+		}
+		double scaled = Math.abs(value) * POWERS_OF_TEN[precision];
+		if (!(scaled < MAX_FAST_SCALED_VALUE)) { //also discards NaN and infinite values
+			return -1;
+		}
+		double floor = Math.floor(scaled);
+		double fraction = scaled - floor;
+		if (Math.abs(fraction - 0.5) < ROUNDING_MARGIN) {
+			return -1;
+		}
+		return (long) floor + (fraction > 0.5 ? 1 : 0);
+	}
+
+	private static void appendScaled(StringBuilder builder, double value, long rounded,
+			int precision, boolean trimZeros) {
+		//both formatters keep the sign of negative values rounded to zero (and of -0.0)
+		if (Double.doubleToRawLongBits(value) < 0) {
+			builder.append('-');
+		}
+		long power = POWERS_OF_TEN[precision];
+		builder.append(rounded / power);
+		long fraction = rounded % power;
+		int digits = precision;
+		if (trimZeros) {
+			while (digits > 0 && fraction % 10 == 0) {
+				fraction /= 10;
+				--digits;
+			}
+		}
+		if (digits > 0) {
+			builder.append('.');
+			//leading zeros of the fraction
+			for (long limit = POWERS_OF_TEN[digits - 1]; limit > 1 && fraction < limit; limit /= 10) {
+				builder.append('0');
+			}
+			builder.append(fraction);
+		}
+	}
+
+}
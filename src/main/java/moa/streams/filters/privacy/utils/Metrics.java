@@ -1,14 +1,23 @@
 package moa.streams.filters.privacy.utils;
 
 import weka.core.Instance;
+import weka.core.SparseInstance;
 
 /**
  * Utility class, with static methods that can be used to compute metrics between instances, like
  * the {@link #distance(Instance, Instance)} measure.
+ * <p>
+ * When both instances are {@link SparseInstance}s, the metrics merge their stored values instead
+ * of iterating over all the attributes: the attributes missing from both instances are zero in
+ * both, and add nothing to the result, which is the same as the dense one. When only one of them
+ * is sparse, its stored values are walked along the attributes, instead of being searched for.
  */
 public class Metrics {
 
 	public static double sse(Instance x, Instance y) {
+		if (x instanceof SparseInstance || y instanceof SparseInstance) {
+			return sparseSse(x, y);
+		}
 		double dist = 0.0;
 		for (int i = 0; i < x.numAttributes(); ++i){
 			if (i != x.classIndex()) { //skip all those variables that are the target class
@@ -22,6 +31,47 @@ public class Metrics {
 		return dist;
 	}
 	
+	/**
+	 * Computes the {@link #sse(Instance, Instance)} of two instances over the given attributes only.
+	 * 
+	 * @param x the first instance
+	 * @param y the second instance
+	 * @param attributes the indexes of the attributes (the class being none of them), or
+	 * {@code null} for all the attributes but the class
+	 * @return the sum of the squared errors over the attributes
+	 */
+	public static double sse(Instance x, Instance y, int[] attributes) {
+		if (attributes == null) {
+			return sse(x, y);
+		}
+		double dist = 0.0;
+		for (int i : attributes) {
+			if (x.attribute(i).isNumeric()) {
+				dist += (x.value(i) - y.value(i)) * (x.value(i) - y.value(i));
+			} else {
+				dist += (x.value(i) != y.value(i)) ? 1.0 : 0.0;
+			}
+		}
+		return dist;
+	}
+	
+	/**
+	 * Computes the {@link #distance(Instance, Instance)} between two instances over the given
+	 * attributes only, e.g. the quasi-identifiers of a privacy filter.
+	 * 
+	 * @param x the first instance
+	 * @param y the second instance
+	 * @param attributes the indexes of the attributes (the class being none of them), or
+	 * {@code null} for all the attributes but the class
+	 * @return the distance between the given instances
+	 */
+	public static double distance(Instance x, Instance y, int[] attributes) {
+		if (attributes == null) {
+			return distance(x, y);
+		}
+		return Math.sqrt(sse(x, y, attributes));
+	}
+	
 	/**
 	 * Computes the distance between two given instances, using the following scheme:
 	 * <br>
@@ -44,6 +94,9 @@ public class Metrics {
 	 * @return the distance between the given instances
 	 */
 	public static double distance(Instance x, Instance y){
+		if (x instanceof SparseInstance || y instanceof SparseInstance) {
+			return Math.sqrt(sparseSse(x, y));
+		}
 		double dist = 0.0;
 		for (int i = 0; i < x.numAttributes(); ++i){
 			if (i != x.classIndex()) { //skip all those variables that are the target class
@@ -57,4 +110,71 @@ public class Metrics {
 		return Math.sqrt(dist);
 	}
 	
+	/**
+	 * Computes the {@link #sse(Instance, Instance)} of two instances, at least one of them sparse,
+	 * in the order of their attributes (the one of the dense computation).
+	 */
+	private static double sparseSse(Instance x, Instance y) {
+		if (!(x instanceof SparseInstance)) {
+			return mixedSse(x, y, x);
+		}
+		if (!(y instanceof SparseInstance)) {
+			return mixedSse(y, x, x);
+		}
+		//merge the stored values
+		double dist = 0.0;
+		final int classIndex = x.classIndex();
+		final int xValues = x.numValues();
+		final int yValues = y.numValues();
+		int px = 0;
+		int py = 0;
+		while (px < xValues || py < yValues) {
+			final int ix = px < xValues ? x.index(px) : Integer.MAX_VALUE;
+			final int iy = py < yValues ? y.index(py) : Integer.MAX_VALUE;
+			final int i = Math.min(ix, iy);
+			//an attribute not stored by an instance is zero in it
+			final double xi = (ix == i) ? x.valueSparse(px++) : 0.0;
+			final double yi = (iy == i) ? y.valueSparse(py++) : 0.0;
+			if (i != classIndex) { //skip all those variables that are the target class
+				if (x.attribute(i).isNumeric()){
+					dist += (xi - yi) * (xi - yi);
+				} else {
+					dist += (xi != yi) ? 1.0 : 0.0;
+				}
+			}
+		}
+		return dist;
+	}
+	
+	/**
+	 * Computes the {@link #sse(Instance, Instance)} of a dense and a sparse instance, walking the
+	 * stored values of the sparse one along the attributes. The terms are symmetric, thus the order
+	 * of the instances does not matter.
+	 * 
+	 * @param dense the dense instance
+	 * @param sparse the sparse instance
+	 * @param header the instance that gives the attributes (the first one of the metric)
+	 */
+	private static double mixedSse(Instance dense, Instance sparse, Instance header) {
+		double dist = 0.0;
+		final int classIndex = header.classIndex();
+		final int sparseValues = sparse.numValues();
+		int p = 0;
+		for (int i = 0; i < header.numAttributes(); ++i){
+			double si = 0.0;
+			if (p < sparseValues && sparse.index(p) == i) {
+				si = sparse.valueSparse(p++);
+			}
+			if (i != classIndex) { //skip all those variables that are the target class
+				final double di = dense.value(i);
+				if (header.attribute(i).isNumeric()){
+					dist += (di - si) * (di - si);
+				} else {
+					dist += (di != si) ? 1.0 : 0.0;
+				}
+			}
+		}
+		return dist;
+	}
+	
 }
@@ -0,0 +1,151 @@
+package moa.streams.filters.privacy.utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Provider of the pseudo-random number streams of a privacy filter: an independent stream for each
+ * attribute, keyed by the seed of the filter, the shard of the input stream the filter anonymizes
+ * (0 unless the stream is sharded, see {@code ParallelAnonymize}) and the index of the attribute.
+ * <p>
+ * The streams are SplitMix64 generators, whose initial states are derived by mixing the keys, so
+ * that the numbers drawn for an attribute depend neither on the numbers drawn for the other
+ * attributes nor on the other shards: the output of each shard is the same whatever the number of
+ * threads the shards are spread over, and no generator is ever shared among them.
+ * <p>
+ * The streams are {@link Random}s, which take their numbers from the SplitMix64 sequence instead
+ * of the linear congruential one, so that their {@code nextDouble()}, {@code nextGaussian()} or
+ * {@code nextInt(int)} methods can be used as usual. They are not thread-safe.
+ */
+public class RandomStreams implements Serializable {
+
+	/** Serializable */
+	private static final long serialVersionUID = 3602475419288563140L;
+
+	/** The increment of the SplitMix64 sequence (the odd integer closest to 2^64 / phi) */
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private final long seed;
+
+	private final int shard;
+
+	/** The streams of the attributes, created as they are first used */
+	private SplitMixRandom[] streams;
+
+	/**
+	 * Builds the streams of an unsharded filter.
+	 *
+	 * @param seed the seed of the filter
+	 */
+	public RandomStreams(long seed) {
+		this(seed, 0);
+	}
+
+	/**
+	 * Builds the streams of a filter.
+	 *
+	 * @param seed the seed of the filter
+	 * @param shard the shard of the input stream the filter anonymizes
+	 */
+	public RandomStreams(long seed, int shard) {
+		this.seed = seed;
+		this.shard = shard;
+		this.streams = new SplitMixRandom[0];
+	}
+
+	/** @return the seed of the streams */
+	public long getSeed() {
+		return seed;
+	}
+
+	/** @return the shard of the streams */
+	public int getShard() {
+		return shard;
+	}
+
+	/**
+	 * Gets the stream of the given attribute, which is created the first time.
+	 *
+	 * @param attributeIndex the index of the attribute
+	 * @return the stream of the attribute
+	 */
+	public SplitMixRandom get(int attributeIndex) {
+		if (attributeIndex >= streams.length) {
+			streams = Arrays.copyOf(streams, Math.max(attributeIndex + 1, streams.length * 2));
+		}
+		SplitMixRandom stream = streams[attributeIndex];
+		if (stream == null) {
+			stream = new SplitMixRandom(getInitialState(seed, shard, attributeIndex));
+			streams[attributeIndex] = stream;
+		}
+		return stream;
+	}
+
+	/**
+	 * Derives the initial state of the stream of the given keys, mixing them one after the other,
+	 * as SplitMix64 splits its streams.
+	 *
+	 * @param seed the seed
+	 * @param shard the shard
+	 * @param attributeIndex the index of the attribute
+	 * @return the initial state of the stream
+	 */
+	public static long getInitialState(long seed, int shard, int attributeIndex) {
+		long state = mix64(seed + GOLDEN_GAMMA);
+		state = mix64(state + (shard + 1) * GOLDEN_GAMMA);
+		return mix64(state + (attributeIndex + 1) * GOLDEN_GAMMA);
+	}
+
+	/** The finalizer of SplitMix64 (variant 13 of the MurmurHash3 one) */
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/** A {@link Random} drawing its numbers from a SplitMix64 sequence */
+	public static final class SplitMixRandom extends Random {
+
+		/** Serializable */
+		private static final long serialVersionUID = -7403185563622219457L;
+
+		/** The state of the sequence, which is incremented by the {@link #GOLDEN_GAMMA} */
+		private long state;
+
+		/**
+		 * Builds a generator.
+		 *
+		 * @param state the initial state of the sequence
+		 */
+		public SplitMixRandom(long state) {
+			super(0L);
+			this.state = state;
+		}
+
+		/** Restarts the sequence from the given state, as {@link Random#setSeed(long)} does */
+		@Override
+		public synchronized void setSeed(long seed) {
+			super.setSeed(seed);
+			this.state = seed;
+		}
+
+		@Override
+		public long nextLong() {
+			state += GOLDEN_GAMMA;
+			return mix64(state);
+		}
+
+		@Override
+		protected int next(int bits) {
+			return (int) (nextLong() >>> (64 - bits));
+		}
+
+		@Override
+		public double nextDouble() {
+			return (nextLong() >>> 11) * 0x1.0p-53;
+		}
+
+	}
+
+}
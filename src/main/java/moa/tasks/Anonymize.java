@@ -4,18 +4,34 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Writer;
 
 import moa.core.InstancesHeader;
 import moa.core.ObjectRepository;
+import moa.core.SizeOf;
 import moa.options.ClassOption;
 import moa.options.FileOption;
 import moa.options.FlagOption;
+import moa.options.FloatOption;
 import moa.options.IntOption;
+import moa.options.MultiChoiceOption;
+import moa.streams.CountingInstanceStream;
 import moa.streams.InstanceStream;
 import moa.streams.filters.privacy.PrivacyEvaluation;
 import moa.streams.filters.privacy.PrivacyFilter;
 import moa.streams.filters.privacy.PrivacyFilter.EvaluationNotEnabledException;
+import moa.streams.filters.privacy.buffer.AdaptiveBufferController;
+import moa.streams.filters.privacy.buffer.ResizableBuffer;
+import moa.streams.filters.privacy.telemetry.LatencyRecorder;
+import moa.streams.filters.privacy.telemetry.PrivacyFilterTelemetry;
+import moa.streams.filters.privacy.telemetry.PrivacyFilterTelemetry.Stage;
+import moa.streams.filters.privacy.utils.DoubleFormatter;
+import moa.tasks.checkpoint.AnonymizationCheckpoint;
+import moa.tasks.checkpoint.CheckpointWriter;
+import moa.tasks.output.AsyncBufferedWriter;
+import moa.tasks.output.BinaryInstanceWriter;
+import moa.tasks.output.InstanceSerializer;
 import weka.core.Instance;
 
 public class Anonymize extends MainTask {
@@ -33,10 +49,23 @@ public class Anonymize extends MainTask {
 
 	private static final String MONITOR_UPDATE_STATE = "i: %d";
 
-	private static final String THROUGHPUT_CSV_HEADER = "Instances,TotalTime[s],"
+	static final String THROUGHPUT_CSV_HEADER = "Instances,TotalTime[s],"
 															+ "IncrInstances,IncrTime[s],Throughput[ins/s]";
 	
-	private static final String THROUGHPUT_CSV_RECORD = "%d,%.3f,%d,%.3f,%.2f";
+	private static final String MEMORY_CSV_HEADER = ",Memory[B]";
+	
+	private static final String BUFFER_SIZE_CSV_HEADER = ",BufferSize";
+	
+	/** The choices of the {@link #adaptiveBufferOption} */
+	private static final int NO_ADAPTIVE_BUFFER = 0;
+	private static final int ADAPTIVE_FILTER_BUFFER = 1;
+	private static final int ADAPTIVE_LINKER_BUFFER = 2;
+	
+	/** The default maximum size of an adaptive buffer, as a multiple of its initial size */
+	private static final int DEFAULT_MAX_BUFFER_FACTOR = 4;
+	
+	/** The number of buffers in the ring of the asynchronous ARFF writer */
+	private static final int ASYNC_OUTPUT_BUFFERS = 4;
 	
 	/* **** **** **** TASK OPTIONS **** **** **** */
 	
@@ -54,6 +83,9 @@ public class Anonymize extends MainTask {
             "Maximum number of instances to process. If set to -1, keep processing until the" +
             " input stream runs out of instance (no maximum is set).", -1, -1, Integer.MAX_VALUE);
 	
+	public IntOption batchSizeOption = new IntOption("batchSize", 'n',
+			"Maximum number of instances anonymized and written as a block.", 256, 1, Integer.MAX_VALUE);
+	
 	/* **** Evaluation options **** */
 	public IntOption evaluationUpdateRateOption = new IntOption("evaluationUpdateRate", 'u',
 			"Number of instances to skip between anonymization evaluation updates.", 100, 1, Integer.MAX_VALUE);
@@ -68,6 +100,43 @@ public class Anonymize extends MainTask {
     public FileOption throughputEvaluationFileOption = new FileOption("throughputEvaluationFile", 't',
     		"Destination CSV file for the evaluation of the processing throughput of the filter", null, "csv", true);
     
+    public FlagOption memoryFootprintOption = new FlagOption("memoryFootprint", 'M',
+    		"Sample the memory footprint of the filter and its estimators along with the throughput, adding it " +
+    		"to the throughput CSV file and the report. Requires the sizeofag agent (-javaagent:sizeofag.jar).");
+    
+    public FlagOption jmxTelemetryOption = new FlagOption("jmxTelemetry", 'J',
+    		"Expose the live telemetry of the filter and its estimators as MBeans (moa.ppsm domain).");
+    
+    public FileOption latencyFileOption = new FileOption("latencyFile", 'L',
+    		"Destination CSV file for the percentiles of the per-record latencies of each stage (fetch, search, " +
+    		"perturbation, estimation and output), emitted along with the throughput and added to the report.",
+    		null, "csv", true);
+    
+    /* **** Adaptive buffer options **** */
+    public MultiChoiceOption adaptiveBufferOption = new MultiChoiceOption("adaptiveBuffer", 'X',
+    		"The buffer resized along the run to meet the target latency or throughput.",
+    		new String[] { "None", "Filter", "Linker" },
+    		new String[] { "Keep the sizes of the buffers given by the options of the filter and its estimators.",
+    					   "Resize the buffer of the filter (microaggregation, rank swapping, differential privacy).",
+    					   "Resize the re-identification buffer of the disclosure risk estimator." },
+    		NO_ADAPTIVE_BUFFER);
+    
+    public FloatOption targetLatencyOption = new FloatOption("targetLatency", 'T',
+    		"Target processing time per instance (in microseconds) of the adaptive buffer.",
+    		0.0, 0.0, Double.MAX_VALUE);
+    
+    public FloatOption targetThroughputOption = new FloatOption("targetThroughput", 'W',
+    		"Target throughput (in instances per second) of the adaptive buffer, if no target latency is given.",
+    		0.0, 0.0, Double.MAX_VALUE);
+    
+    public IntOption minBufferSizeOption = new IntOption("minBufferSize", 'g',
+    		"Minimum size of the adaptive buffer (0 for the smallest one that keeps the guarantees of the " +
+    		"filter, e.g. k).", 0, 0, Integer.MAX_VALUE);
+    
+    public IntOption maxBufferSizeOption = new IntOption("maxBufferSize", 'G',
+    		"Maximum size of the adaptive buffer (0 for " + DEFAULT_MAX_BUFFER_FACTOR + " times its initial size).",
+    		0, 0, Integer.MAX_VALUE);
+    
     /* **** Anonymized output options **** */
     public FileOption arffFileOption = new FileOption("arffFile", 'a',
             "Destination ARFF file for the anonymized dataset.", null, "arff", true);
@@ -75,6 +144,21 @@ public class Anonymize extends MainTask {
     public FlagOption suppressHeaderOption = new FlagOption("suppressHeader", 'h', 
     		"Suppress header from output.");
     
+    public FileOption binaryFileOption = new FileOption("binaryFile", 'b',
+    		"Destination binary columnar file for the anonymized dataset (see BinaryFileStream to read it).",
+    		null, "bin", true);
+    
+    public FlagOption asyncOutputOption = new FlagOption("asyncOutput", 'A',
+    		"Write the anonymized dataset from a dedicated thread, so that the filter never waits on the disk.");
+    
+    public IntOption outputBufferSizeOption = new IntOption("outputBufferSize", 'B',
+    		"Size (in characters) of each one of the buffers handed to the asynchronous writer thread.",
+    		65536, 1024, Integer.MAX_VALUE);
+    
+    public IntOption outputFlushIntervalOption = new IntOption("outputFlushInterval", 'F',
+    		"Maximum time (in milliseconds) that anonymized instances wait before being handed to the " +
+    		"asynchronous writer thread.", 1000, 1, Integer.MAX_VALUE);
+    
     /* **** Report plaintext file options **** */
     public FileOption reportFileOption = new FileOption("reportFile", 'r', 
     		"Destination plain text file for the anonymization report.", null, "txt", true);
@@ -82,6 +166,21 @@ public class Anonymize extends MainTask {
     public FlagOption summarizeReportOption = new FlagOption("summarizeReportOption", 'z', 
     		"Turns the anonymization report into a summary, that can be easily transformed into a CSV record");
     
+    /* **** Checkpoint options **** */
+    public FileOption checkpointFileOption = new FileOption("checkpointFile", 'c',
+    		"Destination file for the periodic checkpoints of the anonymization process.", null, "ckpt", true);
+    
+    public IntOption checkpointIntervalOption = new IntOption("checkpointInterval", 'i',
+    		"Number of anonymized instances between checkpoints.", 100000, 1, Integer.MAX_VALUE);
+    
+    public FlagOption resumeOption = new FlagOption("resume", 'R',
+    		"Resume the anonymization from the checkpoint file, if it exists, appending to the output files.");
+    
+    /* **** Warm start options **** */
+    public FileOption warmStartExportFileOption = new FileOption("warmStartExportFile", 'w',
+    		"Destination file for the state of the filter at the end of the anonymization, to warm start " +
+    		"a later run with (see the warmStartFile option of the filters).", null, "warm", true);
+    
     /* **** **** **** **** **** **** **** **** **** */
     
     public Anonymize() {
@@ -106,7 +205,7 @@ public class Anonymize extends MainTask {
 	 * @param fileOption a {@code FileOption} representing a file
 	 * @return the {@code File} represented in the option or {@code null}
 	 */
-	private File getFileWithExtension(FileOption fileOption) {
+	static File getFileWithExtension(FileOption fileOption) {
 		File file = fileOption.getFile();
 		if (file != null) {
 			String filePath = file.getPath();
@@ -126,11 +225,67 @@ public class Anonymize extends MainTask {
 	 * @param fileOption the option in which the file is specified
 	 * @return a writer to the file or {@code null} 
 	 */
-	private Writer getWriterForFileOption(FileOption fileOption) {
+	static Writer getWriterForFileOption(FileOption fileOption) {
+		return getWriterForFileOption(fileOption, AnonymizationCheckpoint.NO_FILE);
+	}
+	
+	/**
+	 * Creates a writer for a file that is specified by the provided file option, as
+	 * {@link #getWriterForFileOption(FileOption)} does. If a length is given, the file is
+	 * truncated to it and the writer appends to it, in order to resume its writing.
+	 * 
+	 * @param fileOption the option in which the file is specified
+	 * @param resumeLength the length of the file to resume from, or {@link AnonymizationCheckpoint#NO_FILE}
+	 * @return a writer to the file or {@code null} 
+	 */
+	static Writer getWriterForFileOption(FileOption fileOption, long resumeLength) {
 		File file = getFileWithExtension(fileOption);
 		if (file != null) {
 			try {
-				return new BufferedWriter(new FileWriter(file));
+				if (resumeLength != AnonymizationCheckpoint.NO_FILE) {
+					RandomAccessFile truncatedFile = new RandomAccessFile(file, "rw");
+					truncatedFile.setLength(resumeLength);
+					truncatedFile.close();
+				}
+				return new BufferedWriter(new FileWriter(file, resumeLength != AnonymizationCheckpoint.NO_FILE));
+			} catch (IOException e) {
+				String message = String.format("Failed to open file: %s", file.getName());
+				throw new RuntimeException(message, e);
+			}
+		}
+		else return null;
+	}
+	
+	/**
+	 * Creates the writer for the anonymized dataset, which performs the writes from a dedicated
+	 * thread if the asynchronous output is enabled. If there is no specified file in the
+	 * {@link #arffFileOption}, {@code null} is returned.
+	 * 
+	 * @param resumeLength the length of the file to resume from, or {@link AnonymizationCheckpoint#NO_FILE}
+	 * @return a writer to the ARFF file or {@code null}
+	 */
+	private Writer getArffWriter(long resumeLength) {
+		Writer writer = getWriterForFileOption(arffFileOption, resumeLength);
+		if (writer != null && asyncOutputOption.isSet()) {
+			return new AsyncBufferedWriter(writer, outputBufferSizeOption.getValue(),
+					ASYNC_OUTPUT_BUFFERS, outputFlushIntervalOption.getValue());
+		}
+		return writer;
+	}
+	
+	/**
+	 * Creates the binary columnar writer for the anonymized dataset. If there is no specified file
+	 * in the {@link #binaryFileOption}, {@code null} is returned.
+	 * 
+	 * @param header the header of the anonymized instances
+	 * @param resumeState the state of the writer to resume from, or {@code null}
+	 * @return a binary writer or {@code null}
+	 */
+	private BinaryInstanceWriter getBinaryWriter(InstancesHeader header, BinaryInstanceWriter.State resumeState) {
+		File file = getFileWithExtension(binaryFileOption);
+		if (file != null) {
+			try {
+				return new BinaryInstanceWriter(file, header, BinaryInstanceWriter.DEFAULT_CHUNK_ROWS, resumeState);
 			} catch (IOException e) {
 				String message = String.format("Failed to open file: %s", file.getName());
 				throw new RuntimeException(message, e);
@@ -140,7 +295,7 @@ public class Anonymize extends MainTask {
 	}
 	
 	/** Writes the {@code content} to the file opened in the provided {@code writer} */
-	private void writeToFile(Writer writer, String content) throws IOException {
+	static void writeToFile(Writer writer, String content) throws IOException {
 		if (writer != null) {
 			writer.write(content);
 			writer.write("\n");
@@ -148,13 +303,38 @@ public class Anonymize extends MainTask {
 	}
 	
 	/** Flushes and closes the provided {@code writer} */
-	private void closeWriter(Writer writer) throws IOException {
+	static void closeWriter(Writer writer) throws IOException {
 		if (writer != null) {
 			writer.flush();
 			writer.close();
 		}
 	}
 	
+	/** Flushes the provided {@code writer} and returns the length of the file it writes to */
+	private long flushAndGetLength(Writer writer, FileOption fileOption) throws IOException {
+		if (writer != null) {
+			writer.flush();
+			return getFileWithExtension(fileOption).length();
+		}
+		return AnonymizationCheckpoint.NO_FILE;
+	}
+	
+	/**
+	 * Reads the checkpoint to resume the anonymization from, if a resume was requested and
+	 * the checkpoint file exists, or returns {@code null} otherwise.
+	 */
+	private AnonymizationCheckpoint readCheckpoint() {
+		File file = getFileWithExtension(checkpointFileOption);
+		if (resumeOption.isSet() && file != null && file.exists()) {
+			try {
+				return AnonymizationCheckpoint.read(file);
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to read the checkpoint file: " + file.getName(), e);
+			}
+		}
+		return null;
+	}
+	
 	/** Returns {@code true} if there are instances left in the filter or the maximum
 	 *  number of instances has not been reached; {@code false} otherwise */
 	private boolean keepProcessing(long processedInstances, PrivacyFilter filter) {
@@ -163,44 +343,123 @@ public class Anonymize extends MainTask {
 				processedInstances < maxInstancesOption.getValue()); //  OR process up to a maximum
 	}
 	
+	/**
+	 * Returns the length of the next block of instances to be anonymized. A block never goes past
+	 * the next evaluation, throughput measure or checkpoint, which must see the state of the filter
+	 * (and the time) right after their instance, nor past the maximum number of instances.
+	 */
+	private int getBlockLength(long processedInstances, boolean evaluationEnabled, boolean checkpointEnabled) {
+		long length = batchSizeOption.getValue();
+		if (evaluationEnabled) {
+			int rate = evaluationUpdateRateOption.getValue();
+			length = Math.min(length, rate - processedInstances % rate);
+		}
+		int throughputRate = throughputEvaluationUpdateRateOption.getValue();
+		length = Math.min(length, throughputRate - processedInstances % throughputRate);
+		if (checkpointEnabled) {
+			int interval = checkpointIntervalOption.getValue();
+			length = Math.min(length, interval - processedInstances % interval);
+		}
+		if (maxInstancesOption.getValue() >= 0) {
+			length = Math.min(length, maxInstancesOption.getValue() - processedInstances);
+		}
+		return (int) length;
+	}
+	
 	/** Converts a {@code long} representing milliseconds to a {@code float} representing seconds */
-	private float millisToSeconds(long millis) {
+	static float millisToSeconds(long millis) {
 		return (millis/1000.0f);
 	}
 	
 	/** Returns the CSV file header for the throughput evaluation */
 	private String getThroughputCSVHeader() {
-		return THROUGHPUT_CSV_HEADER;
+		return THROUGHPUT_CSV_HEADER
+				+ (memoryFootprintOption.isSet() ? MEMORY_CSV_HEADER : "")
+				+ (adaptiveBufferOption.getChosenIndex() != NO_ADAPTIVE_BUFFER ? BUFFER_SIZE_CSV_HEADER : "");
 	}
 	
-	private String getThroughputCSVRecord(long instances, long totalTimeMillis, 
+	/**
+	 * Creates the controller of the adaptive buffer of the filter or its disclosure risk estimator, or
+	 * returns {@code null} if no buffer is adaptive.
+	 */
+	private AdaptiveBufferController getAdaptiveBufferController(PrivacyFilter filter) {
+		Object component;
+		switch (adaptiveBufferOption.getChosenIndex()) {
+		case ADAPTIVE_FILTER_BUFFER:
+			component = filter;
+			break;
+		case ADAPTIVE_LINKER_BUFFER:
+			component = filter.getDisclosureRiskEstimator();
+			if (component == null) {
+				throw new IllegalArgumentException(
+						"The buffer of the linker can only be adaptive if the evaluation is enabled.");
+			}
+			break;
+		default:
+			return null;
+		}
+		if (!(component instanceof ResizableBuffer)) {
+			throw new IllegalArgumentException("The buffer of " + component.getClass().getSimpleName() 
+					+ " can not be resized.");
+		}
+		double targetNanosPerInstance;
+		if (targetLatencyOption.getValue() > 0) {
+			targetNanosPerInstance = targetLatencyOption.getValue() * 1e3;
+		}
+		else if (targetThroughputOption.getValue() > 0) {
+			targetNanosPerInstance = 1e9 / targetThroughputOption.getValue();
+		}
+		else {
+			throw new IllegalArgumentException("An adaptive buffer needs a target latency or throughput.");
+		}
+		ResizableBuffer buffer = (ResizableBuffer) component;
+		int minBufferSize = minBufferSizeOption.getValue() > 0 ? 
+				minBufferSizeOption.getValue() : buffer.getMinimumBufferSize();
+		int maxBufferSize = maxBufferSizeOption.getValue() > 0 ? maxBufferSizeOption.getValue() : 
+				(int) Math.max(Math.min((long) buffer.getBufferSize() * DEFAULT_MAX_BUFFER_FACTOR, 
+						Integer.MAX_VALUE), minBufferSize);
+		return new AdaptiveBufferController(buffer, targetNanosPerInstance, minBufferSize, maxBufferSize);
+	}
+	
+	static String getThroughputCSVRecord(long instances, long totalTimeMillis, 
 										  int deltaInstances, long deltaTimeMillis) {
 		float totalSeconds = millisToSeconds(totalTimeMillis);
 		float deltaSeconds = millisToSeconds(deltaTimeMillis);
 		float throughput = deltaInstances/deltaSeconds;
-		return String.format(THROUGHPUT_CSV_RECORD,
-				instances, totalSeconds, deltaInstances, deltaSeconds, throughput);
+		//equivalent to String.format("%d,%.3f,%d,%.3f,%.2f", ...), without its overhead
+		StringBuilder builder = new StringBuilder(64);
+		builder.append(instances).append(',');
+		DoubleFormatter.appendFixed(builder, totalSeconds, 3).append(',');
+		builder.append(deltaInstances).append(',');
+		DoubleFormatter.appendFixed(builder, deltaSeconds, 3).append(',');
+		DoubleFormatter.appendFixed(builder, throughput, 2);
+		return builder.toString();
 	}
 	
 	/** Formats the multiline string that represents the report of the anonimization report */
 	private String getAnonymizationReport(InstancesHeader instancesHeader,
 			boolean silencedAnonymization, boolean silencedEvaluation,
 			long anonymizedInstances, long runtimeMillis,
-			double disclosureRisk, double informationLoss) {
+			double disclosureRisk, double informationLoss,
+			long lastMemoryFootprint, long peakMemoryFootprint, LatencyRecorder latencyRecorder,
+			AdaptiveBufferController bufferController) {
 		if (summarizeReportOption.isSet()) {
 			return getSummarizedReport(silencedEvaluation, anonymizedInstances, 
-					runtimeMillis, disclosureRisk, informationLoss);
+					runtimeMillis, disclosureRisk, informationLoss, peakMemoryFootprint);
 		}
 		else {
 			String header = instancesHeader.toString();
 			return getFullReport(header, silencedAnonymization, silencedEvaluation, anonymizedInstances, 
-					runtimeMillis, disclosureRisk, informationLoss);
+					runtimeMillis, disclosureRisk, informationLoss, lastMemoryFootprint, peakMemoryFootprint,
+					latencyRecorder, bufferController);
 		}
 	}
 	
 	/** Formats a full-fledged report */
 	private String getFullReport(String streamHeader, boolean silencedAnonymization, boolean silencedEvaluation, 
-			long anonymizedInstances, long runtimeMillis, double disclosureRisk, double informationLoss) {
+			long anonymizedInstances, long runtimeMillis, double disclosureRisk, double informationLoss,
+			long lastMemoryFootprint, long peakMemoryFootprint, LatencyRecorder latencyRecorder,
+			AdaptiveBufferController bufferController) {
 		StringBuilder builder = new StringBuilder(1024);
 		builder.append("**** **** **** **** **** ANONYMIZATION TASK COMPLETED **** **** **** **** ****\n")
 			   .append(String.format("Execution time: %.3f s\n", millisToSeconds(runtimeMillis)))
@@ -211,70 +470,154 @@ public class Anonymize extends MainTask {
 		if (!silencedAnonymization) {
 			builder.append("and have been stored in the file: " + arffFileOption.getFile().getPath() + "\n");
 		}
+		if (binaryFileOption.getFile() != null) {
+			builder.append("and have been stored in the binary file: " 
+					+ getFileWithExtension(binaryFileOption).getPath() + "\n");
+		}
 		if (!silencedEvaluation) {
 			builder.append("Total disclosure risk:  " + String.format("%.12f", disclosureRisk) + "\n")
 				   .append("Total information loss: " + String.format("%.12f", informationLoss) + "\n");
 		}
+		if (memoryFootprintOption.isSet()) {
+			builder.append("Memory footprint (peak): " + peakMemoryFootprint + " bytes\n")
+				   .append("Memory footprint (last): " + lastMemoryFootprint + " bytes\n");
+		}
+		if (bufferController != null) {
+			builder.append("Adaptive buffer size (last): " + bufferController.getBufferSize() 
+					+ " instances, after " + bufferController.getResizes() + " resizes\n");
+		}
+		if (latencyRecorder != null) {
+			builder.append("Latencies per record:\n");
+			latencyRecorder.appendCumulativeReport(builder);
+		}
 		builder.append("**** **** **** **** **** **** **** **** **** **** **** **** **** **** **** ****\n");
 		return builder.toString();
 	}
 	
 	/** Formats a report to be easily parsed  */
-	private String getSummarizedReport(boolean silencedEvaluation,
-			long anonymizedInstances, long runtimeMillis, double disclosureRisk, double informationLoss) {
+	private String getSummarizedReport(boolean silencedEvaluation, long anonymizedInstances, 
+			long runtimeMillis, double disclosureRisk, double informationLoss, long peakMemoryFootprint) {
+		boolean silencedMemory = !memoryFootprintOption.isSet();
 		StringBuilder builder = new StringBuilder(1024);
 		builder.append("csvhead,Instances,TotalTime[s]")
-			   .append(silencedEvaluation ? "\n" : ",DR,IL\n")
+			   .append(silencedEvaluation ? "" : ",DR,IL")
+			   .append(silencedMemory ? "\n" : ",PeakMemory[B]\n")
 			   .append("csv,")
 			   .append(String.format("%d,%.3f", anonymizedInstances, millisToSeconds(runtimeMillis)))
-			   .append(silencedEvaluation ? "" : String.format(",%.3f,%.2f", disclosureRisk, informationLoss));
+			   .append(silencedEvaluation ? "" : String.format(",%.3f,%.2f", disclosureRisk, informationLoss))
+			   .append(silencedMemory ? "" : "," + peakMemoryFootprint);
 		return builder.toString();
 	}
 
 	@Override
 	protected Object doMainTask(TaskMonitor monitor, ObjectRepository repository) {
-		//prepare the stream and the filter
-		InstanceStream stream = (InstanceStream) getPreparedClassOption(streamOption);
-		PrivacyFilter filter = (PrivacyFilter) getPreparedClassOption(filterOption);
-		filter.setInputStream(stream);
-		
-		//check if an evaluation was requested and force the filter to enable
-		// the DR and IL estimators, even if the user forgot to enable it in the
-		// filter specification (-E option) as well as in the task specification,
-		// through the "-e" option (specifying the evaluation file)
-		if (evaluationFileOption.getFile() != null) {
-			filter.evaluationEnabledOption.set();
-			filter.restart();
+		//prepare the stream and the filter, counting the instances read from the stream
+		// in order to be able to resume the anonymization from a checkpoint
+		AnonymizationCheckpoint checkpoint = readCheckpoint();
+		CountingInstanceStream stream = 
+				new CountingInstanceStream((InstanceStream) getPreparedClassOption(streamOption));
+		PrivacyFilter filter;
+		if (checkpoint == null) {
+			filter = (PrivacyFilter) getPreparedClassOption(filterOption);
+			filter.setInputStream(stream);
+			
+			//check if an evaluation was requested and force the filter to enable
+			// the DR and IL estimators, even if the user forgot to enable it in the
+			// filter specification (-E option) as well as in the task specification,
+			// through the "-e" option (specifying the evaluation file)
+			if (evaluationFileOption.getFile() != null) {
+				filter.evaluationEnabledOption.set();
+				filter.restart();
+			}
+		}
+		else {
+			//bring a fresh stream to the point where the checkpoint was taken
+			stream.skip(checkpoint.consumedInstances);
+			try {
+				filter = checkpoint.restoreFilter(stream);
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to restore the filter from the checkpoint.", e);
+			}
 		}
 		
 		//prepare the potential necessary files and variables
-		Writer arffWriter = getWriterForFileOption(arffFileOption);
+		Writer arffWriter = getArffWriter(checkpoint == null ? 
+				AnonymizationCheckpoint.NO_FILE : checkpoint.arffFileLength);
+		BinaryInstanceWriter binaryWriter = getBinaryWriter(stream.getHeader(), 
+				checkpoint == null ? null : checkpoint.binaryWriterState);
 		Writer evaluationWriter = filter.isEvaluationEnabled() ? 
-				getWriterForFileOption(evaluationFileOption) : null;
+				getWriterForFileOption(evaluationFileOption, checkpoint == null ? 
+						AnonymizationCheckpoint.NO_FILE : checkpoint.evaluationFileLength) : null;
 		Writer reportWriter = getWriterForFileOption(reportFileOption);
-		Writer throughputWriter = getWriterForFileOption(throughputEvaluationFileOption);
+		Writer throughputWriter = getWriterForFileOption(throughputEvaluationFileOption, checkpoint == null ? 
+				AnonymizationCheckpoint.NO_FILE : checkpoint.throughputFileLength);
+		File checkpointFile = getFileWithExtension(checkpointFileOption);
+		CheckpointWriter checkpointWriter = checkpointFile != null ? new CheckpointWriter(checkpointFile) : null;
+		Writer latencyWriter = getWriterForFileOption(latencyFileOption, checkpoint == null ? 
+				AnonymizationCheckpoint.NO_FILE : checkpoint.latencyFileLength);
+		LatencyRecorder latencyRecorder = null;
+		if (latencyWriter != null) {
+			latencyRecorder = new LatencyRecorder();
+			filter.setLatencyRecorder(latencyRecorder);
+		}
+		if (memoryFootprintOption.isSet() && SizeOf.sizeOf(new Object()) <= 0) {
+			throw new RuntimeException("The memory footprint can not be measured: " +
+					"the sizeofag agent must be loaded (-javaagent:sizeofag.jar).");
+		}
+		AdaptiveBufferController bufferController = getAdaptiveBufferController(filter);
+		PrivacyFilterTelemetry telemetry = null;
+		if (jmxTelemetryOption.isSet()) {
+			telemetry = new PrivacyFilterTelemetry();
+			filter.setTelemetry(telemetry);
+			telemetry.register(filter.getClass().getSimpleName());
+		}
 		
 		try {
-			//write headers for all output files
-			if (!suppressHeaderOption.isSet()) {
-				writeToFile(arffWriter, stream.getHeader().toString());
-			}
-			if (filter.isEvaluationEnabled()) { //if the evaluation is not enabled, an exception is thrown
-				writeToFile(evaluationWriter, filter.getEvaluation().getEvaluationCSVHeader());
+			//write headers for all output files (unless they are being resumed)
+			if (checkpoint == null) {
+				if (!suppressHeaderOption.isSet()) {
+					writeToFile(arffWriter, stream.getHeader().toString());
+				}
+				if (filter.isEvaluationEnabled()) { //if the evaluation is not enabled, an exception is thrown
+					writeToFile(evaluationWriter, filter.getEvaluation().getEvaluationCSVHeader());
+				}
+				writeToFile(throughputWriter, getThroughputCSVHeader());
+				writeToFile(latencyWriter, LatencyRecorder.CSV_HEADER);
 			}
-			writeToFile(throughputWriter, getThroughputCSVHeader());
+			InstanceSerializer serializer = new InstanceSerializer(stream.getHeader());
 			
 			//begin filtering
 			monitor.setCurrentActivityDescription(MONITOR_INITIAL_STATE);
 			long anonymizedInstances = 0; //total instance counter
 			long startTime = System.currentTimeMillis(); //total runtime counter
+			if (checkpoint != null) {
+				anonymizedInstances = checkpoint.anonymizedInstances;
+				startTime -= checkpoint.runtimeMillis;
+			}
 			long prevThroughputTime = System.currentTimeMillis(); //time for the throughput evaluation
+			long prevBufferControlNanos = System.nanoTime(); //time for the adaptive buffer
+			long lastMemoryFootprint = 0;
+			long peakMemoryFootprint = checkpoint != null ? checkpoint.peakMemoryFootprint : 0;
+			Instance[] block = new Instance[batchSizeOption.getValue()];
 			while (keepProcessing(anonymizedInstances, filter)) {
-				Instance instance = filter.nextInstance();
-				if (instance != null) {
+				int blockLength = filter.nextInstances(block, 0, 
+						getBlockLength(anonymizedInstances, filter.isEvaluationEnabled(), checkpointWriter != null));
+				long outputStartTime = telemetry != null ? System.nanoTime() : 0;
+				for (int b = 0; b < blockLength; ++b) {
+					Instance instance = block[b];
+					block[b] = null;
 					//process the anonymized instance
 					anonymizedInstances++;
-					writeToFile(arffWriter, instance.toString());
+					long writeStartTime = latencyRecorder != null ? System.nanoTime() : 0;
+					if (arffWriter != null) {
+						serializer.writeInstance(arffWriter, instance);
+					}
+					if (binaryWriter != null) {
+						binaryWriter.write(instance);
+					}
+					if (latencyRecorder != null && (arffWriter != null || binaryWriter != null)) {
+						latencyRecorder.recordSince(LatencyRecorder.Stage.OUTPUT, writeStartTime);
+					}
 					
 					//update evaluation if needed (check the evaluation update rate)
 					if (anonymizedInstances % evaluationUpdateRateOption.getValue() == 0) {
@@ -297,22 +640,68 @@ public class Anonymize extends MainTask {
 					//update throughput evaluation if needed
 					if (anonymizedInstances % throughputEvaluationUpdateRateOption.getValue() == 0) {
 						//gather data
+						long currBufferControlNanos = System.nanoTime();
 						long currThroughputTime = System.currentTimeMillis();
 						long totalTime = currThroughputTime - startTime;
 						long deltaTime = currThroughputTime - prevThroughputTime;
 						int deltaInstances = throughputEvaluationUpdateRateOption.getValue();
+						String throughputRecord = 
+								getThroughputCSVRecord(anonymizedInstances, totalTime, deltaInstances, deltaTime);
+						//sample the memory footprint, leaving the time it takes out of the next increment
+						if (memoryFootprintOption.isSet()) {
+							lastMemoryFootprint = filter.getMemoryFootprint();
+							peakMemoryFootprint = Math.max(peakMemoryFootprint, lastMemoryFootprint);
+							throughputRecord = throughputRecord + "," + lastMemoryFootprint;
+							currThroughputTime = System.currentTimeMillis();
+						}
+						//resize the adaptive buffer if needed, logging its (new) size
+						if (bufferController != null) {
+							bufferController.update(deltaInstances, currBufferControlNanos - prevBufferControlNanos);
+							throughputRecord = throughputRecord + "," + bufferController.getBufferSize();
+						}
 						//write CSV record
-						writeToFile(throughputWriter, 
-									getThroughputCSVRecord(anonymizedInstances, totalTime, deltaInstances, deltaTime));
-						//update the previous time stamp
+						writeToFile(throughputWriter, throughputRecord);
+						//emit the latencies of the interval
+						if (latencyRecorder != null) {
+							latencyWriter.write(latencyRecorder.getIntervalCSVRecords(anonymizedInstances));
+							latencyRecorder.endInterval();
+						}
+						//update the previous time stamps (the sampling is left out of the next increment)
 						prevThroughputTime = currThroughputTime;
+						prevBufferControlNanos = System.nanoTime();
+					}
+					//take a checkpoint if needed
+					if (checkpointWriter != null && 
+							anonymizedInstances % checkpointIntervalOption.getValue() == 0) {
+						AnonymizationCheckpoint newCheckpoint = new AnonymizationCheckpoint();
+						newCheckpoint.consumedInstances = stream.getReadInstances();
+						newCheckpoint.anonymizedInstances = anonymizedInstances;
+						newCheckpoint.runtimeMillis = System.currentTimeMillis() - startTime;
+						newCheckpoint.arffFileLength = flushAndGetLength(arffWriter, arffFileOption);
+						newCheckpoint.evaluationFileLength = flushAndGetLength(evaluationWriter, evaluationFileOption);
+						newCheckpoint.throughputFileLength = 
+								flushAndGetLength(throughputWriter, throughputEvaluationFileOption);
+						newCheckpoint.latencyFileLength = flushAndGetLength(latencyWriter, latencyFileOption);
+						newCheckpoint.binaryWriterState = binaryWriter != null ? binaryWriter.getState() : null;
+						newCheckpoint.peakMemoryFootprint = peakMemoryFootprint;
+						newCheckpoint.setFilter(filter, stream);
+						checkpointWriter.write(newCheckpoint);
 					}
 				}
+				if (telemetry != null) {
+					telemetry.addStageTime(Stage.OUTPUT, System.nanoTime() - outputStartTime);
+				}
 			}
 			//calculate runtime
 			long endTime = System.currentTimeMillis();
 			long runtimeMillis = endTime - startTime;
 			
+			//emit the latencies of the last (incomplete) interval
+			if (latencyRecorder != null) {
+				latencyWriter.write(latencyRecorder.getIntervalCSVRecords(anonymizedInstances));
+				latencyRecorder.endInterval();
+			}
+			
 			//get the necessary data for the report
 			double disclosureRisk = 0.0;
 			double informationLoss = 0.0;
@@ -329,7 +718,8 @@ public class Anonymize extends MainTask {
 					arffWriter == null ? true : false,
 					evaluationWriter == null ? true : false,
 					anonymizedInstances, runtimeMillis,
-					disclosureRisk, informationLoss
+					disclosureRisk, informationLoss,
+					lastMemoryFootprint, peakMemoryFootprint, latencyRecorder, bufferController
 				);
 			
 			//write the report
@@ -337,9 +727,22 @@ public class Anonymize extends MainTask {
 			
 			//flush and close the writer streams
 			closeWriter(arffWriter);
+			if (binaryWriter != null) {
+				binaryWriter.close();
+			}
 			closeWriter(evaluationWriter);
 			closeWriter(reportWriter);
 			closeWriter(throughputWriter);
+			closeWriter(latencyWriter);
+			if (checkpointWriter != null) {
+				checkpointWriter.close();
+			}
+			
+			//export the state of the filter for the next run
+			File warmStartFile = getFileWithExtension(warmStartExportFileOption);
+			if (warmStartFile != null) {
+				filter.exportWarmStart().write(warmStartFile);
+			}
 			
 			//return the report
 			return report;
@@ -347,6 +750,10 @@ public class Anonymize extends MainTask {
 			throw new RuntimeException("Failed to complete the task.", e);
 		} catch (EvaluationNotEnabledException e) {
 			throw new RuntimeException("An evaluation was requested, but the estimators were disabled", e);
+		} finally {
+			if (telemetry != null) {
+				telemetry.unregister();
+			}
 		}
 	}
 }
@@ -0,0 +1,823 @@
+package moa.tasks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import moa.core.InstancesHeader;
+import moa.core.ObjectRepository;
+import moa.options.AbstractOptionHandler;
+import moa.options.ClassOption;
+import moa.options.FileOption;
+import moa.options.FlagOption;
+import moa.options.IntOption;
+import moa.options.MultiChoiceOption;
+import moa.streams.InstanceStream;
+import moa.streams.filters.privacy.PrivacyEvaluation;
+import moa.streams.filters.privacy.PrivacyFilter;
+import moa.streams.filters.privacy.PrivacyFilter.EvaluationNotEnabledException;
+import moa.streams.filters.privacy.telemetry.PrivacyFilterTelemetry;
+import moa.streams.filters.privacy.utils.RandomStreams;
+import moa.streams.filters.privacy.utils.DoubleFormatter;
+import moa.tasks.output.InstanceSerializer;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+
+/**
+ * Multi-core variant of the {@link Anonymize} task. The input stream is split into a number of
+ * shards, either round-robin or by the value of a key attribute, and each shard is anonymized by
+ * its own copy of the privacy filter. The shards are spread over a number of threads, each of
+ * them driving the filters of its shards, and the anonymized outputs of the shards are then merged
+ * into a single ARFF file.
+ * <p>
+ * The instances of each shard, and thus its anonymized output, only depend on the number of
+ * shards: with the ordered merge, the output is the same whatever the number of threads.
+ * <p>
+ * Be aware that each filter only sees the instances of its shard: the buffered filters
+ * (microaggregation, rank swapping...) satisfy their privacy guarantees (e.g. <em>k</em>-anonymity)
+ * within each shard, not over the whole stream.
+ */
+public class ParallelAnonymize extends MainTask {
+
+	/** Serializable ID */
+	private static final long serialVersionUID = -2386337611624738187L;
+
+	private static final String PURPOSE_STRING = "Task to anonymize a stream of data on several threads, " +
+			"splitting it into shards that are anonymized by independent copies of the privacy filter and " +
+			"merging the anonymized shards into a single file. The evaluation of each shard is aggregated " +
+			"into a single report.";
+
+	private static final String MONITOR_INITIAL_STATE = "Anonymizing stream on %d shards...";
+
+	private static final String MONITOR_UPDATE_STATE = "i: %d";
+
+	private static final String EVALUATION_CSV_HEADER = "Shard,Instances,TotalDisclosureRisk,TotalInformationLoss";
+
+	/** The sharding strategies, as indexes of the {@link #shardingOption} labels */
+	private static final int ROUND_ROBIN_SHARDING = 0;
+	private static final int KEY_SHARDING = 1;
+
+	/** Marks the end of the instances of a shard, both in its input and output queues */
+	private static final Instance END_OF_SHARD = new DenseInstance(0);
+
+	/** Marks the end of the dispatch order of the instances, for the ordered merge */
+	private static final int END_OF_DISPATCH = -1;
+
+	/** The time (in milliseconds) waited on a queue before checking for failures of the workers */
+	private static final long POLL_TIMEOUT_MILLIS = 100;
+
+	/* **** **** **** TASK OPTIONS **** **** **** */
+
+	/* **** Filter options **** */
+	public ClassOption filterOption = new ClassOption("filter", 'f',
+            "Privacy filter to be applied (one copy of it is created for each shard).", PrivacyFilter.class,
+            "noiseaddition.NoiseAdditionFilter -c 0.0 -a 0.25");
+
+	/* **** Stream options **** */
+	public ClassOption streamOption = new ClassOption("stream", 's',
+            "Stream to be filtered.", InstanceStream.class,
+            "generators.RandomRBFGenerator");
+
+	public IntOption maxInstancesOption = new IntOption("maxInstances", 'm',
+            "Maximum number of instances to read from the stream (the buffers of the filters are then" +
+            " drained). If set to -1, keep processing until the input stream runs out of instance" +
+            " (no maximum is set).", -1, -1, Integer.MAX_VALUE);
+
+	/* **** Sharding options **** */
+	public IntOption numShardsOption = new IntOption("numShards", 'n',
+			"Number of shards the stream is split into. If set to 0, the number of " +
+			"available processors is used.", 0, 0, Integer.MAX_VALUE);
+
+	public IntOption numThreadsOption = new IntOption("numThreads", 't',
+			"Number of threads the shards are anonymized on (the output does not depend on it). If set " +
+			"to 0, or to more than the number of shards, each shard is anonymized on its own thread.",
+			0, 0, Integer.MAX_VALUE);
+
+	public MultiChoiceOption shardingOption = new MultiChoiceOption("sharding", 'p',
+			"Strategy used to assign the instances of the stream to the shards.",
+			new String[] { "RoundRobin", "Key" },
+			new String[] { "Assign the instances to the shards in turns.",
+						   "Assign the instances to the shards by the hash of their key attribute value." },
+			ROUND_ROBIN_SHARDING);
+
+	public IntOption keyAttributeOption = new IntOption("keyAttribute", 'k',
+			"Index (starting at 1) of the key attribute, when sharding by key.", 1, 1, Integer.MAX_VALUE);
+
+	public IntOption queueSizeOption = new IntOption("queueSize", 'q',
+			"Number of instances that can wait in the queues of each shard, to be anonymized or merged.",
+			1024, 1, Integer.MAX_VALUE);
+
+	public FlagOption unorderedOutputOption = new FlagOption("unorderedOutput", 'o',
+			"Write the anonymized instances as soon as any shard releases them, instead of following " +
+			"the order in which the instances were dispatched to the shards.");
+
+	/* **** Evaluation options **** */
+	public IntOption updateRateOption = new IntOption("updateRate", 'u',
+			"Number of instances to skip between updates of the task monitor.", 1000, 1, Integer.MAX_VALUE);
+
+    public FileOption evaluationFileOption = new FileOption("evaluationFile", 'e',
+    		"Destination CSV file for the final evaluation of each shard and of the whole stream.",
+    		null, "csv", true);
+
+    public FlagOption jmxTelemetryOption = new FlagOption("jmxTelemetry", 'J',
+    		"Expose the live telemetry of the filter of each shard and its estimators as MBeans (moa.ppsm domain).");
+
+    /* **** Anonymized output options **** */
+    public FileOption arffFileOption = new FileOption("arffFile", 'a',
+            "Destination ARFF file for the anonymized dataset.", null, "arff", true);
+
+    public FlagOption suppressHeaderOption = new FlagOption("suppressHeader", 'h',
+    		"Suppress header from output.");
+
+    /* **** Report plaintext file options **** */
+    public FileOption reportFileOption = new FileOption("reportFile", 'r',
+    		"Destination plain text file for the anonymization report.", null, "txt", true);
+
+    public FlagOption summarizeReportOption = new FlagOption("summarizeReportOption", 'z',
+    		"Turns the anonymization report into a summary, that can be easily transformed into a CSV record");
+
+    /* **** **** **** **** **** **** **** **** **** */
+
+    /** The shards of the stream */
+    private transient Shard[] shards;
+
+    /** The order in which the instances were dispatched to the shards (only for the ordered merge) */
+    private transient BlockingQueue<Integer> dispatchOrder;
+
+    /** The first failure of any of the threads of the task */
+    private transient volatile Throwable failure;
+
+    /** The shard whose instance is awaited by the ordered merge (-1 if none) */
+    private transient volatile int awaitedShard;
+
+    public ParallelAnonymize() {
+    	// empty constructor
+	}
+
+	@Override
+	public String getPurposeString() {
+		return PURPOSE_STRING;
+	}
+
+	@Override
+	public Class<?> getTaskResultType() {
+		return String.class;
+	}
+
+	/** Returns the number of shards to be used */
+	private int getNumShards() {
+		int numShards = numShardsOption.getValue();
+		return numShards > 0 ? numShards : Runtime.getRuntime().availableProcessors();
+	}
+
+	/** Returns the number of threads to be used for the given number of shards */
+	private int getNumThreads(int numShards) {
+		int numThreads = numThreadsOption.getValue();
+		return numThreads > 0 ? Math.min(numThreads, numShards) : numShards;
+	}
+
+	/**
+	 * Creates the privacy filter of the given shard, as specified in the {@link #filterOption}.
+	 * The filter draws its random numbers from streams keyed by the index of the shard (see
+	 * {@link RandomStreams}), so that the shards are not perturbed with the same noise.
+	 *
+	 * @param shardIndex the index of the shard
+	 * @param evaluationEnabled whether the DR and IL estimators must be enabled
+	 * @return the (not yet prepared) filter of the shard
+	 */
+	private PrivacyFilter createShardFilter(int shardIndex, boolean evaluationEnabled) {
+		PrivacyFilter filter;
+		try {
+			filter = (PrivacyFilter) ClassOption.cliStringToObject(filterOption.getValueAsCLIString(),
+					PrivacyFilter.class, null);
+		} catch (Exception e) {
+			throw new RuntimeException("Failed to create the filter of the shard " + shardIndex, e);
+		}
+		filter.setRandomShard(shardIndex);
+		if (evaluationEnabled) {
+			filter.evaluationEnabledOption.set();
+		}
+		return filter;
+	}
+
+	/** Returns the index of the shard the given instance must be dispatched to */
+	private int selectShard(Instance instance, long dispatchedInstances) {
+		if (shardingOption.getChosenIndex() == KEY_SHARDING) {
+			long bits = Double.doubleToLongBits(instance.value(keyAttributeOption.getValue() - 1));
+			int hash = (int) (bits ^ (bits >>> 32)) * 0x9E3779B9; //spread the bits of close values
+			return (hash >>> 1) % shards.length;
+		}
+		else {
+			return (int) (dispatchedInstances % shards.length);
+		}
+	}
+
+	/** Stores the given failure, unless another thread failed before */
+	private synchronized void setFailure(Throwable throwable) {
+		if (failure == null) {
+			failure = throwable;
+		}
+	}
+
+	/**
+	 * Takes the next element of the given queue, waiting for it if needed. Meanwhile, the other
+	 * threads of the task are periodically checked for failures.
+	 *
+	 * @throws RuntimeException if any of the threads of the task failed
+	 */
+	private <T> T takeFrom(BlockingQueue<T> queue) throws InterruptedException {
+		while (true) {
+			T element = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			if (element != null) {
+				return element;
+			}
+			if (failure != null) {
+				throw new RuntimeException("A thread of the parallel anonymization failed.", failure);
+			}
+		}
+	}
+
+	/**
+	 * Takes the next anonymized instance of the given shard for the ordered merge, waiting for it
+	 * if needed. The instances spilled by the shard (see {@link Worker#release}) follow those
+	 * still in its output queue.
+	 *
+	 * @throws RuntimeException if any of the threads of the task failed
+	 */
+	private Instance takeOutput(int index) throws InterruptedException {
+		Shard shard = shards[index];
+		awaitedShard = index;
+		while (true) {
+			Instance instance = shard.output.poll();
+			if (instance == null) {
+				instance = shard.overflow.poll();
+			}
+			if (instance == null) {
+				instance = shard.output.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			if (instance != null) {
+				return instance;
+			}
+			if (failure != null) {
+				throw new RuntimeException("A thread of the parallel anonymization failed.", failure);
+			}
+		}
+	}
+
+	/** @return {@code true} if the dispatcher waits for room in the queue of a thread */
+	private boolean isDispatcherWaiting() {
+		for (Shard shard : shards) {
+			if (shard.input.worker.dispatcherWaiting) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Formats the evaluation CSV record of the given number of instances, DR and IL */
+	private String getEvaluationCSVRecord(String shard, long instances,
+			double disclosureRisk, double informationLoss) {
+		StringBuilder builder = new StringBuilder(64);
+		builder.append(shard).append(',').append(instances).append(',');
+		DoubleFormatter.appendFixed(builder, disclosureRisk, 6).append(',');
+		DoubleFormatter.appendFixed(builder, informationLoss, 6);
+		return builder.toString();
+	}
+
+	/** Formats the multiline string that represents the report of the anonimization report */
+	private String getAnonymizationReport(InstancesHeader instancesHeader, boolean silencedAnonymization,
+			boolean silencedEvaluation, long anonymizedInstances, long runtimeMillis,
+			double disclosureRisk, double informationLoss) {
+		StringBuilder builder = new StringBuilder(1024);
+		if (summarizeReportOption.isSet()) {
+			builder.append("csvhead,Instances,TotalTime[s],Shards")
+				   .append(silencedEvaluation ? "\n" : ",DR,IL\n")
+				   .append("csv,")
+				   .append(String.format("%d,%.3f,%d", anonymizedInstances,
+						   Anonymize.millisToSeconds(runtimeMillis), shards.length))
+				   .append(silencedEvaluation ? "" : String.format(",%.3f,%.2f", disclosureRisk, informationLoss));
+			return builder.toString();
+		}
+		builder.append("**** **** **** **** ** PARALLEL ANONYMIZATION TASK COMPLETED ** **** **** **** ****\n")
+			   .append(String.format("Execution time: %.3f s\n", Anonymize.millisToSeconds(runtimeMillis)))
+			   .append(anonymizedInstances)
+			   .append(" instances have been anonymized from the stream with header:\n")
+			   .append(instancesHeader.toString())
+			   .append("\n")
+			   .append("on " + shards.length + " shards (" + shardingOption.getChosenLabel() + " sharding) of ");
+		for (int i = 0; i < shards.length; ++i) {
+			builder.append(i > 0 ? ", " : "").append(shards[i].anonymizedInstances);
+		}
+		builder.append(" instances\n");
+		if (!silencedAnonymization) {
+			builder.append("and have been stored in the file: " + arffFileOption.getFile().getPath() + "\n");
+		}
+		if (!silencedEvaluation) {
+			builder.append("Total disclosure risk:  " + String.format("%.12f", disclosureRisk) + "\n")
+				   .append("Total information loss: " + String.format("%.12f", informationLoss) + "\n");
+		}
+		builder.append("**** **** **** **** **** **** **** **** **** **** **** **** **** **** **** ****\n");
+		return builder.toString();
+	}
+
+	@Override
+	protected Object doMainTask(TaskMonitor monitor, ObjectRepository repository) {
+		//prepare the stream and the shards, each one with its own filter
+		InstanceStream stream = (InstanceStream) getPreparedClassOption(streamOption);
+		InstancesHeader header = stream.getHeader();
+		if (shardingOption.getChosenIndex() == KEY_SHARDING
+				&& keyAttributeOption.getValue() > header.numAttributes()) {
+			throw new RuntimeException("The key attribute does not exist: " + keyAttributeOption.getValue());
+		}
+		final int numShards = getNumShards();
+		final int numThreads = getNumThreads(numShards);
+		final boolean orderedMerge = !unorderedOutputOption.isSet();
+		boolean evaluationEnabled = evaluationFileOption.getFile() != null;
+		BlockingQueue<Instance> sharedOutput = orderedMerge ? null :
+				new ArrayBlockingQueue<Instance>(numShards * queueSizeOption.getValue());
+		failure = null;
+		awaitedShard = -1;
+		Worker[] workers = new Worker[numThreads];
+		for (int i = 0; i < numThreads; ++i) {
+			//the shards are dealt to the threads in turns
+			long capacity = (long) ((numShards - i + numThreads - 1) / numThreads) * queueSizeOption.getValue();
+			workers[i] = new Worker((int) Math.min(capacity, Integer.MAX_VALUE));
+		}
+		shards = new Shard[numShards];
+		for (int i = 0; i < numShards; ++i) {
+			//the output queues of the ordered merge are bounded as well, so that the faster shards
+			// wait for the merge to catch up (see Worker.release for the shards waiting for each other)
+			BlockingQueue<Instance> output = orderedMerge ?
+					new ArrayBlockingQueue<Instance>(queueSizeOption.getValue()) : sharedOutput;
+			Worker worker = workers[i % numThreads];
+			shards[i] = new Shard(new ShardStream(header, worker),
+					createShardFilter(i, evaluationEnabled), output);
+			worker.shards.add(shards[i]);
+		}
+		dispatchOrder = orderedMerge ? new LinkedBlockingQueue<Integer>() : null;
+
+		//prepare the potential necessary files
+		Writer arffWriter = Anonymize.getWriterForFileOption(arffFileOption);
+		Writer evaluationWriter = Anonymize.getWriterForFileOption(evaluationFileOption);
+		Writer reportWriter = Anonymize.getWriterForFileOption(reportFileOption);
+
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads + 1, new DaemonThreadFactory());
+		try {
+			if (!suppressHeaderOption.isSet()) {
+				Anonymize.writeToFile(arffWriter, header.toString());
+			}
+			InstanceSerializer serializer = new InstanceSerializer(header);
+
+			//begin filtering
+			monitor.setCurrentActivityDescription(String.format(MONITOR_INITIAL_STATE, numShards));
+			long startTime = System.currentTimeMillis();
+			for (int i = 0; i < numShards; ++i) {
+				shards[i].filter.setInputStream(shards[i].input);
+				if (jmxTelemetryOption.isSet()) {
+					PrivacyFilterTelemetry telemetry = new PrivacyFilterTelemetry();
+					shards[i].filter.setTelemetry(telemetry);
+					telemetry.register(shards[i].filter.getClass().getSimpleName() + "-shard" + i);
+				}
+			}
+			for (Worker worker : workers) {
+				executor.execute(worker);
+			}
+			executor.execute(new Dispatcher(stream));
+
+			//merge the anonymized instances of the shards
+			long anonymizedInstances = 0;
+			int finishedShards = 0;
+			boolean[] finished = new boolean[numShards];
+			int shardIndex = orderedMerge ? takeFrom(dispatchOrder) : END_OF_DISPATCH;
+			while (finishedShards < numShards) {
+				Instance instance;
+				if (orderedMerge) {
+					if (shardIndex != END_OF_DISPATCH) {
+						//follow the dispatch order as long as the shard releases instances
+						if (finished[shardIndex]) {
+							shardIndex = takeFrom(dispatchOrder);
+							continue;
+						}
+						instance = takeOutput(shardIndex);
+						if (instance == END_OF_SHARD) {
+							finished[shardIndex] = true;
+							++finishedShards;
+						}
+						shardIndex = takeFrom(dispatchOrder);
+					}
+					else {
+						//once all the instances are dispatched, drain what the shards still hold
+						int index = 0;
+						while (finished[index]) {
+							++index;
+						}
+						instance = takeOutput(index);
+						if (instance == END_OF_SHARD) {
+							finished[index] = true;
+							++finishedShards;
+						}
+					}
+				}
+				else {
+					instance = takeFrom(sharedOutput);
+					if (instance == END_OF_SHARD) {
+						++finishedShards;
+					}
+				}
+				if (instance != END_OF_SHARD) {
+					anonymizedInstances++;
+					if (arffWriter != null) {
+						serializer.writeInstance(arffWriter, instance);
+					}
+					if (anonymizedInstances % updateRateOption.getValue() == 0) {
+						monitor.setCurrentActivityDescription(
+								String.format(MONITOR_UPDATE_STATE, anonymizedInstances));
+					}
+				}
+			}
+			if (failure != null) {
+				throw new RuntimeException("A thread of the parallel anonymization failed.", failure);
+			}
+			long runtimeMillis = System.currentTimeMillis() - startTime;
+
+			//aggregate the evaluations of the shards: the DR is averaged over all the instances and
+			// the IL (a sum of errors) is added up
+			double disclosureRisk = 0.0;
+			double informationLoss = 0.0;
+			if (evaluationEnabled) {
+				Anonymize.writeToFile(evaluationWriter, EVALUATION_CSV_HEADER);
+				for (int i = 0; i < numShards; ++i) {
+					PrivacyEvaluation evaluation = shards[i].filter.getEvaluation();
+					long instances = shards[i].anonymizedInstances;
+					Anonymize.writeToFile(evaluationWriter, getEvaluationCSVRecord(String.valueOf(i), instances,
+							evaluation.getDisclosureRisk(), evaluation.getInformationLoss()));
+					if (instances > 0) { //the DR of an empty shard is not defined
+						disclosureRisk += evaluation.getDisclosureRisk() * instances;
+					}
+					informationLoss += evaluation.getInformationLoss();
+				}
+				disclosureRisk = anonymizedInstances > 0 ? disclosureRisk / anonymizedInstances : 0.0;
+				Anonymize.writeToFile(evaluationWriter, getEvaluationCSVRecord("all", anonymizedInstances,
+						disclosureRisk, informationLoss));
+			}
+
+			//build and write the report
+			String report = getAnonymizationReport(header, arffWriter == null, evaluationWriter == null,
+					anonymizedInstances, runtimeMillis, disclosureRisk, informationLoss);
+			Anonymize.writeToFile(reportWriter, report);
+
+			//flush and close the writer streams
+			Anonymize.closeWriter(arffWriter);
+			Anonymize.closeWriter(evaluationWriter);
+			Anonymize.closeWriter(reportWriter);
+
+			return report;
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to complete the task.", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("The task was interrupted.", e);
+		} catch (EvaluationNotEnabledException e) {
+			throw new RuntimeException("An evaluation was requested, but the estimators were disabled", e);
+		} finally {
+			executor.shutdownNow();
+			for (Shard shard : shards) {
+				if (shard.filter.getTelemetry() != null) {
+					shard.filter.getTelemetry().unregister();
+				}
+			}
+		}
+	}
+
+	/** Reads the input stream and dispatches its instances to the shards */
+	private final class Dispatcher implements Runnable {
+
+		private final InstanceStream stream;
+
+		public Dispatcher(InstanceStream stream) {
+			this.stream = stream;
+		}
+
+		@Override
+		public void run() {
+			try {
+				long dispatchedInstances = 0;
+				while (stream.hasMoreInstances() &&
+						(maxInstancesOption.getValue() < 0 || dispatchedInstances < maxInstancesOption.getValue())) {
+					Instance instance = stream.nextInstance();
+					int shardIndex = selectShard(instance, dispatchedInstances);
+					shards[shardIndex].input.dispatch(instance);
+					if (dispatchOrder != null) {
+						dispatchOrder.put(shardIndex);
+					}
+					dispatchedInstances++;
+				}
+				for (Shard shard : shards) {
+					shard.input.dispatch(END_OF_SHARD);
+				}
+				if (dispatchOrder != null) {
+					dispatchOrder.put(END_OF_DISPATCH);
+				}
+			} catch (InterruptedException e) {
+				//the task was cancelled
+			} catch (Throwable t) {
+				setFailure(t);
+			}
+		}
+
+	}
+
+	/**
+	 * A thread anonymizing some of the shards: it takes the instances dispatched to them from its
+	 * queue, in the order they were dispatched, and drives the filter of each shard as long as its
+	 * stream holds instances (or has ended).
+	 */
+	private final class Worker implements Runnable {
+
+		/** The queue of the instances dispatched to the shards of the thread */
+		private final BlockingQueue<Dispatch> queue;
+
+		private final List<Shard> shards;
+
+		/** Whether the thread waits for a dispatched instance */
+		private volatile boolean waitingForInput;
+
+		/** Whether the dispatcher waits for room in the queue of the thread */
+		private volatile boolean dispatcherWaiting;
+
+		public Worker(int capacity) {
+			this.queue = new LinkedBlockingQueue<Dispatch>(capacity);
+			this.shards = new ArrayList<Shard>();
+		}
+
+		/**
+		 * Takes the next dispatched instance from the queue and hands it to the stream of its shard,
+		 * waiting for it if needed.
+		 */
+		private void receive() throws InterruptedException {
+			Dispatch dispatch = queue.poll();
+			if (dispatch == null) {
+				waitingForInput = true;
+				try {
+					dispatch = takeFrom(queue);
+				} finally {
+					waitingForInput = false;
+				}
+			}
+			if (dispatch.instance == END_OF_SHARD) {
+				dispatch.stream.ended = true;
+			}
+			else {
+				dispatch.stream.pending.add(dispatch.instance);
+			}
+		}
+
+		/**
+		 * Releases an anonymized instance (or the end of a shard) into the output queue of the
+		 * shard, waiting for room in it if needed. A buffered filter may need further instances
+		 * of its shard before it releases the instance awaited by the ordered merge, though, while
+		 * their dispatch is blocked by this thread. The instance is then spilled, along with the
+		 * next ones of the shard until the merge reads them, so the memory exceeds the bound of
+		 * the queues only by what the order of the merge needs.
+		 */
+		private void release(Shard shard, Instance instance) throws InterruptedException {
+			if (!shard.overflow.isEmpty()) {
+				shard.overflow.add(instance);
+				return;
+			}
+			if (shard.output.offer(instance)) {
+				return;
+			}
+			while (!shard.output.offer(instance, POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				if (blocksAwaitedShard(shard)) {
+					shard.overflow.add(instance);
+					return;
+				}
+			}
+		}
+
+		/**
+		 * @return {@code true} if the instance awaited by the ordered merge can not be released
+		 * while this thread waits for room in the output queue of the given shard
+		 */
+		private boolean blocksAwaitedShard(Shard shard) {
+			int index = awaitedShard;
+			if (index < 0) {
+				return false;
+			}
+			Shard awaited = ParallelAnonymize.this.shards[index];
+			if (awaited == shard || !awaited.output.isEmpty() || !awaited.overflow.isEmpty()) {
+				return false;
+			}
+			Worker worker = awaited.input.worker;
+			return worker == this || (worker.waitingForInput && isDispatcherWaiting());
+		}
+
+		@Override
+		public void run() {
+			try {
+				int finishedShards = 0;
+				while (finishedShards < shards.size()) {
+					boolean idle = true;
+					for (Shard shard : shards) {
+						if (!shard.finished && shard.input.isReady()) {
+							idle = false;
+							shard.anonymizeReadyInstances();
+							if (shard.finished) {
+								++finishedShards;
+							}
+						}
+					}
+					if (idle) {
+						receive();
+					}
+				}
+			} catch (InterruptedException e) {
+				//the task was cancelled
+			} catch (Throwable t) {
+				setFailure(t);
+			}
+		}
+
+	}
+
+	/** An instance dispatched to a shard, or the end of its instances */
+	private static final class Dispatch {
+
+		private final ShardStream stream;
+
+		private final Instance instance;
+
+		public Dispatch(ShardStream stream, Instance instance) {
+			this.stream = stream;
+			this.instance = instance;
+		}
+
+	}
+
+	/** A shard of the stream: the stream of its instances and the filter that anonymizes them */
+	private static final class Shard {
+
+		private final ShardStream input;
+
+		private final PrivacyFilter filter;
+
+		/** The queue in which the anonymized instances are released */
+		private final BlockingQueue<Instance> output;
+
+		/** The instances spilled while the output queue was full, which follow those in the queue */
+		private final Queue<Instance> overflow;
+
+		/** The number of instances released by the filter (only read once the shard finished) */
+		private long anonymizedInstances;
+
+		/** Whether the filter released all its instances (only used by the thread of the shard) */
+		private boolean finished;
+
+		public Shard(ShardStream input, PrivacyFilter filter, BlockingQueue<Instance> output) {
+			this.input = input;
+			this.filter = filter;
+			this.output = output;
+			this.overflow = new ConcurrentLinkedQueue<Instance>();
+		}
+
+		/**
+		 * Anonymizes the instances of the shard while its stream holds instances, releasing them
+		 * into the output queue, along with the end of the shard once the filter is drained.
+		 */
+		private void anonymizeReadyInstances() throws InterruptedException {
+			while (!finished && input.isReady()) {
+				if (filter.hasMoreInstances()) {
+					Instance instance = filter.nextInstance();
+					if (instance != null) {
+						anonymizedInstances++;
+						input.worker.release(this, instance);
+					}
+				}
+				else {
+					input.worker.release(this, END_OF_SHARD);
+					finished = true;
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * The input stream of the filter of a shard, which holds the instances received by the
+	 * {@link Worker} of the shard. When it runs out of them, the worker receives the next dispatched
+	 * instances (waiting for them if needed) until one of them belongs to this shard.
+	 */
+	private static final class ShardStream extends AbstractOptionHandler implements InstanceStream {
+
+		/** Serializable */
+		private static final long serialVersionUID = 6226508925416405412L;
+
+		private final InstancesHeader header;
+
+		private final Worker worker;
+
+		/** The instances received by the worker, not yet read by the filter */
+		private final Queue<Instance> pending;
+
+		/** Whether all the instances of the shard were received */
+		private boolean ended;
+
+		public ShardStream(InstancesHeader header, Worker worker) {
+			this.header = header;
+			this.worker = worker;
+			this.pending = new ArrayDeque<Instance>();
+		}
+
+		/** Dispatches an instance (or the end of the shard) to the worker of the shard */
+		private void dispatch(Instance instance) throws InterruptedException {
+			Dispatch dispatch = new Dispatch(this, instance);
+			if (!worker.queue.offer(dispatch)) {
+				worker.dispatcherWaiting = true;
+				try {
+					worker.queue.put(dispatch);
+				} finally {
+					worker.dispatcherWaiting = false;
+				}
+			}
+		}
+
+		/** @return {@code true} if the stream can be read without waiting for other instances */
+		private boolean isReady() {
+			return ended || !pending.isEmpty();
+		}
+
+		@Override
+		public InstancesHeader getHeader() {
+			return header;
+		}
+
+		@Override
+		public long estimatedRemainingInstances() {
+			return -1;
+		}
+
+		@Override
+		public boolean hasMoreInstances() {
+			while (pending.isEmpty() && !ended) {
+				try {
+					worker.receive();
+				} catch (InterruptedException e) {
+					//the task was cancelled: end the stream, keeping the interruption status
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return !pending.isEmpty();
+		}
+
+		@Override
+		public Instance nextInstance() {
+			return hasMoreInstances() ? pending.poll() : null;
+		}
+
+		@Override
+		public boolean isRestartable() {
+			return false;
+		}
+
+		@Override
+		public void restart() {
+			throw new UnsupportedOperationException("A shard of a stream can not be restarted.");
+		}
+
+		@Override
+		public void getDescription(StringBuilder sb, int indent) {
+			// TODO Auto-generated method stub
+		}
+
+		@Override
+		protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+			// nothing to prepare
+		}
+
+	}
+
+	/** Creates daemon threads, so that the workers never prevent the JVM from exiting */
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+			thread.setDaemon(true);
+			thread.setName("ParallelAnonymize-" + thread.getName());
+			return thread;
+		}
+	}
+
+}
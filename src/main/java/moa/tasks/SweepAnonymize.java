@@ -0,0 +1,507 @@
+package moa.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import moa.core.InstancesHeader;
+import moa.core.ObjectRepository;
+import moa.options.AbstractOptionHandler;
+import moa.options.ClassOption;
+import moa.options.FileOption;
+import moa.options.FlagOption;
+import moa.options.IntOption;
+import moa.options.ListOption;
+import moa.options.Option;
+import moa.options.StringOption;
+import moa.streams.InstanceStream;
+import moa.streams.filters.privacy.PrivacyEvaluation;
+import moa.streams.filters.privacy.PrivacyFilter;
+import moa.streams.filters.privacy.PrivacyFilter.EvaluationNotEnabledException;
+import moa.streams.filters.privacy.telemetry.PrivacyFilterTelemetry;
+import moa.streams.filters.privacy.utils.DoubleFormatter;
+import weka.core.Instance;
+
+/**
+ * Task to evaluate many privacy filter configurations over the same stream, reading it only once.
+ * The instances of the stream are read in blocks, which are handed to all the configurations, and
+ * each configuration anonymizes them with its own filter, on its own thread. Each configuration
+ * gets its own evaluation and throughput CSV files, as the {@link Anonymize} task would write
+ * them, and the final results of all the configurations are gathered into a summary table.
+ * <p>
+ * The configurations are given as a list of filters, which can be expanded with a grid of option
+ * values: e.g. the filter {@code microaggregation.MicroAggregationFilter} and the grid
+ * {@code k=3,5,7 b=100,1000} make six configurations.
+ */
+public class SweepAnonymize extends MainTask {
+
+	/** Serializable ID */
+	private static final long serialVersionUID = 4391750866150827314L;
+
+	private static final String PURPOSE_STRING = "Task to evaluate several configurations of privacy " +
+			"filters over a single pass of a stream of data. Each configuration is anonymized on its own " +
+			"thread, writing its evaluation and throughput CSV files, and the final disclosure risk, " +
+			"information loss and throughput of all of them are gathered into a summary table.";
+
+	private static final String MONITOR_INITIAL_STATE = "Anonymizing stream with %d configurations...";
+
+	private static final String MONITOR_UPDATE_STATE = "i: %d";
+
+	private static final String SUMMARY_CSV_HEADER =
+			"Configuration,Instances,TotalTime[s],Throughput[ins/s],DR,IL,Filter";
+
+	/** Marks the end of the stream in the queues of the configurations */
+	private static final Instance[] END_OF_STREAM = new Instance[0];
+
+	/** The time (in milliseconds) waited on a queue before checking for failures of the workers */
+	private static final long POLL_TIMEOUT_MILLIS = 100;
+
+	/* **** **** **** TASK OPTIONS **** **** **** */
+
+	/* **** Filter options **** */
+	public ListOption filtersOption = new ListOption("filters", 'l',
+			"The privacy filter configurations to be evaluated, separated by semicolons.",
+			new ClassOption("filter", ' ', "", PrivacyFilter.class, "noiseaddition.NoiseAdditionFilter"),
+			new Option[] {
+				new ClassOption("filter", ' ', "", PrivacyFilter.class, "noiseaddition.NoiseAdditionFilter -a 0.1"),
+				new ClassOption("filter", ' ', "", PrivacyFilter.class, "noiseaddition.NoiseAdditionFilter -a 0.25")
+			}, ';');
+
+	public StringOption gridOption = new StringOption("grid", 'g',
+			"Grid of option values each filter configuration is expanded with, as space separated " +
+			"entries of an option (by its CLI char) and its comma separated values, e.g. \"k=3,5,7 b=100,1000\".",
+			"");
+
+	/* **** Stream options **** */
+	public ClassOption streamOption = new ClassOption("stream", 's',
+            "Stream to be filtered.", InstanceStream.class,
+            "generators.RandomRBFGenerator");
+
+	public IntOption maxInstancesOption = new IntOption("maxInstances", 'm',
+            "Maximum number of instances to read from the stream (the buffers of the filters are then" +
+            " drained). If set to -1, keep processing until the input stream runs out of instance" +
+            " (no maximum is set).", -1, -1, Integer.MAX_VALUE);
+
+	public IntOption blockSizeOption = new IntOption("blockSize", 'n',
+			"Number of instances read from the stream and handed to the configurations as a block.",
+			256, 1, Integer.MAX_VALUE);
+
+	public IntOption queueSizeOption = new IntOption("queueSize", 'q',
+			"Number of blocks that can wait to be anonymized in the queue of each configuration.",
+			16, 1, Integer.MAX_VALUE);
+
+	/* **** Evaluation options **** */
+	public IntOption evaluationUpdateRateOption = new IntOption("evaluationUpdateRate", 'u',
+			"Number of instances to skip between anonymization evaluation updates.", 100, 1, Integer.MAX_VALUE);
+
+	public IntOption throughputEvaluationUpdateRateOption = new IntOption("throughputUpdateRate", 'U',
+			"Number of instances to skip between throughput evaluation updates.", 100, 1, Integer.MAX_VALUE);
+
+	public FileOption outputDirectoryOption = new FileOption("outputDirectory", 'd',
+			"Destination directory for the evaluation and throughput CSV files of each configuration.",
+			null, null, true);
+
+	public FlagOption jmxTelemetryOption = new FlagOption("jmxTelemetry", 'J',
+			"Expose the live telemetry of the filter of each configuration and its estimators as MBeans " +
+			"(moa.ppsm domain).");
+
+	/* **** Summary options **** */
+	public FileOption summaryFileOption = new FileOption("summaryFile", 'r',
+			"Destination CSV file for the summary table of the configurations.", null, "csv", true);
+
+	/* **** **** **** **** **** **** **** **** **** */
+
+	/** The first failure of any of the threads of the task */
+	private transient volatile Throwable failure;
+
+	public SweepAnonymize() {
+		// empty constructor
+	}
+
+	@Override
+	public String getPurposeString() {
+		return PURPOSE_STRING;
+	}
+
+	@Override
+	public Class<?> getTaskResultType() {
+		return String.class;
+	}
+
+	/**
+	 * Expands the filters of the {@link #filtersOption} with the values of the {@link #gridOption},
+	 * building the CLI strings of all the configurations. The grid values are appended to the
+	 * options of each filter, overriding them.
+	 *
+	 * @return the CLI strings of the filter configurations
+	 * @throws IllegalArgumentException if the grid is malformed
+	 */
+	List<String> getConfigurations() {
+		List<String> configurations = new ArrayList<String>();
+		for (Option filterOption : filtersOption.getList()) {
+			configurations.add(filterOption.getValueAsCLIString());
+		}
+		String grid = gridOption.getValue().trim();
+		if (grid.isEmpty()) {
+			return configurations;
+		}
+		for (String entry : grid.split("\\s+")) {
+			int separator = entry.indexOf('=');
+			if (separator != 1 || entry.length() < 3) {
+				throw new IllegalArgumentException("Malformed grid entry (expected <char>=<values>): " + entry);
+			}
+			char optionChar = entry.charAt(0);
+			String[] values = entry.substring(2).split(",");
+			List<String> expandedConfigurations = new ArrayList<String>(configurations.size() * values.length);
+			for (String configuration : configurations) {
+				for (String value : values) {
+					expandedConfigurations.add(configuration + " -" + optionChar + " " + value);
+				}
+			}
+			configurations = expandedConfigurations;
+		}
+		return configurations;
+	}
+
+	/** Stores the given failure, unless another thread failed before */
+	private synchronized void setFailure(Throwable throwable) {
+		if (failure == null) {
+			failure = throwable;
+		}
+	}
+
+	/** Throws the failure of any of the threads of the task, if there is one */
+	private void checkFailure() {
+		if (failure != null) {
+			throw new RuntimeException("A configuration of the sweep failed.", failure);
+		}
+	}
+
+	/**
+	 * Puts the given block into the given queue, waiting for room if needed. Meanwhile, the
+	 * configurations are periodically checked for failures, since a failed configuration never
+	 * takes any block from its queue again.
+	 *
+	 * @throws RuntimeException if any of the configurations failed
+	 */
+	private void putInto(BlockingQueue<Instance[]> queue, Instance[] block) throws InterruptedException {
+		while (!queue.offer(block, POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+			checkFailure();
+		}
+	}
+
+	/** Formats the summary CSV record of the given configuration */
+	private String getSummaryCSVRecord(Configuration configuration) {
+		float seconds = Anonymize.millisToSeconds(configuration.runtimeMillis);
+		StringBuilder builder = new StringBuilder(128);
+		builder.append(configuration.index).append(',')
+			   .append(configuration.anonymizedInstances).append(',');
+		DoubleFormatter.appendFixed(builder, seconds, 3).append(',');
+		DoubleFormatter.appendFixed(builder, configuration.anonymizedInstances / seconds, 2).append(',');
+		DoubleFormatter.appendFixed(builder, configuration.disclosureRisk, 6).append(',');
+		DoubleFormatter.appendFixed(builder, configuration.informationLoss, 6).append(',');
+		builder.append('"').append(configuration.cliString.replace("\"", "\"\"")).append('"');
+		return builder.toString();
+	}
+
+	@Override
+	protected Object doMainTask(TaskMonitor monitor, ObjectRepository repository) {
+		//prepare the stream and the configurations, each one with its own filter
+		InstanceStream stream = (InstanceStream) getPreparedClassOption(streamOption);
+		InstancesHeader header = stream.getHeader();
+		List<String> cliStrings = getConfigurations();
+		File outputDirectory = outputDirectoryOption.getFile();
+		if (outputDirectory != null && !outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			throw new RuntimeException("Failed to create the output directory: " + outputDirectory.getPath());
+		}
+		failure = null;
+		Configuration[] configurations = new Configuration[cliStrings.size()];
+		for (int i = 0; i < configurations.length; ++i) {
+			configurations[i] = new Configuration(i, cliStrings.get(i), header, outputDirectory);
+		}
+		Writer summaryWriter = Anonymize.getWriterForFileOption(summaryFileOption);
+
+		//the filters pull their instances from their streams, so each configuration needs its own
+		// worker: a worker waiting for a block does not take any processor time
+		ExecutorService executor = Executors.newFixedThreadPool(configurations.length, new DaemonThreadFactory());
+		try {
+			monitor.setCurrentActivityDescription(String.format(MONITOR_INITIAL_STATE, configurations.length));
+			List<Future<?>> futures = new ArrayList<Future<?>>(configurations.length);
+			for (Configuration configuration : configurations) {
+				if (jmxTelemetryOption.isSet()) {
+					PrivacyFilterTelemetry telemetry = new PrivacyFilterTelemetry();
+					configuration.filter.setTelemetry(telemetry);
+					telemetry.register("config" + configuration.index);
+				}
+				futures.add(executor.submit(configuration));
+			}
+
+			//read the stream once, handing every block to all the configurations: the instances are
+			// shared, as the filters never modify the instances they read
+			int blockSize = blockSizeOption.getValue();
+			long readInstances = 0;
+			Instance[] block = new Instance[blockSize];
+			int blockLength = 0;
+			while (stream.hasMoreInstances() &&
+					(maxInstancesOption.getValue() < 0 || readInstances < maxInstancesOption.getValue())) {
+				block[blockLength++] = stream.nextInstance();
+				readInstances++;
+				if (blockLength == blockSize) {
+					for (Configuration configuration : configurations) {
+						putInto(configuration.input.queue, block);
+					}
+					block = new Instance[blockSize];
+					blockLength = 0;
+				}
+				if (readInstances % evaluationUpdateRateOption.getValue() == 0) {
+					monitor.setCurrentActivityDescription(String.format(MONITOR_UPDATE_STATE, readInstances));
+				}
+			}
+			if (blockLength > 0) {
+				block = Arrays.copyOf(block, blockLength);
+				for (Configuration configuration : configurations) {
+					putInto(configuration.input.queue, block);
+				}
+			}
+			for (Configuration configuration : configurations) {
+				putInto(configuration.input.queue, END_OF_STREAM);
+			}
+
+			//wait for the configurations and gather their results
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			checkFailure();
+			StringBuilder summary = new StringBuilder(256);
+			summary.append(SUMMARY_CSV_HEADER);
+			for (Configuration configuration : configurations) {
+				summary.append('\n').append(getSummaryCSVRecord(configuration));
+			}
+			Anonymize.writeToFile(summaryWriter, summary.toString());
+			Anonymize.closeWriter(summaryWriter);
+
+			return summary.toString();
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to complete the task.", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("The task was interrupted.", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("A configuration of the sweep failed.", e.getCause());
+		} finally {
+			executor.shutdownNow();
+			for (Configuration configuration : configurations) {
+				if (configuration.filter.getTelemetry() != null) {
+					configuration.filter.getTelemetry().unregister();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A filter configuration: its filter, the queue of blocks it anonymizes and its results, which
+	 * are only read once it finished.
+	 */
+	private final class Configuration implements Runnable {
+
+		private final int index;
+
+		private final String cliString;
+
+		private final BlockStream input;
+
+		private final PrivacyFilter filter;
+
+		private final Writer evaluationWriter;
+
+		private final Writer throughputWriter;
+
+		private long anonymizedInstances;
+
+		private long runtimeMillis;
+
+		private double disclosureRisk;
+
+		private double informationLoss;
+
+		public Configuration(int index, String cliString, InstancesHeader header, File outputDirectory) {
+			this.index = index;
+			this.cliString = cliString;
+			this.input = new BlockStream(header, queueSizeOption.getValue());
+			try {
+				this.filter = (PrivacyFilter) ClassOption.cliStringToObject(cliString, PrivacyFilter.class, null);
+			} catch (Exception e) {
+				throw new RuntimeException("Failed to create the filter of the configuration " + index
+						+ ": " + cliString, e);
+			}
+			this.filter.evaluationEnabledOption.set();
+			this.evaluationWriter = getConfigurationWriter(outputDirectory, "evaluation");
+			this.throughputWriter = getConfigurationWriter(outputDirectory, "throughput");
+		}
+
+		/** Creates the writer of the given CSV file of the configuration, if there is an output directory */
+		private Writer getConfigurationWriter(File outputDirectory, String name) {
+			if (outputDirectory == null) {
+				return null;
+			}
+			FileOption fileOption = new FileOption(name, ' ', "", null, "csv", true);
+			fileOption.setValue(new File(outputDirectory, "config" + index + "-" + name + ".csv").getPath());
+			return Anonymize.getWriterForFileOption(fileOption);
+		}
+
+		/**
+		 * Returns the length of the next block of instances to be anonymized, which never goes past
+		 * the next evaluation nor the next throughput measure, as the {@link Anonymize} task does.
+		 */
+		private int getBlockLength(int batchSize) {
+			int rate = evaluationUpdateRateOption.getValue();
+			int throughputRate = throughputEvaluationUpdateRateOption.getValue();
+			long length = Math.min(batchSize, rate - anonymizedInstances % rate);
+			return (int) Math.min(length, throughputRate - anonymizedInstances % throughputRate);
+		}
+
+		@Override
+		public void run() {
+			try {
+				filter.setInputStream(input);
+				Anonymize.writeToFile(evaluationWriter, filter.getEvaluation().getEvaluationCSVHeader());
+				Anonymize.writeToFile(throughputWriter, Anonymize.THROUGHPUT_CSV_HEADER);
+				int throughputRate = throughputEvaluationUpdateRateOption.getValue();
+				long startTime = System.currentTimeMillis();
+				long prevThroughputTime = startTime;
+				Instance[] block = new Instance[blockSizeOption.getValue()];
+				while (filter.hasMoreInstances()) {
+					int blockLength = filter.nextInstances(block, 0, getBlockLength(block.length));
+					for (int b = 0; b < blockLength; ++b) {
+						block[b] = null;
+						anonymizedInstances++;
+						if (anonymizedInstances % evaluationUpdateRateOption.getValue() == 0) {
+							Anonymize.writeToFile(evaluationWriter, filter.getEvaluation().getEvaluationCSVRecord());
+						}
+						if (anonymizedInstances % throughputRate == 0) {
+							long currThroughputTime = System.currentTimeMillis();
+							Anonymize.writeToFile(throughputWriter, Anonymize.getThroughputCSVRecord(
+									anonymizedInstances, currThroughputTime - startTime,
+									throughputRate, currThroughputTime - prevThroughputTime));
+							prevThroughputTime = currThroughputTime;
+						}
+					}
+				}
+				runtimeMillis = System.currentTimeMillis() - startTime;
+				PrivacyEvaluation evaluation = filter.getEvaluation();
+				disclosureRisk = evaluation.getDisclosureRisk();
+				informationLoss = evaluation.getInformationLoss();
+				Anonymize.closeWriter(evaluationWriter);
+				Anonymize.closeWriter(throughputWriter);
+			} catch (EvaluationNotEnabledException e) {
+				setFailure(new RuntimeException("The estimators of the configuration " + index
+						+ " were disabled: " + cliString, e));
+			} catch (Throwable t) {
+				setFailure(t);
+			}
+		}
+
+	}
+
+	/**
+	 * The input stream of the filter of a configuration, which takes the blocks of instances from
+	 * a queue filled by the task, waiting for them if needed.
+	 */
+	private static final class BlockStream extends AbstractOptionHandler implements InstanceStream {
+
+		/** Serializable */
+		private static final long serialVersionUID = -1290436173386592127L;
+
+		private final InstancesHeader header;
+
+		private final BlockingQueue<Instance[]> queue;
+
+		/** The block being read, already taken from the queue */
+		private Instance[] block;
+
+		/** The position of the next instance in the block */
+		private int position;
+
+		public BlockStream(InstancesHeader header, int capacity) {
+			this.header = header;
+			this.queue = new ArrayBlockingQueue<Instance[]>(capacity);
+		}
+
+		@Override
+		public InstancesHeader getHeader() {
+			return header;
+		}
+
+		@Override
+		public long estimatedRemainingInstances() {
+			return -1;
+		}
+
+		@Override
+		public boolean hasMoreInstances() {
+			while (block != END_OF_STREAM && (block == null || position == block.length)) {
+				try {
+					block = queue.take();
+					position = 0;
+				} catch (InterruptedException e) {
+					//the task was cancelled: end the stream, keeping the interruption status
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return block != END_OF_STREAM;
+		}
+
+		@Override
+		public Instance nextInstance() {
+			if (!hasMoreInstances()) {
+				return null;
+			}
+			return block[position++];
+		}
+
+		@Override
+		public boolean isRestartable() {
+			return false;
+		}
+
+		@Override
+		public void restart() {
+			throw new UnsupportedOperationException("The stream of a configuration can not be restarted.");
+		}
+
+		@Override
+		public void getDescription(StringBuilder sb, int indent) {
+			// TODO Auto-generated method stub
+		}
+
+		@Override
+		protected void prepareForUseImpl(TaskMonitor monitor, ObjectRepository repository) {
+			// nothing to prepare
+		}
+
+	}
+
+	/** Creates daemon threads, so that the workers never prevent the JVM from exiting */
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+			thread.setDaemon(true);
+			thread.setName("SweepAnonymize-" + thread.getName());
+			return thread;
+		}
+	}
+
+}
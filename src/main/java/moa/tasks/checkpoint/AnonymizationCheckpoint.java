@@ -0,0 +1,157 @@
+package moa.tasks.checkpoint;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.zip.GZIPInputStream;
+
+import moa.streams.InstanceStream;
+import moa.streams.filters.privacy.PrivacyFilter;
+import moa.tasks.output.BinaryInstanceWriter;
+
+/**
+ * Snapshot of an anonymization process, from which it can be resumed with exactly the same output
+ * it would have produced without interruption. It holds the full state of the privacy filter
+ * (buffers, random number generators, attribute observers and estimators), the number of instances
+ * read from the input stream and the lengths of the output files at the time it was taken.
+ * <p>
+ * The input stream of the filter is not part of the snapshot: a fresh stream, brought to the same
+ * point, is plugged into the filter when it is restored (see {@link #restoreFilter(InstanceStream)}).
+ */
+public class AnonymizationCheckpoint implements Serializable {
+
+	/** Serializable */
+	private static final long serialVersionUID = -6730526917016458713L;
+
+	/** The length of a file that is not written by the process */
+	public static final long NO_FILE = -1;
+
+	/** The number of instances read from the input stream */
+	public long consumedInstances;
+
+	/** The number of anonymized instances released by the filter */
+	public long anonymizedInstances;
+
+	/** The time spent by the process up to the snapshot */
+	public long runtimeMillis;
+
+	/** The lengths (in bytes) of the output files, or {@link #NO_FILE} */
+	public long arffFileLength = NO_FILE;
+	public long evaluationFileLength = NO_FILE;
+	public long throughputFileLength = NO_FILE;
+	public long latencyFileLength = NO_FILE;
+
+	/** The state of the binary writer, or {@code null} if there is no binary output */
+	public BinaryInstanceWriter.State binaryWriterState;
+	
+	/** The peak memory footprint of the filter sampled up to the snapshot, if it was sampled */
+	public long peakMemoryFootprint;
+
+	/** The serialized filter, without its input stream */
+	private byte[] filterState;
+
+	/**
+	 * Serializes the given filter into the checkpoint. The serialization takes place right away, so
+	 * that the filter can keep on processing instances while the checkpoint is being written.
+	 *
+	 * @param filter the filter to snapshot
+	 * @param inputStream the input stream of the filter, which is left out of the snapshot
+	 * @throws IOException if the filter can not be serialized
+	 */
+	public void setFilter(PrivacyFilter filter, InstanceStream inputStream) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream output = new StreamDetachingOutputStream(bytes, inputStream);
+		output.writeObject(filter);
+		output.close();
+		filterState = bytes.toByteArray();
+	}
+
+	/**
+	 * Restores the filter of the checkpoint, ready to keep on processing instances.
+	 *
+	 * @param inputStream the input stream of the restored filter, which must be positioned right
+	 * after the {@link #consumedInstances} first instances
+	 * @return the restored filter
+	 * @throws IOException if the filter can not be deserialized
+	 */
+	public PrivacyFilter restoreFilter(InstanceStream inputStream) throws IOException {
+		ObjectInputStream input = new StreamAttachingInputStream(
+				new ByteArrayInputStream(filterState), inputStream);
+		try {
+			return (PrivacyFilter) input.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Failed to restore the filter of the checkpoint.", e);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Reads the checkpoint stored in the given file (see {@link CheckpointWriter}).
+	 *
+	 * @param file the checkpoint file
+	 * @return the checkpoint
+	 * @throws IOException if the file can not be read or does not hold a checkpoint
+	 */
+	public static AnonymizationCheckpoint read(File file) throws IOException {
+		ObjectInputStream input = new ObjectInputStream(
+				new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+		try {
+			return (AnonymizationCheckpoint) input.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Not a checkpoint file: " + file, e);
+		} finally {
+			input.close();
+		}
+	}
+
+	/** Stands for the input stream of the filter in its serialized form */
+	private static final class DetachedStream implements Serializable {
+		private static final long serialVersionUID = 3146419862751405591L;
+	}
+
+	/** Replaces the given stream with a {@link DetachedStream} */
+	private static final class StreamDetachingOutputStream extends ObjectOutputStream {
+
+		private final InstanceStream stream;
+
+		public StreamDetachingOutputStream(OutputStream output, InstanceStream stream) throws IOException {
+			super(output);
+			this.stream = stream;
+			enableReplaceObject(true);
+		}
+
+		@Override
+		protected Object replaceObject(Object object) throws IOException {
+			return object == stream ? new DetachedStream() : object;
+		}
+
+	}
+
+	/** Replaces any {@link DetachedStream} with the given stream */
+	private static final class StreamAttachingInputStream extends ObjectInputStream {
+
+		private final InstanceStream stream;
+
+		public StreamAttachingInputStream(InputStream input, InstanceStream stream) throws IOException {
+			super(input);
+			this.stream = stream;
+			enableResolveObject(true);
+		}
+
+		@Override
+		protected Object resolveObject(Object object) throws IOException {
+			return object instanceof DetachedStream ? stream : object;
+		}
+
+	}
+
+}
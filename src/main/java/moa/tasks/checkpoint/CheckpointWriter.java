@@ -0,0 +1,117 @@
+package moa.tasks.checkpoint;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes {@link AnonymizationCheckpoint}s to a file from a background thread, so that the
+ * anonymization process does not wait on the disk.
+ * <p>
+ * Each checkpoint is first written (compressed) to a temporary file, which then atomically
+ * replaces the checkpoint file: an interruption at any time leaves the last complete checkpoint
+ * in place. At most one checkpoint is written at a time; a new one waits for the previous one.
+ */
+public class CheckpointWriter implements Closeable {
+
+	/** The extension of the temporary file */
+	private static final String TEMPORARY_EXTENSION = ".tmp";
+
+	private final File file;
+
+	private final File temporaryFile;
+
+	private final ExecutorService executor;
+
+	/** The checkpoint being written, if any */
+	private Future<Void> pendingWrite;
+
+	/**
+	 * Creates a writer for the given checkpoint file.
+	 *
+	 * @param file the checkpoint file
+	 */
+	public CheckpointWriter(File file) {
+		this.file = file;
+		this.temporaryFile = new File(file.getPath() + TEMPORARY_EXTENSION);
+		this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "CheckpointWriter");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Hands the given checkpoint to the writer thread. The checkpoint must not be modified afterwards.
+	 *
+	 * @param checkpoint the checkpoint to write
+	 * @throws IOException if the previous checkpoint could not be written
+	 */
+	public void write(final AnonymizationCheckpoint checkpoint) throws IOException {
+		awaitPendingWrite();
+		pendingWrite = executor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				FileOutputStream fileOutput = new FileOutputStream(temporaryFile);
+				try {
+					BufferedOutputStream bufferedOutput = new BufferedOutputStream(fileOutput);
+					GZIPOutputStream compressedOutput = new GZIPOutputStream(bufferedOutput);
+					ObjectOutputStream output = new ObjectOutputStream(compressedOutput);
+					output.writeObject(checkpoint);
+					output.flush();
+					compressedOutput.finish();
+					bufferedOutput.flush();
+					//make sure the checkpoint is on disk before it replaces the previous one
+					fileOutput.getFD().sync();
+				} finally {
+					fileOutput.close();
+				}
+				Files.move(temporaryFile.toPath(), file.toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				return null;
+			}
+		});
+	}
+
+	/** Waits for the checkpoint being written, if any */
+	private void awaitPendingWrite() throws IOException {
+		if (pendingWrite != null) {
+			try {
+				pendingWrite.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while writing the checkpoint.", e);
+			} catch (ExecutionException e) {
+				throw new IOException("Failed to write the checkpoint file: " + file, e.getCause());
+			} finally {
+				pendingWrite = null;
+			}
+		}
+	}
+
+	/** Waits for the checkpoint being written, if any, and stops the writer thread */
+	@Override
+	public void close() throws IOException {
+		try {
+			awaitPendingWrite();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
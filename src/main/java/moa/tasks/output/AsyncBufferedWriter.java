@@ -0,0 +1,290 @@
+package moa.tasks.output;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Writer} that hands the written characters to a dedicated thread, which is the one
+ * performing the actual (blocking) writes on the underlying writer.
+ * <p>
+ * Characters are accumulated in a ring of reusable buffers: once the current buffer is full,
+ * or once it has been holding characters for longer than the flush interval, it is handed to
+ * the writer thread and the next free buffer is used. The caller only waits if all the buffers
+ * are pending to be written, which bounds the memory used by the writer.
+ * <p>
+ * The flush interval is only checked by the caller, when it writes: the characters written just
+ * before the caller goes idle stay in the current buffer until its next write, {@link #flush()} or
+ * {@link #close()}. The buffers already handed off are written and flushed by the writer thread
+ * within the interval, even if the caller is idle.
+ * <p>
+ * Any error raised by the underlying writer is reported to the caller, wrapped in an
+ * {@link IOException}, on its next call to any of the methods of this writer. If the writer thread
+ * stops (e.g. it is interrupted), the caller gets an {@link IOException} instead of waiting for it
+ * forever.
+ */
+public class AsyncBufferedWriter extends Writer {
+
+	/** The time (in nanoseconds) the caller waits for the writer thread before checking that it is
+	 * still running */
+	private static final long WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/** The underlying writer, only used by the writer thread */
+	private final Writer out;
+
+	/** The buffers pending to be written, in order */
+	private final BlockingQueue<Chunk> pendingChunks;
+
+	/** The buffers already written, ready to be reused */
+	private final BlockingQueue<Chunk> freeChunks;
+
+	/** The buffer being filled by the caller */
+	private Chunk currentChunk;
+
+	/** The time (in nanoseconds) at which the current buffer got its first characters */
+	private long currentChunkStartTime;
+
+	/** The maximum time (in nanoseconds) that characters wait before being handed to the writer thread */
+	private final long flushIntervalNanos;
+
+	/** The thread performing the writes on the underlying writer */
+	private final Thread writerThread;
+
+	/** The first error raised by the underlying writer, if any */
+	private volatile Throwable failure;
+
+	private boolean closed;
+
+	/**
+	 * Builds an asynchronous writer and starts its writer thread.
+	 *
+	 * @param out the underlying writer
+	 * @param bufferSize the size (in characters) of each one of the buffers
+	 * @param numBuffers the number of buffers in the ring (at least 2)
+	 * @param flushIntervalMillis the maximum time that written characters are kept in a buffer
+	 * before being handed to the writer thread, checked on each write
+	 */
+	public AsyncBufferedWriter(Writer out, int bufferSize, int numBuffers, long flushIntervalMillis) {
+		this.out = out;
+		this.pendingChunks = new ArrayBlockingQueue<Chunk>(numBuffers + 1); //room for the final marker
+		this.freeChunks = new ArrayBlockingQueue<Chunk>(numBuffers);
+		for (int i = 1; i < numBuffers; ++i) {
+			freeChunks.add(new Chunk(bufferSize));
+		}
+		this.currentChunk = new Chunk(bufferSize);
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+		this.writerThread = new Thread(new WriterLoop(), "AsyncBufferedWriter");
+		this.writerThread.setDaemon(true);
+		this.writerThread.start();
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		checkState();
+		while (len > 0) {
+			int count = Math.min(len, currentChunk.data.length - currentChunk.length);
+			System.arraycopy(cbuf, off, currentChunk.data, currentChunk.length, count);
+			advance(count);
+			off += count;
+			len -= count;
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		checkState();
+		while (len > 0) {
+			int count = Math.min(len, currentChunk.data.length - currentChunk.length);
+			str.getChars(off, off + count, currentChunk.data, currentChunk.length);
+			advance(count);
+			off += count;
+			len -= count;
+		}
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		checkState();
+		currentChunk.data[currentChunk.length] = (char) c;
+		advance(1);
+	}
+
+	/** Accounts for {@code count} characters copied in the current buffer, handing it off if needed */
+	private void advance(int count) throws IOException {
+		if (currentChunk.length == 0) {
+			currentChunkStartTime = System.nanoTime();
+		}
+		currentChunk.length += count;
+		if (currentChunk.length == currentChunk.data.length
+				|| System.nanoTime() - currentChunkStartTime >= flushIntervalNanos) {
+			handOffCurrentChunk();
+		}
+	}
+
+	/** Hands the current buffer to the writer thread and takes a free one (waiting if necessary) */
+	private void handOffCurrentChunk() throws IOException {
+		if (currentChunk.length > 0) {
+			try {
+				putPendingChunk(currentChunk);
+				Chunk chunk;
+				while ((chunk = freeChunks.poll(WAIT_NANOS, TimeUnit.NANOSECONDS)) == null) {
+					checkWriterThread();
+				}
+				currentChunk = chunk;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the writer thread.");
+			}
+		}
+	}
+
+	/** Hands a buffer or marker to the writer thread, waiting while it is running and busy */
+	private void putPendingChunk(Chunk chunk) throws IOException, InterruptedException {
+		while (!pendingChunks.offer(chunk, WAIT_NANOS, TimeUnit.NANOSECONDS)) {
+			checkWriterThread();
+		}
+	}
+
+	/**
+	 * Hands all the written characters to the writer thread and waits until they have been
+	 * written and flushed on the underlying writer.
+	 */
+	@Override
+	public void flush() throws IOException {
+		checkState();
+		handOffCurrentChunk();
+		awaitMarker(new Chunk(new CountDownLatch(1), false));
+		checkState();
+	}
+
+	/** Writes all the pending characters, stops the writer thread and closes the underlying writer */
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			try {
+				handOffCurrentChunk();
+				awaitMarker(new Chunk(new CountDownLatch(1), true));
+			} finally {
+				closed = true;
+			}
+			checkFailure();
+		}
+	}
+
+	private void awaitMarker(Chunk marker) throws IOException {
+		try {
+			putPendingChunk(marker);
+			while (!marker.latch.await(WAIT_NANOS, TimeUnit.NANOSECONDS)) {
+				checkWriterThread();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the writer thread.");
+		}
+	}
+
+	private void checkState() throws IOException {
+		if (closed) {
+			throw new IOException("The writer is closed.");
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("The asynchronous writer failed.", failure);
+		}
+	}
+
+	/** Checks that the writer thread is still running, as the caller is waiting for it */
+	private void checkWriterThread() throws IOException {
+		if (!writerThread.isAlive()) {
+			throw new IOException("The writer thread of the asynchronous writer stopped.", failure);
+		}
+	}
+
+	/** A buffer of characters, or a marker requesting a flush (or close) of the underlying writer */
+	private static final class Chunk {
+
+		final char[] data;
+		int length;
+
+		final CountDownLatch latch;
+		final boolean closeRequest;
+
+		Chunk(int size) {
+			this.data = new char[size];
+			this.length = 0;
+			this.latch = null;
+			this.closeRequest = false;
+		}
+
+		Chunk(CountDownLatch latch, boolean closeRequest) {
+			this.data = null;
+			this.latch = latch;
+			this.closeRequest = closeRequest;
+		}
+
+		boolean isMarker() {
+			return latch != null;
+		}
+	}
+
+	/** The loop of the writer thread */
+	private final class WriterLoop implements Runnable {
+
+		@Override
+		public void run() {
+			boolean running = true;
+			while (running) {
+				Chunk chunk;
+				try {
+					chunk = pendingChunks.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+				} catch (InterruptedException e) {
+					failure = e;
+					return;
+				}
+				try {
+					if (chunk == null) {
+						//idle: make sure the written characters reach the disk
+						if (failure == null) {
+							out.flush();
+						}
+					}
+					else if (chunk.isMarker()) {
+						if (chunk.closeRequest) {
+							running = false;
+							out.close();
+						}
+						else if (failure == null) {
+							out.flush();
+						}
+					}
+					else if (failure == null) {
+						out.write(chunk.data, 0, chunk.length);
+					}
+				} catch (Throwable t) {
+					//keep consuming chunks (discarding them) to never block the caller
+					if (failure == null) {
+						failure = t;
+					}
+				} finally {
+					if (chunk != null) {
+						if (chunk.isMarker()) {
+							chunk.latch.countDown();
+						}
+						else {
+							chunk.length = 0;
+							freeChunks.add(chunk);
+						}
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,241 @@
+package moa.tasks.output;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import moa.core.InstancesHeader;
+import moa.streams.BinaryFileStream;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Utils;
+
+/**
+ * Writes instances to a binary columnar file, which can be read back with a {@link BinaryFileStream}
+ * (see its documentation for the file format).
+ * <p>
+ * Instances are accumulated in primitive column arrays and written in chunks of a fixed number of
+ * rows through a {@link FileChannel}, so no text formatting takes place. Only numeric (including
+ * date) and nominal attributes are supported.
+ */
+public class BinaryInstanceWriter implements Closeable {
+
+	/** The default number of rows of each chunk */
+	public static final int DEFAULT_CHUNK_ROWS = 4096;
+
+	private final FileChannel channel;
+
+	/** Whether each attribute is stored as a nominal (int) column or not */
+	private final boolean[] nominalColumns;
+
+	/** The columns of the chunk being filled (only one of both arrays is used for each attribute) */
+	private final double[][] numericColumns;
+	private final int[][] labelColumns;
+	private final double[] weights;
+
+	/** The number of rows of the chunk being filled */
+	private int rows;
+
+	/** The buffer used to write the chunks */
+	private final ByteBuffer chunkBuffer;
+
+	/**
+	 * Creates the file and writes its header block.
+	 *
+	 * @param file the destination file
+	 * @param header the header of the instances to write
+	 * @param chunkRows the number of rows of each chunk
+	 * @throws IOException if the file can not be written
+	 * @throws IllegalArgumentException if the header contains string or relational attributes
+	 */
+	public BinaryInstanceWriter(File file, InstancesHeader header, int chunkRows) throws IOException {
+		this(file, header, chunkRows, null);
+	}
+	
+	/**
+	 * Reopens a file written up to the given state (see {@link #getState()}), discarding anything
+	 * written after the state was taken, so that the writing continues from that point on. If the
+	 * state is {@code null}, the file is created and its header block written.
+	 *
+	 * @param file the destination file
+	 * @param header the header of the instances to write
+	 * @param chunkRows the number of rows of each chunk (the same one the state was taken with)
+	 * @param state the state of the writer to resume from, or {@code null}
+	 * @throws IOException if the file can not be written
+	 * @throws IllegalArgumentException if the header contains string or relational attributes
+	 */
+	public BinaryInstanceWriter(File file, InstancesHeader header, int chunkRows, State state) throws IOException {
+		final int numAttributes = header.numAttributes();
+		this.nominalColumns = new boolean[numAttributes];
+		this.numericColumns = new double[numAttributes][];
+		this.labelColumns = new int[numAttributes][];
+		int rowSize = 8; //the weight
+		for (int i = 0; i < numAttributes; ++i) {
+			Attribute attribute = header.attribute(i);
+			if (attribute.isNominal()) {
+				nominalColumns[i] = true;
+				labelColumns[i] = new int[chunkRows];
+				rowSize += 4;
+			}
+			else if (attribute.isNumeric()) {
+				numericColumns[i] = new double[chunkRows];
+				rowSize += 8;
+			}
+			else {
+				throw new IllegalArgumentException("Unsupported attribute type for the binary output: "
+						+ attribute.name());
+			}
+		}
+		this.weights = new double[chunkRows];
+		this.rows = 0;
+		this.chunkBuffer = ByteBuffer.allocateDirect(4 + rowSize * chunkRows).order(BinaryFileStream.BYTE_ORDER);
+		if (state == null) {
+			this.channel = new FileOutputStream(file).getChannel();
+			writeHeader(header);
+		}
+		else {
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			channel.truncate(state.length);
+			channel.position(state.length);
+			restoreRows(state);
+		}
+	}
+
+	private void writeHeader(InstancesHeader header) throws IOException {
+		byte[] arffHeader = header.toString().getBytes(BinaryFileStream.HEADER_CHARSET);
+		ByteBuffer buffer = ByteBuffer.allocate(16 + arffHeader.length).order(BinaryFileStream.BYTE_ORDER);
+		buffer.putInt(BinaryFileStream.MAGIC_NUMBER)
+			  .putInt(BinaryFileStream.FORMAT_VERSION)
+			  .putInt(header.classIndex())
+			  .putInt(arffHeader.length)
+			  .put(arffHeader);
+		buffer.flip();
+		writeFully(buffer);
+	}
+
+	/**
+	 * Adds the given instance to the file. The instance is actually written once its chunk is full.
+	 *
+	 * @param instance the instance to write
+	 * @throws IOException if the file can not be written
+	 */
+	public void write(Instance instance) throws IOException {
+		for (int i = 0; i < nominalColumns.length; ++i) {
+			double value = instance.value(i);
+			if (nominalColumns[i]) {
+				labelColumns[i][rows] = Utils.isMissingValue(value) ?
+						BinaryFileStream.MISSING_NOMINAL_VALUE : (int) value;
+			}
+			else {
+				numericColumns[i][rows] = value;
+			}
+		}
+		weights[rows] = instance.weight();
+		++rows;
+		if (rows == weights.length) {
+			writeChunk();
+		}
+	}
+
+	/** Writes the rows accumulated so far as a chunk */
+	private void writeChunk() throws IOException {
+		if (rows == 0) {
+			return;
+		}
+		chunkBuffer.clear();
+		chunkBuffer.putInt(rows);
+		for (int i = 0; i < nominalColumns.length; ++i) {
+			if (nominalColumns[i]) {
+				chunkBuffer.asIntBuffer().put(labelColumns[i], 0, rows);
+				chunkBuffer.position(chunkBuffer.position() + 4 * rows);
+			}
+			else {
+				chunkBuffer.asDoubleBuffer().put(numericColumns[i], 0, rows);
+				chunkBuffer.position(chunkBuffer.position() + 8 * rows);
+			}
+		}
+		chunkBuffer.asDoubleBuffer().put(weights, 0, rows);
+		chunkBuffer.position(chunkBuffer.position() + 8 * rows);
+		chunkBuffer.flip();
+		writeFully(chunkBuffer);
+		rows = 0;
+	}
+
+	private void writeFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Takes the state of the writer: the length of the chunks already written and a copy of the
+	 * rows of the chunk being filled.
+	 *
+	 * @return the state of the writer
+	 * @throws IOException if the length of the file can not be retrieved
+	 */
+	public State getState() throws IOException {
+		State state = new State();
+		state.length = channel.position();
+		state.rows = rows;
+		state.numericColumns = new double[nominalColumns.length][];
+		state.labelColumns = new int[nominalColumns.length][];
+		for (int i = 0; i < nominalColumns.length; ++i) {
+			if (nominalColumns[i]) {
+				state.labelColumns[i] = Arrays.copyOf(labelColumns[i], rows);
+			}
+			else {
+				state.numericColumns[i] = Arrays.copyOf(numericColumns[i], rows);
+			}
+		}
+		state.weights = Arrays.copyOf(weights, rows);
+		return state;
+	}
+	
+	private void restoreRows(State state) {
+		for (int i = 0; i < nominalColumns.length; ++i) {
+			if (nominalColumns[i]) {
+				System.arraycopy(state.labelColumns[i], 0, labelColumns[i], 0, state.rows);
+			}
+			else {
+				System.arraycopy(state.numericColumns[i], 0, numericColumns[i], 0, state.rows);
+			}
+		}
+		System.arraycopy(state.weights, 0, weights, 0, state.rows);
+		rows = state.rows;
+	}
+	
+	/** Writes the last (partial) chunk and closes the file */
+	@Override
+	public void close() throws IOException {
+		try {
+			writeChunk();
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/** The state of a writer, from which the writing of a file can be resumed */
+	public static class State implements Serializable {
+		
+		/** Serializable */
+		private static final long serialVersionUID = -1839066734474105267L;
+		
+		/** The length of the file, holding only complete chunks */
+		private long length;
+		
+		/** The rows of the chunk being filled */
+		private int rows;
+		private double[][] numericColumns;
+		private int[][] labelColumns;
+		private double[] weights;
+		
+	}
+
+}
@@ -0,0 +1,140 @@
+package moa.tasks.output;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import moa.streams.filters.privacy.utils.DoubleFormatter;
+import weka.core.AbstractInstance;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Serializes instances as ARFF data records, producing the same text as {@link Instance#toString()}.
+ * <p>
+ * The records are built in a reusable buffer and the quoted labels of the nominal attributes are
+ * computed once per header, so that no intermediate strings are created for each value. Only
+ * {@link DenseInstance}s with numeric and nominal attributes take the fast path, any other
+ * instance is serialized through {@link Instance#toString()}.
+ */
+public class InstanceSerializer {
+
+	/** The header of the serialized instances */
+	private final Instances header;
+
+	/** The maximum number of decimal digits of the numeric values */
+	private final int maxFractionDigits;
+
+	/** The quoted labels of each attribute, {@code null} for the numeric attributes */
+	private final String[][] quotedLabels;
+
+	/** Whether all the attributes are either numeric or nominal */
+	private final boolean fastPathSupported;
+
+	/** The reusable buffers in which the records are built */
+	private final StringBuilder builder;
+	private char[] chars;
+
+	/**
+	 * Builds a serializer for instances with the given header, using the same number of decimal
+	 * digits as {@link Instance#toString()}.
+	 *
+	 * @param header the header of the instances to serialize
+	 */
+	public InstanceSerializer(Instances header) {
+		this(header, AbstractInstance.s_numericAfterDecimalPoint);
+	}
+
+	/**
+	 * Builds a serializer for instances with the given header.
+	 *
+	 * @param header the header of the instances to serialize
+	 * @param maxFractionDigits the maximum number of decimal digits of the numeric values
+	 */
+	public InstanceSerializer(Instances header, int maxFractionDigits) {
+		this.header = header;
+		this.maxFractionDigits = maxFractionDigits;
+		this.quotedLabels = new String[header.numAttributes()][];
+		boolean supported = true;
+		for (int i = 0; i < header.numAttributes(); ++i) {
+			Attribute attribute = header.attribute(i);
+			if (attribute.isNominal()) {
+				quotedLabels[i] = new String[attribute.numValues()];
+				for (int j = 0; j < attribute.numValues(); ++j) {
+					quotedLabels[i][j] = Utils.quote(attribute.value(j));
+				}
+			}
+			else if (!attribute.isNumeric() || attribute.isDate()) {
+				supported = false;
+			}
+		}
+		this.fastPathSupported = supported;
+		this.builder = new StringBuilder(16 * header.numAttributes());
+		this.chars = new char[builder.capacity()];
+	}
+
+	/**
+	 * Writes the ARFF record of the given instance, followed by a new line, to the given writer.
+	 *
+	 * @param writer the destination writer
+	 * @param instance the instance to serialize
+	 * @throws IOException if the writer fails
+	 */
+	public void writeInstance(Writer writer, Instance instance) throws IOException {
+		builder.setLength(0);
+		appendInstance(builder, instance);
+		builder.append('\n');
+		final int length = builder.length();
+		if (chars.length < length) {
+			chars = new char[Math.max(length, 2 * chars.length)];
+		}
+		builder.getChars(0, length, chars, 0);
+		writer.write(chars, 0, length);
+	}
+
+	/**
+	 * Appends the ARFF record of the given instance to the given builder.
+	 *
+	 * @param builder the builder to append the record to
+	 * @param instance the instance to serialize
+	 * @return the given builder
+	 */
+	public StringBuilder appendInstance(StringBuilder builder, Instance instance) {
+		if (!canUseFastPath(instance)) {
+			return builder.append(instance.toString());
+		}
+		for (int i = 0; i < instance.numAttributes(); ++i) {
+			if (i > 0) {
+				builder.append(',');
+			}
+			double value = instance.value(i);
+			if (Utils.isMissingValue(value)) {
+				builder.append('?');
+			}
+			else if (quotedLabels[i] != null) {
+				int labelIndex = (int) value;
+				builder.append(labelIndex < quotedLabels[i].length ?
+						quotedLabels[i][labelIndex] : Utils.quote(instance.stringValue(i)));
+			}
+			else {
+				DoubleFormatter.appendTrimmed(builder, value, maxFractionDigits);
+			}
+		}
+		if (instance.weight() != 1.0) {
+			builder.append(",{");
+			DoubleFormatter.appendTrimmed(builder, instance.weight(), maxFractionDigits);
+			builder.append('}');
+		}
+		return builder;
+	}
+
+	private boolean canUseFastPath(Instance instance) {
+		return fastPathSupported
+				&& instance.getClass() == DenseInstance.class
+				&& instance.numAttributes() == header.numAttributes()
+				&& instance.dataset() != null;
+	}
+
+}